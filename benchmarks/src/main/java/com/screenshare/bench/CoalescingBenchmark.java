@@ -0,0 +1,101 @@
+// CoalescingBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.OutboundQueue;
+import com.screenshare.common.WireCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// Bursts of small non-urgent messages through OutboundQueue over loopback, closed by a
+// heartbeat (which flushes immediately). lingerMicros=0 is the write-per-message
+// baseline; the aux counters report write() calls and bytes per call.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoalescingBenchmark {
+    @Param({"0", "500"})
+    private long lingerMicros;
+
+    @Param({"16"})
+    private int burst;
+
+    @Param({"64"})
+    private int payloadSize;
+
+    private ServerSocketChannel listener;
+    private SocketChannel writer;
+    private SocketChannel reader;
+    private OutboundQueue queue;
+    private Message data;
+    private Message heartbeat;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Writes {
+        public long writeCalls;
+        public long bytesWritten;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writer = SocketChannel.open(listener.getLocalAddress());
+        writer.socket().setTcpNoDelay(true);
+        reader = listener.accept();
+        startDrainer(reader.socket().getInputStream());
+
+        queue = new OutboundQueue(writer, WireCodec.forVersion(2), lingerMicros, 64 * 1024, 16 * 1024);
+        data = new Message(MessageType.CLIENT_LIST, "CLIENT_1", new byte[payloadSize]);
+        data.setSessionId(1);
+        heartbeat = new Message(MessageType.HEARTBEAT, "CLIENT_1");
+        heartbeat.setSessionId(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        queue.close();
+        writer.close();
+        reader.close();
+        listener.close();
+    }
+
+    @Benchmark
+    public void burst(Writes writes) {
+        long calls = queue.getWriteCalls();
+        long bytes = queue.getBytesWritten();
+        for (int i = 0; i < burst; i++) {
+            queue.send(data);
+        }
+        queue.send(heartbeat);
+        writes.writeCalls += queue.getWriteCalls() - calls;
+        writes.bytesWritten += queue.getBytesWritten() - bytes;
+    }
+
+    private static void startDrainer(InputStream in) {
+        Thread thread = new Thread(() -> {
+            byte[] sink = new byte[64 * 1024];
+            try {
+                while (in.read(sink) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // Socket closed during tear down
+            }
+        }, "coalescing-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
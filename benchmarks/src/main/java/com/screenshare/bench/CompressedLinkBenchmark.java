@@ -0,0 +1,115 @@
+// CompressedLinkBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.bench.impair.ImpairmentProxy;
+import com.screenshare.bench.impair.LinkProfile;
+import com.screenshare.common.Compression;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.OutboundQueue;
+import com.screenshare.common.WireCodec;
+import com.screenshare.util.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// Sustained message rate through OutboundQueue into a decoding reader, with and without
+// compression. bandwidth=0 is plain loopback, where compression only costs CPU; otherwise
+// the connection goes through ImpairmentProxy capped at that many bytes per second, where
+// fewer bytes on the wire can outweigh the CPU. Bulk sends block once the link is full,
+// so the score is the rate the receiver actually keeps up with.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressedLinkBenchmark {
+    @Param({Compression.NONE, Compression.LZ, Compression.DEFLATE})
+    private String codec;
+
+    @Param({"text", "screen"})
+    private String kind;
+
+    // 0 = loopback; 2097152 = 16 Mbit/s
+    @Param({"0", "2097152"})
+    private long bandwidth;
+
+    @Param({"16384"})
+    private int size;
+
+    private ServerSocket listener;
+    private ImpairmentProxy proxy;
+    private SocketChannel writer;
+    private Socket reader;
+    private OutboundQueue queue;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Logger.setDebugEnabled(false);
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        if (bandwidth > 0) {
+            proxy = new ImpairmentProxy(target, null, LinkProfile.clean().withBandwidth(bandwidth));
+            proxy.start();
+            target = new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getTcpPort());
+        }
+        writer = SocketChannel.open(target);
+        writer.socket().setTcpNoDelay(true);
+        reader = listener.accept();
+
+        WireCodec encoder = codec(codec);
+        queue = new OutboundQueue(writer, encoder, 0, 64 * 1024, 16 * 1024);
+        startReceiver(new DataInputStream(new BufferedInputStream(reader.getInputStream(), 64 * 1024)), codec(codec));
+
+        message = new Message(MessageType.CLIENT_LIST, "CLIENT_1", Payloads.create(kind, size));
+        message.setSessionId(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        queue.close();
+        writer.close();
+        reader.close();
+        listener.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+    }
+
+    @Benchmark
+    public boolean send() {
+        return queue.send(message);
+    }
+
+    private static WireCodec codec(String compression) {
+        WireCodec codec = WireCodec.forVersion(2);
+        if (!compression.equals(Compression.NONE)) {
+            codec.setCompression(Compression.forName(compression), 256);
+        }
+        return codec;
+    }
+
+    private static void startReceiver(DataInputStream in, WireCodec codec) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    codec.read(in);
+                }
+            } catch (IOException e) {
+                // Socket closed during tear down
+            }
+        }, "link-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
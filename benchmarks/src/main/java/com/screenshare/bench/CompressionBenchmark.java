@@ -0,0 +1,59 @@
+// CompressionBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Compression;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Raw speed and ratio of the payload compressors. The compressedBytes counter divided
+// by the op count gives the output size; it is 0 for payloads sent uncompressed.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({Compression.LZ, Compression.DEFLATE})
+    private String codec;
+
+    @Param({"text", "screen", "noise"})
+    private String kind;
+
+    @Param({"65536"})
+    private int size;
+
+    private Compression compression;
+    private byte[] payload;
+    private byte[] compressed;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Output {
+        public long compressedBytes;
+    }
+
+    @Setup
+    public void setup() {
+        compression = Compression.forName(codec);
+        payload = Payloads.create(kind, size);
+        compressed = compression.compress(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public byte[] compress(Output output) {
+        byte[] result = compression.compress(payload, 0, payload.length);
+        if (result != null) {
+            output.compressedBytes += result.length;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        // Incompressible input is never sent compressed; measure the no-op path then
+        return compressed != null ? compression.decompress(compressed, size) : payload;
+    }
+}
@@ -0,0 +1,114 @@
+// FanOutBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.ClientHandler;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerBenchSupport;
+import com.screenshare.server.ServerConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One sender, N viewers connected over loopback. Each invocation relays a single
+// SCREEN_DATA message through ScreenShareServer.broadcastScreenData; the viewer
+// ends of the sockets are drained by background threads.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    @Param({"1", "10", "50"})
+    private int viewers;
+
+    @Param({"1024", "65536"})
+    private int payloadSize;
+
+    private ScreenShareServer server;
+    private ServerSocketChannel listener;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<Thread> drainers = new ArrayList<>();
+    private Message screenData;
+    private int senderSessionId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ServerConfig config = new ServerConfig();
+        // Measures the relay path, not the session budgets
+        config.setSessionIngressRate(0);
+        config.setSessionEgressRate(0);
+        server = new ScreenShareServer(config);
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), viewers + 1);
+
+        // The sender's own session; nothing is written to it
+        ClientHandler sender = ServerBenchSupport.register(server, connect());
+        senderSessionId = sender.getSessionId();
+
+        for (int i = 0; i < viewers; i++) {
+            ServerBenchSupport.register(server, connect());
+            drainers.add(startDrainer(sockets.get(sockets.size() - 2)));
+        }
+        server.notifyClientStartedSharing(sender);
+
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        screenData = new Message(MessageType.SCREEN_DATA, sender.getClientId(), payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        listener.close();
+        for (Thread drainer : drainers) {
+            drainer.interrupt();
+        }
+        sockets.clear();
+        drainers.clear();
+    }
+
+    @Benchmark
+    public void broadcastScreenData() {
+        server.broadcastScreenData(senderSessionId, screenData);
+    }
+
+    // Returns the server end of a fresh loopback connection; the viewer end is kept in sockets
+    private SocketChannel connect() throws IOException {
+        Socket viewerSide = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+        SocketChannel serverSide = listener.accept();
+        sockets.add(viewerSide);
+        sockets.add(serverSide.socket());
+        return serverSide;
+    }
+
+    private static Thread startDrainer(Socket socket) {
+        Thread thread = new Thread(() -> {
+            byte[] sink = new byte[64 * 1024];
+            try (InputStream in = socket.getInputStream()) {
+                while (in.read(sink) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // Socket closed during tear down
+            }
+        }, "viewer-drain");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
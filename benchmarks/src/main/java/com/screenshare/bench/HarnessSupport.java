@@ -0,0 +1,81 @@
+// HarnessSupport.java
+package com.screenshare.bench;
+
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerBenchSupport;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+
+// What the end-to-end harnesses have in common: a server on free loopback ports, run on
+// a thread of its own, and percentiles of sorted latency samples.
+public final class HarnessSupport {
+    private static final long START_TIMEOUT_MILLIS = 5000;
+
+    private HarnessSupport() {
+    }
+
+    // A default server config on free TCP and UDP ports, for the harness to adjust. The
+    // per-session budgets are off: harnesses push a sharer well past them on purpose.
+    public static ServerConfig serverConfig() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(freeTcpPort());
+        config.setUdpPort(freeUdpPort());
+        config.setSessionIngressRate(0);
+        config.setSessionEgressRate(0);
+        return config;
+    }
+
+    // Returns once the server accepts connections. It is not probed with one: that
+    // would be a session of its own, seen by everything the harness measures.
+    public static ScreenShareServer startServer(ServerConfig config) throws IOException, InterruptedException {
+        ScreenShareServer server = new ScreenShareServer(config);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                Logger.error("Harness server failed", e);
+            }
+        }, "harness-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (!ServerBenchSupport.isRunning(server)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IOException("Server did not start listening on port " + config.getPort());
+            }
+            Thread.sleep(20);
+        }
+        return server;
+    }
+
+    // The sample at or above fraction p of sorted, 0 without samples
+    public static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    // The same, for samples in nanoseconds, in milliseconds
+    public static double percentileMillis(long[] sorted, double p) {
+        return percentile(sorted, p) / 1_000_000.0;
+    }
+
+    private static int freeTcpPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
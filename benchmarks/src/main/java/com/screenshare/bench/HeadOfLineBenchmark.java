@@ -0,0 +1,103 @@
+// HeadOfLineBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.OutboundQueue;
+import com.screenshare.common.WireCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Heartbeat latency on a connection saturated with 1 MB SCREEN_DATA frames. One thread
+// keeps the bulk lane busy while the other times a heartbeat from send() until the
+// receiving codec returns it. chunkBytes=2147483647 disables fragmentation, so the
+// heartbeat waits behind whole frames. Socket buffers are capped at 128KB, as loopback
+// autotuning would otherwise queue megabytes in the kernel where no lane can reorder them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class HeadOfLineBenchmark {
+    private static final int SOCKET_BUFFER = 128 * 1024;
+
+    @Param({"16384", "2147483647"})
+    private int chunkBytes;
+
+    private ServerSocketChannel listener;
+    private SocketChannel writer;
+    private SocketChannel reader;
+    private OutboundQueue queue;
+    private Message screenData;
+    private final BlockingQueue<Long> heartbeats = new LinkedBlockingQueue<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.socket().setReceiveBufferSize(SOCKET_BUFFER);
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writer = SocketChannel.open();
+        writer.socket().setSendBufferSize(SOCKET_BUFFER);
+        writer.connect(listener.getLocalAddress());
+        writer.socket().setTcpNoDelay(true);
+        reader = listener.accept();
+
+        queue = new OutboundQueue(writer, WireCodec.forVersion(2), 0, 64 * 1024, chunkBytes);
+        screenData = new Message(MessageType.SCREEN_DATA, "CLIENT_1", new byte[1024 * 1024]);
+        screenData.setSessionId(1);
+        startReceiver(new DataInputStream(new BufferedInputStream(reader.socket().getInputStream(), 64 * 1024)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        queue.close();
+        writer.close();
+        reader.close();
+        listener.close();
+    }
+
+    @Benchmark
+    @Group("hol")
+    public void bulk() {
+        queue.send(screenData);
+    }
+
+    @Benchmark
+    @Group("hol")
+    public long heartbeat() throws InterruptedException {
+        Message heartbeat = new Message(MessageType.HEARTBEAT, "CLIENT_1");
+        heartbeat.setSessionId(1);
+        queue.send(heartbeat);
+        Long received = heartbeats.poll(5, TimeUnit.SECONDS);
+        return received != null ? received : -1;
+    }
+
+    private void startReceiver(DataInputStream in) {
+        Thread thread = new Thread(() -> {
+            WireCodec codec = WireCodec.forVersion(2);
+            try {
+                while (true) {
+                    Message message = codec.read(in);
+                    if (message.getType() == MessageType.HEARTBEAT) {
+                        heartbeats.add(System.nanoTime());
+                    }
+                }
+            } catch (IOException e) {
+                // Socket closed during tear down
+            }
+        }, "hol-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,77 @@
+// HeartbeatBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.util.HashedTimingWheel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Liveness bookkeeping at high session counts, using the server's wheel geometry and
+// default timings (heartbeat every 30s, 60s timeout, 100ms ticks).
+//   touch           - cost paid on every inbound message
+//   heartbeatTick   - one wheel tick plus the heartbeats that arrive during it
+//   expireOne       - schedule and fire a single eviction next to all live sessions
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeartbeatBenchmark {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+    private static final long CLIENT_TIMEOUT_MILLIS = 60000;
+    private static final int TICKS_PER_HEARTBEAT = 300;
+
+    @Param({"1000", "10000", "100000"})
+    private int sessions;
+
+    private HashedTimingWheel wheel;
+    private HashedTimingWheel.Timeout[] timeouts;
+    private int cursor;
+    private int touchesPerTick;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        wheel = new HashedTimingWheel(TICK_MILLIS, WHEEL_SIZE);
+        timeouts = new HashedTimingWheel.Timeout[sessions];
+        for (int i = 0; i < sessions; i++) {
+            // Spread the initial deadlines like sessions that connected at different times
+            long delay = CLIENT_TIMEOUT_MILLIS - (i % TICKS_PER_HEARTBEAT) * TICK_MILLIS;
+            timeouts[i] = wheel.schedule(HeartbeatBenchmark::evict, delay);
+        }
+        wheel.advance();
+        touchesPerTick = Math.max(1, sessions / TICKS_PER_HEARTBEAT);
+    }
+
+    @Benchmark
+    public void touch() {
+        timeouts[nextSession()].reschedule(CLIENT_TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    public int heartbeatTick() {
+        for (int i = 0; i < touchesPerTick; i++) {
+            timeouts[nextSession()].reschedule(CLIENT_TIMEOUT_MILLIS);
+        }
+        return wheel.advance();
+    }
+
+    @Benchmark
+    public int expireOne() {
+        // Keep the live sessions from expiring while the wheel spins
+        heartbeatTick();
+        wheel.schedule(HeartbeatBenchmark::evict, TICK_MILLIS);
+        return wheel.advance();
+    }
+
+    private int nextSession() {
+        int session = cursor;
+        cursor = session + 1 == sessions ? 0 : session + 1;
+        return session;
+    }
+
+    private static void evict() {
+        // Eviction work itself (closing a socket) is not part of the wheel's cost
+    }
+}
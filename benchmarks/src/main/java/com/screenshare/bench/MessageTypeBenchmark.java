@@ -0,0 +1,25 @@
+// MessageTypeBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageTypeBenchmark {
+
+    // First, middle and last declared constant
+    @Param({"1", "5", "10"})
+    private int value;
+
+    @Benchmark
+    public MessageType fromValue() {
+        return MessageType.fromValue(value);
+    }
+}
@@ -0,0 +1,41 @@
+// NetworkBufferBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.NetworkBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Appends TOTAL_BYTES in fixed size chunks, starting from a buffer that is too small,
+// so the cost of the growth policy in putBytes dominates.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBufferBenchmark {
+    private static final int TOTAL_BYTES = 1024 * 1024;
+
+    @Param({"1024", "65536"})
+    private int initialCapacity;
+
+    @Param({"512", "16384"})
+    private int chunkSize;
+
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        chunk = new byte[chunkSize];
+    }
+
+    @Benchmark
+    public NetworkBuffer putBytesGrowth() {
+        NetworkBuffer buffer = new NetworkBuffer(initialCapacity);
+        for (int written = 0; written < TOTAL_BYTES; written += chunkSize) {
+            buffer.putBytes(chunk);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,70 @@
+// Payloads.java
+package com.screenshare.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Deterministic sample payloads with different compressibility:
+//   text   - client-list style lines, highly repetitive
+//   screen - raw 24-bit pixels of a desktop-like image: flat panels and text-like
+//            strokes with a noisy photo region
+//   noise  - random bytes, like already-compressed JPEG data
+final class Payloads {
+    private Payloads() {
+    }
+
+    static byte[] create(String kind, int size) {
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        switch (kind) {
+            case "text":
+                fillText(data, random);
+                break;
+            case "screen":
+                fillScreen(data, random);
+                break;
+            case "noise":
+                random.nextBytes(data);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload kind: " + kind);
+        }
+        return data;
+    }
+
+    private static void fillText(byte[] data, Random random) {
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (text.length() < data.length) {
+            text.append("CLIENT_").append(i).append(" name=workstation-").append(random.nextInt(500))
+                    .append(" sharing=").append(random.nextBoolean())
+                    .append(" viewers=").append(random.nextInt(20)).append('\n');
+            i++;
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, data, 0, data.length);
+    }
+
+    private static void fillScreen(byte[] data, Random random) {
+        int width = 1280;
+        int pixels = data.length / 3;
+        for (int p = 0; p < pixels; p++) {
+            int x = p % width;
+            int y = p / width;
+            int rgb;
+            if (x > 900) {
+                // Photo-like region
+                rgb = random.nextInt(0x1000000);
+            } else if (y % 16 < 12 && x % 8 < 5 && ((x * 31 + y * 17) % 7) < 3) {
+                // Glyph strokes
+                rgb = 0x202020;
+            } else {
+                // Window background and panels
+                rgb = x < 240 ? 0xF0F0F0 : 0xFFFFFF;
+            }
+            data[p * 3] = (byte) (rgb >>> 16);
+            data[p * 3 + 1] = (byte) (rgb >>> 8);
+            data[p * 3 + 2] = (byte) rgb;
+        }
+    }
+}
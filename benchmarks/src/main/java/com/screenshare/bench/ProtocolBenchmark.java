@@ -0,0 +1,45 @@
+// ProtocolBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    @Param({"0", "64", "1024", "65536", "1048576"})
+    private int payloadSize;
+
+    private Message message;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        // Typical server generated id: CLIENT_<millis>_<remote address>
+        message = new Message(MessageType.SCREEN_DATA, "CLIENT_1718000000000_127.0.0.1:54231", payload);
+        serialized = Protocol.serialize(message);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return Protocol.serialize(message);
+    }
+
+    @Benchmark
+    public Message deserialize() throws IOException {
+        return Protocol.deserialize(serialized);
+    }
+}
@@ -0,0 +1,121 @@
+// RecordingBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Fragment;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.server.SessionRecorder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Sustained recording throughput with many shares recorded at once. Each op hands one
+// frame of the next share to SessionRecorder, whole or as 16KB pieces like a version 2
+// sharer sends it, and backs off while the writer's backlog is full instead of letting
+// the frame drop, so the score is the rate the writer thread gets frames onto disk,
+// group commits included. The aux counter turns that into payload bytes per second.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordingBenchmark {
+    private static final int PIECE_BYTES = 16 * 1024;
+
+    @Param({"10", "50"})
+    private int shares;
+
+    @Param({"65536"})
+    private int frameSize;
+
+    @Param({"false", "true"})
+    private boolean streamed;
+
+    private Path directory;
+    private SessionRecorder recorder;
+    private Message frame;
+    private Message[] pieces;
+    private int next;
+    private int streamId;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Recorded {
+        public long bytesRecorded;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("recording-bench");
+        ServerConfig config = new ServerConfig();
+        config.setRecordingEnabled(true);
+        config.setRecordingPath(directory.toString());
+        config.setRecordingSharers("*");
+        recorder = new SessionRecorder(config);
+        recorder.start();
+        for (int share = 1; share <= shares; share++) {
+            recorder.begin(share, "CLIENT_" + share, "", List.of());
+        }
+
+        byte[] payload = Payloads.create("noise", frameSize);
+        frame = new Message(MessageType.SCREEN_DATA, "CLIENT_1", payload);
+        pieces = new Message[(frameSize + PIECE_BYTES - 1) / PIECE_BYTES];
+        for (int i = 0; i < pieces.length; i++) {
+            int offset = i * PIECE_BYTES;
+            byte[] piece = new byte[Math.min(PIECE_BYTES, frameSize - offset)];
+            System.arraycopy(payload, offset, piece, 0, piece.length);
+            pieces[i] = new Message(MessageType.SCREEN_DATA, "CLIENT_1", piece);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        recorder.stop();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void record(Recorded recorded) {
+        int share = next % shares + 1;
+        next++;
+        if (!streamed) {
+            while (!recorder.record(share, frame)) {
+                LockSupport.parkNanos(10_000);
+            }
+        } else {
+            // Waits for room for the whole frame before its first piece, as a frame is
+            // admitted or dropped on that piece
+            long dropped = recorder.getDroppedFrames();
+            int stream = ++streamId;
+            while (true) {
+                recorder.recordPiece(share, piece(0, stream));
+                if (recorder.getDroppedFrames() == dropped) {
+                    break;
+                }
+                dropped = recorder.getDroppedFrames();
+                LockSupport.parkNanos(10_000);
+            }
+            for (int i = 1; i < pieces.length; i++) {
+                recorder.recordPiece(share, piece(i, stream));
+            }
+        }
+        recorded.bytesRecorded += frameSize;
+    }
+
+    private Message piece(int index, int stream) {
+        Message piece = pieces[index];
+        piece.setFragment(new Fragment(stream, index * PIECE_BYTES, frameSize));
+        return piece;
+    }
+}
@@ -0,0 +1,72 @@
+// WireFormatBenchmark.java
+package com.screenshare.bench;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.WireCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Framing cost of the negotiated wire versions for small, high-rate messages
+// (heartbeats, cursor-sized updates). encode() returns the encoded frame size.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+
+    @Param({"1", "2"})
+    private int version;
+
+    @Param({"0", "16", "1024"})
+    private int payloadSize;
+
+    private WireCodec encoder;
+    private WireCodec decoder;
+    private Message message;
+    private final List<ByteBuffer> encoded = new ArrayList<>();
+    private ByteArrayInputStream frame;
+    private DataInputStream in;
+
+    @Setup
+    public void setup() throws IOException {
+        encoder = WireCodec.forVersion(version);
+        decoder = WireCodec.forVersion(version);
+        message = new Message(MessageType.HEARTBEAT, "CLIENT_4711", payloadSize > 0 ? new byte[payloadSize] : null);
+        message.setSessionId(4711);
+
+        // Second frame of the connection, so version 2 sends a timestamp delta
+        WireCodec primer = WireCodec.forVersion(version);
+        primer.encode(message, new ArrayList<>());
+        List<ByteBuffer> second = new ArrayList<>();
+        primer.encode(message, second);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : second) {
+            bytes.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        frame = new ByteArrayInputStream(bytes.toByteArray());
+        in = new DataInputStream(frame);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        encoded.clear();
+        return encoder.encode(message, encoded);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        frame.reset();
+        return decoder.read(in);
+    }
+}
@@ -0,0 +1,154 @@
+// AcceptStormHarness.java
+package com.screenshare.bench.accept;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.WireCodecV1;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Opens a burst of connections at once against a server accepting on one socket, then
+// against one accepting on several SO_REUSEPORT shards, and reports how fast they were
+// accepted and how long each took from connect() to the server's welcome. Report only;
+// the gain depends on the cores the box has, so there is nothing to assert:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.accept.AcceptStormHarness [connects] [shards]
+public class AcceptStormHarness {
+    private static final int DEFAULT_CONNECTS = 5000;
+    private static final int DEFAULT_SHARDS = 4;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int connects = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTS;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SHARDS;
+
+        // Not reported; only so the first measured run is not the one paying for the JIT
+        run(Math.max(1, connects / 5), 1);
+
+        List<Result> results = new ArrayList<>();
+        results.add(run(connects, 1));
+        results.add(run(connects, shards));
+
+        System.out.println();
+        System.out.println(String.format("%-8s %8s %8s %10s %8s %8s %8s %8s  %s",
+                "shards", "welcomed", "failed", "accepts/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "per shard"));
+        for (Result result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static Result run(int connects, int shards) throws Exception {
+        ScreenShareServer server = startServer(connects, shards);
+        int port = server.getConfig().getPort();
+        ConcurrentLinkedQueue<Socket> open = new ConcurrentLinkedQueue<>();
+        long[] latencies = new long[connects];
+        AtomicInteger welcomed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connects);
+
+        long elapsed;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connects; i++) {
+                int index = i;
+                clients.execute(() -> {
+                    try {
+                        ready.await();
+                        long start = System.nanoTime();
+                        Socket socket = new Socket();
+                        open.add(socket);
+                        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        Message welcome = new WireCodecV1().read(in);
+                        if (welcome.getType() == MessageType.CONNECT_RESPONSE) {
+                            latencies[index] = System.nanoTime() - start;
+                            welcomed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            long burstStart = System.nanoTime();
+            ready.countDown();
+            done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            elapsed = System.nanoTime() - burstStart;
+        }
+
+        Result result = new Result(server.getShardCount(), welcomed.get(), failed.get(),
+                elapsed, latencies, server.describeShards());
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        server.stop();
+        return result;
+    }
+
+    private static ScreenShareServer startServer(int connects, int shards) throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        // One reader thread per connection. Shards split the pool evenly but the kernel does
+        // not split connections exactly evenly, so each shard gets enough for all of them;
+        // fixed pools only start the threads they are given work for
+        serverConfig.setMaxClients(connects + 1);
+        serverConfig.setThreadPoolSize((connects + 1) * shards);
+        serverConfig.setAcceptShards(shards);
+        serverConfig.setAcceptBacklog(connects);
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    // The probe connection takes a session too, which is why maxClients has one spare
+    static final class Result {
+        final int shards;
+        final int welcomed;
+        final int failed;
+        final long elapsedNanos;
+        final long[] latencies;
+        final String perShard;
+
+        Result(int shards, int welcomed, int failed, long elapsedNanos, long[] latencies, String perShard) {
+            this.shards = shards;
+            this.welcomed = welcomed;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = Arrays.stream(latencies).filter(latency -> latency > 0).sorted().toArray();
+            this.perShard = perShard;
+        }
+
+        private double percentile(double p) {
+            return HarnessSupport.percentileMillis(latencies, p);
+        }
+
+        @Override
+        public String toString() {
+            double rate = welcomed / (elapsedNanos / 1_000_000_000.0);
+            return String.format("%-8d %8d %8d %10.0f %8.1f %8.1f %8.1f %8.1f  %s", shards, welcomed, failed, rate,
+                    percentile(0.50), percentile(0.95), percentile(0.99), percentile(1.0), perShard);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+// ImpairedLinkHarness.java
+package com.screenshare.bench.impair;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.FrameSource;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Compression;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a real server and a sharer/viewer pair through an ImpairmentProxy for every
+// link profile and asserts frame latency and throughput targets. Exits with status 1
+// when any profile misses its target, so it can gate a CI job:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.impair.ImpairedLinkHarness
+public class ImpairedLinkHarness {
+    private static final int FRAME_SIZE = 32 * 1024;
+    private static final int FRAMES_PER_SECOND = 15;
+    private static final long RUN_MILLIS = 6000;
+    private static final long DRAIN_MILLIS = 5000;
+    // Adaptive runs: frame size scales with encoder quality, like JPEG roughly does
+    private static final int FULL_QUALITY_FRAME_SIZE = 40 * 1024;
+    // What was already in flight when the link collapsed has to drain first
+    private static final long SETTLE_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+
+        List<Result> results = new ArrayList<>();
+        results.add(run(LinkProfile.clean(), null, new Target(50, 0.99), RUN_MILLIS));
+        results.add(run(LinkProfile.wifi(), null, new Target(300, 0.99), RUN_MILLIS));
+        results.add(run(LinkProfile.vpn(), null, new Target(250, 0.99), RUN_MILLIS));
+        results.add(run(LinkProfile.congested(), null, new Target(700, 0.95), RUN_MILLIS));
+
+        // Latency must come back under the Wi-Fi target once the link has recovered
+        ImpairmentScenario drop = ImpairmentScenario.bandwidthDrop(2000, 5000, 128 * 1024);
+        results.add(run(drop.getSteps().get(0).getProfile(), drop, new Target(300, 0.95), 9000));
+
+        // With the sharer's bitrate controller in charge, latency must stay bounded while
+        // the link is down as well, not only after it recovers
+        ImpairmentScenario adaptiveDrop = ImpairmentScenario.bandwidthDrop(3000, 11000, 128 * 1024);
+        results.add(runAdaptive(adaptiveDrop, new Target(500, 0.99), 16000));
+
+        boolean allPassed = true;
+        System.out.println();
+        System.out.println(String.format("%-16s %8s %8s %8s %10s %10s  %s",
+                "profile", "frames", "p50 ms", "p95 ms", "max ms", "delivered", "result"));
+        for (Result result : results) {
+            System.out.println(result);
+            allPassed &= result.passed();
+        }
+        System.exit(allPassed ? 0 : 1);
+    }
+
+    static Result run(LinkProfile profile, ImpairmentScenario scenario, Target target, long runMillis)
+            throws Exception {
+        ScreenShareServer server = startServer();
+        ImpairmentProxy proxy = startProxy(server, profile);
+
+        FrameProbe probe = new FrameProbe();
+        ScreenShareClient viewer = new ScreenShareClient(clientConfig(proxy));
+        viewer.setMessageListener(probe::onMessage);
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(proxy));
+
+        try {
+            if (!viewer.connect() || !sharer.connect()) {
+                throw new IOException("Harness clients could not connect through the proxy");
+            }
+            // Let both server handlers register before the first frame
+            Thread.sleep(200);
+
+            if (scenario != null) {
+                proxy.play(scenario);
+            }
+            long start = System.nanoTime();
+            long frameInterval = TimeUnit.SECONDS.toNanos(1) / FRAMES_PER_SECOND;
+            int sent = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(runMillis)) {
+                byte[] payload = new byte[FRAME_SIZE];
+                ByteBuffer.wrap(payload).putLong(System.nanoTime());
+                if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                    sent++;
+                }
+                long next = start + sent * frameInterval;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+            }
+
+            long drainDeadline = System.currentTimeMillis() + DRAIN_MILLIS;
+            while (probe.count() < sent && System.currentTimeMillis() < drainDeadline) {
+                Thread.sleep(50);
+            }
+
+            // For scenarios only frames sent after the link recovered (plus a grace
+            // period for the backlog to drain) count towards the latency target.
+            long measureFrom = scenario == null ? start
+                    : start + TimeUnit.MILLISECONDS.toNanos(scenario.getLastStepMillis() + 2500);
+            String name = scenario == null ? profile.getName() : scenario.getName();
+            return new Result(name, sent, probe.count(), probe.latenciesSince(measureFrom), target);
+        } finally {
+            viewer.disconnect();
+            sharer.disconnect();
+            proxy.close();
+            server.stop();
+        }
+    }
+
+    // The sharer streams through its own capture loop, paced by receiver reports, instead
+    // of at a fixed rate. Only frames sent from SETTLE_MILLIS into the bandwidth drop onwards
+    // count: the controller needs a few reports to notice the drop, and the ~1MB queued
+    // in the emulated link at full rate drains at the dropped bandwidth regardless.
+    static Result runAdaptive(ImpairmentScenario scenario, Target target, long runMillis) throws Exception {
+        ScreenShareServer server = startServer();
+        ImpairmentProxy proxy = startProxy(server, scenario.getSteps().get(0).getProfile());
+
+        FrameProbe probe = new FrameProbe();
+        ScreenShareClient viewer = new ScreenShareClient(clientConfig(proxy));
+        viewer.setMessageListener(probe::onMessage);
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(proxy));
+        SyntheticFrameSource source = new SyntheticFrameSource();
+
+        try {
+            if (!viewer.connect() || !sharer.connect()) {
+                throw new IOException("Harness clients could not connect through the proxy");
+            }
+            Thread.sleep(200);
+
+            proxy.play(scenario);
+            long start = System.nanoTime();
+            sharer.startSharing(source);
+            long dropAt = scenario.getSteps().get(1).getAtMillis();
+            Thread.sleep(dropAt + SETTLE_MILLIS);
+            String duringDrop = sharer.getBitrateController().describe();
+            Thread.sleep(runMillis - dropAt - SETTLE_MILLIS);
+            sharer.stopSharing();
+            String recovered = sharer.getBitrateController().describe();
+
+            int sent = source.frames.get();
+            long drainDeadline = System.currentTimeMillis() + DRAIN_MILLIS;
+            while (probe.count() < sent && System.currentTimeMillis() < drainDeadline) {
+                Thread.sleep(50);
+            }
+            System.out.println("adaptive: during drop " + duringDrop + "; after recovery " + recovered);
+
+            long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(dropAt + SETTLE_MILLIS);
+            return new Result("adaptive-drop", sent, probe.count(), probe.latenciesSince(measureFrom), target);
+        } finally {
+            viewer.disconnect();
+            sharer.disconnect();
+            proxy.close();
+            server.stop();
+        }
+    }
+
+    // Slow links are what payload compression is for, and the targets were set with it on
+    private static ScreenShareServer startServer() throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        serverConfig.setCompression(Compression.SUPPORTED);
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    private static ImpairmentProxy startProxy(ScreenShareServer server, LinkProfile profile) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ImpairmentProxy proxy = new ImpairmentProxy(
+                new InetSocketAddress(loopback, server.getConfig().getPort()),
+                new InetSocketAddress(loopback, server.getConfig().getUdpPort()),
+                profile);
+        proxy.start();
+        return proxy;
+    }
+
+    private static ClientConfig clientConfig(ImpairmentProxy proxy) {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost("127.0.0.1");
+        config.setServerPort(proxy.getTcpPort());
+        config.setServerUdpPort(proxy.getUdpPort());
+        config.setCompression(Compression.SUPPORTED);
+        config.setReconnectAttempts(5);
+        config.setReconnectDelay(200);
+        return config;
+    }
+
+    static final class SyntheticFrameSource implements FrameSource {
+        final AtomicInteger frames = new AtomicInteger();
+
+        @Override
+        public byte[] capture(float quality) {
+            byte[] payload = new byte[Math.max(Long.BYTES, (int) (FULL_QUALITY_FRAME_SIZE * quality))];
+            ByteBuffer.wrap(payload).putLong(System.nanoTime());
+            frames.incrementAndGet();
+            return payload;
+        }
+    }
+
+    static final class FrameProbe {
+        private final List<long[]> samples = new ArrayList<>();
+
+        void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Long.BYTES) {
+                return;
+            }
+            long sentAt = ByteBuffer.wrap(message.getPayload()).getLong();
+            long now = System.nanoTime();
+            synchronized (samples) {
+                samples.add(new long[]{sentAt, now - sentAt});
+            }
+        }
+
+        int count() {
+            synchronized (samples) {
+                return samples.size();
+            }
+        }
+
+        List<Long> latenciesSince(long sentAfterNanos) {
+            List<Long> latencies = new ArrayList<>();
+            synchronized (samples) {
+                for (long[] sample : samples) {
+                    if (sample[0] >= sentAfterNanos) {
+                        latencies.add(sample[1]);
+                    }
+                }
+            }
+            Collections.sort(latencies);
+            return latencies;
+        }
+    }
+
+    static final class Target {
+        final long maxP95Millis;
+        final double minDeliveredRatio;
+
+        Target(long maxP95Millis, double minDeliveredRatio) {
+            this.maxP95Millis = maxP95Millis;
+            this.minDeliveredRatio = minDeliveredRatio;
+        }
+    }
+
+    static final class Result {
+        final String name;
+        final int sent;
+        final int received;
+        final List<Long> latencies;
+        final Target target;
+
+        Result(String name, int sent, int received, List<Long> latencies, Target target) {
+            this.name = name;
+            this.sent = sent;
+            this.received = received;
+            this.latencies = latencies;
+            this.target = target;
+        }
+
+        double percentileMillis(double p) {
+            if (latencies.isEmpty()) return Double.NaN;
+            int index = (int) Math.min(latencies.size() - 1, Math.ceil(p * latencies.size()) - 1);
+            return latencies.get(Math.max(0, index)) / 1_000_000.0;
+        }
+
+        double deliveredRatio() {
+            return sent == 0 ? 0 : (double) received / sent;
+        }
+
+        boolean passed() {
+            double p95 = percentileMillis(0.95);
+            return !Double.isNaN(p95) && p95 <= target.maxP95Millis
+                    && deliveredRatio() >= target.minDeliveredRatio;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %8d %8.1f %8.1f %10.1f %9.1f%%  %s (p95 <= %dms, delivered >= %.0f%%)",
+                    name, sent, percentileMillis(0.5), percentileMillis(0.95), percentileMillis(1.0),
+                    deliveredRatio() * 100, passed() ? "PASS" : "FAIL",
+                    target.maxP95Millis, target.minDeliveredRatio * 100);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+// ImpairmentProxy.java
+package com.screenshare.bench.impair;
+
+import com.screenshare.util.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Localhost TCP + UDP proxy that plays a LinkProfile between ScreenShareClient and
+// ScreenShareServer. Every client connection gets its own link (one shaper per
+// direction), like a separate machine on its own Wi-Fi or VPN.
+//
+// TCP is a byte stream, so loss cannot drop data: a "lost" chunk is held back for a
+// retransmission timeout instead, and later chunks queue behind it. Reordering only
+// applies to UDP datagrams. The bottleneck holds at most BOTTLENECK_QUEUE_MILLIS of
+// data: TCP senders are back-pressured beyond that, excess datagrams are tail-dropped.
+public class ImpairmentProxy implements Closeable {
+    private static final int TCP_CHUNK_SIZE = 16 * 1024;
+    private static final long MIN_RTO_MILLIS = 200;
+    private static final long BOTTLENECK_QUEUE_MILLIS = 100;
+
+    private final InetSocketAddress tcpUpstream;
+    private final InetSocketAddress udpUpstream;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "impairment-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<SocketAddress, UdpRelay> udpRelays = new ConcurrentHashMap<>();
+    private final Map<Socket, Boolean> tcpSockets = new ConcurrentHashMap<>();
+
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private final AtomicLong tcpRetransmits = new AtomicLong();
+    private final AtomicLong datagramsDropped = new AtomicLong();
+    private final AtomicLong datagramsReordered = new AtomicLong();
+
+    private volatile LinkProfile profile;
+    private ServerSocket tcpListener;
+    private DatagramSocket udpSocket;
+
+    public ImpairmentProxy(InetSocketAddress tcpUpstream, InetSocketAddress udpUpstream, LinkProfile profile) {
+        this.tcpUpstream = tcpUpstream;
+        this.udpUpstream = udpUpstream;
+        this.profile = profile;
+    }
+
+    public void start() throws IOException {
+        tcpListener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        running.set(true);
+        startDaemon("impairment-accept", this::acceptLoop);
+
+        if (udpUpstream != null) {
+            udpSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            startDaemon("impairment-udp", this::udpLoop);
+        }
+
+        Logger.info("Impairment proxy on tcp:" + getTcpPort() +
+                (udpSocket != null ? " udp:" + getUdpPort() : "") + " -> " + tcpUpstream + " with " + profile);
+    }
+
+    public int getTcpPort() {
+        return tcpListener.getLocalPort();
+    }
+
+    public int getUdpPort() {
+        return udpSocket != null ? udpSocket.getLocalPort() : -1;
+    }
+
+    public LinkProfile getProfile() {
+        return profile;
+    }
+
+    // Takes effect for every chunk or datagram read after the call
+    public void setProfile(LinkProfile profile) {
+        Logger.info("Impairment proxy switching to " + profile);
+        this.profile = profile;
+    }
+
+    public void play(ImpairmentScenario scenario) {
+        for (ImpairmentScenario.Step step : scenario.getSteps()) {
+            timer.schedule(() -> setProfile(step.getProfile()), step.getAtMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long getBytesForwarded() { return bytesForwarded.get(); }
+    public long getTcpRetransmits() { return tcpRetransmits.get(); }
+    public long getDatagramsDropped() { return datagramsDropped.get(); }
+    public long getDatagramsReordered() { return datagramsReordered.get(); }
+
+    @Override
+    public void close() {
+        running.set(false);
+        closeQuietly(tcpListener);
+        closeQuietly(udpSocket);
+        for (Socket socket : tcpSockets.keySet()) {
+            closeQuietly(socket);
+        }
+        for (UdpRelay relay : udpRelays.values()) {
+            closeQuietly(relay.upstreamSocket);
+        }
+        timer.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running.get()) {
+            try {
+                Socket downstream = tcpListener.accept();
+                Socket upstream = new Socket(tcpUpstream.getAddress(), tcpUpstream.getPort());
+                downstream.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+                tcpSockets.put(downstream, Boolean.TRUE);
+                tcpSockets.put(upstream, Boolean.TRUE);
+
+                new TcpPipe("up", downstream, upstream).start();
+                new TcpPipe("down", upstream, downstream).start();
+            } catch (IOException e) {
+                if (running.get()) {
+                    Logger.error("Impairment proxy accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void udpLoop() {
+        byte[] buffer = new byte[65535];
+        while (running.get()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                udpSocket.receive(packet);
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+
+                UdpRelay relay = udpRelays.computeIfAbsent(packet.getSocketAddress(), this::openUdpRelay);
+                if (relay != null) {
+                    relay.upShaper.sendLater(data, relay.upstreamSocket, udpUpstream);
+                }
+            } catch (IOException e) {
+                if (running.get()) {
+                    Logger.error("Impairment proxy UDP receive failed", e);
+                }
+            }
+        }
+    }
+
+    private UdpRelay openUdpRelay(SocketAddress client) {
+        try {
+            UdpRelay relay = new UdpRelay(client, new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            startDaemon("impairment-udp-reply", relay::replyLoop);
+            return relay;
+        } catch (SocketException e) {
+            Logger.error("Impairment proxy could not open UDP relay for " + client, e);
+            return null;
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Serialization delay for one direction of one link: a chunk can only start
+    // transmitting once the previous one has left, at the profile's bandwidth.
+    private final class Shaper {
+        private long linkFreeAtNanos;
+
+        synchronized long departureNanos(int bytes, LinkProfile link) {
+            long now = System.nanoTime();
+            long start = Math.max(now, linkFreeAtNanos);
+            long transmit = link.getBandwidthBytesPerSec() > 0
+                    ? bytes * 1_000_000_000L / link.getBandwidthBytesPerSec()
+                    : 0;
+            linkFreeAtNanos = start + transmit;
+            return linkFreeAtNanos;
+        }
+
+        synchronized long queuedNanos() {
+            return Math.max(0, linkFreeAtNanos - System.nanoTime());
+        }
+
+        void awaitQueueRoom() {
+            long excess;
+            while ((excess = queuedNanos() - TimeUnit.MILLISECONDS.toNanos(BOTTLENECK_QUEUE_MILLIS)) > 0) {
+                LockSupport.parkNanos(excess);
+            }
+        }
+
+        long propagationNanos(LinkProfile link) {
+            long delayMs = link.getLatencyMs();
+            if (link.getJitterMs() > 0) {
+                delayMs += ThreadLocalRandom.current().nextLong(-link.getJitterMs(), link.getJitterMs() + 1);
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        }
+
+        void sendLater(byte[] data, DatagramSocket socket, SocketAddress target) {
+            LinkProfile link = profile;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < link.getLossRate()
+                    || queuedNanos() > TimeUnit.MILLISECONDS.toNanos(BOTTLENECK_QUEUE_MILLIS)) {
+                datagramsDropped.incrementAndGet();
+                return;
+            }
+
+            long deliverAt = departureNanos(data.length, link) + propagationNanos(link);
+            if (random.nextDouble() < link.getReorderRate()) {
+                // Hold it back long enough for the next datagrams to overtake it
+                deliverAt += TimeUnit.MILLISECONDS.toNanos(link.getJitterMs() + 10L);
+                datagramsReordered.incrementAndGet();
+            }
+
+            timer.schedule(() -> {
+                try {
+                    socket.send(new DatagramPacket(data, data.length, target));
+                    bytesForwarded.addAndGet(data.length);
+                } catch (IOException e) {
+                    if (running.get()) {
+                        Logger.error("Impairment proxy UDP send failed", e);
+                    }
+                }
+            }, Math.max(0, deliverAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final class TcpPipe {
+        private final String direction;
+        private final Socket from;
+        private final Socket to;
+        private final Shaper shaper = new Shaper();
+        private final BlockingQueue<Chunk> inFlight = new LinkedBlockingQueue<>();
+        private long lastDeliverAt;
+
+        TcpPipe(String direction, Socket from, Socket to) {
+            this.direction = direction;
+            this.from = from;
+            this.to = to;
+        }
+
+        void start() {
+            startDaemon("impairment-tcp-" + direction + "-read", this::readLoop);
+            startDaemon("impairment-tcp-" + direction + "-write", this::writeLoop);
+        }
+
+        private void readLoop() {
+            try (InputStream in = from.getInputStream()) {
+                byte[] buffer = new byte[TCP_CHUNK_SIZE];
+                int read;
+                while (true) {
+                    shaper.awaitQueueRoom();
+                    if ((read = in.read(buffer)) < 0) {
+                        break;
+                    }
+                    byte[] data = new byte[read];
+                    System.arraycopy(buffer, 0, data, 0, read);
+                    inFlight.put(new Chunk(data, deliverAt(read)));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed on one side
+            }
+            inFlight.add(Chunk.END);
+        }
+
+        private long deliverAt(int bytes) {
+            LinkProfile link = profile;
+            long deliverAt = shaper.departureNanos(bytes, link) + shaper.propagationNanos(link);
+            if (ThreadLocalRandom.current().nextDouble() < link.getLossRate()) {
+                long rto = Math.max(MIN_RTO_MILLIS, 2L * (link.getLatencyMs() + link.getJitterMs()));
+                deliverAt += TimeUnit.MILLISECONDS.toNanos(rto);
+                tcpRetransmits.incrementAndGet();
+            }
+            // Byte stream: nothing overtakes a delayed chunk
+            lastDeliverAt = Math.max(lastDeliverAt, deliverAt);
+            return lastDeliverAt;
+        }
+
+        private void writeLoop() {
+            try (OutputStream out = to.getOutputStream()) {
+                while (true) {
+                    Chunk chunk = inFlight.take();
+                    if (chunk == Chunk.END) {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = chunk.deliverAtNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(chunk.data);
+                    out.flush();
+                    bytesForwarded.addAndGet(chunk.data.length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed on one side
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+            tcpSockets.remove(from);
+            tcpSockets.remove(to);
+        }
+    }
+
+    private static final class Chunk {
+        static final Chunk END = new Chunk(new byte[0], 0);
+
+        final byte[] data;
+        final long deliverAtNanos;
+
+        Chunk(byte[] data, long deliverAtNanos) {
+            this.data = data;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private final class UdpRelay {
+        private final SocketAddress client;
+        private final DatagramSocket upstreamSocket;
+        private final Shaper upShaper = new Shaper();
+        private final Shaper downShaper = new Shaper();
+
+        UdpRelay(SocketAddress client, DatagramSocket upstreamSocket) {
+            this.client = client;
+            this.upstreamSocket = upstreamSocket;
+        }
+
+        void replyLoop() {
+            byte[] buffer = new byte[65535];
+            while (running.get() && !upstreamSocket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    upstreamSocket.receive(packet);
+                    byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+                    downShaper.sendLater(data, udpSocket, client);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// ImpairmentScenario.java
+package com.screenshare.bench.impair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A timeline of profile switches, played against a running ImpairmentProxy.
+public final class ImpairmentScenario {
+    private final String name;
+    private final List<Step> steps = new ArrayList<>();
+
+    public ImpairmentScenario(String name, LinkProfile initial) {
+        this.name = name;
+        steps.add(new Step(0, initial));
+    }
+
+    public ImpairmentScenario then(long atMillis, LinkProfile profile) {
+        if (atMillis < steps.get(steps.size() - 1).atMillis) {
+            throw new IllegalArgumentException("Scenario steps must be in time order");
+        }
+        steps.add(new Step(atMillis, profile));
+        return this;
+    }
+
+    // Clean link that collapses to the given bandwidth for a while, then recovers
+    public static ImpairmentScenario bandwidthDrop(long dropAtMillis, long recoverAtMillis, long droppedBytesPerSec) {
+        LinkProfile base = LinkProfile.wifi();
+        return new ImpairmentScenario("bandwidth-drop", base)
+                .then(dropAtMillis, base.withBandwidth(droppedBytesPerSec))
+                .then(recoverAtMillis, base);
+    }
+
+    public String getName() { return name; }
+    public List<Step> getSteps() { return Collections.unmodifiableList(steps); }
+
+    public long getLastStepMillis() {
+        return steps.get(steps.size() - 1).atMillis;
+    }
+
+    public static final class Step {
+        private final long atMillis;
+        private final LinkProfile profile;
+
+        Step(long atMillis, LinkProfile profile) {
+            this.atMillis = atMillis;
+            this.profile = profile;
+        }
+
+        public long getAtMillis() { return atMillis; }
+        public LinkProfile getProfile() { return profile; }
+    }
+}
@@ -0,0 +1,70 @@
+// LinkProfile.java
+package com.screenshare.bench.impair;
+
+// Immutable description of one direction-symmetric link. Bandwidth is in bytes per
+// second, 0 meaning uncapped; loss and reorder are probabilities in [0, 1].
+public final class LinkProfile {
+    private final String name;
+    private final int latencyMs;
+    private final int jitterMs;
+    private final long bandwidthBytesPerSec;
+    private final double lossRate;
+    private final double reorderRate;
+
+    public LinkProfile(String name, int latencyMs, int jitterMs, long bandwidthBytesPerSec,
+                       double lossRate, double reorderRate) {
+        if (latencyMs < 0 || jitterMs < 0 || bandwidthBytesPerSec < 0) {
+            throw new IllegalArgumentException("Negative link parameter in profile " + name);
+        }
+        if (lossRate < 0 || lossRate > 1 || reorderRate < 0 || reorderRate > 1) {
+            throw new IllegalArgumentException("Loss and reorder rates must be within [0, 1]");
+        }
+        this.name = name;
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.bandwidthBytesPerSec = bandwidthBytesPerSec;
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+    }
+
+    public static LinkProfile clean() {
+        return new LinkProfile("clean", 0, 0, 0, 0, 0);
+    }
+
+    public static LinkProfile wifi() {
+        return new LinkProfile("wifi", 4, 12, 6 * 1024 * 1024, 0.01, 0.005);
+    }
+
+    public static LinkProfile vpn() {
+        return new LinkProfile("vpn", 35, 6, 3 * 1024 * 1024, 0.002, 0.0);
+    }
+
+    public static LinkProfile congested() {
+        return new LinkProfile("congested", 80, 30, 1536 * 1024, 0.02, 0.01);
+    }
+
+    public LinkProfile withBandwidth(long bytesPerSec) {
+        return new LinkProfile(name + "@" + bytesPerSec + "B/s", latencyMs, jitterMs, bytesPerSec,
+                lossRate, reorderRate);
+    }
+
+    public LinkProfile withLatency(int latencyMs, int jitterMs) {
+        return new LinkProfile(name + "@" + latencyMs + "ms", latencyMs, jitterMs, bandwidthBytesPerSec,
+                lossRate, reorderRate);
+    }
+
+    public String getName() { return name; }
+    public int getLatencyMs() { return latencyMs; }
+    public int getJitterMs() { return jitterMs; }
+    public long getBandwidthBytesPerSec() { return bandwidthBytesPerSec; }
+    public double getLossRate() { return lossRate; }
+    public double getReorderRate() { return reorderRate; }
+
+    @Override
+    public String toString() {
+        return String.format("LinkProfile{%s, latency=%dms, jitter=%dms, bandwidth=%s, loss=%.3f, reorder=%.3f}",
+                name, latencyMs, jitterMs,
+                bandwidthBytesPerSec == 0 ? "uncapped" : bandwidthBytesPerSec + "B/s",
+                lossRate, reorderRate);
+    }
+}
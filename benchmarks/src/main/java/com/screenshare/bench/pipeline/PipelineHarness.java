@@ -0,0 +1,158 @@
+// PipelineHarness.java
+package com.screenshare.bench.pipeline;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.RelayPipeline;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One sharer streaming frames as fast as the server takes them to many viewers on
+// loopback, relayed inline on the sharer's reader thread and then through the staged
+// relay pipeline. Reports frames relayed per second and send-to-show latency for each,
+// and for the pipeline how busy each stage was and how full its rings got. Report only:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.pipeline.PipelineHarness [viewers] [egress threads]
+public class PipelineHarness {
+    private static final int DEFAULT_VIEWERS = 20;
+    private static final int DEFAULT_EGRESS_THREADS = 2;
+    private static final int FRAME_SIZE = 64 * 1024;
+    private static final long RUN_MILLIS = 5000;
+    private static final long DRAIN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int viewerCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VIEWERS;
+        int egressThreads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_EGRESS_THREADS;
+
+        List<String> results = new ArrayList<>();
+        results.add(run("inline", viewerCount, 0));
+        results.add(run("pipeline", viewerCount, egressThreads));
+
+        System.out.println();
+        System.out.println(String.format("%-10s %8s %10s %12s %8s %8s %8s",
+                "relay", "sent", "worst got", "relayed/s", "p50 ms", "p99 ms", "max ms"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    // egressThreads 0 relays inline
+    private static String run(String name, int viewerCount, int egressThreads) throws Exception {
+        ScreenShareServer server = startServer(viewerCount + 1, egressThreads);
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(server));
+        List<ScreenShareClient> viewers = new ArrayList<>();
+        List<LatencyProbe> probes = new ArrayList<>();
+        try {
+            if (!sharer.connect()) {
+                throw new IOException("Sharer could not connect");
+            }
+            for (int i = 0; i < viewerCount; i++) {
+                ScreenShareClient viewer = new ScreenShareClient(clientConfig(server));
+                LatencyProbe probe = new LatencyProbe();
+                viewer.setMessageListener(probe::onMessage);
+                if (!viewer.connect()) {
+                    throw new IOException("Viewer " + i + " could not connect");
+                }
+                viewers.add(viewer);
+                probes.add(probe);
+            }
+            sharer.sendMessage(new Message(MessageType.START_SHARE, sharer.getClientId()));
+            Thread.sleep(500);
+
+            long start = System.nanoTime();
+            int sent = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS)) {
+                byte[] payload = new byte[FRAME_SIZE];
+                ByteBuffer.wrap(payload).putInt(sent).putLong(System.nanoTime());
+                if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                    sent++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            Thread.sleep(DRAIN_MILLIS);
+
+            int worst = sent;
+            long relayed = 0;
+            List<Long> latencies = new ArrayList<>();
+            for (LatencyProbe probe : probes) {
+                worst = Math.min(worst, probe.count());
+                relayed += probe.count();
+                latencies.addAll(probe.latencies());
+            }
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            RelayPipeline pipeline = server.getPipeline();
+            if (pipeline != null) {
+                System.out.println("Relay pipeline: " + pipeline.describe());
+            }
+            return String.format("%-10s %8d %10d %12.0f %8.1f %8.1f %8.1f", name, sent, worst,
+                    relayed / (elapsed / 1e9), HarnessSupport.percentileMillis(sorted, 0.50),
+                    HarnessSupport.percentileMillis(sorted, 0.99), HarnessSupport.percentileMillis(sorted, 1.0));
+        } finally {
+            for (ScreenShareClient viewer : viewers) {
+                viewer.disconnect();
+            }
+            sharer.disconnect();
+            server.stop();
+        }
+    }
+
+    private static ScreenShareServer startServer(int clients, int egressThreads) throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        // One reader thread per connection
+        serverConfig.setMaxClients(clients);
+        serverConfig.setThreadPoolSize(clients);
+        serverConfig.setPipelineEnabled(egressThreads > 0);
+        serverConfig.setPipelineEgressThreads(Math.max(1, egressThreads));
+        serverConfig.setPipelineReportInterval(0);
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    private static ClientConfig clientConfig(ScreenShareServer server) {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost("127.0.0.1");
+        config.setServerPort(server.getConfig().getPort());
+        config.setServerUdpPort(server.getConfig().getUdpPort());
+        return config;
+    }
+
+    // Frames one viewer showed, and how long after they were sent
+    static final class LatencyProbe {
+        private long[] latencies = new long[1024];
+        private int count;
+
+        synchronized void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Integer.BYTES + Long.BYTES) {
+                return;
+            }
+            long sentAt = ByteBuffer.wrap(message.getPayload()).getLong(Integer.BYTES);
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = System.nanoTime() - sentAt;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized List<Long> latencies() {
+            List<Long> copy = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                copy.add(latencies[i]);
+            }
+            return copy;
+        }
+    }
+}
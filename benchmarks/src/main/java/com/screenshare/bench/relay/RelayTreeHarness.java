@@ -0,0 +1,224 @@
+// RelayTreeHarness.java
+package com.screenshare.bench.relay;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.RelayNode;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.RelayTreeService;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One sharer, many viewers on loopback, all viewers with a relay (every third one only
+// receiving), and a server that sends to ROOT_DEGREE of them. Once the tree has formed
+// the sharer streams; part way through, RELAYS_KILLED relays that have children leave.
+// Checks that no surviving viewer went without frames for longer than MAX_GAP_MILLIS
+// while the tree was repaired, and how much of the egress the relays carried. Frames a
+// relay had not passed on when it left are not sent again (each frame is a whole image
+// and the next one replaces it), so a viewer may miss up to MAX_MISSED of them. Exits
+// with status 1 when a check fails:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.relay.RelayTreeHarness [viewers]
+public class RelayTreeHarness {
+    private static final int DEFAULT_VIEWERS = 60;
+    private static final int ROOT_DEGREE = 4;
+    private static final int MAX_CHILDREN = 4;
+    private static final int FRAME_SIZE = 32 * 1024;
+    private static final int FRAMES_PER_SECOND = 15;
+    private static final long RUN_MILLIS = 10000;
+    private static final long KILL_AT_MILLIS = 4000;
+    private static final int RELAYS_KILLED = 2;
+    private static final long SETTLE_MILLIS = 15000;
+    private static final long DRAIN_MILLIS = 3000;
+    private static final long MAX_GAP_MILLIS = 1000;
+    private static final int MAX_MISSED = 3;
+    private static final double MIN_OFFLOADED = 0.80;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int viewerCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VIEWERS;
+
+        ScreenShareServer server = startServer(viewerCount + 1);
+        RelayTreeService trees = server.getRelayTrees();
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(server, false, 0));
+        List<ScreenShareClient> viewers = new ArrayList<>();
+        List<FrameProbe> probes = new ArrayList<>();
+        try {
+            if (!sharer.connect()) {
+                throw new IOException("Sharer could not connect");
+            }
+            for (int i = 0; i < viewerCount; i++) {
+                ScreenShareClient viewer = new ScreenShareClient(
+                        clientConfig(server, true, i % 3 == 2 ? 0 : MAX_CHILDREN));
+                FrameProbe probe = new FrameProbe();
+                viewer.setMessageListener(probe::onMessage);
+                if (!viewer.connect()) {
+                    throw new IOException("Viewer " + i + " could not connect");
+                }
+                viewers.add(viewer);
+                probes.add(probe);
+            }
+            sharer.sendMessage(new Message(MessageType.START_SHARE, sharer.getClientId()));
+
+            // Everyone beyond the server's own slots should end up behind a relay
+            long settleStart = System.currentTimeMillis();
+            int expected = viewerCount - ROOT_DEGREE;
+            while (trees.getRelayedViewers() < expected
+                    && System.currentTimeMillis() - settleStart < SETTLE_MILLIS) {
+                Thread.sleep(50);
+            }
+            System.out.println("Tree formed in " + (System.currentTimeMillis() - settleStart) + "ms: "
+                    + trees.getRelayedViewers() + " of " + viewerCount + " viewers behind relays");
+
+            long start = System.nanoTime();
+            long frameInterval = TimeUnit.SECONDS.toNanos(1) / FRAMES_PER_SECOND;
+            int sent = 0;
+            long killedAt = 0;
+            List<Integer> killed = new ArrayList<>();
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS)) {
+                if (killed.isEmpty() && System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(KILL_AT_MILLIS)) {
+                    killedAt = System.currentTimeMillis();
+                    for (int i = 0; i < viewers.size() && killed.size() < RELAYS_KILLED; i++) {
+                        RelayNode relay = viewers.get(i).getRelay();
+                        if (relay != null && relay.getChildCount() > 0) {
+                            System.out.println("Killing relay " + viewers.get(i).getClientId() + " with "
+                                    + relay.getChildCount() + " children");
+                            viewers.get(i).disconnect();
+                            killed.add(i);
+                        }
+                    }
+                }
+                byte[] payload = new byte[FRAME_SIZE];
+                ByteBuffer.wrap(payload).putInt(sent);
+                if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                    sent++;
+                }
+                long sleep = start + sent * frameInterval - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+            }
+            Thread.sleep(DRAIN_MILLIS);
+
+            int worstDelivered = sent;
+            long worstGap = 0;
+            long duplicates = 0;
+            for (int i = 0; i < probes.size(); i++) {
+                if (killed.contains(i)) {
+                    continue;
+                }
+                FrameProbe probe = probes.get(i);
+                worstDelivered = Math.min(worstDelivered, probe.unique(sent));
+                worstGap = Math.max(worstGap, probe.maxGapSince(killedAt));
+                duplicates += probe.duplicates();
+            }
+            long root = trees.getRootEgressBytes();
+            long relayed = trees.getRelayEgressBytes();
+            long unassisted = (long) sent * FRAME_SIZE * viewerCount;
+            double offloaded = root + relayed > 0 ? (double) relayed / (root + relayed) : 0;
+
+            System.out.println();
+            System.out.println(String.format("viewers %d, frames sent %d, worst viewer got %d (%.1f%%)",
+                    viewerCount, sent, worstDelivered, 100.0 * worstDelivered / Math.max(1, sent)));
+            System.out.println(String.format("longest gap after killing %d relays: %dms, %d duplicate frames shown",
+                    killed.size(), worstGap, duplicates));
+            System.out.println(String.format("server egress %d bytes (%.1f%% of %d without relays), relays %d bytes,"
+                    + " %.1f%% offloaded", root, 100.0 * root / Math.max(1, unassisted), unassisted, relayed,
+                    100 * offloaded));
+            System.out.println("Relay trees: " + trees.describe());
+
+            boolean passed = worstDelivered >= sent - MAX_MISSED && worstGap <= MAX_GAP_MILLIS
+                    && duplicates == 0 && offloaded >= MIN_OFFLOADED && killed.size() == RELAYS_KILLED;
+            System.out.println(passed ? "PASS" : "FAIL");
+            shutdown(sharer, viewers, server);
+            System.exit(passed ? 0 : 1);
+        } catch (Exception e) {
+            shutdown(sharer, viewers, server);
+            throw e;
+        }
+    }
+
+    private static void shutdown(ScreenShareClient sharer, List<ScreenShareClient> viewers, ScreenShareServer server) {
+        for (ScreenShareClient viewer : viewers) {
+            if (viewer.isRunning()) {
+                viewer.disconnect();
+            }
+        }
+        sharer.disconnect();
+        server.stop();
+    }
+
+    private static ScreenShareServer startServer(int clients) throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        // One reader thread per connection
+        serverConfig.setMaxClients(clients);
+        serverConfig.setThreadPoolSize(clients);
+        serverConfig.setRelayTreeEnabled(true);
+        serverConfig.setRelayRootDegree(ROOT_DEGREE);
+        serverConfig.setRelayMaxChildren(MAX_CHILDREN);
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    private static ClientConfig clientConfig(ScreenShareServer server, boolean relay, int maxChildren) {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost("127.0.0.1");
+        config.setServerPort(server.getConfig().getPort());
+        config.setServerUdpPort(server.getConfig().getUdpPort());
+        config.setReconnectAttempts(5);
+        config.setReconnectDelay(200);
+        config.setRelayEnabled(relay);
+        config.setRelayMaxChildren(maxChildren);
+        return config;
+    }
+
+    // Frames one viewer showed, by sequence number, and when
+    static final class FrameProbe {
+        private final BitSet seen = new BitSet();
+        private final List<long[]> arrivals = new ArrayList<>();
+        private long duplicates;
+
+        synchronized void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Integer.BYTES) {
+                return;
+            }
+            int sequence = ByteBuffer.wrap(message.getPayload()).getInt();
+            if (seen.get(sequence)) {
+                duplicates++;
+                return;
+            }
+            seen.set(sequence);
+            arrivals.add(new long[]{sequence, System.currentTimeMillis()});
+        }
+
+        synchronized int unique(int sent) {
+            return seen.get(0, sent).cardinality();
+        }
+
+        synchronized long duplicates() {
+            return duplicates;
+        }
+
+        // Longest wait between frames shown after a moment
+        synchronized long maxGapSince(long since) {
+            long gap = 0;
+            long previous = since;
+            for (long[] arrival : arrivals) {
+                if (arrival[1] >= since) {
+                    gap = Math.max(gap, arrival[1] - previous);
+                    previous = arrival[1];
+                }
+            }
+            return gap;
+        }
+    }
+}
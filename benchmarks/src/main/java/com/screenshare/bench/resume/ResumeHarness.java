@@ -0,0 +1,265 @@
+// ResumeHarness.java
+package com.screenshare.bench.resume;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// A sharer streaming numbered frames to a viewer whose connection goes through a TCP
+// proxy, which cuts it every CUT_INTERVAL_MILLIS. Run with session resumption (the viewer
+// reconnects on its own and the server replays what it missed) and without it (the
+// harness reconnects the viewer, which joins as a new session). Reports, per cut, the time
+// until the viewer showed frames again, and overall the frames it never got, the ones it
+// got twice, and the roster updates the sharer saw. Report only:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.resume.ResumeHarness [cuts]
+public class ResumeHarness {
+    private static final int DEFAULT_CUTS = 10;
+    private static final int FRAME_SIZE = 16 * 1024;
+    private static final long FRAME_INTERVAL_MILLIS = 10;
+    private static final long CUT_INTERVAL_MILLIS = 1000;
+    private static final long RECOVERY_TIMEOUT_MILLIS = 10000;
+    private static final long DRAIN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int cuts = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CUTS;
+        List<String> results = new ArrayList<>();
+        results.add(run("resume", true, cuts));
+        results.add(run("rejoin", false, cuts));
+
+        System.out.println();
+        System.out.println(String.format("%-8s %6s %8s %8s %8s %8s %8s %8s %8s",
+                "mode", "cuts", "sent", "missed", "dupes", "p50 ms", "p99 ms", "max ms", "roster"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String run(String name, boolean resume, int cuts) throws Exception {
+        ScreenShareServer server = startServer(resume);
+        CuttingProxy proxy = new CuttingProxy(server.getConfig().getPort());
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(server.getConfig().getPort(), resume));
+        ScreenShareClient viewer = new ScreenShareClient(clientConfig(proxy.getPort(), resume));
+        FrameProbe probe = new FrameProbe();
+        viewer.setMessageListener(probe::onMessage);
+        Streamer streamer = new Streamer(sharer);
+        try {
+            if (!sharer.connect() || !viewer.connect()) {
+                throw new IOException("Clients could not connect");
+            }
+            sharer.sendMessage(new Message(MessageType.START_SHARE, sharer.getClientId()));
+            Thread.sleep(500);
+            long rosterBefore = sharer.getRoster().getVersion();
+            streamer.start();
+            Thread.sleep(CUT_INTERVAL_MILLIS);
+
+            long[] recoveries = new long[cuts];
+            for (int i = 0; i < cuts; i++) {
+                int shown = probe.count();
+                long cutAt = System.nanoTime();
+                proxy.cut();
+                if (!resume) {
+                    // What a client did before resumption: notice, and join again
+                    while (viewer.isConnected() && System.nanoTime() - cutAt < RECOVERY_TIMEOUT_MILLIS * 1_000_000) {
+                        Thread.sleep(1);
+                    }
+                    viewer.connect();
+                }
+                while (probe.count() == shown && System.nanoTime() - cutAt < RECOVERY_TIMEOUT_MILLIS * 1_000_000) {
+                    Thread.sleep(1);
+                }
+                recoveries[i] = System.nanoTime() - cutAt;
+                Thread.sleep(CUT_INTERVAL_MILLIS);
+            }
+
+            int sent = streamer.finish();
+            Thread.sleep(DRAIN_MILLIS);
+            long roster = sharer.getRoster().getVersion() - rosterBefore;
+            Arrays.sort(recoveries);
+            System.out.println(name + ": server " + (resume ? server.describeResumption() : "resumption disabled"));
+            return String.format("%-8s %6d %8d %8d %8d %8.1f %8.1f %8.1f %8d", name, cuts, sent,
+                    sent - probe.distinct(), probe.count() - probe.distinct(),
+                    HarnessSupport.percentileMillis(recoveries, 0.50), HarnessSupport.percentileMillis(recoveries, 0.99),
+                    HarnessSupport.percentileMillis(recoveries, 1.0), roster);
+        } finally {
+            streamer.finish();
+            viewer.disconnect();
+            sharer.disconnect();
+            proxy.close();
+            server.stop();
+        }
+    }
+
+    private static ScreenShareServer startServer(boolean resume) throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        serverConfig.setResumeEnabled(resume);
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    private static ClientConfig clientConfig(int port, boolean resume) {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost("127.0.0.1");
+        config.setServerPort(port);
+        // Loopback would otherwise move onto shared memory, out of the proxy's reach
+        config.setShmEnabled(false);
+        config.setResumeEnabled(resume);
+        config.setReconnectDelay(50);
+        return config;
+    }
+
+    // Numbered frames at a steady rate, as a sharer's capture loop sends them
+    static final class Streamer extends Thread {
+        private final ScreenShareClient sharer;
+        private volatile boolean streaming = true;
+        private int sent;
+
+        Streamer(ScreenShareClient sharer) {
+            super("harness-streamer");
+            this.sharer = sharer;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (streaming) {
+                byte[] payload = new byte[FRAME_SIZE];
+                ByteBuffer.wrap(payload).putInt(sent);
+                if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                    sent++;
+                }
+                try {
+                    Thread.sleep(FRAME_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        int finish() throws InterruptedException {
+            streaming = false;
+            join();
+            return sent;
+        }
+    }
+
+    // Which frames the viewer showed, and how many times
+    static final class FrameProbe {
+        private final BitSet seen = new BitSet();
+        private int count;
+
+        synchronized void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Integer.BYTES) {
+                return;
+            }
+            seen.set(ByteBuffer.wrap(message.getPayload()).getInt());
+            count++;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized int distinct() {
+            return seen.cardinality();
+        }
+    }
+
+    // Forwards each accepted connection to the server byte for byte, until cut() closes
+    // every connection open at the time
+    static final class CuttingProxy implements AutoCloseable {
+        private final ServerSocket listener;
+        private final int target;
+        private final List<Socket> open = new CopyOnWriteArrayList<>();
+
+        CuttingProxy(int target) throws IOException {
+            this.target = target;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::acceptLoop, "harness-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        void cut() {
+            // The viewer may already be reconnecting; those connections stay
+            for (Socket socket : open) {
+                closeQuietly(socket);
+                open.remove(socket);
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(listener);
+            cut();
+        }
+
+        private void acceptLoop() {
+            while (!listener.isClosed()) {
+                try {
+                    Socket client = listener.accept();
+                    Socket server = new Socket(InetAddress.getLoopbackAddress(), target);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    open.add(client);
+                    open.add(server);
+                    pump(client, server);
+                    pump(server, client);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to) throws IOException {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    // Cut
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }, "harness-proxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+// TlsRelayHarness.java
+package com.screenshare.bench.tls;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.SocketTransport;
+import com.screenshare.common.TlsContext;
+import com.screenshare.common.TlsTransport;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One sharer streaming frames as fast as the server takes them to several viewers on
+// loopback, in plaintext and then over TLS 1.3, reporting frames relayed per second and
+// send-to-show latency for each; then the time a handshake takes against the TLS server,
+// full (a new client every time) and resumed (one client reconnecting). Generates a
+// throwaway self-signed keystore with the JDK's keytool. Report only:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.tls.TlsRelayHarness [viewers]
+public class TlsRelayHarness {
+    private static final int DEFAULT_VIEWERS = 10;
+    private static final int FRAME_SIZE = 64 * 1024;
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long RUN_MILLIS = 5000;
+    private static final long DRAIN_MILLIS = 2000;
+    private static final int HANDSHAKES = 50;
+    private static final String PASSWORD = "changeit";
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int viewerCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VIEWERS;
+        Path keystore = createKeystore();
+        try {
+            List<String> results = new ArrayList<>();
+            results.add(run("plaintext", viewerCount, null));
+            results.add(run("tls", viewerCount, keystore));
+            String handshakes = measureHandshakes(keystore);
+
+            System.out.println();
+            System.out.println(String.format("%-10s %8s %10s %12s %8s %8s %8s",
+                    "link", "sent", "worst got", "relayed/s", "p50 ms", "p99 ms", "max ms"));
+            for (String result : results) {
+                System.out.println(result);
+            }
+            System.out.println();
+            System.out.println(handshakes);
+        } finally {
+            Files.deleteIfExists(keystore);
+            Files.deleteIfExists(keystore.getParent());
+        }
+    }
+
+    private static String run(String name, int viewerCount, Path keystore) throws Exception {
+        ScreenShareServer server = startServer(viewerCount + 1, keystore);
+        ScreenShareClient sharer = new ScreenShareClient(clientConfig(server, keystore));
+        List<ScreenShareClient> viewers = new ArrayList<>();
+        List<LatencyProbe> probes = new ArrayList<>();
+        try {
+            if (!sharer.connect()) {
+                throw new IOException("Sharer could not connect");
+            }
+            for (int i = 0; i < viewerCount; i++) {
+                ScreenShareClient viewer = new ScreenShareClient(clientConfig(server, keystore));
+                LatencyProbe probe = new LatencyProbe();
+                viewer.setMessageListener(probe::onMessage);
+                if (!viewer.connect()) {
+                    throw new IOException("Viewer " + i + " could not connect");
+                }
+                viewers.add(viewer);
+                probes.add(probe);
+            }
+            sharer.sendMessage(new Message(MessageType.START_SHARE, sharer.getClientId()));
+            Thread.sleep(500);
+
+            // Until the cipher code is compiled, TLS runs several times slower
+            stream(sharer, WARMUP_MILLIS);
+            Thread.sleep(DRAIN_MILLIS);
+            for (LatencyProbe probe : probes) {
+                probe.reset();
+            }
+
+            long start = System.nanoTime();
+            int sent = stream(sharer, RUN_MILLIS);
+            long elapsed = System.nanoTime() - start;
+            Thread.sleep(DRAIN_MILLIS);
+
+            int worst = sent;
+            long relayed = 0;
+            List<Long> latencies = new ArrayList<>();
+            for (LatencyProbe probe : probes) {
+                worst = Math.min(worst, probe.count());
+                relayed += probe.count();
+                latencies.addAll(probe.latencies());
+            }
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (server.getTls() != null) {
+                System.out.println("Server TLS: " + server.getTls().describe());
+            }
+            return String.format("%-10s %8d %10d %12.0f %8.1f %8.1f %8.1f", name, sent, worst,
+                    relayed / (elapsed / 1e9), HarnessSupport.percentileMillis(sorted, 0.50),
+                    HarnessSupport.percentileMillis(sorted, 0.99), HarnessSupport.percentileMillis(sorted, 1.0));
+        } finally {
+            for (ScreenShareClient viewer : viewers) {
+                viewer.disconnect();
+            }
+            sharer.disconnect();
+            server.stop();
+        }
+    }
+
+    private static int stream(ScreenShareClient sharer, long millis) {
+        long start = System.nanoTime();
+        int sent = 0;
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(millis)) {
+            byte[] payload = new byte[FRAME_SIZE];
+            ByteBuffer.wrap(payload).putInt(sent).putLong(System.nanoTime());
+            if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    // Connects, handshakes and reads the welcome, HANDSHAKES times each way
+    private static String measureHandshakes(Path keystore) throws Exception {
+        ScreenShareServer server = startServer(2 * HANDSHAKES + 2, keystore);
+        try {
+            int port = server.getConfig().getPort();
+            long[] full = new long[HANDSHAKES];
+            for (int i = 0; i < HANDSHAKES; i++) {
+                full[i] = handshake(newClientContext(keystore), port);
+            }
+            TlsContext reconnecting = newClientContext(keystore);
+            handshake(reconnecting, port);
+            long[] resumed = new long[HANDSHAKES];
+            for (int i = 0; i < HANDSHAKES; i++) {
+                resumed[i] = handshake(reconnecting, port);
+            }
+            Arrays.sort(full);
+            Arrays.sort(resumed);
+            return String.format("handshake   full: p50 %.2f ms, p99 %.2f ms%n"
+                            + "handshake resumed: p50 %.2f ms, p99 %.2f ms (%d of %d resumed)%n"
+                            + "server: %s",
+                    HarnessSupport.percentileMillis(full, 0.50), HarnessSupport.percentileMillis(full, 0.99),
+                    HarnessSupport.percentileMillis(resumed, 0.50), HarnessSupport.percentileMillis(resumed, 0.99),
+                    reconnecting.getResumedHandshakes(), reconnecting.getHandshakes(), server.getTls().describe());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long handshake(TlsContext context, int port) throws IOException {
+        long start = System.nanoTime();
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        TlsTransport transport = context.connect(new SocketTransport(channel, 64 * 1024), "localhost", port);
+        try {
+            transport.setReadTimeout(5000);
+            transport.handshake();
+            // The welcome, so the server's side is done too
+            if (transport.getInputStream().read() < 0) {
+                throw new IOException("Server closed the connection");
+            }
+            return System.nanoTime() - start;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static TlsContext newClientContext(Path keystore) throws IOException {
+        return TlsContext.create(null, null, keystore.toString(), PASSWORD, false, 0);
+    }
+
+    private static Path createKeystore() throws Exception {
+        Path keystore = Files.createTempDirectory("screenshare-tls").resolve("server.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        byte[] output = process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output));
+        }
+        return keystore;
+    }
+
+    private static ScreenShareServer startServer(int clients, Path keystore) throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        // One reader thread per connection
+        serverConfig.setMaxClients(clients);
+        serverConfig.setThreadPoolSize(clients);
+        if (keystore != null) {
+            serverConfig.setSslEnabled(true);
+            serverConfig.setSslKeystore(keystore.toString());
+            serverConfig.setSslKeystorePassword(PASSWORD);
+        }
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    private static ClientConfig clientConfig(ScreenShareServer server, Path keystore) {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost("localhost");
+        config.setServerPort(server.getConfig().getPort());
+        config.setServerUdpPort(server.getConfig().getUdpPort());
+        // Loopback would otherwise move onto shared memory where the server offers it
+        config.setShmEnabled(false);
+        if (keystore != null) {
+            config.setSslEnabled(true);
+            config.setSslTruststore(keystore.toString());
+            config.setSslTruststorePassword(PASSWORD);
+        }
+        return config;
+    }
+
+    // Frames one viewer showed, and how long after they were sent
+    static final class LatencyProbe {
+        private long[] latencies = new long[1024];
+        private int count;
+
+        synchronized void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Integer.BYTES + Long.BYTES) {
+                return;
+            }
+            long sentAt = ByteBuffer.wrap(message.getPayload()).getLong(Integer.BYTES);
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = System.nanoTime() - sentAt;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized void reset() {
+            count = 0;
+        }
+
+        synchronized List<Long> latencies() {
+            List<Long> copy = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                copy.add(latencies[i]);
+            }
+            return copy;
+        }
+    }
+}
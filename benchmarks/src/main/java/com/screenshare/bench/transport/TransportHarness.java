@@ -0,0 +1,187 @@
+// TransportHarness.java
+package com.screenshare.bench.transport;
+
+import com.screenshare.bench.HarnessSupport;
+import com.screenshare.client.ClientConfig;
+import com.screenshare.client.ScreenShareClient;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Transport;
+import com.screenshare.server.ScreenShareServer;
+import com.screenshare.server.ServerConfig;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// A client and server on one host, connected over loopback TCP, the server's Unix
+// domain socket and shared memory in turn. Reports the heartbeat round trip (client to server and back, with nothing else
+// in flight) and the rate a sharer's large frames reach a viewer through the server,
+// with send-to-show latency. Report only:
+//     java -cp benchmarks/target/benchmarks.jar com.screenshare.bench.transport.TransportHarness [frame KB]
+public class TransportHarness {
+    private static final int DEFAULT_FRAME_KB = 256;
+    private static final int ROUND_TRIPS = 20000;
+    private static final int WARMUP_ROUND_TRIPS = 2000;
+    private static final long RUN_MILLIS = 5000;
+    private static final long DRAIN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.setDebugEnabled(false);
+        int frameSize = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAME_KB) * 1024;
+
+        ScreenShareServer server = startServer();
+        List<String> results = new ArrayList<>();
+        try {
+            results.add(run(server, Transport.TCP, frameSize));
+            results.add(run(server, Transport.UNIX, frameSize));
+            results.add(run(server, Transport.SHARED_MEMORY, frameSize));
+        } finally {
+            server.stop();
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-6s %9s %9s %9s %10s %10s %9s %9s",
+                "link", "rtt p50us", "rtt p99us", "rtt maxus", "frames/s", "MB/s", "p50 ms", "p99 ms"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String run(ScreenShareServer server, String transport, int frameSize) throws Exception {
+        RoundTripProbe roundTrips = new RoundTripProbe();
+        ScreenShareClient sharer = connect(server, transport, roundTrips);
+        FrameProbe frames = new FrameProbe();
+        ScreenShareClient viewer = connect(server, transport, frames);
+        try {
+            for (int i = 0; i < WARMUP_ROUND_TRIPS; i++) {
+                roundTrips.roundTrip(sharer);
+            }
+            long[] rtts = new long[ROUND_TRIPS];
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                rtts[i] = roundTrips.roundTrip(sharer);
+            }
+            Arrays.sort(rtts);
+
+            sharer.sendMessage(new Message(MessageType.START_SHARE, sharer.getClientId()));
+            Thread.sleep(500);
+            long start = System.nanoTime();
+            int sent = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS)) {
+                byte[] payload = new byte[frameSize];
+                ByteBuffer.wrap(payload).putInt(sent).putLong(System.nanoTime());
+                if (sharer.sendMessage(new Message(MessageType.SCREEN_DATA, sharer.getClientId(), payload))) {
+                    sent++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            Thread.sleep(DRAIN_MILLIS);
+
+            long[] latencies = frames.latencies();
+            double seconds = elapsed / 1e9;
+            System.out.println(transport + ": sent " + sent + " frames, viewer showed " + latencies.length);
+            return String.format("%-6s %9.1f %9.1f %9.1f %10.0f %10.1f %9.1f %9.1f", transport,
+                    HarnessSupport.percentile(rtts, 0.50) / 1000.0, HarnessSupport.percentile(rtts, 0.99) / 1000.0,
+                    HarnessSupport.percentile(rtts, 1.0) / 1000.0,
+                    latencies.length / seconds, (double) latencies.length * frameSize / seconds / (1024 * 1024),
+                    HarnessSupport.percentileMillis(latencies, 0.50), HarnessSupport.percentileMillis(latencies, 0.99));
+        } finally {
+            viewer.disconnect();
+            sharer.disconnect();
+            Thread.sleep(500);
+        }
+    }
+
+    private static ScreenShareClient connect(ScreenShareServer server, String transport, Probe probe) throws Exception {
+        ClientConfig config = new ClientConfig();
+        config.setServerHost(transport.equals(Transport.UNIX)
+                ? ClientConfig.UNIX_PREFIX + server.getConfig().getUnixSocketPath() : "127.0.0.1");
+        config.setServerPort(server.getConfig().getPort());
+        config.setServerUdpPort(server.getConfig().getUdpPort());
+        // Heartbeats would interleave with the measured round trips
+        config.setHeartbeatInterval(3_600_000);
+        config.setShmEnabled(transport.equals(Transport.SHARED_MEMORY));
+        ScreenShareClient client = new ScreenShareClient(config);
+        client.setMessageListener(probe::onMessage);
+        if (!client.connect()) {
+            throw new IOException("Client could not connect");
+        }
+        // The move to shared memory follows the handshake
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!transport.equals(client.getTransportName()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        if (!transport.equals(client.getTransportName())) {
+            client.disconnect();
+            throw new IOException("Client is on " + client.getTransportName() + ", not " + transport);
+        }
+        return client;
+    }
+
+    private static ScreenShareServer startServer() throws Exception {
+        ServerConfig serverConfig = HarnessSupport.serverConfig();
+        serverConfig.setShmEnabled(true);
+        Path socket = Files.createTempDirectory("screenshare-bench").resolve("server.sock");
+        socket.toFile().deleteOnExit();
+        socket.getParent().toFile().deleteOnExit();
+        serverConfig.setUnixSocketPath(socket.toString());
+        return HarnessSupport.startServer(serverConfig);
+    }
+
+    interface Probe {
+        void onMessage(Message message);
+    }
+
+    // One heartbeat in flight at a time, answered by the server's HEARTBEAT_ACK
+    static final class RoundTripProbe implements Probe {
+        private final Semaphore acks = new Semaphore(0);
+
+        @Override
+        public void onMessage(Message message) {
+            if (message.getType() == MessageType.HEARTBEAT_ACK) {
+                acks.release();
+            }
+        }
+
+        long roundTrip(ScreenShareClient client) throws Exception {
+            long start = System.nanoTime();
+            if (!client.sendMessage(new Message(MessageType.HEARTBEAT, client.getClientId()))
+                    || !acks.tryAcquire(5, TimeUnit.SECONDS)) {
+                throw new IOException("Heartbeat was not acknowledged");
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    // Frames the viewer showed, and how long after they were sent
+    static final class FrameProbe implements Probe {
+        private long[] latencies = new long[1024];
+        private int count;
+
+        @Override
+        public synchronized void onMessage(Message message) {
+            if (message.getType() != MessageType.SCREEN_DATA || message.getPayload() == null
+                    || message.getPayload().length < Integer.BYTES + Long.BYTES) {
+                return;
+            }
+            long sentAt = ByteBuffer.wrap(message.getPayload()).getLong(Integer.BYTES);
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = System.nanoTime() - sentAt;
+        }
+
+        synchronized long[] latencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
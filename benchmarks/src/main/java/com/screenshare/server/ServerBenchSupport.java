@@ -0,0 +1,23 @@
+// ServerBenchSupport.java
+package com.screenshare.server;
+
+import java.nio.channels.SocketChannel;
+
+// Lives in the server package so the benchmarks can reach the package-private
+// registration hook without widening the server's public API.
+public final class ServerBenchSupport {
+    private ServerBenchSupport() {
+    }
+
+    // Registers an accepted connection as a session without starting its reader
+    public static ClientHandler register(ScreenShareServer server, SocketChannel channel) {
+        ClientHandler handler = new ClientHandler(channel, server, server.getRegistry().allocateSessionId());
+        server.registerClient(handler);
+        return handler;
+    }
+
+    // Whether start() has bound its sockets, so connections from here on are accepted
+    public static boolean isRunning(ScreenShareServer server) {
+        return server.isRunning();
+    }
+}
@@ -0,0 +1,164 @@
+// BitrateController.java
+package com.screenshare.client;
+
+import com.screenshare.common.ReceiverReport;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Delay-based congestion control for the sharer, in the spirit of WebRTC's GCC, driven by
+// RECEIVER_REPORTs from the server (upload leg) and every viewer:
+//   - overuse: a receiver's queue delay is above OVERUSE_DELAY_MS in two reports in a row
+//     and not falling, or more than 10% of frames went missing -> cut the target to 85%
+//     of what that receiver actually got, less what it takes to drain the queue within
+//     DRAIN_MILLIS (loss: by half the loss fraction);
+//   - normal: queue delay under the threshold and under 2% loss -> grow the target by 15%;
+//   - otherwise hold. After a cut, further cuts wait HOLD_MILLIS so one congestion event
+//     reported by several receivers is not counted several times.
+// A single delayed frame (a retransmission, a Wi-Fi hiccup) is not treated as overuse.
+// The slowest receiver wins. The target rate is then spent on frames: screen content
+// stays legible by lowering frame rate first, down to minFps, and only then quality;
+// on the way back up quality is restored first.
+public class BitrateController {
+    private static final int OVERUSE_DELAY_MS = 50;
+    private static final double DECREASE = 0.85;
+    private static final double INCREASE = 1.15;
+    private static final long HOLD_MILLIS = 500;
+    // A standing queue is drained over this long on top of the 15% cut
+    private static final long DRAIN_MILLIS = 2000;
+    private static final long MIN_RATE = 16 * 1024;
+    private static final float QUALITY_STEP = 0.05f;
+    private static final long SENT_LOG_MILLIS = 10_000;
+
+    private final boolean adaptive;
+    private final int minFps;
+    private final int maxFps;
+    private final float minQuality;
+    private final float maxQuality;
+    private final long maxRate;
+
+    private double targetRate;
+    private double fps;
+    private float quality;
+    // Smoothed encoded size per unit of quality, to predict frame size at other settings
+    private double bytesPerQuality;
+    private long lastDecrease = Long.MIN_VALUE / 2;
+    private long lastIncrease = Long.MIN_VALUE / 2;
+
+    // Send timestamps of recent frames, for working out loss from a receiver's count
+    private final ArrayDeque<Long> sentLog = new ArrayDeque<>();
+    private final Map<Integer, Long> lastCountedTimestamp = new HashMap<>();
+    private final Map<Integer, Integer> lastQueueDelay = new HashMap<>();
+
+    public BitrateController(ClientConfig config) {
+        this.adaptive = config.isAdaptiveQuality();
+        this.minFps = Math.max(1, config.getMinFps());
+        this.maxFps = Math.max(minFps, config.getMaxFps());
+        this.minQuality = config.getMinQuality() / 100f;
+        this.maxQuality = Math.max(minQuality, config.getCaptureQuality() / 100f);
+        this.maxRate = Math.max(MIN_RATE, config.getMaxBandwidth());
+
+        if (adaptive) {
+            // Start mid-range and let the first reports pull it up or down
+            targetRate = maxRate / 2.0;
+            fps = maxFps;
+        } else {
+            targetRate = maxRate;
+            fps = Math.max(1, config.getCaptureFps());
+        }
+        quality = maxQuality;
+    }
+
+    public synchronized void onFrameSent(long timestamp, int size) {
+        sentLog.addLast(timestamp);
+        while (!sentLog.isEmpty() && sentLog.peekFirst() < timestamp - SENT_LOG_MILLIS) {
+            sentLog.removeFirst();
+        }
+        double sample = size / Math.max(quality, 0.01f);
+        bytesPerQuality = bytesPerQuality == 0 ? sample : bytesPerQuality * 0.8 + sample * 0.2;
+        if (adaptive) {
+            fitFramesToRate();
+        }
+    }
+
+    public synchronized void onReport(int reporter, ReceiverReport report, long now) {
+        if (!adaptive || report.getFramesReceived() == 0) {
+            return;
+        }
+
+        double loss = lossFraction(reporter, report);
+        int delay = report.getQueueDelayMillis();
+        Integer previousDelay = lastQueueDelay.put(reporter, delay);
+        boolean overuse = delay > OVERUSE_DELAY_MS
+                && previousDelay != null && previousDelay > OVERUSE_DELAY_MS && delay >= previousDelay;
+
+        if (overuse || loss > 0.10) {
+            if (now - lastDecrease >= HOLD_MILLIS) {
+                double delivered = report.getThroughput() > 0 ? report.getThroughput() : targetRate;
+                if (overuse) {
+                    double backlog = delivered * delay / 1000.0;
+                    double cut = Math.min(targetRate, delivered) * DECREASE;
+                    targetRate = Math.max(cut / 2, cut - backlog * 1000 / DRAIN_MILLIS);
+                } else {
+                    targetRate = targetRate * (1 - loss / 2);
+                }
+                targetRate = Math.max(minRate(), targetRate);
+                lastDecrease = now;
+            }
+        } else if (delay <= OVERUSE_DELAY_MS && loss < 0.02
+                && now - lastDecrease >= HOLD_MILLIS && now - lastIncrease >= report.getIntervalMillis() / 2) {
+            targetRate = Math.min(maxRate, targetRate * INCREASE);
+            lastIncrease = now;
+        }
+        fitFramesToRate();
+    }
+
+    public synchronized int getFps() {
+        return (int) Math.round(fps);
+    }
+
+    public synchronized float getQuality() {
+        return quality;
+    }
+
+    public synchronized long getTargetRate() {
+        return (long) targetRate;
+    }
+
+    public synchronized String describe() {
+        return String.format("target %dKB/s, %.0f fps, quality %.0f%%%s",
+                (long) targetRate / 1024, fps, quality * 100, adaptive ? "" : " (fixed)");
+    }
+
+    // Frames this reporter should have counted since its last report but did not
+    private double lossFraction(int reporter, ReceiverReport report) {
+        Long previous = lastCountedTimestamp.put(reporter, report.getLastFrameTimestamp());
+        if (previous == null) {
+            return 0;
+        }
+        int sent = 0;
+        for (long timestamp : sentLog) {
+            if (timestamp > previous && timestamp <= report.getLastFrameTimestamp()) {
+                sent++;
+            }
+        }
+        return sent == 0 ? 0 : Math.max(0, 1 - report.getFramesReceived() / (double) sent);
+    }
+
+    // Cutting below what minFps at minQuality costs would change nothing but slow recovery
+    private double minRate() {
+        return Math.max(MIN_RATE, bytesPerQuality * minQuality * minFps);
+    }
+
+    // Highest quality step that still fits minFps, then as many frames as the rate allows
+    private void fitFramesToRate() {
+        if (bytesPerQuality == 0) {
+            return;
+        }
+        float affordable = (float) (targetRate / (bytesPerQuality * minFps));
+        float stepped = (float) Math.floor(affordable / QUALITY_STEP) * QUALITY_STEP;
+        quality = Math.max(minQuality, Math.min(maxQuality, stepped));
+        fps = Math.max(minFps, Math.min(maxFps, targetRate / (bytesPerQuality * quality)));
+    }
+}
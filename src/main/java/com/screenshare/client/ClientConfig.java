@@ -4,12 +4,17 @@
 // ================================
 package com.screenshare.client;
 
+import com.screenshare.common.Compression;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
 public class ClientConfig {
+    public static final String UNIX_PREFIX = "unix:";
+
+    // A host name, or unix:<path> for the server's Unix domain socket
     private String serverHost = "localhost";
     private int serverPort = 8085;
     private int serverUdpPort = 8081;
@@ -21,6 +26,33 @@ public class ClientConfig {
     private boolean enableUdp = true;
     private int bufferSize = 64 * 1024; // 64KB
     private String clientName = "";
+    private int writeCoalesceMicros = 500;
+    private int writeCoalesceBytes = 64 * 1024; // 64KB
+    private int writeChunkBytes = 16 * 1024; // 16KB
+    private String compression = Compression.NONE;
+    private int compressionThreshold = 256;
+    private int maxPayloadSize = 64 * 1024 * 1024; // 64MB
+    private int captureFps = 10;
+    private int captureQuality = 80; // percent
+    private boolean adaptiveQuality = true;
+    private long maxBandwidth = 1000000; // bytes per second
+    private int minFps = 5;
+    private int maxFps = 30;
+    private int minQuality = 30; // percent
+    private int reportInterval = 200;
+    private int serverPlaybackPort = 8083;
+    private boolean relayEnabled = false;
+    private int relayPort = 0; // 0 = any free port
+    private int relayMaxChildren = 4;
+    // Move onto shared memory when the server offers it (same host only)
+    private boolean shmEnabled = true;
+    // TLS 1.3 to the server
+    private boolean sslEnabled = false;
+    private String sslTruststore = "";
+    private String sslTruststorePassword = "";
+    private boolean sslTrustAll = false;
+    // Pick our session up where we left it after a lost connection
+    private boolean resumeEnabled = true;
 
     public ClientConfig() {
         // Default constructor with default values
@@ -36,6 +68,7 @@ public class ClientConfig {
             config.serverHost = props.getProperty("server.host", "localhost");
             config.serverPort = Integer.parseInt(props.getProperty("server.port", "8080"));
             config.serverUdpPort = Integer.parseInt(props.getProperty("server.udp.port", "8081"));
+            config.serverPlaybackPort = Integer.parseInt(props.getProperty("server.playback.port", "8083"));
             config.reconnectAttempts = Integer.parseInt(props.getProperty("client.reconnect.attempts", "3"));
             config.reconnectDelay = Integer.parseInt(props.getProperty("client.reconnect.delay", "5000"));
             config.heartbeatInterval = Integer.parseInt(props.getProperty("client.heartbeat.interval", "30000"));
@@ -44,6 +77,29 @@ public class ClientConfig {
             config.enableUdp = Boolean.parseBoolean(props.getProperty("client.enable.udp", "true"));
             config.bufferSize = Integer.parseInt(props.getProperty("client.buffer.size", String.valueOf(64 * 1024)));
             config.clientName = props.getProperty("client.name", "");
+            config.writeCoalesceMicros = Integer.parseInt(props.getProperty("client.write.coalesce.micros", "500"));
+            config.writeCoalesceBytes = Integer.parseInt(props.getProperty("client.write.coalesce.bytes", String.valueOf(64 * 1024)));
+            config.writeChunkBytes = Integer.parseInt(props.getProperty("client.write.chunk.bytes", String.valueOf(16 * 1024)));
+            config.compression = props.getProperty("client.compression", Compression.NONE);
+            config.compressionThreshold = Integer.parseInt(props.getProperty("client.compression.threshold", "256"));
+            config.maxPayloadSize = Integer.parseInt(props.getProperty("client.max.payload.size", String.valueOf(64 * 1024 * 1024)));
+            config.captureFps = Integer.parseInt(props.getProperty("client.capture.fps", "10"));
+            config.captureQuality = Integer.parseInt(props.getProperty("client.capture.quality", "80"));
+            config.adaptiveQuality = Boolean.parseBoolean(props.getProperty("client.adaptive.quality", "true"));
+            config.maxBandwidth = Long.parseLong(props.getProperty("client.max.bandwidth", "1000000"));
+            config.minFps = Integer.parseInt(props.getProperty("client.min.fps", "5"));
+            config.maxFps = Integer.parseInt(props.getProperty("client.max.fps", "30"));
+            config.minQuality = Integer.parseInt(props.getProperty("client.min.quality", "30"));
+            config.reportInterval = Integer.parseInt(props.getProperty("client.report.interval", "200"));
+            config.relayEnabled = Boolean.parseBoolean(props.getProperty("client.relay.enabled", "false"));
+            config.relayPort = Integer.parseInt(props.getProperty("client.relay.port", "0"));
+            config.relayMaxChildren = Integer.parseInt(props.getProperty("client.relay.max.children", "4"));
+            config.shmEnabled = Boolean.parseBoolean(props.getProperty("client.shm.enabled", "true"));
+            config.sslEnabled = Boolean.parseBoolean(props.getProperty("client.ssl.enabled", "false"));
+            config.sslTruststore = props.getProperty("client.ssl.truststore", "");
+            config.sslTruststorePassword = props.getProperty("client.ssl.truststore.password", "");
+            config.sslTrustAll = Boolean.parseBoolean(props.getProperty("client.ssl.trust.all", "false"));
+            config.resumeEnabled = Boolean.parseBoolean(props.getProperty("client.resume.enabled", "true"));
 
             System.out.println("Loaded client configuration from: " + filename);
 
@@ -73,6 +129,7 @@ public class ClientConfig {
             config.serverHost = props.getProperty("server.host", "localhost");
             config.serverPort = Integer.parseInt(props.getProperty("server.port", "8080"));
             config.serverUdpPort = Integer.parseInt(props.getProperty("server.udp.port", "8081"));
+            config.serverPlaybackPort = Integer.parseInt(props.getProperty("server.playback.port", "8083"));
             config.reconnectAttempts = Integer.parseInt(props.getProperty("client.reconnect.attempts", "3"));
             config.reconnectDelay = Integer.parseInt(props.getProperty("client.reconnect.delay", "5000"));
             config.heartbeatInterval = Integer.parseInt(props.getProperty("client.heartbeat.interval", "30000"));
@@ -81,6 +138,29 @@ public class ClientConfig {
             config.enableUdp = Boolean.parseBoolean(props.getProperty("client.enable.udp", "true"));
             config.bufferSize = Integer.parseInt(props.getProperty("client.buffer.size", String.valueOf(64 * 1024)));
             config.clientName = props.getProperty("client.name", "");
+            config.writeCoalesceMicros = Integer.parseInt(props.getProperty("client.write.coalesce.micros", "500"));
+            config.writeCoalesceBytes = Integer.parseInt(props.getProperty("client.write.coalesce.bytes", String.valueOf(64 * 1024)));
+            config.writeChunkBytes = Integer.parseInt(props.getProperty("client.write.chunk.bytes", String.valueOf(16 * 1024)));
+            config.compression = props.getProperty("client.compression", Compression.NONE);
+            config.compressionThreshold = Integer.parseInt(props.getProperty("client.compression.threshold", "256"));
+            config.maxPayloadSize = Integer.parseInt(props.getProperty("client.max.payload.size", String.valueOf(64 * 1024 * 1024)));
+            config.captureFps = Integer.parseInt(props.getProperty("client.capture.fps", "10"));
+            config.captureQuality = Integer.parseInt(props.getProperty("client.capture.quality", "80"));
+            config.adaptiveQuality = Boolean.parseBoolean(props.getProperty("client.adaptive.quality", "true"));
+            config.maxBandwidth = Long.parseLong(props.getProperty("client.max.bandwidth", "1000000"));
+            config.minFps = Integer.parseInt(props.getProperty("client.min.fps", "5"));
+            config.maxFps = Integer.parseInt(props.getProperty("client.max.fps", "30"));
+            config.minQuality = Integer.parseInt(props.getProperty("client.min.quality", "30"));
+            config.reportInterval = Integer.parseInt(props.getProperty("client.report.interval", "200"));
+            config.relayEnabled = Boolean.parseBoolean(props.getProperty("client.relay.enabled", "false"));
+            config.relayPort = Integer.parseInt(props.getProperty("client.relay.port", "0"));
+            config.relayMaxChildren = Integer.parseInt(props.getProperty("client.relay.max.children", "4"));
+            config.shmEnabled = Boolean.parseBoolean(props.getProperty("client.shm.enabled", "true"));
+            config.sslEnabled = Boolean.parseBoolean(props.getProperty("client.ssl.enabled", "false"));
+            config.sslTruststore = props.getProperty("client.ssl.truststore", "");
+            config.sslTruststorePassword = props.getProperty("client.ssl.truststore.password", "");
+            config.sslTrustAll = Boolean.parseBoolean(props.getProperty("client.ssl.trust.all", "false"));
+            config.resumeEnabled = Boolean.parseBoolean(props.getProperty("client.resume.enabled", "true"));
 
             System.out.println("Loaded client configuration from resources: " + resourcePath);
 
@@ -106,11 +186,29 @@ public class ClientConfig {
         System.out.println("UDP Enabled: " + enableUdp);
         System.out.println("Buffer Size: " + bufferSize + " bytes");
         System.out.println("Client Name: " + (clientName.isEmpty() ? "Not set" : clientName));
+        System.out.println("Write Coalescing: " + writeCoalesceMicros + "us / " + writeCoalesceBytes + " bytes");
+        System.out.println("Write Chunk Size: " + writeChunkBytes + " bytes");
+        System.out.println("Compression: " + compression + " (from " + compressionThreshold + " bytes)");
+        System.out.println("Max Payload Size: " + maxPayloadSize + " bytes");
+        System.out.println("Capture: " + captureFps + " fps, quality " + captureQuality + "%");
+        System.out.println("Adaptive Quality: " + adaptiveQuality + " (" + minFps + "-" + maxFps + " fps, quality from "
+                + minQuality + "%, max " + maxBandwidth + " B/s)");
+        System.out.println("Receiver Report Interval: " + reportInterval + "ms");
+        System.out.println("Playback Port: " + serverPlaybackPort);
+        System.out.println("Viewer Relay: " + (relayEnabled ? "port " + relayPort + ", up to " + relayMaxChildren + " children" : "disabled"));
+        System.out.println("Shared Memory: " + (shmEnabled ? "when offered" : "disabled"));
+        System.out.println("TLS: " + (sslEnabled ? "TLSv1.3, " + (sslTrustAll ? "trusting any certificate"
+                : "truststore " + (sslTruststore.trim().isEmpty() ? "JDK default" : sslTruststore)) : "disabled"));
+        System.out.println("Session Resumption: " + (resumeEnabled ? "enabled" : "disabled"));
         System.out.println("=============================");
     }
 
     // Getters
     public String getServerHost() { return serverHost; }
+    public boolean isUnixSocket() { return serverHost.startsWith(UNIX_PREFIX); }
+    public String getUnixSocketPath() { return serverHost.substring(UNIX_PREFIX.length()); }
+    // Where the server's other ports (playback) are when we connect over its Unix socket
+    public String getServerInetHost() { return isUnixSocket() ? "localhost" : serverHost; }
     public int getServerPort() { return serverPort; }
     public int getServerUdpPort() { return serverUdpPort; }
     public int getReconnectAttempts() { return reconnectAttempts; }
@@ -121,6 +219,30 @@ public class ClientConfig {
     public boolean isUdpEnabled() { return enableUdp; }
     public int getBufferSize() { return bufferSize; }
     public String getClientName() { return clientName; }
+    public int getWriteCoalesceMicros() { return writeCoalesceMicros; }
+    public int getWriteCoalesceBytes() { return writeCoalesceBytes; }
+    public int getWriteChunkBytes() { return writeChunkBytes; }
+    public String getCompression() { return compression; }
+    public int getCompressionThreshold() { return compressionThreshold; }
+    public int getMaxPayloadSize() { return maxPayloadSize; }
+    public int getCaptureFps() { return captureFps; }
+    public int getCaptureQuality() { return captureQuality; }
+    public boolean isAdaptiveQuality() { return adaptiveQuality; }
+    public long getMaxBandwidth() { return maxBandwidth; }
+    public int getMinFps() { return minFps; }
+    public int getMaxFps() { return maxFps; }
+    public int getMinQuality() { return minQuality; }
+    public int getReportInterval() { return reportInterval; }
+    public int getServerPlaybackPort() { return serverPlaybackPort; }
+    public boolean isRelayEnabled() { return relayEnabled; }
+    public int getRelayPort() { return relayPort; }
+    public int getRelayMaxChildren() { return relayMaxChildren; }
+    public boolean isShmEnabled() { return shmEnabled; }
+    public boolean isSslEnabled() { return sslEnabled; }
+    public String getSslTruststore() { return sslTruststore; }
+    public String getSslTruststorePassword() { return sslTruststorePassword; }
+    public boolean isSslTrustAll() { return sslTrustAll; }
+    public boolean isResumeEnabled() { return resumeEnabled; }
 
     // Setters (for command line overrides)
     public void setServerHost(String serverHost) { this.serverHost = serverHost; }
@@ -134,6 +256,30 @@ public class ClientConfig {
     public void setEnableUdp(boolean enableUdp) { this.enableUdp = enableUdp; }
     public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
     public void setClientName(String clientName) { this.clientName = clientName; }
+    public void setWriteCoalesceMicros(int writeCoalesceMicros) { this.writeCoalesceMicros = writeCoalesceMicros; }
+    public void setWriteCoalesceBytes(int writeCoalesceBytes) { this.writeCoalesceBytes = writeCoalesceBytes; }
+    public void setWriteChunkBytes(int writeChunkBytes) { this.writeChunkBytes = writeChunkBytes; }
+    public void setCompression(String compression) { this.compression = compression; }
+    public void setCompressionThreshold(int compressionThreshold) { this.compressionThreshold = compressionThreshold; }
+    public void setMaxPayloadSize(int maxPayloadSize) { this.maxPayloadSize = maxPayloadSize; }
+    public void setCaptureFps(int captureFps) { this.captureFps = captureFps; }
+    public void setCaptureQuality(int captureQuality) { this.captureQuality = captureQuality; }
+    public void setAdaptiveQuality(boolean adaptiveQuality) { this.adaptiveQuality = adaptiveQuality; }
+    public void setMaxBandwidth(long maxBandwidth) { this.maxBandwidth = maxBandwidth; }
+    public void setMinFps(int minFps) { this.minFps = minFps; }
+    public void setMaxFps(int maxFps) { this.maxFps = maxFps; }
+    public void setMinQuality(int minQuality) { this.minQuality = minQuality; }
+    public void setReportInterval(int reportInterval) { this.reportInterval = reportInterval; }
+    public void setServerPlaybackPort(int serverPlaybackPort) { this.serverPlaybackPort = serverPlaybackPort; }
+    public void setRelayEnabled(boolean relayEnabled) { this.relayEnabled = relayEnabled; }
+    public void setRelayPort(int relayPort) { this.relayPort = relayPort; }
+    public void setRelayMaxChildren(int relayMaxChildren) { this.relayMaxChildren = relayMaxChildren; }
+    public void setShmEnabled(boolean shmEnabled) { this.shmEnabled = shmEnabled; }
+    public void setSslEnabled(boolean sslEnabled) { this.sslEnabled = sslEnabled; }
+    public void setSslTruststore(String sslTruststore) { this.sslTruststore = sslTruststore; }
+    public void setSslTruststorePassword(String sslTruststorePassword) { this.sslTruststorePassword = sslTruststorePassword; }
+    public void setSslTrustAll(boolean sslTrustAll) { this.sslTrustAll = sslTrustAll; }
+    public void setResumeEnabled(boolean resumeEnabled) { this.resumeEnabled = resumeEnabled; }
 }
 
 /* 2025-06-19 16:26:53: NOTE: Code modularity improved */
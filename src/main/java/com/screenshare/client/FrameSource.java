@@ -0,0 +1,9 @@
+// FrameSource.java
+package com.screenshare.client;
+
+import java.io.IOException;
+
+// Produces one encoded frame per call. quality is the encoder setting in [0, 1].
+public interface FrameSource {
+    byte[] capture(float quality) throws IOException;
+}
@@ -0,0 +1,139 @@
+// PlaybackSession.java
+package com.screenshare.client;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.WireCodecV1;
+import com.screenshare.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Connection to the server's playback port, which replays recorded shares. It always
+// speaks version 1 frames: the server sends recorded frames exactly as they were stored.
+// Requests are the text of a PLAYBACK message (see PlaybackServer): "list",
+// "play <id> [<timestamp>|+<millis> [<speed>]]" (also to seek) and "stop".
+public class PlaybackSession {
+    private final SocketChannel channel;
+    private final DataInputStream inputStream;
+    private final WireCodecV1 codec = new WireCodecV1();
+    private final String clientId;
+    private volatile Consumer<Message> frameListener;
+    private volatile long framesReceived;
+    private volatile long lastFrameTimestamp = -1;
+
+    private PlaybackSession(SocketChannel channel, String clientId) throws IOException {
+        this.channel = channel;
+        this.clientId = clientId;
+        this.inputStream = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024));
+    }
+
+    public static PlaybackSession open(String host, int port, String clientId) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        PlaybackSession session = new PlaybackSession(channel, clientId);
+        session.startReader();
+        return session;
+    }
+
+    public synchronized boolean request(String text) {
+        List<ByteBuffer> frame = new ArrayList<>(2);
+        codec.encode(new Message(MessageType.PLAYBACK, clientId, text), frame);
+        try {
+            channel.write(frame.toArray(new ByteBuffer[0]));
+            return true;
+        } catch (IOException e) {
+            Logger.error("Failed to send playback request: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void setFrameListener(Consumer<Message> frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    // Recorded timestamp of the frame shown last, -1 before the first
+    public long getLastFrameTimestamp() {
+        return lastFrameTimestamp;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private void startReader() {
+        Thread reader = new Thread(() -> {
+            try {
+                while (channel.isOpen()) {
+                    handle(codec.read(inputStream));
+                }
+            } catch (EOFException e) {
+                Logger.info("Playback connection closed by server");
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    Logger.error("Error reading playback: " + e.getMessage());
+                }
+            }
+            close();
+        }, "playback-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void handle(Message message) {
+        switch (message.getType()) {
+            case SCREEN_DATA:
+                framesReceived++;
+                lastFrameTimestamp = message.getTimestamp();
+                Consumer<Message> listener = frameListener;
+                if (listener != null) {
+                    listener.accept(message);
+                }
+                break;
+
+            case PLAYBACK:
+                String reply = message.getPayloadAsString();
+                if (reply.startsWith("end ")) {
+                    Logger.info("Playback of " + reply.substring(4) + " finished after " + framesReceived + " frames");
+                } else if (reply.startsWith("playing ") || reply.equals("stopped")) {
+                    Logger.info("Playback: " + reply);
+                } else {
+                    Logger.info("=== Recordings (id, first and last timestamp) ===");
+                    for (String line : reply.split("\n")) {
+                        if (!line.isEmpty()) {
+                            Logger.info(line);
+                        }
+                    }
+                    Logger.info("=================================================");
+                }
+                break;
+
+            case ERROR:
+                Logger.error("Playback error: " + message.getPayloadAsString());
+                break;
+
+            default:
+                Logger.debug("Unhandled playback message: " + message.getType());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+// RelayNode.java
+package com.screenshare.client;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.OutboundQueue;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.WireCodec;
+import com.screenshare.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// This viewer's part in the server's relay trees (client.relay.enabled).
+//
+// As a relay it listens on client.relay.port, on the address it reaches the server from
+// (the one the server hands out), for child viewers. The server tells it "admit <sharer>
+// <token>" for each child it places here and "revoke <sharer> <token>" when the child
+// moves on. A child sends "join <sharer> <token>" as a RELAY message and from then on
+// gets every frame of that sharer this viewer shows, plus a HEARTBEAT every
+// HEARTBEAT_MILLIS so it notices a dead relay quickly; the relay confirms a join with
+// "joined <sharer>". A connection that does not present an admitted token within
+// PARENT_TIMEOUT_MILLIS is closed, as is a child whose token is revoked. As a child it
+// follows the server's RELAY assignments: "parent <sharer> <host> <port> <token>" opens a
+// link to that relay and, once the relay confirmed, tells the server "attached <sharer>
+// <host>:<port>" so it stops sending itself; "direct <sharer>" closes the link. A link that fails, or stays
+// silent for PARENT_TIMEOUT_MILLIS, is reported "lost <sharer> <host>:<port>" so the
+// server sends again. Relay links speak version 2 from their first byte.
+//
+// While the tree changes a frame can arrive both from the server and from a relay. Frames
+// are handled one at a time, and only the first copy (by sharer and timestamp) is shown
+// and passed on.
+public class RelayNode {
+    static final int HEARTBEAT_MILLIS = 250;
+    static final int PARENT_TIMEOUT_MILLIS = 1000;
+    private static final int REPORT_MILLIS = 1000;
+
+    private final ScreenShareClient client;
+    private final ClientConfig config;
+    private final int maxChildren;
+    // Null when this viewer only receives through relays
+    private final ServerSocketChannel listener;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "relay-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Child> children = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, ParentLink> parents = new ConcurrentHashMap<>();
+    // Sharer each token the server admitted is for; guarded by itself
+    private final Map<String, Integer> admitted = new HashMap<>();
+    // Newest frame timestamp shown from each sharer; guarded by this
+    private final Map<Integer, Long> newest = new HashMap<>();
+    private final LongAdder egressBytes = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    // Timer thread only
+    private long reportedBytes = -1;
+    private int ticks;
+    private volatile boolean closed;
+
+    private RelayNode(ScreenShareClient client, ClientConfig config, ServerSocketChannel listener) {
+        this.client = client;
+        this.config = config;
+        this.maxChildren = listener != null ? config.getRelayMaxChildren() : 0;
+        this.listener = listener;
+    }
+
+    // Listens on address, the one the server sees us connect from
+    public static RelayNode open(ScreenShareClient client, ClientConfig config, InetAddress address)
+            throws IOException {
+        ServerSocketChannel listener = null;
+        if (config.getRelayMaxChildren() > 0) {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(address, config.getRelayPort()));
+        }
+        RelayNode relay = new RelayNode(client, config, listener);
+        relay.start();
+        return relay;
+    }
+
+    private void start() {
+        if (listener != null) {
+            Thread accepting = new Thread(this::accept, "relay-acceptor");
+            accepting.setDaemon(true);
+            accepting.start();
+            Logger.info("Relaying for up to " + maxChildren + " viewers on "
+                    + listener.socket().getInetAddress().getHostAddress() + ":" + getPort());
+        }
+        timer.scheduleAtFixedRate(this::tick, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Port other viewers reach our relay on, 0 when we do not relay
+    public int getPort() {
+        return listener != null ? listener.socket().getLocalPort() : 0;
+    }
+
+    public int getMaxChildren() {
+        return maxChildren;
+    }
+
+    public long getEgressBytes() {
+        return egressBytes.sum();
+    }
+
+    public int getChildCount() {
+        return children.size();
+    }
+
+    // Whether we currently take this sharer's frames from a relay
+    public boolean hasParent(int sharerId) {
+        ParentLink link = parents.get(sharerId);
+        return link != null && link.attached;
+    }
+
+    // A RELAY assignment from the server
+    void onAssignment(String text) {
+        String[] fields = text.trim().split(" ");
+        try {
+            int sharerId = Integer.parseInt(fields[1]);
+            if (fields[0].equals("parent") && fields.length == 5) {
+                ParentLink link = new ParentLink(sharerId, fields[2], Integer.parseInt(fields[3]), fields[4]);
+                closeParent(parents.put(sharerId, link));
+                Thread thread = new Thread(link, "relay-parent-" + sharerId);
+                thread.setDaemon(true);
+                thread.start();
+            } else if (fields[0].equals("direct")) {
+                closeParent(parents.remove(sharerId));
+            } else if (fields[0].equals("admit") && fields.length == 3) {
+                synchronized (admitted) {
+                    admitted.put(fields[2], sharerId);
+                    admitted.notifyAll();
+                }
+            } else if (fields[0].equals("revoke") && fields.length == 3) {
+                synchronized (admitted) {
+                    admitted.remove(fields[2]);
+                }
+                for (Child child : children) {
+                    if (fields[2].equals(child.token)) {
+                        child.close();
+                    }
+                }
+            } else {
+                Logger.debug("Ignoring relay assignment: " + text);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Malformed relay assignment: " + text);
+        }
+    }
+
+    // Passes a frame from the server or our parent on to the children that joined its
+    // sharer, then to handler; a copy of a frame already shown goes no further
+    synchronized void deliver(Message frame, Consumer<Message> handler) {
+        Long last = newest.get(frame.getSessionId());
+        if (last != null && frame.getTimestamp() <= last) {
+            duplicates.increment();
+            return;
+        }
+        newest.put(frame.getSessionId(), frame.getTimestamp());
+        long size = frame.getPayload() != null ? frame.getPayload().length : 0;
+        for (Child child : children) {
+            if (child.sharerId == frame.getSessionId() && child.out.send(frame)) {
+                egressBytes.add(size);
+            }
+        }
+        handler.accept(frame);
+    }
+
+    // The sharer stopped; its next share starts from fresh timestamps
+    synchronized void ended(int sharerId) {
+        newest.remove(sharerId);
+    }
+
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+        for (Child child : children) {
+            child.close();
+        }
+        for (ParentLink link : parents.values()) {
+            link.close();
+        }
+        parents.clear();        synchronized (admitted) {
+            admitted.clear();
+            admitted.notifyAll();
+        }
+    }
+
+    public String describe() {
+        return String.format("%d children, %d bytes relayed, %d parent links, %d duplicate frames dropped",
+                children.size(), egressBytes.sum(), parents.size(), duplicates.sum());
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = listener.accept();
+                if (children.size() >= maxChildren) {
+                    // The server never assigns more; this is someone else
+                    channel.close();
+                    continue;
+                }
+                Child child = new Child(channel);
+                children.add(child);
+                Thread thread = new Thread(child, "relay-child-" + channel.socket().getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    Logger.error("Error accepting relay viewer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Timer thread: heartbeats to children, and our egress to the server once a second
+    private void tick() {
+        try {
+            for (Child child : children) {
+                child.out.send(new Message(MessageType.HEARTBEAT, Protocol.SERVER_CLIENT_ID));
+            }
+            long bytes = egressBytes.sum();
+            if (listener != null && ++ticks % (REPORT_MILLIS / HEARTBEAT_MILLIS) == 0 && bytes != reportedBytes) {
+                if (client.sendRelayReport("egress " + bytes + " " + children.size())) {
+                    reportedBytes = bytes;
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Relay timer failed: " + e.getMessage());
+        }
+    }
+
+    // A join may arrive before the server's word that it is coming
+    private boolean awaitAdmission(String token, int sharerId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PARENT_TIMEOUT_MILLIS;
+        synchronized (admitted) {
+            while (!closed) {
+                Integer admittedFor = admitted.get(token);
+                if (admittedFor != null) {
+                    return admittedFor == sharerId;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                admitted.wait(left);
+            }
+            return false;
+        }
+    }
+
+    private static void closeParent(ParentLink link) {
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    private WireCodec newCodec() {
+        WireCodec codec = WireCodec.forVersion(Protocol.VERSION_2);
+        codec.setMaxMessageSize(config.getMaxPayloadSize());
+        return codec;
+    }
+
+    // A viewer taking frames from us; its thread only waits for its join and its close
+    private final class Child implements Runnable {
+        final SocketChannel channel;
+        final OutboundQueue out;
+        volatile int sharerId = -1;
+        volatile String token;
+
+        Child(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.socket().setTcpNoDelay(true);
+            // Until it joins
+            channel.socket().setSoTimeout(PARENT_TIMEOUT_MILLIS);
+            this.out = new OutboundQueue(channel, WireCodec.forVersion(Protocol.VERSION_2),
+                    config.getWriteCoalesceMicros(), config.getWriteCoalesceBytes(), config.getWriteChunkBytes());
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                WireCodec codec = newCodec();
+                while (!closed && !out.isClosed()) {
+                    Message message = codec.read(in);
+                    String text = message.getType() == MessageType.RELAY ? message.getPayloadAsString().trim() : "";
+                    String[] fields = text.split(" ");
+                    if (sharerId < 0 && fields.length == 3 && fields[0].equals("join")) {
+                        int joining = Integer.parseInt(fields[1]);
+                        if (!awaitAdmission(fields[2], joining)) {
+                            Logger.debug("Refused relay viewer " + channel.socket().getRemoteSocketAddress()
+                                    + " for session " + joining + ": not admitted");
+                            break;
+                        }
+                        token = fields[2];
+                        sharerId = joining;
+                        channel.socket().setSoTimeout(0);
+                        out.send(new Message(MessageType.RELAY, Protocol.SERVER_CLIENT_ID, "joined " + sharerId));
+                        Logger.debug("Relay viewer " + channel.socket().getRemoteSocketAddress()
+                                + " joined for session " + sharerId);
+                    }
+                }
+            } catch (EOFException e) {
+                // Moved elsewhere or gone
+            } catch (IOException | NumberFormatException e) {
+                if (!closed) {
+                    Logger.debug("Relay viewer link failed: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        void close() {
+            children.remove(this);
+            out.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    // Our link to the relay the server placed us under for one sharer
+    private final class ParentLink implements Runnable {
+        final int sharerId;
+        final String host;
+        final int port;
+        final String token;
+        volatile SocketChannel channel;
+        volatile boolean attached;
+        private volatile boolean stopped;
+
+        ParentLink(int sharerId, String host, int port, String token) {
+            this.sharerId = sharerId;
+            this.host = host;
+            this.port = port;
+            this.token = token;
+        }
+
+        @Override
+        public void run() {
+            OutboundQueue out = null;
+            try {
+                SocketChannel opened = SocketChannel.open();
+                channel = opened;
+                if (stopped) {
+                    throw new EOFException("closed");
+                }
+                Socket socket = opened.socket();
+                socket.connect(new InetSocketAddress(host, port), PARENT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(PARENT_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                        config.getBufferSize()));
+                out = new OutboundQueue(opened, WireCodec.forVersion(Protocol.VERSION_2),
+                        config.getWriteCoalesceMicros(), config.getWriteCoalesceBytes(), config.getWriteChunkBytes());
+                if (!out.send(new Message(MessageType.RELAY, Protocol.SERVER_CLIENT_ID, "join " + sharerId + " " + token))) {
+                    throw new IOException("could not join");
+                }
+
+                WireCodec codec = newCodec();
+                while (!stopped) {
+                    Message message = codec.read(in);
+                    if (message.getType() == MessageType.SCREEN_DATA && message.getSessionId() == sharerId) {
+                        client.onRelayedFrame(message);
+                    } else if (message.getType() == MessageType.RELAY && !attached
+                            && message.getPayloadAsString().trim().equals("joined " + sharerId)) {
+                        // The relay passes frames on from here; the server can stop
+                        attached = client.sendRelayReport("attached " + sharerId + " " + host + ":" + port);
+                        Logger.debug("Receiving session " + sharerId + " through relay " + host + ":" + port);
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopped && !closed) {
+                    Logger.info("Relay " + host + ":" + port + " for session " + sharerId + " lost ("
+                            + (e instanceof EOFException ? "closed" : e.getMessage()) + "), back to the server");
+                    client.sendRelayReport("lost " + sharerId + " " + host + ":" + port);
+                }
+            } finally {
+                attached = false;
+                parents.remove(sharerId, this);
+                if (out != null) {
+                    out.close();
+                }
+                close();
+            }
+        }
+
+        void close() {
+            stopped = true;
+            SocketChannel current = channel;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+}
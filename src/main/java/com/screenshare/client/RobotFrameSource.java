@@ -0,0 +1,53 @@
+// RobotFrameSource.java
+package com.screenshare.client;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AWTException;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// Captures the primary screen with java.awt.Robot and encodes it as JPEG
+public class RobotFrameSource implements FrameSource {
+    private final Robot robot;
+    private final Rectangle area;
+    private final ImageWriter writer;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * 1024);
+
+    public RobotFrameSource() throws IOException {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IOException("No display available for screen capture");
+        }
+        try {
+            robot = new Robot();
+        } catch (AWTException e) {
+            throw new IOException("Screen capture not permitted: " + e.getMessage());
+        }
+        area = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+        writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    }
+
+    @Override
+    public byte[] capture(float quality) throws IOException {
+        BufferedImage image = robot.createScreenCapture(area);
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        buffer.reset();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(buffer)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,88 @@
+// ScreenCapturer.java
+package com.screenshare.client;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+// Capture loop of a sharing client: grabs a frame at the controller's current quality,
+// sends it as SCREEN_DATA and waits out the rest of the frame interval. Frame rate and
+// quality are re-read every frame, so receiver reports take effect on the next capture.
+public class ScreenCapturer {
+    private final FrameSource source;
+    private final BitrateController controller;
+    private final String clientId;
+    private final Predicate<Message> sender;
+    private volatile boolean running;
+    private Thread thread;
+    private long framesSent;
+
+    public ScreenCapturer(FrameSource source, BitrateController controller, String clientId,
+                          Predicate<Message> sender) {
+        this.source = source;
+        this.controller = controller;
+        this.clientId = clientId;
+        this.sender = sender;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::captureLoop, "screen-capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    private void captureLoop() {
+        Logger.info("Screen capture started: " + controller.describe());
+        while (running) {
+            long started = System.currentTimeMillis();
+            try {
+                byte[] frame = source.capture(controller.getQuality());
+                Message message = new Message(MessageType.SCREEN_DATA, clientId, frame);
+                message.setTimestamp(started);
+                if (!sender.test(message)) {
+                    break;
+                }
+                controller.onFrameSent(started, frame.length);
+                framesSent++;
+            } catch (IOException e) {
+                Logger.error("Screen capture failed: " + e.getMessage());
+                break;
+            }
+
+            long interval = 1000 / Math.max(1, controller.getFps());
+            long remaining = interval - (System.currentTimeMillis() - started);
+            if (remaining > 0) {
+                try {
+                    Thread.sleep(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        running = false;
+        Logger.info("Screen capture stopped after " + framesSent + " frames");
+    }
+}
@@ -7,54 +7,123 @@ import org.apache.commons.cli.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class ScreenShareClient {
-    private Socket tcpSocket;
+    // The socket we connected on, or shared memory once the server moved us there
+    private volatile Transport transport;
     private DatagramSocket udpSocket;
-    private DataInputStream inputStream;
-    private DataOutputStream outputStream;
+    private volatile DataInputStream inputStream;
+    private volatile OutboundQueue outbound;
     private ClientConfig config;
-    private String clientId;
+    private volatile String clientId;
+    private volatile int sessionId = -1;
+    private volatile WireCodec codec = WireCodec.forVersion(Protocol.VERSION_1);
     private final AtomicBoolean connected = new AtomicBoolean(false);
     private final AtomicBoolean running = new AtomicBoolean(true);
     private ScheduledExecutorService heartbeatScheduler;
+    private volatile Consumer<Message> messageListener;
+    private final BitrateController bitrateController;
+    private volatile ScreenCapturer capturer;
+    // What we received of each sharer's frames since the last receiver report
+    private final Map<Integer, ReceptionStats> receptionStats = new ConcurrentHashMap<>();
+    // Who is connected and sharing, kept current from the server's CLIENT_LIST updates
+    private final Roster roster = new Roster();
+    private final AtomicBoolean rosterResyncing = new AtomicBoolean(false);
+    // Latest preview of each share, while watching previews
+    private final Map<Integer, ThumbnailBatch.Entry> thumbnails = new ConcurrentHashMap<>();
+    // Latest tile of each cell of our mosaic, composited by the server
+    private final Map<Integer, MosaicFrame.Tile> mosaicTiles = new ConcurrentHashMap<>();
+    private volatile Consumer<List<MosaicFrame.Tile>> mosaicListener;
+    // Opened on the server's playback port by the first recordings/replay command
+    private volatile PlaybackSession playback;
+    // Our part in the server's relay trees, with client.relay.enabled
+    private volatile RelayNode relay;
+    // Attached to the server's offer, waiting for its "switched"
+    private SharedMemoryTransport pendingTransport;
+    // With client.ssl.enabled; kept across reconnects, since its session cache is what
+    // lets them resume instead of running a full handshake
+    private TlsContext tls;
+    // With client.resume.enabled, the server's token for our session and how many of its
+    // messages we read; after a lost connection we present both and it sends what we missed
+    private volatile String resumeToken;
+    private volatile long receivedSequence;
 
     public ScreenShareClient(ClientConfig config) {
         this.config = config;
+        // Placeholder until the server assigns our session in CONNECT_RESPONSE
         this.clientId = "CLIENT_" + System.currentTimeMillis();
+        this.bitrateController = new BitrateController(config);
     }
 
     public boolean connect() {
         int attempts = 0;
         while (attempts < config.getReconnectAttempts() && running.get()) {
             try {
-                Logger.info("Attempting to connect to server: " +
-                        config.getServerHost() + ":" + config.getServerPort() +
+                Logger.info("Attempting to connect to server: " + describeServer() +
                         " (attempt " + (attempts + 1) + ")");
 
-                tcpSocket = new Socket(config.getServerHost(), config.getServerPort());
-                inputStream = new DataInputStream(tcpSocket.getInputStream());
-                outputStream = new DataOutputStream(tcpSocket.getOutputStream());
+                SocketChannel channel = config.isUnixSocket()
+                        ? SocketChannel.open(UnixDomainSocketAddress.of(config.getUnixSocketPath()))
+                        : SocketChannel.open(new InetSocketAddress(config.getServerHost(), config.getServerPort()));
+                SocketTransport socket = new SocketTransport(channel, config.getBufferSize());
+                transport = socket;
+                if (config.isSslEnabled() && !config.isUnixSocket()) {
+                    transport = secure(socket);
+                }
+                inputStream = new DataInputStream(transport.getInputStream());
+                codec = WireCodec.forVersion(Protocol.VERSION_1);
+                outbound = new OutboundQueue(transport.getOutputChannel(), codec,
+                        config.getWriteCoalesceMicros(), config.getWriteCoalesceBytes(),
+                        config.getWriteChunkBytes());
+
+                connected.set(true);
+                openRelay(channel);
+                boolean resumed = negotiateProtocol();
+                rosterResyncing.set(false);
+                // A resumed session's roster updates are among what the server replays
+                if (!resumed) {
+                    sendMessage(new Message(MessageType.CLIENT_LIST, clientId));
+                    // A new session after one the server could not resume knows nothing
+                    // of our share
+                    ScreenCapturer current = capturer;
+                    if (current != null && current.isRunning()) {
+                        sendMessage(new Message(MessageType.START_SHARE, clientId, "Starting screen share"));
+                    }
+                }
 
                 // Also connect UDP socket
+                if (udpSocket != null) {
+                    udpSocket.close();
+                }
                 udpSocket = new DatagramSocket();
 
-                connected.set(true);
-                Logger.info("Connected to server successfully");
+                Logger.info(resumed ? "Resumed session with server" : "Connected to server successfully");
 
                 // Start message listener
                 startMessageListener();
 
                 // Start heartbeat
+                if (heartbeatScheduler != null) {
+                    heartbeatScheduler.shutdown();
+                }
                 startHeartbeat();
 
                 return true;
 
             } catch (IOException e) {
                 attempts++;
+                connected.set(false);
+                closeTransport();
                 Logger.error("Connection attempt " + attempts + " failed: " + e.getMessage());
 
                 if (attempts < config.getReconnectAttempts()) {
@@ -72,13 +141,170 @@ public class ScreenShareClient {
         return false;
     }
 
+    private TlsTransport secure(SocketTransport socket) throws IOException {
+        if (tls == null) {
+            tls = TlsContext.create(null, null, config.getSslTruststore(), config.getSslTruststorePassword(),
+                    config.isSslTrustAll(), 0);
+        }
+        TlsTransport secured = tls.connect(socket, config.getServerHost(), config.getServerPort());
+        secured.setReadTimeout(config.getConnectionTimeout());
+        secured.handshake();
+        secured.setReadTimeout(0);
+        Logger.info("Secured with " + secured.getCipherSuite() + " (" + tls.getResumedHandshakes() + " of "
+                + tls.getHandshakes() + " handshakes resumed)");
+        return secured;
+    }
+
+    // Null unless client.ssl.enabled
+    public TlsContext getTls() {
+        return tls;
+    }
+
+    // Opened once, before the handshake that offers it, on the address this connection
+    // leaves from: the server hands that one to other viewers. Without it we simply stay
+    // out of relay trees.
+    private void openRelay(SocketChannel channel) {
+        if (!config.isRelayEnabled() || relay != null) {
+            return;
+        }
+        if (config.isSslEnabled()) {
+            Logger.error("Not relaying: relay links are unencrypted and client.ssl.enabled is on");
+            return;
+        }
+        try {
+            SocketAddress local = channel.getLocalAddress();
+            InetAddress address = local instanceof InetSocketAddress
+                    ? ((InetSocketAddress) local).getAddress() : InetAddress.getLoopbackAddress();
+            relay = RelayNode.open(this, config, address);
+        } catch (IOException e) {
+            Logger.error("Cannot open relay port " + config.getRelayPort() + ": " + e.getMessage());
+        }
+    }
+
+    // Reads the server's welcome and, if it offers a newer wire version, upgrades with a
+    // CONNECT_REQUEST. Nothing else is sent until the answer arrives, so both ends switch
+    // codecs at the same point of the stream. True if the server resumed our session.
+    private boolean negotiateProtocol() throws IOException {
+        transport.setReadTimeout(config.getConnectionTimeout());
+        // What this connection reads before the answer belongs to a new session; an
+        // attempt that fails must not leave it counted
+        long presented = receivedSequence;
+        boolean answered = false;
+        String token = config.isResumeEnabled() ? resumeToken : null;
+        try {
+            Handshake welcome = awaitConnectResponse(token != null);
+            int version = Protocol.negotiateVersion(welcome.get(Handshake.PROTOCOL_VERSIONS, null));
+            if (version == Protocol.VERSION_1) {
+                // Older server, or nothing better to agree on
+                resumeToken = null;
+                return false;
+            }
+
+            Handshake request = new Handshake()
+                    .put(Handshake.PROTOCOL_VERSIONS, Protocol.SUPPORTED_VERSIONS)
+                    .put(Handshake.COMPRESSIONS, config.getCompression());
+            if (!config.getClientName().isBlank()) {
+                request.put(Handshake.CLIENT_NAME, config.getClientName().trim());
+            }
+            RelayNode relayNode = relay;
+            if (relayNode != null) {
+                request.put(Handshake.RELAY_PORT, relayNode.getPort())
+                        .put(Handshake.RELAY_CHILDREN, relayNode.getMaxChildren());
+            }
+            if (config.isShmEnabled()) {
+                request.put(Handshake.TRANSPORTS, Transport.SHARED_MEMORY);
+            }
+            if (config.isResumeEnabled()) {
+                request.put(Handshake.RESUME_TOKEN, token != null ? token : "")
+                        .put(Handshake.RESUME_SEQUENCE, presented);
+            }
+            if (!sendMessage(new Message(MessageType.CONNECT_REQUEST, clientId, request.toBytes()))) {
+                throw new IOException("Failed to send connect request");
+            }
+
+            Handshake response = awaitConnectResponse(token != null);
+            answered = true;
+            int agreed = response.getInt(Handshake.PROTOCOL_VERSION, Protocol.VERSION_1);
+            WireCodec next = WireCodec.forVersion(agreed);
+            next.setMaxMessageSize(config.getMaxPayloadSize());
+            String compression = response.get(Handshake.COMPRESSION, Compression.NONE);
+            if (!compression.equals(Compression.NONE) && next.supportsCompression()) {
+                next.setCompression(Compression.forName(compression), config.getCompressionThreshold());
+            }
+            codec = next;
+            outbound.setCodec(next);
+            Logger.info("Using protocol version " + agreed + ", compression " + compression);
+
+            boolean resumed = Boolean.parseBoolean(response.get(Handshake.RESUMED, "false"));
+            if (resumed) {
+                // Anything read meanwhile was for the new connection's own session
+                receivedSequence = presented;
+                Logger.info("Server resumed our session after message " + presented);
+            } else {
+                // A new session; the server numbers its messages from here
+                receivedSequence = 0;
+            }
+            resumeToken = response.get(Handshake.RESUME_TOKEN, null);
+            return resumed;
+        } finally {
+            if (!answered) {
+                receivedSequence = presented;
+            }
+            transport.setReadTimeout(0);
+        }
+    }
+
+    // Frames arriving before the response (e.g. broadcasts) are handled as usual, unless
+    // we are resuming: then they are for the new connection's own session, which goes
+    // away if ours is resumed (and if not, the roster snapshot we ask for catches up)
+    private Handshake awaitConnectResponse(boolean resuming) throws IOException {
+        while (true) {
+            Message message = readMessage();
+            if (message.getType() == MessageType.CONNECT_RESPONSE) {
+                processMessage(message);
+                return Handshake.parse(message.getPayload());
+            }
+            if (!resuming) {
+                processMessage(message);
+            }
+        }
+    }
+
+    // The next message from the server, counted for session resumption
+    private Message readMessage() throws IOException {
+        Message message = codec.read(inputStream);
+        if (Protocol.isSequenced(message.getType())) {
+            receivedSequence++;
+        }
+        return message;
+    }
+
+    private String describeServer() {
+        return config.isUnixSocket() ? config.getServerHost() : config.getServerHost() + ":" + config.getServerPort();
+    }
+
+    private void closeTransport() {
+        if (outbound != null) outbound.close();
+        try {
+            if (transport != null) transport.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+        codec.close();
+    }
+
     public void disconnect() {
         Logger.info("Disconnecting from server...");
         running.set(false);
+        stopCapture();
+        closePlayback();
+        if (relay != null) {
+            relay.close();
+        }
         connected.set(false);
 
         // Send disconnect message
-        if (tcpSocket != null && !tcpSocket.isClosed()) {
+        if (transport != null && transport.isOpen()) {
             sendMessage(new Message(MessageType.DISCONNECT, clientId));
         }
 
@@ -88,35 +314,38 @@ public class ScreenShareClient {
         }
 
         // Close connections
+        if (outbound != null) outbound.close();
         try {
             if (inputStream != null) inputStream.close();
-            if (outputStream != null) outputStream.close();
-            if (tcpSocket != null) tcpSocket.close();
+            if (transport != null) transport.close();
+            if (pendingTransport != null) pendingTransport.close();
             if (udpSocket != null) udpSocket.close();
         } catch (IOException e) {
             Logger.error("Error closing connections", e);
         }
+        codec.close();
 
         Logger.info("Disconnected from server");
     }
 
+    // Safe from any thread: the heartbeat thread and the command loop both send
     public boolean sendMessage(Message message) {
         if (!connected.get()) {
             Logger.error("Cannot send message - not connected");
             return false;
         }
 
-        try {
-            byte[] serialized = Protocol.serialize(message);
-            outputStream.writeInt(serialized.length);
-            outputStream.write(serialized);
-            outputStream.flush();
-            return true;
-        } catch (IOException e) {
-            Logger.error("Failed to send message", e);
-            connected.set(false);
+        if (message.getSessionId() < 0) {
+            message.setSessionId(Math.max(sessionId, Protocol.SERVER_SESSION_ID));
+        }
+        if (!outbound.send(message)) {
+            Logger.error("Failed to send message " + message.getType());
+            if (outbound.isClosed()) {
+                connected.set(false);
+            }
             return false;
         }
+        return true;
     }
 
     private void startMessageListener() {
@@ -125,19 +354,8 @@ public class ScreenShareClient {
 
             while (connected.get() && running.get()) {
                 try {
-                    // Read message length
-                    int messageLength = inputStream.readInt();
-                    if (messageLength <= 0 || messageLength > Protocol.MAX_PAYLOAD_SIZE) {
-                        Logger.error("Invalid message length: " + messageLength);
-                        break;
-                    }
-
-                    // Read full message
-                    byte[] messageData = new byte[messageLength];
-                    inputStream.readFully(messageData);
-
-                    // Deserialize and process
-                    Message message = Protocol.deserialize(messageData);
+                    // Read and process the next frame in the negotiated format
+                    Message message = readMessage();
                     processMessage(message);
 
                 } catch (SocketException e) {
@@ -156,18 +374,58 @@ public class ScreenShareClient {
 
             connected.set(false);
             Logger.info("Message listener stopped");
+
+            // The server keeps our session for a while; pick it up where we left off
+            if (running.get() && resumeToken != null) {
+                closeTransport();
+                Logger.info("Lost the connection to the server, resuming the session");
+                connect();
+            }
         });
 
         listenerThread.setDaemon(true);
         listenerThread.start();
     }
 
+    // Frames of shares we may be relaying go through the relay node first, which also
+    // drops copies arriving both from the server and from a relay
     private void processMessage(Message message) {
+        RelayNode relayNode = relay;
+        // Version 1 frames carry no session id, and a version 1 server builds no trees
+        if (relayNode != null && message.getType() == MessageType.SCREEN_DATA
+                && message.getSessionId() > Protocol.SERVER_SESSION_ID) {
+            relayNode.deliver(message, this::handleMessage);
+        } else {
+            handleMessage(message);
+        }
+    }
+
+    // A frame from the relay the server placed us under
+    void onRelayedFrame(Message frame) {
+        processMessage(frame);
+    }
+
+    boolean sendRelayReport(String text) {
+        return sendMessage(new Message(MessageType.RELAY, clientId, text));
+    }
+
+    private void handleMessage(Message message) {
         Logger.debug("Received message: " + message);
 
+        Consumer<Message> listener = messageListener;
+        if (listener != null) {
+            listener.accept(message);
+        }
+
         switch (message.getType()) {
             case CONNECT_RESPONSE:
-                Logger.info("Server response: " + message.getPayloadAsString());
+                Handshake response = Handshake.parse(message.getPayload());
+                if (response.has(Handshake.CLIENT_ID)) {
+                    sessionId = response.getInt(Handshake.SESSION_ID, sessionId);
+                    clientId = response.get(Handshake.CLIENT_ID, clientId);
+                }
+                Logger.info("Server response: " + response.get(Handshake.MESSAGE, message.getPayloadAsString()) +
+                        " (client id: " + clientId + ")");
                 break;
 
             case HEARTBEAT_ACK:
@@ -180,14 +438,66 @@ public class ScreenShareClient {
 
             case STOP_SHARE:
                 Logger.info("Client " + message.getClientId() + " stopped sharing screen");
+                receptionStats.remove(message.getSessionId());
+                if (relay != null) {
+                    relay.ended(message.getSessionId());
+                }
                 break;
 
             case SCREEN_DATA:
-                Logger.debug("Received screen data from " + message.getClientId() +
-                        ", size: " + (message.getPayload() != null ? message.getPayload().length : 0));
+                if (message.getSessionId() == Protocol.SERVER_SESSION_ID) {
+                    handleMosaicFrame(message);
+                    break;
+                }
+                int size = message.getPayload() != null ? message.getPayload().length : 0;
+                Logger.debug("Received screen data from " + message.getClientId() + ", size: " + size);
+                recordReception(message, size);
                 // TODO: Process and display screen data
                 break;
 
+            case RECEIVER_REPORT:
+                handleReceiverReport(message);
+                break;
+
+            case CLIENT_LIST:
+                handleRosterUpdate(message);
+                break;
+
+            case THUMBNAILS:
+                handleThumbnails(message);
+                break;
+
+            case MOSAIC:
+                String layout = message.getPayloadAsString();
+                Logger.info(layout.isEmpty() ? "Mosaic stopped" : "Mosaic started: " + layout);
+                break;
+
+            case JOIN:
+                Logger.info("Joined room " + message.getPayloadAsString());
+                break;
+
+            case LEAVE:
+                Logger.info("Left room " + message.getPayloadAsString());
+                break;
+
+            case SUBSCRIBE:
+                Logger.info("Subscribed to session " + message.getPayloadAsString());
+                break;
+
+            case UNSUBSCRIBE:
+                Logger.info("Unsubscribed from session " + message.getPayloadAsString());
+                break;
+
+            case RELAY:
+                if (relay != null) {
+                    relay.onAssignment(message.getPayloadAsString());
+                }
+                break;
+
+            case TRANSPORT:
+                handleTransport(message.getPayloadAsString());
+                break;
+
             case ERROR:
                 Logger.error("Server error: " + message.getPayloadAsString());
                 break;
@@ -202,6 +512,163 @@ public class ScreenShareClient {
         }
     }
 
+    // "offer shm <path> <token>": we attach and answer "attached <token>" as the last thing
+    // we send on the socket. "switched" is the last thing the server sends there, so from
+    // the next frame on we read shared memory too. Runs on the listener thread, which reads
+    // the next frame only after this returns.
+    private void handleTransport(String text) {
+        String offer = "offer " + Transport.SHARED_MEMORY + " ";
+        String trimmed = text.trim();
+        if (trimmed.startsWith(offer) && trimmed.lastIndexOf(' ') > offer.length()) {
+            // The path may hold spaces; the token is the last word
+            int split = trimmed.lastIndexOf(' ');
+            attachSharedMemory(Paths.get(trimmed.substring(offer.length(), split)), trimmed.substring(split + 1));
+        } else if (trimmed.equals("switched") && pendingTransport != null) {
+            SharedMemoryTransport attached = pendingTransport;
+            pendingTransport = null;
+            inputStream = new DataInputStream(attached.getInputStream());
+            transport = attached;
+            attached.watchLink();
+            Logger.info("Moved to shared memory transport");
+        } else {
+            Logger.debug("Ignoring transport message: " + text);
+        }
+    }
+
+    private void attachSharedMemory(Path path, String token) {
+        String answer;
+        if (!config.isShmEnabled()) {
+            answer = "refused disabled";
+        } else {
+            try {
+                pendingTransport = SharedMemoryTransport.attach(path, Long.parseLong(token), transport);
+                answer = "attached " + token;
+            } catch (IOException | RuntimeException e) {
+                // Most likely another host, or a container without the server's files
+                Logger.info("Staying on " + transport.getName() + ": " + e.getMessage());
+                answer = "refused " + e.getMessage();
+            }
+        }
+        Message reply = new Message(MessageType.TRANSPORT, clientId, answer);
+        reply.setSessionId(Math.max(sessionId, Protocol.SERVER_SESSION_ID));
+        SharedMemoryTransport attached = pendingTransport;
+        boolean sent = attached != null
+                ? outbound.sendAndSwitchChannel(reply, attached.getOutputChannel())
+                : outbound.send(reply);
+        if (!sent) {
+            Logger.error("Failed to answer transport offer");
+        }
+    }
+
+    // A delta that skips versions is not applied; we send back the last version we have
+    // and the server answers with what we missed. Deltas still in flight are ignored
+    // until that answer arrives.
+    private void handleRosterUpdate(Message message) {
+        RosterUpdate update;
+        try {
+            update = RosterUpdate.parse(message.getPayload());
+        } catch (IOException e) {
+            Logger.error("Invalid roster update: " + e.getMessage());
+            return;
+        }
+        if (roster.apply(update)) {
+            rosterResyncing.set(false);
+            Logger.debug("Roster at version " + roster.getVersion() + ", " + roster.size() + " clients");
+        } else if (rosterResyncing.compareAndSet(false, true)) {
+            Logger.debug("Roster gap at version " + roster.getVersion() + ", resyncing");
+            byte[] known = ByteBuffer.allocate(8).putLong(roster.getVersion()).array();
+            sendMessage(new Message(MessageType.CLIENT_LIST, clientId, known));
+        }
+    }
+
+    public Roster getRoster() {
+        return roster;
+    }
+
+    private void handleThumbnails(Message message) {
+        try {
+            for (ThumbnailBatch.Entry entry : ThumbnailBatch.parse(message.getPayload()).getEntries()) {
+                if (entry.isRemoved()) {
+                    thumbnails.remove(entry.sessionId);
+                } else {
+                    thumbnails.put(entry.sessionId, entry);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Invalid thumbnail batch: " + e.getMessage());
+        }
+    }
+
+    // Asks the server for (or to stop) periodic thumbnails of every share we can see
+    public boolean watchPreviews(boolean watch) {
+        if (!watch) {
+            thumbnails.clear();
+        }
+        return sendMessage(new Message(MessageType.THUMBNAILS, clientId, new byte[]{(byte) (watch ? 1 : 0)}));
+    }
+
+    public Map<Integer, ThumbnailBatch.Entry> getThumbnails() {
+        return thumbnails;
+    }
+
+    // Only changed cells arrive; the rest keep their last tile
+    private void handleMosaicFrame(Message message) {
+        try {
+            List<MosaicFrame.Tile> changed = MosaicFrame.parse(message.getPayload()).getTiles();
+            for (MosaicFrame.Tile tile : changed) {
+                if (tile.image.length == 0) {
+                    mosaicTiles.remove(tile.cell);
+                } else {
+                    mosaicTiles.put(tile.cell, tile);
+                }
+            }
+            Consumer<List<MosaicFrame.Tile>> listener = mosaicListener;
+            if (listener != null) {
+                listener.accept(changed);
+            }
+        } catch (IOException e) {
+            Logger.error("Invalid mosaic frame: " + e.getMessage());
+        }
+    }
+
+    // Asks the server to composite these shares into one stream; null stops it
+    public boolean requestMosaic(MosaicLayout layout) {
+        if (layout == null) {
+            mosaicTiles.clear();
+        }
+        return sendMessage(new Message(MessageType.MOSAIC, clientId, layout != null ? layout.toString() : ""));
+    }
+
+    public Map<Integer, MosaicFrame.Tile> getMosaicTiles() {
+        return mosaicTiles;
+    }
+
+    // Receives the cells each mosaic frame changed, after getMosaicTiles() reflects them;
+    // a tile with an empty image is a cell that was cleared
+    public void setMosaicListener(Consumer<List<MosaicFrame.Tile>> mosaicListener) {
+        this.mosaicListener = mosaicListener;
+    }
+
+    // Connection for replaying recordings, opened on first use
+    public synchronized PlaybackSession openPlayback() throws IOException {
+        if (config.isSslEnabled()) {
+            throw new IOException("playback connections are unencrypted and client.ssl.enabled is on");
+        }
+        PlaybackSession current = playback;
+        if (current == null || !current.isOpen()) {
+            current = PlaybackSession.open(config.getServerInetHost(), config.getServerPlaybackPort(), clientId);
+            playback = current;
+        }
+        return current;
+    }
+
+    public synchronized void closePlayback() {
+        if (playback != null) {
+            playback.close();
+            playback = null;
+        }
+    }
+
     private void startHeartbeat() {
         heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
         heartbeatScheduler.scheduleAtFixedRate(() -> {
@@ -209,6 +676,92 @@ public class ScreenShareClient {
                 sendMessage(new Message(MessageType.HEARTBEAT, clientId));
             }
         }, config.getHeartbeatInterval(), config.getHeartbeatInterval(), TimeUnit.MILLISECONDS);
+        heartbeatScheduler.scheduleAtFixedRate(this::sendReceiverReports,
+                config.getReportInterval(), config.getReportInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private void recordReception(Message message, int size) {
+        long now = System.currentTimeMillis();
+        ReceptionStats stats = receptionStats.computeIfAbsent(message.getSessionId(), id -> new ReceptionStats(now));
+        synchronized (stats) {
+            stats.onFrame(message.getTimestamp(), now, size);
+        }
+    }
+
+    // One report per sharer we are watching; the server forwards each to its sharer
+    private void sendReceiverReports() {
+        if (!connected.get()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, ReceptionStats> entry : receptionStats.entrySet()) {
+            ReceiverReport report;
+            synchronized (entry.getValue()) {
+                if (!entry.getValue().hasFrames()) {
+                    continue;
+                }
+                report = entry.getValue().report(entry.getKey(), now);
+            }
+            sendMessage(new Message(MessageType.RECEIVER_REPORT, clientId, report.toBytes()));
+        }
+    }
+
+    private void handleReceiverReport(Message message) {
+        try {
+            ReceiverReport report = ReceiverReport.parse(message.getPayload());
+            Logger.debug("Receiver report from session " + message.getSessionId() + ": " + report);
+            bitrateController.onReport(message.getSessionId(), report, System.currentTimeMillis());
+        } catch (IOException e) {
+            Logger.error("Invalid receiver report: " + e.getMessage());
+        }
+    }
+
+    // Starts streaming frames from source, paced by the bitrate controller
+    public boolean startSharing(FrameSource source) {
+        if (capturer != null && capturer.isRunning()) {
+            Logger.info("Already sharing");
+            return true;
+        }
+        if (!sendMessage(new Message(MessageType.START_SHARE, clientId, "Starting screen share"))) {
+            return false;
+        }
+        capturer = new ScreenCapturer(source, bitrateController, clientId, this::sendMessage);
+        capturer.start();
+        return true;
+    }
+
+    public boolean stopSharing() {
+        stopCapture();
+        return sendMessage(new Message(MessageType.STOP_SHARE, clientId, "Stopping screen share"));
+    }
+
+    private void stopCapture() {
+        ScreenCapturer current = capturer;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    // Every client starts in Protocol.DEFAULT_ROOM; rooms are created on first join
+    public boolean joinRoom(String room) {
+        return sendMessage(new Message(MessageType.JOIN, clientId, room));
+    }
+
+    public boolean leaveRoom(String room) {
+        return sendMessage(new Message(MessageType.LEAVE, clientId, room));
+    }
+
+    // Turns a sharer's screen data on or off for this client, by session id
+    public boolean subscribe(int sharerSessionId) {
+        return sendMessage(new Message(MessageType.SUBSCRIBE, clientId, String.valueOf(sharerSessionId)));
+    }
+
+    public boolean unsubscribe(int sharerSessionId) {
+        return sendMessage(new Message(MessageType.UNSUBSCRIBE, clientId, String.valueOf(sharerSessionId)));
+    }
+
+    public BitrateController getBitrateController() {
+        return bitrateController;
     }
 
     public void startInteractiveMode() {
@@ -217,7 +770,16 @@ public class ScreenShareClient {
         Logger.info("  start    - Start sharing your screen");
         Logger.info("  stop     - Stop sharing your screen");
         Logger.info("  status   - Show connection status");
+        Logger.info("  list     - List connected clients");
+        Logger.info("  previews [on|off]  - Show or toggle share previews");
+        Logger.info("  mosaic <cols> <w>x<h> <id,...>|off - Watch shares as one grid");
+        Logger.info("  recordings       - List recorded shares");
+        Logger.info("  replay <id> [<from> [<speed>]]|stop|off - Play back a recording");
         Logger.info("  test     - Send test message");
+        Logger.info("  join <room>      - Join a room");
+        Logger.info("  leave <room>     - Leave a room");
+        Logger.info("  subscribe <id>   - Receive a sharer's screen again");
+        Logger.info("  unsubscribe <id> - Stop receiving a sharer's screen");
         Logger.info("  help     - Show this help message");
         Logger.info("  quit     - Disconnect and exit");
         Logger.info("==========================================\n");
@@ -231,7 +793,10 @@ public class ScreenShareClient {
                 break; // EOF reached
             }
 
-            String command = input.trim().toLowerCase();
+            // Room names and session ids are arguments; only the command word is case-insensitive
+            String[] parts = input.trim().split("\\s+", 2);
+            String command = parts[0].toLowerCase();
+            String argument = parts.length > 1 ? parts[1] : "";
 
             switch (command) {
                 case "start":
@@ -246,10 +811,40 @@ public class ScreenShareClient {
                     handleStatus();
                     break;
 
+                case "list":
+                    handleList();
+                    break;
+
+                case "previews":
+                    handlePreviews(argument.toLowerCase());
+                    break;
+
+                case "mosaic":
+                    handleMosaic(argument);
+                    break;
+
+                case "recordings":
+                    handlePlayback("list");
+                    break;
+
+                case "replay":
+                    handleReplay(argument);
+                    break;
+
                 case "test":
                     handleTestMessage();
                     break;
 
+                case "join":
+                case "leave":
+                    handleRoom(command, argument);
+                    break;
+
+                case "subscribe":
+                case "unsubscribe":
+                    handleSubscription(command, argument);
+                    break;
+
                 case "quit":
                 case "exit":
                     running.set(false);
@@ -273,36 +868,143 @@ public class ScreenShareClient {
 
     private void handleStartSharing() {
         Logger.info("Starting screen share...");
-        boolean sent = sendMessage(new Message(MessageType.START_SHARE, clientId, "Starting screen share"));
-        if (sent) {
+        FrameSource source;
+        try {
+            source = new RobotFrameSource();
+        } catch (IOException e) {
+            Logger.error("Cannot capture the screen: " + e.getMessage());
+            return;
+        }
+        if (startSharing(source)) {
             Logger.info("Screen share start request sent to server");
         } else {
             Logger.error("Failed to send screen share start request");
         }
-        // TODO: Implement actual screen capture and streaming
     }
 
     private void handleStopSharing() {
         Logger.info("Stopping screen share...");
-        boolean sent = sendMessage(new Message(MessageType.STOP_SHARE, clientId, "Stopping screen share"));
-        if (sent) {
+        if (stopSharing()) {
             Logger.info("Screen share stop request sent to server");
         } else {
             Logger.error("Failed to send screen share stop request");
         }
-        // TODO: Stop screen capture
+    }
+
+    private void handleRoom(String command, String room) {
+        if (room.isEmpty()) {
+            Logger.info("Usage: " + command + " <room>");
+            return;
+        }
+        boolean sent = command.equals("join") ? joinRoom(room) : leaveRoom(room);
+        if (!sent) {
+            Logger.error("Failed to send " + command + " request");
+        }
+    }
+
+    private void handleSubscription(String command, String argument) {
+        int sharerSessionId;
+        try {
+            sharerSessionId = Integer.parseInt(argument);
+        } catch (NumberFormatException e) {
+            Logger.info("Usage: " + command + " <session id>");
+            return;
+        }
+        boolean sent = command.equals("subscribe") ? subscribe(sharerSessionId) : unsubscribe(sharerSessionId);
+        if (!sent) {
+            Logger.error("Failed to send " + command + " request");
+        }
+    }
+
+    private void handleList() {
+        Logger.info("=== Clients (roster version " + roster.getVersion() + ") ===");
+        for (Roster.Entry entry : roster.entries()) {
+            Logger.info(entry.clientId + " (session " + entry.sessionId + ")"
+                    + (entry.sessionId == sessionId ? " - you" : "")
+                    + (entry.sharing ? " - sharing" : ""));
+        }
+        Logger.info("====================");
+    }
+
+    private void handlePreviews(String argument) {
+        if (argument.equals("on") || argument.equals("off")) {
+            if (!watchPreviews(argument.equals("on"))) {
+                Logger.error("Failed to send previews request");
+            }
+            return;
+        }
+        Logger.info("=== Previews ===");
+        for (ThumbnailBatch.Entry entry : thumbnails.values()) {
+            Logger.info("Session " + entry.sessionId + ": " + entry.width + "x" + entry.height + ", "
+                    + entry.image.length + " bytes, captured " + (System.currentTimeMillis() - entry.timestamp) + "ms ago");
+        }
+        Logger.info("================");
+    }
+
+    private void handleMosaic(String argument) {
+        MosaicLayout layout = null;
+        if (!argument.equalsIgnoreCase("off")) {
+            try {
+                layout = MosaicLayout.parse(argument);
+            } catch (IllegalArgumentException e) {
+                Logger.info("Usage: mosaic <columns> <width>x<height> <id>,<id>,... | mosaic off ("
+                        + e.getMessage() + ")");
+                return;
+            }
+        }
+        if (!requestMosaic(layout)) {
+            Logger.error("Failed to send mosaic request");
+        }
+    }
+
+    private void handleReplay(String argument) {
+        if (argument.isEmpty()) {
+            Logger.info("Usage: replay <id> [<timestamp>|+<millis> [<speed>]] | replay stop | replay off");
+            return;
+        }
+        if (argument.equalsIgnoreCase("off")) {
+            closePlayback();
+            return;
+        }
+        handlePlayback(argument.equalsIgnoreCase("stop") ? "stop" : "play " + argument);
+    }
+
+    private void handlePlayback(String request) {
+        try {
+            if (!openPlayback().request(request)) {
+                closePlayback();
+            }
+        } catch (IOException e) {
+            Logger.error("Cannot reach the playback server: " + e.getMessage());
+        }
     }
 
     private void handleStatus() {
         Logger.info("=== Client Status ===");
         Logger.info("Client ID: " + clientId);
+        Logger.info("Session ID: " + (sessionId >= 0 ? sessionId : "not assigned"));
         Logger.info("Connected: " + connected.get());
         Logger.info("Running: " + running.get());
-        Logger.info("Server: " + config.getServerHost() + ":" + config.getServerPort());
+        Logger.info("Server: " + describeServer());
         Logger.info("UDP Port: " + config.getServerUdpPort());
         Logger.info("Heartbeat Interval: " + config.getHeartbeatInterval() + "ms");
-        Logger.info("TCP Socket: " + (tcpSocket != null && !tcpSocket.isClosed() ? "Open" : "Closed"));
+        Transport link = transport;
+        Logger.info("Transport: " + (link != null && link.isOpen() ? link.getName() + ", open" : "closed"));
         Logger.info("UDP Socket: " + (udpSocket != null && !udpSocket.isClosed() ? "Open" : "Closed"));
+        if (outbound != null) {
+            Logger.info("Outbound: " + outbound.describeStats());
+        }
+        PlaybackSession replaying = playback;
+        if (replaying != null && replaying.isOpen()) {
+            Logger.info("Playback: " + replaying.getFramesReceived() + " frames, at " + replaying.getLastFrameTimestamp());
+        }
+        ScreenCapturer current = capturer;
+        if (current != null && current.isRunning()) {
+            Logger.info("Sharing: " + current.getFramesSent() + " frames, " + bitrateController.describe());
+        }
+        if (relay != null) {
+            Logger.info("Relay: " + relay.describe());
+        }
         Logger.info("====================");
     }
 
@@ -322,7 +1024,19 @@ public class ScreenShareClient {
         Logger.info("start    - Start sharing your screen");
         Logger.info("stop     - Stop sharing your screen");
         Logger.info("status   - Show detailed connection status");
+        Logger.info("list     - List connected clients and who is sharing");
+        Logger.info("previews [on|off] - Show the latest share previews, or start/stop receiving them");
+        Logger.info("mosaic <cols> <w>x<h> <id,...> - Receive several shares composited into one grid");
+        Logger.info("mosaic off       - Stop the mosaic");
+        Logger.info("recordings       - List recorded shares with their first and last timestamps");
+        Logger.info("replay <id> [<from> [<speed>]] - Play a recording from a timestamp or +millis into it;");
+        Logger.info("                   speed 1 is real time, 4 fast-forwards, 0 as fast as possible. Again to seek");
+        Logger.info("replay stop|off  - Stop the playback / close the playback connection");
         Logger.info("test     - Send a test message to other clients");
+        Logger.info("join <room>      - Join a room and see its members' shares");
+        Logger.info("leave <room>     - Leave a room");
+        Logger.info("subscribe <id>   - Receive screen data from a sharer again");
+        Logger.info("unsubscribe <id> - Stop receiving screen data from a sharer");
         Logger.info("help     - Show this help message");
         Logger.info("quit     - Disconnect from server and exit");
         Logger.info("==========================\n");
@@ -340,10 +1054,30 @@ public class ScreenShareClient {
         return clientId;
     }
 
+    // What frames travel over now: tcp, or shm once the server moved us
+    public String getTransportName() {
+        Transport current = transport;
+        return current != null ? current.getName() : null;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
     public ClientConfig getConfig() {
         return config;
     }
 
+    // Null unless client.relay.enabled
+    public RelayNode getRelay() {
+        return relay;
+    }
+
+    // Receives every message read from the server, before the client's own handling
+    public void setMessageListener(Consumer<Message> messageListener) {
+        this.messageListener = messageListener;
+    }
+
     // Method to send UDP data (for future screen data streaming)
     public boolean sendUdpData(byte[] data, InetAddress serverAddress, int serverPort) {
         if (udpSocket == null || udpSocket.isClosed()) {
@@ -378,7 +1112,7 @@ public class ScreenShareClient {
 
     public static void main(String[] args) {
         Options options = new Options();
-        options.addOption("s", "server", true, "Server host (default: localhost)");
+        options.addOption("s", "server", true, "Server host, or unix:<path> for a local server's Unix domain socket (default: localhost)");
         options.addOption("p", "port", true, "Server port (default: 8087)");
         options.addOption("c", "config", true, "Configuration file path");
         options.addOption("i", "interactive", false, "Start in interactive mode");
@@ -0,0 +1,88 @@
+// Compression.java
+package com.screenshare.common;
+
+import java.io.IOException;
+
+// Payload compression negotiated through CONNECT_REQUEST / CONNECT_RESPONSE and applied per
+// frame by WireCodecV2 (FLAG_COMPRESSED). A compressed payload is a 4-byte big-endian
+// original length followed by the codec's block.
+//
+// An instance belongs to one connection, like its WireCodec: compress() is only called
+// by the encoding side and decompress() only by the reader, each on a single thread at a
+// time, so implementations may keep separate scratch state for the two directions.
+public abstract class Compression {
+    public static final String NONE = "none";
+    public static final String LZ = "lz";
+    public static final String DEFLATE = "deflate";
+    // Preference order when offering
+    public static final String SUPPORTED = LZ + "," + DEFLATE;
+
+    public static Compression forName(String name) {
+        switch (name) {
+            case LZ:
+                return new LzCompression();
+            case DEFLATE:
+                return new DeflateCompression();
+            default:
+                throw new IllegalArgumentException("Unsupported compression: " + name);
+        }
+    }
+
+    // First entry of the peer's preference list that is also in ours and known to this
+    // build; NONE if there is none
+    public static String negotiate(String offered, String accepted) {
+        if (offered == null || accepted == null) {
+            return NONE;
+        }
+        for (String candidate : offered.split(",")) {
+            String name = candidate.trim();
+            if (contains(SUPPORTED, name) && contains(accepted, name)) {
+                return name;
+            }
+        }
+        return NONE;
+    }
+
+    private static boolean contains(String list, String name) {
+        for (String entry : list.split(",")) {
+            if (entry.trim().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public abstract String getName();
+
+    // Compressed form of data[offset, offset + length), or null if it would not be smaller
+    public abstract byte[] compress(byte[] data, int offset, int length);
+
+    public byte[] decompress(byte[] data, int maxLength) throws IOException {
+        if (data.length < 4) {
+            throw new IOException("Truncated compressed payload");
+        }
+        int originalLength = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+                | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (originalLength < 0 || originalLength > maxLength) {
+            throw new IOException("Invalid decompressed length: " + originalLength);
+        }
+        byte[] out = new byte[originalLength];
+        decompressBlock(data, 4, data.length - 4, out);
+        return out;
+    }
+
+    // Fills out exactly from the block at data[offset, offset + length)
+    protected abstract void decompressBlock(byte[] data, int offset, int length, byte[] out) throws IOException;
+
+    // The connection is gone: releases state held outside the heap. May be called while
+    // its reader is still in decompress(), and more than once.
+    public void close() {
+    }
+
+    protected static void writeLength(byte[] dst, int length) {
+        dst[0] = (byte) (length >>> 24);
+        dst[1] = (byte) (length >>> 16);
+        dst[2] = (byte) (length >>> 8);
+        dst[3] = (byte) length;
+    }
+}
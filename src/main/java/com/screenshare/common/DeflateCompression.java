@@ -0,0 +1,109 @@
+// DeflateCompression.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// zlib deflate primed with a dictionary of strings that recur in control payloads, so
+// even short handshakes and status texts find back-references from the first byte.
+// Changing DICTIONARY breaks compatibility: both ends must use the same bytes.
+//
+// The zlib streams live outside the heap until close(). Each direction locks its own
+// stream, so close() can come from another thread than the encoder or the reader.
+public class DeflateCompression extends Compression {
+    private static final byte[] DICTIONARY = String.join("\n",
+            "Screen data exceeds maximum payload size of ",
+            "Server shutting down", "Connected successfully",
+            "Client started sharing", "Client stopped sharing",
+            "Starting screen share", "Stopping screen share",
+            "Test message from ",
+            MessageType.SCREEN_DATA.name(), MessageType.CLIENT_LIST.name(),
+            Handshake.PROTOCOL_VERSIONS + "=", Handshake.PROTOCOL_VERSION + "=",
+            Handshake.COMPRESSIONS + "=", Handshake.COMPRESSION + "=",
+            Handshake.MESSAGE + "=", Handshake.SESSION_ID + "=",
+            Handshake.CLIENT_ID + "=" + Protocol.SERVER_CLIENT_ID,
+            Handshake.CLIENT_ID + "=CLIENT_").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private volatile boolean closed;
+
+    @Override
+    public String getName() {
+        return DEFLATE;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        synchronized (deflater) {
+            // Once closed, the rest goes out uncompressed
+            return closed ? null : deflate(data, offset, length);
+        }
+    }
+
+    @Override
+    protected void decompressBlock(byte[] data, int offset, int length, byte[] out) throws IOException {
+        synchronized (inflater) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            inflate(data, offset, length, out);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (deflater) {
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
+        }
+    }
+
+    private byte[] deflate(byte[] data, int offset, int length) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // Anything at or above the original size, length prefix included, is not worth sending
+        byte[] out = new byte[length];
+        int written = 4;
+        while (!deflater.finished()) {
+            if (written >= out.length) {
+                return null;
+            }
+            written += deflater.deflate(out, written, out.length - written);
+        }
+        writeLength(out, length);
+        return Arrays.copyOf(out, written);
+    }
+
+    private void inflate(byte[] data, int offset, int length, byte[] out) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        try {
+            int filled = 0;
+            while (filled < out.length) {
+                int n = inflater.inflate(out, filled, out.length - filled);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Compressed payload shorter than announced");
+                    }
+                }
+                filled += n;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            // IllegalArgumentException: the stream asks for a different dictionary
+            throw new IOException("Corrupt deflate payload: " + e.getMessage());
+        }
+    }
+}
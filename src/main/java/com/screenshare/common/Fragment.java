@@ -0,0 +1,38 @@
+// Fragment.java
+package com.screenshare.common;
+
+import java.io.Serializable;
+
+// Where a streamed piece sits in its message: the message's payload is only this piece,
+// at offset within a payload of totalLength bytes. Stream ids are per connection direction.
+public final class Fragment implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int streamId;
+    private final int offset;
+    private final int totalLength;
+
+    public Fragment(int streamId, int offset, int totalLength) {
+        this.streamId = streamId;
+        this.offset = offset;
+        this.totalLength = totalLength;
+    }
+
+    public int getStreamId() { return streamId; }
+    public int getOffset() { return offset; }
+    public int getTotalLength() { return totalLength; }
+
+    public boolean isFirst() {
+        return offset == 0;
+    }
+
+    // Whether a piece of this length ends the stream
+    public boolean completes(int length) {
+        return offset + length == totalLength;
+    }
+
+    @Override
+    public String toString() {
+        return "Fragment{stream=" + streamId + ", offset=" + offset + ", total=" + totalLength + "}";
+    }
+}
@@ -0,0 +1,96 @@
+// Handshake.java
+package com.screenshare.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Key/value payload of CONNECT_REQUEST and CONNECT_RESPONSE, one "key=value" per line.
+// Lines without '=' are ignored, so the plain text welcome of older servers parses as
+// an empty handshake.
+public class Handshake {
+    public static final String SESSION_ID = "session.id";
+    public static final String CLIENT_ID = "client.id";
+    public static final String MESSAGE = "message";
+    public static final String PROTOCOL_VERSIONS = "protocol.versions";
+    public static final String PROTOCOL_VERSION = "protocol.version";
+    public static final String COMPRESSIONS = "compression.codecs";
+    public static final String COMPRESSION = "compression.codec";
+    public static final String RELAY_PORT = "relay.port";
+    public static final String RELAY_CHILDREN = "relay.children";
+    public static final String TRANSPORTS = "transports";
+    // The client's client.name, when it has one; server.recording.sharers selects by it
+    public static final String CLIENT_NAME = "client.name";
+    // Session resumption: the client sends its token (empty for a new session) and how
+    // many messages of the session it has read; the server answers with the token and
+    // whether the session was resumed
+    public static final String RESUME_TOKEN = "resume.token";
+    public static final String RESUME_SEQUENCE = "resume.sequence";
+    public static final String RESUMED = "resumed";
+
+    private final Map<String, String> fields = new LinkedHashMap<>();
+
+    public Handshake put(String key, Object value) {
+        fields.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public boolean has(String key) {
+        return fields.containsKey(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        return fields.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = fields.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = fields.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public byte[] toBytes() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            text.append(field.getKey()).append('=').append(field.getValue()).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Handshake parse(byte[] payload) {
+        Handshake handshake = new Handshake();
+        if (payload == null) {
+            return handshake;
+        }
+        for (String line : new String(payload, StandardCharsets.UTF_8).split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                handshake.fields.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+        return handshake;
+    }
+
+    @Override
+    public String toString() {
+        return "Handshake" + fields;
+    }
+}
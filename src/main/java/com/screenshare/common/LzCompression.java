@@ -0,0 +1,182 @@
+// LzCompression.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Byte-oriented LZ77 in the LZ4 block layout: a single greedy pass with a hash table of
+// 4-byte sequences, no entropy coding. Compresses far less than deflate but runs several
+// times faster, which wins on links fast enough that CPU is the bottleneck.
+//
+// Each sequence is:
+//   token     high nibble literal count, low nibble match length - 4 (15 = extended)
+//   ...       extra literal count bytes (255 = more follow)
+//   ...       literals
+//   2 bytes   match offset, little endian (absent in the last sequence)
+//   ...       extra match length bytes (255 = more follow)
+public class LzCompression extends Compression {
+    private static final int MIN_MATCH = 4;
+    // The tail is always sent as literals, so matching never reads past the input
+    private static final int TAIL_LITERALS = 5;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+    // After this many misses in a row the scan starts skipping ahead, so incompressible
+    // input (JPEG, noise) is given up on quickly
+    private static final int SKIP_TRIGGER = 6;
+
+    // Encoder-side only: position + 1 of the last occurrence of each hashed sequence
+    private final int[] table = new int[1 << HASH_BITS];
+
+    @Override
+    public String getName() {
+        return LZ;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        // Worst case expansion is one extra byte per 255 literals, plus token and tail
+        byte[] out = new byte[4 + length + length / 255 + 16];
+        writeLength(out, length);
+        Arrays.fill(table, 0);
+
+        int end = offset + length;
+        int matchLimit = end - TAIL_LITERALS;
+        int anchor = offset;
+        int pos = offset;
+        int op = 4;
+        int misses = 0;
+        while (pos + MIN_MATCH <= matchLimit) {
+            int sequence = readInt(data, pos);
+            int slot = hash(sequence);
+            int candidate = table[slot] - 1 + offset;
+            table[slot] = pos - offset + 1;
+            if (candidate < offset || pos - candidate > MAX_OFFSET || readInt(data, candidate) != sequence) {
+                pos += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+
+            int matchEnd = pos + MIN_MATCH;
+            int from = candidate + MIN_MATCH;
+            while (matchEnd < matchLimit && data[matchEnd] == data[from]) {
+                matchEnd++;
+                from++;
+            }
+            op = writeSequence(data, anchor, pos - anchor, pos - candidate, matchEnd - pos, out, op);
+            if (op >= length) {
+                return null;
+            }
+            pos = matchEnd;
+            anchor = pos;
+        }
+
+        op = writeSequence(data, anchor, end - anchor, 0, 0, out, op);
+        return op < length ? Arrays.copyOf(out, op) : null;
+    }
+
+    @Override
+    protected void decompressBlock(byte[] data, int offset, int length, byte[] out) throws IOException {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = data[ip++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = data[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > end - ip || literals > out.length - op) {
+                    throw new IOException("LZ literal run overruns block");
+                }
+                System.arraycopy(data, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) {
+                    break;
+                }
+
+                int matchOffset = (data[ip] & 0xFF) | ((data[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = data[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (matchOffset == 0 || matchOffset > op || matchLength > out.length - op) {
+                    throw new IOException("LZ match out of range");
+                }
+                int from = op - matchOffset;
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(out, from, out, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // Overlapping match: repeats the bytes just written
+                    for (int i = 0; i < matchLength; i++) {
+                        out[op++] = out[from++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated LZ block");
+        }
+        if (op != out.length) {
+            throw new IOException("LZ block shorter than announced");
+        }
+    }
+
+    private static int writeSequence(byte[] data, int literalStart, int literals, int matchOffset, int matchLength,
+                                     byte[] out, int op) {
+        int tokenPos = op++;
+        int token;
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeExtendedLength(literals - 15, out, op);
+        } else {
+            token = literals << 4;
+        }
+        System.arraycopy(data, literalStart, out, op, literals);
+        op += literals;
+
+        if (matchLength > 0) {
+            out[op++] = (byte) matchOffset;
+            out[op++] = (byte) (matchOffset >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            if (extra >= 15) {
+                token |= 15;
+                op = writeExtendedLength(extra - 15, out, op);
+            } else {
+                token |= extra;
+            }
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeExtendedLength(int remaining, byte[] out, int op) {
+        while (remaining >= 255) {
+            out[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        out[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)
+                | ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
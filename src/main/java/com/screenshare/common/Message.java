@@ -10,8 +10,10 @@ public class Message implements Serializable {
 
     private MessageType type;
     private String clientId;
+    private int sessionId = -1;
     private byte[] payload;
     private long timestamp;
+    private Fragment fragment;
 
     public Message() {
         this.timestamp = System.currentTimeMillis();
@@ -40,6 +42,10 @@ public class Message implements Serializable {
     public String getClientId() { return clientId; }
     public void setClientId(String clientId) { this.clientId = clientId; }
 
+    // Numeric sender id; -1 until a server-assigned session is known
+    public int getSessionId() { return sessionId; }
+    public void setSessionId(int sessionId) { this.sessionId = sessionId; }
+
     public byte[] getPayload() { return payload; }
     public void setPayload(byte[] payload) { this.payload = payload; }
 
@@ -50,10 +56,15 @@ public class Message implements Serializable {
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
 
+    // Set on streamed pieces only; the payload then holds just this piece
+    public Fragment getFragment() { return fragment; }
+    public void setFragment(Fragment fragment) { this.fragment = fragment; }
+
     @Override
     public String toString() {
-        return String.format("Message{type=%s, clientId='%s', payloadSize=%d, timestamp=%d}",
-                type, clientId, payload != null ? payload.length : 0, timestamp);
+        return String.format("Message{type=%s, clientId='%s', payloadSize=%d, timestamp=%d%s}",
+                type, clientId, payload != null ? payload.length : 0, timestamp,
+                fragment != null ? ", " + fragment : "");
     }
 }
 
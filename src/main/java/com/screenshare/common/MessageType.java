@@ -13,7 +13,18 @@ public enum MessageType {
     SCREEN_DATA(7),
     CLIENT_LIST(8),
     ERROR(9),
-    DISCONNECT(10);
+    DISCONNECT(10),
+    RECEIVER_REPORT(11),
+    JOIN(12),
+    LEAVE(13),
+    SUBSCRIBE(14),
+    UNSUBSCRIBE(15),
+    THUMBNAILS(16),
+    MOSAIC(17),
+    PLAYBACK(18),
+    CLUSTER(19),
+    RELAY(20),
+    TRANSPORT(21);
 
     private final int value;
 
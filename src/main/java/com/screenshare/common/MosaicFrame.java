@@ -0,0 +1,107 @@
+// MosaicFrame.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Payload of SCREEN_DATA composited by the server (session id Protocol.SERVER_SESSION_ID)
+// for a viewer's mosaic: one JPEG tile per cell whose source changed since the previous
+// update. The viewer keeps the canvas and draws each tile at column cell % columns, row
+// cell / columns; a tile without image data blanks its cell.
+public class MosaicFrame {
+    private static final int HEADER = 2 + 2 + 2 + 2 + 4;
+    private static final int TILE_HEADER = 2 + 4 + 8 + 4;
+
+    private final int columns;
+    private final int rows;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final List<Tile> tiles;
+
+    public MosaicFrame(int columns, int rows, int cellWidth, int cellHeight, List<Tile> tiles) {
+        this.columns = columns;
+        this.rows = rows;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.tiles = Collections.unmodifiableList(tiles);
+    }
+
+    public int getColumns() { return columns; }
+    public int getRows() { return rows; }
+    public int getCellWidth() { return cellWidth; }
+    public int getCellHeight() { return cellHeight; }
+    public List<Tile> getTiles() { return tiles; }
+
+    public byte[] toBytes() {
+        int size = HEADER;
+        for (Tile tile : tiles) {
+            size += TILE_HEADER + tile.image.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size)
+                .putShort((short) columns)
+                .putShort((short) rows)
+                .putShort((short) cellWidth)
+                .putShort((short) cellHeight)
+                .putInt(tiles.size());
+        for (Tile tile : tiles) {
+            out.putShort((short) tile.cell)
+                    .putInt(tile.sessionId)
+                    .putLong(tile.timestamp)
+                    .putInt(tile.image.length)
+                    .put(tile.image);
+        }
+        return out.array();
+    }
+
+    public static MosaicFrame parse(byte[] payload) throws IOException {
+        if (payload == null || payload.length < HEADER) {
+            throw new IOException("Truncated mosaic frame");
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            int columns = in.getShort() & 0xFFFF;
+            int rows = in.getShort() & 0xFFFF;
+            int cellWidth = in.getShort() & 0xFFFF;
+            int cellHeight = in.getShort() & 0xFFFF;
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / TILE_HEADER) {
+                throw new IOException("Invalid mosaic tile count: " + count);
+            }
+            List<Tile> tiles = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int cell = in.getShort() & 0xFFFF;
+                int sessionId = in.getInt();
+                long timestamp = in.getLong();
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IOException("Truncated mosaic frame");
+                }
+                byte[] image = new byte[length];
+                in.get(image);
+                tiles.add(new Tile(cell, sessionId, timestamp, image));
+            }
+            return new MosaicFrame(columns, rows, cellWidth, cellHeight, tiles);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated mosaic frame");
+        }
+    }
+
+    public static final class Tile {
+        public final int cell;
+        public final int sessionId;
+        // Capture time of the source frame
+        public final long timestamp;
+        public final byte[] image;
+
+        public Tile(int cell, int sessionId, long timestamp, byte[] image) {
+            this.cell = cell;
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+// MosaicLayout.java
+package com.screenshare.common;
+
+import java.util.Arrays;
+
+// Grid a viewer asks the server to composite, sent as the text payload of MOSAIC:
+// "<columns> <cellWidth>x<cellHeight> <sessionId>,<sessionId>,...", cells filled left to
+// right, top to bottom. An empty payload stops the mosaic.
+public class MosaicLayout {
+    public static final int MAX_CELLS = 64;
+    public static final int MIN_CELL_SIZE = 16;
+    public static final int MAX_CELL_SIZE = 1920;
+
+    private final int columns;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int[] sources;
+
+    public MosaicLayout(int columns, int cellWidth, int cellHeight, int[] sources) {
+        if (sources.length == 0 || sources.length > MAX_CELLS) {
+            throw new IllegalArgumentException("A mosaic has 1 to " + MAX_CELLS + " cells");
+        }
+        if (columns < 1 || columns > sources.length) {
+            throw new IllegalArgumentException("Invalid column count: " + columns);
+        }
+        if (!validCellSize(cellWidth) || !validCellSize(cellHeight)) {
+            throw new IllegalArgumentException("Cells are " + MIN_CELL_SIZE + " to " + MAX_CELL_SIZE + " pixels wide and high");
+        }
+        this.columns = columns;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.sources = sources.clone();
+    }
+
+    private static boolean validCellSize(int size) {
+        return size >= MIN_CELL_SIZE && size <= MAX_CELL_SIZE;
+    }
+
+    public static MosaicLayout parse(String text) {
+        String[] parts = text.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected '<columns> <width>x<height> <id>,<id>,...'");
+        }
+        try {
+            String[] size = parts[1].toLowerCase().split("x");
+            if (size.length != 2) {
+                throw new IllegalArgumentException("Invalid cell size: " + parts[1]);
+            }
+            String[] ids = parts[2].split(",");
+            int[] sources = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                sources[i] = Integer.parseInt(ids[i].trim());
+            }
+            return new MosaicLayout(Integer.parseInt(parts[0]), Integer.parseInt(size[0]),
+                    Integer.parseInt(size[1]), sources);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in mosaic layout: " + e.getMessage());
+        }
+    }
+
+    public int getColumns() { return columns; }
+    public int getRows() { return (sources.length + columns - 1) / columns; }
+    public int getCellWidth() { return cellWidth; }
+    public int getCellHeight() { return cellHeight; }
+    public int getCellCount() { return sources.length; }
+    public int getSource(int cell) { return sources[cell]; }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(columns).append(' ').append(cellWidth).append('x').append(cellHeight).append(' ');
+        for (int i = 0; i < sources.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(sources[i]);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MosaicLayout)) {
+            return false;
+        }
+        MosaicLayout layout = (MosaicLayout) other;
+        return columns == layout.columns && cellWidth == layout.cellWidth && cellHeight == layout.cellHeight
+                && Arrays.equals(sources, layout.sources);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * columns + cellWidth) + cellHeight) + Arrays.hashCode(sources);
+    }
+}
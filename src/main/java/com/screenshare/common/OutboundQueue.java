@@ -0,0 +1,654 @@
+// OutboundQueue.java
+package com.screenshare.common;
+
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Outbound path of one connection, with two lanes:
+//   - control (handshake, heartbeats, share and room control, errors, receiver
+//     reports, cluster gossip) is always written first and flushes at once;
+//   - bulk (screen data and everything else) waits up to the linger window, or until
+//     batchBytes are pending. Payloads above chunkBytes are split into fragments when
+//     the codec supports it, so a large frame never holds control traffic back by more
+//     than one batch. Pieces already streamed in from another connection (see
+//     Message.getFragment) are relayed as fragments under a stream id of this connection.
+// Frames are encoded when a batch is built, in wire order, so codec state (timestamp
+// deltas) always matches the order bytes hit the wire. Each batch goes out in a single
+// gathering write.
+//
+// A full bulk batch is normally written by the sender that filled it. With offloadWrites
+// (for channels where writing costs real CPU, such as TLS) it is handed to a virtual
+// thread instead, until OFFLOAD_BATCHES batches are pending; past that the sender writes
+// (or waits for the writer) as usual, which still pushes back on it.
+//
+// With enableReplay (a resumable client session) every message written after the next
+// codec switch (the CONNECT_RESPONSE carrying the token) is numbered, in the order the
+// client reads them (see Protocol.isSequenced), and kept until replayBytes
+// of newer payload push it out. If the connection fails the queue detaches instead of
+// closing: nothing is written, sends still queue (bulk only up to replayBytes), and
+// resume() moves it onto the client's next connection, sending again whatever followed
+// the last message the client read.
+public class OutboundQueue {
+    private static final Set<MessageType> CONTROL = EnumSet.of(
+            MessageType.CONNECT_REQUEST, MessageType.CONNECT_RESPONSE,
+            MessageType.HEARTBEAT, MessageType.HEARTBEAT_ACK,
+            MessageType.START_SHARE, MessageType.STOP_SHARE,
+            MessageType.ERROR, MessageType.DISCONNECT, MessageType.RECEIVER_REPORT,
+            MessageType.JOIN, MessageType.LEAVE, MessageType.SUBSCRIBE, MessageType.UNSUBSCRIBE,
+            MessageType.MOSAIC, MessageType.CLUSTER, MessageType.RELAY, MessageType.TRANSPORT);
+
+    // Only arms linger timers; the flush itself runs on a virtual thread so a slow
+    // peer blocking in write() never holds up other connections' timers
+    private static final int OFFLOAD_BATCHES = 4;
+
+    private static final ScheduledExecutorService LINGER_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbound-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Replaced only between batches, with writeLock held
+    private GatheringByteChannel channel;
+    private final long lingerMicros;
+    private final int batchBytes;
+    private final int chunkBytes;
+    private final Object lock = new Object();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final ArrayDeque<Pending> control = new ArrayDeque<>();
+    private final ArrayDeque<Pending> bulk = new ArrayDeque<>();
+    // Relayed streams in progress: (origin session, origin stream) -> stream id here. A
+    // session streams one message at a time, so its next first piece ends any stream it
+    // abandoned before the last one.
+    private final Map<Long, Integer> relayedStreams = new HashMap<>();
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private WireCodec codec;
+    private long bulkBytes;
+    // Bulk message currently being fragmented, and how far it got
+    private Message fragmenting;
+    private int fragmentOffset;
+    private int fragmentStreamId;
+    private int nextStreamId;
+    private boolean flushScheduled;
+    private volatile boolean offloadWrites;
+    private boolean offloadScheduled;
+    private volatile boolean closed;
+    // Replay, with enableReplay: the last sequence number written, the messages still
+    // kept (oldest first), and pieces of relayed streams written so far, which become one
+    // message once their last piece is written
+    private long replayBytes;
+    // Set by enableReplay until the codec switch it waits for is written
+    private long pendingReplayBytes;
+    private long sequence;
+    private final ArrayDeque<Sent> sent = new ArrayDeque<>();
+    private long sentBytes;
+    private final Map<Integer, List<Pending>> partialStreams = new HashMap<>();
+    private volatile boolean detached;
+
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong messagesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong fragmentsWritten = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong messagesReplayed = new AtomicLong();
+    private final AtomicLong shedWhileDetached = new AtomicLong();
+
+    public OutboundQueue(GatheringByteChannel channel, WireCodec codec, long lingerMicros, int batchBytes,
+                         int chunkBytes) {
+        this.channel = channel;
+        this.codec = codec;
+        this.lingerMicros = lingerMicros;
+        this.batchBytes = batchBytes;
+        this.chunkBytes = chunkBytes;
+    }
+
+    public boolean send(Message message) {
+        return enqueue(message, null, null);
+    }
+
+    // Writes message with the current codec, and only then switches codecs, so the peer
+    // sees every byte before this message in the old format and everything after in the new
+    public boolean sendAndSwitchCodec(Message message, WireCodec next) {
+        return enqueue(message, next, null);
+    }
+
+    // Writes message on the current channel, and everything after it on next: how a
+    // connection moves to another transport at a point both ends know
+    public boolean sendAndSwitchChannel(Message message, GatheringByteChannel next) {
+        return enqueue(message, null, next);
+    }
+
+    // For switches driven by the peer's CONNECT_RESPONSE, when nothing is in flight
+    public void setCodec(WireCodec next) {
+        synchronized (lock) {
+            codec = next;
+        }
+    }
+
+    // So a sharer's reader thread fanning a frame out to many viewers does not pay for
+    // each viewer's encryption itself
+    public void offloadWrites() {
+        offloadWrites = true;
+    }
+
+    // Starts numbering and keeping written messages from the next codec switch on, the
+    // point where the client starts counting; messages queued earlier may still be
+    // written before it
+    public void enableReplay(long replayBytes) {
+        synchronized (lock) {
+            pendingReplayBytes = replayBytes;
+        }
+    }
+
+    // Called with lock held, as a codec switch is written
+    private void startReplay() {
+        if (pendingReplayBytes <= 0) {
+            return;
+        }
+        replayBytes = pendingReplayBytes;
+        pendingReplayBytes = 0;
+        sequence = 0;
+        sent.clear();
+        sentBytes = 0;
+        partialStreams.clear();
+    }
+
+    // Whether resume() would find everything written after lastSequence
+    public boolean canResume(long lastSequence) {
+        synchronized (lock) {
+            return keeps(lastSequence);
+        }
+    }
+
+    // Called with lock held
+    private boolean keeps(long lastSequence) {
+        long oldest = sent.isEmpty() ? sequence + 1 : sent.peekFirst().sequence;
+        return !closed && replayBytes > 0 && lastSequence <= sequence && lastSequence >= oldest - 1;
+    }
+
+    // The connection is gone; everything is kept for resume(). Without replay the queue
+    // just closes.
+    public void detach() {
+        synchronized (lock) {
+            if (replayBytes > 0 && !closed) {
+                detached = true;
+                return;
+            }
+        }
+        close();
+    }
+
+    // Moves a detached (or failing) queue onto another connection: response goes out
+    // first in codec, then everything else in next. That is the messages written after
+    // lastSequence, which the client never read, then pieces of streams it only got
+    // part of, then whatever was queued meanwhile. Messages are numbered again as they
+    // are written, continuing from lastSequence. Returns false, changing nothing, if
+    // some of what the client missed is no longer kept.
+    public boolean resume(GatheringByteChannel next, WireCodec codec, Message response, WireCodec negotiated,
+                          long lastSequence) {
+        synchronized (lock) {
+            if (!keeps(lastSequence)) {
+                return false;
+            }
+            List<Pending> replay = new ArrayList<>();
+            long missed = 0;
+            for (Sent entry : sent) {
+                if (entry.sequence > lastSequence) {
+                    replay.addAll(entry.pieces);
+                    missed++;
+                }
+            }
+            while (!sent.isEmpty() && sent.peekLast().sequence > lastSequence) {
+                sentBytes -= sent.removeLast().bytes;
+            }
+            for (List<Pending> pieces : partialStreams.values()) {
+                replay.addAll(pieces);
+            }
+            partialStreams.clear();
+            if (fragmenting != null) {
+                // Starts over, on a stream of the new connection
+                replay.add(new Pending(fragmenting, null, null, 0));
+                fragmenting = null;
+            }
+            for (Pending pending : control) {
+                // Handshakes and transport moves belonged to the old connection
+                if (pending.switchTo == null && pending.switchChannel == null
+                        && Protocol.isSequenced(pending.message.getType())) {
+                    replay.add(pending);
+                }
+            }
+            replay.addAll(bulk);
+            control.clear();
+            control.add(new Pending(response, negotiated, null, 0));
+            bulk.clear();
+            bulk.addAll(replay);
+            bulkBytes = 0;
+            for (Pending pending : bulk) {
+                bulkBytes += payloadLength(pending.message);
+            }
+            this.codec = codec;
+            channel = next;
+            sequence = lastSequence;
+            detached = false;
+            resumes.incrementAndGet();
+            messagesReplayed.addAndGet(missed);
+        }
+        flush(true);
+        return true;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
+    public boolean flush() {
+        return flush(true);
+    }
+
+    // Writes everything queued. Without wait, returns at once if another thread is already
+    // writing: it picks up whatever was queued before this call. Bulk senders wait, which
+    // is what pushes back on them when the peer reads slowly.
+    private boolean flush(boolean wait) {
+        while (!closed && !detached) {
+            if (wait) {
+                writeLock.lock();
+            } else if (!writeLock.tryLock()) {
+                return true;
+            }
+            try {
+                while (writeBatch()) {
+                    // next batch; control queued meanwhile goes first
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            synchronized (lock) {
+                if (control.isEmpty() && bulk.isEmpty() && fragmenting == null) {
+                    return !closed;
+                }
+            }
+        }
+        // A detached queue holds on to what it was given
+        return !closed;
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            control.clear();
+            bulk.clear();
+            bulkBytes = 0;
+            fragmenting = null;
+            relayedStreams.clear();
+            sent.clear();
+            sentBytes = 0;
+            partialStreams.clear();
+            detached = false;
+        }
+    }
+
+    // Closes the queue and waits out a write in progress, so the channel can be handed to
+    // another queue
+    public void release() {
+        close();
+        writeLock.lock();
+        writeLock.unlock();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getWriteCalls() { return writeCalls.get(); }
+    public long getMessagesWritten() { return messagesWritten.get(); }
+    public long getBytesWritten() { return bytesWritten.get(); }
+    public long getFragmentsWritten() { return fragmentsWritten.get(); }
+
+    public String describeStats() {
+        long calls = writeCalls.get();
+        long messages = messagesWritten.get();
+        return String.format("%d messages (%d fragments), %d bytes in %d writes (%.2f writes/message, %.0f bytes/write)",
+                messages, fragmentsWritten.get(), bytesWritten.get(), calls,
+                messages == 0 ? 0.0 : (double) calls / messages,
+                calls == 0 ? 0.0 : (double) bytesWritten.get() / calls);
+    }
+
+    public String describeReplay() {
+        synchronized (lock) {
+            return String.format("resumed %d times, %d messages replayed, %d shed while detached, %d kept (%d bytes) up to message %d",
+                    resumes.get(), messagesReplayed.get(), shedWhileDetached.get(), sent.size(), sentBytes, sequence);
+        }
+    }
+
+    public boolean supportsFragments() {
+        synchronized (lock) {
+            return codec.supportsFragments();
+        }
+    }
+
+    private boolean enqueue(Message message, WireCodec switchTo, GatheringByteChannel switchChannel) {
+        byte[] payload = message.getPayload();
+        boolean isControl = switchTo != null || switchChannel != null || CONTROL.contains(message.getType());
+        boolean flushNow;
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            boolean fragments = codec.supportsFragments() && !isControl;
+            if (payload != null && payload.length > Protocol.MAX_PAYLOAD_SIZE && !fragments) {
+                Logger.error("Dropping oversized message " + message);
+                return false;
+            }
+            if (detached && !isControl && (message.getFragment() == null || message.getFragment().isFirst())
+                    && bulkBytes + (payload != null ? payload.length : 0) > replayBytes) {
+                // Waiting for the client would hold more than it could be replayed; the
+                // rest of a refused stream is skipped below, as for a viewer joining mid-stream
+                shedWhileDetached.incrementAndGet();
+                return true;
+            }
+            int streamId = 0;
+            if (message.getFragment() != null) {
+                if (!fragments) {
+                    Logger.error("Dropping streamed piece for a peer without fragments: " + message);
+                    return false;
+                }
+                streamId = relayStreamId(message);
+                if (streamId < 0) {
+                    // Joined mid-stream; the next message starts cleanly
+                    return true;
+                }
+            }
+            if (isControl) {
+                control.add(new Pending(message, switchTo, switchChannel, 0));
+                flushNow = true;
+            } else {
+                bulk.add(new Pending(message, null, null, streamId));
+                bulkBytes += payload != null ? payload.length : 0;
+                flushNow = lingerMicros <= 0 || bulkBytes >= batchBytes;
+                if (flushNow && offloadWrites && bulkBytes < (long) OFFLOAD_BATCHES * batchBytes) {
+                    flushNow = false;
+                    if (!offloadScheduled) {
+                        offloadScheduled = true;
+                        Thread.startVirtualThread(this::offloadedFlush);
+                    }
+                } else if (!flushNow && !flushScheduled) {
+                    flushScheduled = true;
+                    LINGER_TIMER.schedule(() -> Thread.startVirtualThread(this::lingerExpired),
+                            lingerMicros, TimeUnit.MICROSECONDS);
+                }
+            }
+        }
+        return !flushNow || flush(!isControl);
+    }
+
+    // Encodes one batch (all control, then bulk up to batchBytes) and writes it.
+    // Returns false once both lanes are empty. Called with writeLock held.
+    private boolean writeBatch() {
+        int messages = 0;
+        int fragments = 0;
+        long bytes = 0;
+        // The batch ends with a channel switch; what follows goes out on the next channel
+        GatheringByteChannel switchChannel = null;
+        GatheringByteChannel target;
+        synchronized (lock) {
+            if (closed || detached) {
+                return false;
+            }
+            target = channel;
+            Pending next;
+            while (switchChannel == null && (next = control.poll()) != null) {
+                long encoded = encode(next.message);
+                if (encoded >= 0) {
+                    bytes += encoded;
+                    messages++;
+                    record(next);
+                }
+                if (next.switchTo != null) {
+                    codec = next.switchTo;
+                    startReplay();
+                }
+                switchChannel = next.switchChannel;
+            }
+            while (switchChannel == null && bytes < batchBytes && (fragmenting != null || !bulk.isEmpty())) {
+                if (fragmenting == null) {
+                    Pending queued = bulk.poll();
+                    Message message = queued.message;
+                    byte[] payload = message.getPayload();
+                    bulkBytes -= payload != null ? payload.length : 0;
+                    Fragment fragment = message.getFragment();
+                    if (fragment != null) {
+                        try {
+                            bytes += codec.encodeFragment(message, queued.streamId, fragment.getOffset(),
+                                    fragment.getTotalLength(), ByteBuffer.wrap(payload), batch);
+                            fragments++;
+                            if (fragment.completes(payload.length)) {
+                                messages++;
+                            }
+                            recordPiece(queued, fragment.completes(payload.length));
+                        } catch (IOException e) {
+                            Logger.error("Dropping unencodable piece " + message + ": " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    if (payload == null || payload.length <= chunkBytes || !codec.supportsFragments()) {
+                        long encoded = encode(message);
+                        if (encoded >= 0) {
+                            bytes += encoded;
+                            messages++;
+                            record(queued);
+                        }
+                        continue;
+                    }
+                    fragmenting = message;
+                    fragmentOffset = 0;
+                    fragmentStreamId = ++nextStreamId;
+                }
+                int length = Math.min(chunkBytes, fragmenting.getPayload().length - fragmentOffset);
+                try {
+                    byte[] payload = fragmenting.getPayload();
+                    bytes += codec.encodeFragment(fragmenting, fragmentStreamId, fragmentOffset, payload.length,
+                            ByteBuffer.wrap(payload, fragmentOffset, length), batch);
+                } catch (IOException e) {
+                    Logger.error("Dropping unencodable message " + fragmenting + ": " + e.getMessage());
+                    fragmenting = null;
+                    continue;
+                }
+                fragments++;
+                fragmentOffset += length;
+                if (fragmentOffset == fragmenting.getPayload().length) {
+                    record(fragmenting);
+                    fragmenting = null;
+                    messages++;
+                }
+            }
+            if (batch.isEmpty()) {
+                if (switchChannel != null) {
+                    channel = switchChannel;
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        try {
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long remaining = bytes;
+            int offset = 0;
+            while (remaining > 0) {
+                long written = target.write(buffers, offset, buffers.length - offset);
+                writeCalls.incrementAndGet();
+                remaining -= written;
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            messagesWritten.addAndGet(messages);
+            fragmentsWritten.addAndGet(fragments);
+            bytesWritten.addAndGet(bytes);
+            if (switchChannel != null) {
+                synchronized (lock) {
+                    if (channel == target) {
+                        channel = switchChannel;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            fail(e, target);
+            return false;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    // Numbers a message as it goes into a batch and keeps it for replay, dropping the
+    // oldest kept beyond replayBytes. Called with lock held.
+    private void record(List<Pending> pieces) {
+        if (replayBytes <= 0 || !Protocol.isSequenced(pieces.get(0).message.getType())) {
+            return;
+        }
+        long bytes = 0;
+        for (Pending piece : pieces) {
+            bytes += payloadLength(piece.message);
+        }
+        sent.addLast(new Sent(++sequence, pieces, bytes));
+        sentBytes += bytes;
+        while (sentBytes > replayBytes && !sent.isEmpty()) {
+            sentBytes -= sent.removeFirst().bytes;
+        }
+    }
+
+    private void record(Pending pending) {
+        if (replayBytes > 0) {
+            record(Collections.singletonList(pending));
+        }
+    }
+
+    private void record(Message message) {
+        if (replayBytes > 0) {
+            record(new Pending(message, null, null, 0));
+        }
+    }
+
+    // A relayed piece counts once its stream is complete. Called with lock held.
+    private void recordPiece(Pending piece, boolean completes) {
+        if (replayBytes <= 0) {
+            return;
+        }
+        if (piece.message.getFragment().isFirst()) {
+            int origin = piece.message.getSessionId();
+            partialStreams.values().removeIf(pieces -> pieces.get(0).message.getSessionId() == origin);
+        }
+        List<Pending> pieces = partialStreams.computeIfAbsent(piece.streamId, id -> new ArrayList<>());
+        pieces.add(piece);
+        if (completes) {
+            partialStreams.remove(piece.streamId);
+            record(pieces);
+        }
+    }
+
+    private static long payloadLength(Message message) {
+        return message.getPayload() != null ? message.getPayload().length : 0;
+    }
+
+    // Maps a relayed piece to its stream on this connection; -1 if its first piece never came
+    // through here. Called with lock held.
+    private int relayStreamId(Message message) {
+        Fragment fragment = message.getFragment();
+        long key = ((long) message.getSessionId() << 32) | (fragment.getStreamId() & 0xFFFFFFFFL);
+        Integer streamId;
+        if (fragment.isFirst()) {
+            relayedStreams.keySet().removeIf(open -> (int) (open >>> 32) == message.getSessionId());
+            streamId = ++nextStreamId;
+            relayedStreams.put(key, streamId);
+        } else {
+            streamId = relayedStreams.get(key);
+        }
+        if (streamId != null && fragment.completes(message.getPayload().length)) {
+            relayedStreams.remove(key);
+        }
+        return streamId != null ? streamId : -1;
+    }
+
+    // Appends a whole frame to the batch; -1 if the message cannot be framed
+    private long encode(Message message) {
+        try {
+            return codec.encode(message, batch);
+        } catch (IOException e) {
+            // The connection itself is fine; only this message is lost
+            Logger.error("Dropping unencodable message " + message + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private void lingerExpired() {
+        synchronized (lock) {
+            flushScheduled = false;
+        }
+        flush(false);
+    }
+
+    private void offloadedFlush() {
+        synchronized (lock) {
+            offloadScheduled = false;
+        }
+        flush(true);
+    }
+
+    // A failed write on a channel the queue has already moved off (after a resume) is old news
+    private void fail(IOException e, GatheringByteChannel failed) {
+        synchronized (lock) {
+            if (channel != failed) {
+                return;
+            }
+        }
+        if (!closed) {
+            Logger.debug("Outbound write failed: " + e.getMessage());
+        }
+        detach();
+    }
+
+    // A message written with replay on: one whole message, or every piece of a relayed stream
+    private static final class Sent {
+        final long sequence;
+        final List<Pending> pieces;
+        final long bytes;
+
+        Sent(long sequence, List<Pending> pieces, long bytes) {
+            this.sequence = sequence;
+            this.pieces = pieces;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Pending {
+        final Message message;
+        final WireCodec switchTo;
+        final GatheringByteChannel switchChannel;
+        // Stream id on this connection, for relayed pieces
+        final int streamId;
+
+        Pending(Message message, WireCodec switchTo, GatheringByteChannel switchChannel, int streamId) {
+            this.message = message;
+            this.switchTo = switchTo;
+            this.switchChannel = switchChannel;
+            this.streamId = streamId;
+        }
+    }
+}
@@ -7,9 +7,64 @@ import java.nio.ByteBuffer;
 
 public class Protocol {
     public static final int HEADER_SIZE = 12; // 4 bytes length + 4 bytes type + 4 bytes clientId length
-    public static final int MAX_PAYLOAD_SIZE = 1024 * 1024; // 1MB max payload
+    public static final int MAX_PAYLOAD_SIZE = 1024 * 1024; // 1MB per frame; larger payloads stream as v2 fragments
     public static final int MAGIC_NUMBER = 0xABCDEF00;
 
+    // Wire versions; 1 is spoken until CONNECT_REQUEST/CONNECT_RESPONSE agree on another
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final String SUPPORTED_VERSIONS = VERSION_1 + "," + VERSION_2;
+
+    public static final int SERVER_SESSION_ID = 0;
+    public static final String SERVER_CLIENT_ID = "SERVER";
+
+    // Every session starts in this room; JOIN / LEAVE move it between rooms
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    public static boolean isValidRoomName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Messages a resumable session numbers, in the order the server writes them and the
+    // client reads them: everything but the handshake and transport moves, which belong
+    // to one connection rather than to the session
+    public static boolean isSequenced(MessageType type) {
+        return type != MessageType.CONNECT_RESPONSE && type != MessageType.TRANSPORT;
+    }
+
+    public static String clientIdFor(int sessionId) {
+        return sessionId == SERVER_SESSION_ID ? SERVER_CLIENT_ID : "CLIENT_" + sessionId;
+    }
+
+    // Highest version in the comma separated list that this build also speaks
+    public static int negotiateVersion(String offeredVersions) {
+        int best = VERSION_1;
+        if (offeredVersions == null) {
+            return best;
+        }
+        for (String offered : offeredVersions.split(",")) {
+            try {
+                int version = Integer.parseInt(offered.trim());
+                if (version > best && version <= VERSION_2) {
+                    best = version;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore versions we cannot parse
+            }
+        }
+        return best;
+    }
+
     public static byte[] serialize(Message message) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
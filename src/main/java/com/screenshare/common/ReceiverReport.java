@@ -0,0 +1,79 @@
+// ReceiverReport.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Payload of RECEIVER_REPORT: what one receiver (a viewer, or the server for the upload
+// leg) saw of a sharer's SCREEN_DATA over the last interval. Viewers address the sharer by
+// session id and the server forwards the report to it; the message's own session id tells
+// the sharer who reported.
+public class ReceiverReport {
+    private static final int SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4;
+
+    private final int sharerSessionId;
+    private final int intervalMillis;
+    private final int framesReceived;
+    private final long bytesReceived;
+    // Sender timestamp of the newest frame counted, so the sharer can match its send log
+    private final long lastFrameTimestamp;
+    private final int jitterMillis;
+    // One-way delay above the lowest seen recently: time spent queued somewhere on the path
+    private final int queueDelayMillis;
+
+    public ReceiverReport(int sharerSessionId, int intervalMillis, int framesReceived, long bytesReceived,
+                          long lastFrameTimestamp, int jitterMillis, int queueDelayMillis) {
+        this.sharerSessionId = sharerSessionId;
+        this.intervalMillis = intervalMillis;
+        this.framesReceived = framesReceived;
+        this.bytesReceived = bytesReceived;
+        this.lastFrameTimestamp = lastFrameTimestamp;
+        this.jitterMillis = jitterMillis;
+        this.queueDelayMillis = queueDelayMillis;
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(SIZE)
+                .putInt(sharerSessionId)
+                .putInt(intervalMillis)
+                .putInt(framesReceived)
+                .putLong(bytesReceived)
+                .putLong(lastFrameTimestamp)
+                .putInt(jitterMillis)
+                .putInt(queueDelayMillis)
+                .array();
+    }
+
+    public static ReceiverReport parse(byte[] payload) throws IOException {
+        if (payload == null || payload.length < SIZE) {
+            throw new IOException("Truncated receiver report");
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            return new ReceiverReport(in.getInt(), in.getInt(), in.getInt(), in.getLong(), in.getLong(),
+                    in.getInt(), in.getInt());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated receiver report");
+        }
+    }
+
+    public int getSharerSessionId() { return sharerSessionId; }
+    public int getIntervalMillis() { return intervalMillis; }
+    public int getFramesReceived() { return framesReceived; }
+    public long getBytesReceived() { return bytesReceived; }
+    public long getLastFrameTimestamp() { return lastFrameTimestamp; }
+    public int getJitterMillis() { return jitterMillis; }
+    public int getQueueDelayMillis() { return queueDelayMillis; }
+
+    // Bytes per second actually delivered over the interval
+    public long getThroughput() {
+        return intervalMillis > 0 ? bytesReceived * 1000 / intervalMillis : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReceiverReport{sharer=%d, frames=%d, throughput=%dB/s, jitter=%dms, queueDelay=%dms}",
+                sharerSessionId, framesReceived, getThroughput(), jitterMillis, queueDelayMillis);
+    }
+}
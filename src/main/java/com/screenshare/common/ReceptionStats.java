@@ -0,0 +1,77 @@
+// ReceptionStats.java
+package com.screenshare.common;
+
+// Receive-side statistics for one sharer's frames, turned into a ReceiverReport once per
+// interval. Delays are measured against the sender's timestamps, so clock offset between
+// the hosts cancels out: only the change in one-way delay matters.
+//   - jitter as in RFC 3550: smoothed |change in transit time| between consecutive frames;
+//   - queue delay: mean transit in the interval minus the lowest transit over the last
+//     BASE_WINDOW intervals, i.e. how much longer than the uncongested path frames took.
+// Not thread-safe; callers synchronize.
+public class ReceptionStats {
+    private static final int BASE_WINDOW = 50;
+
+    private final long[] intervalMinima = new long[BASE_WINDOW];
+    private int intervals;
+
+    private long intervalStart;
+    private int frames;
+    private long bytes;
+    private long transitSum;
+    private long transitMin = Long.MAX_VALUE;
+    private long lastFrameTimestamp;
+
+    private long lastTransit;
+    private boolean hasLastTransit;
+    private double jitter;
+
+    public ReceptionStats(long now) {
+        this.intervalStart = now;
+    }
+
+    public void onFrame(long senderTimestamp, long arrivalMillis, long size) {
+        long transit = arrivalMillis - senderTimestamp;
+        if (hasLastTransit) {
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16.0;
+        }
+        lastTransit = transit;
+        hasLastTransit = true;
+
+        frames++;
+        bytes += size;
+        transitSum += transit;
+        transitMin = Math.min(transitMin, transit);
+        lastFrameTimestamp = Math.max(lastFrameTimestamp, senderTimestamp);
+    }
+
+    public boolean hasFrames() {
+        return frames > 0;
+    }
+
+    // Closes the interval if it has run for at least intervalMillis, else null
+    public ReceiverReport reportIfDue(int sharerSessionId, long now, long intervalMillis) {
+        return now - intervalStart >= intervalMillis ? report(sharerSessionId, now) : null;
+    }
+
+    // Closes the current interval
+    public ReceiverReport report(int sharerSessionId, long now) {
+        long queueDelay = 0;
+        if (frames > 0) {
+            intervalMinima[intervals++ % BASE_WINDOW] = transitMin;
+            long base = Long.MAX_VALUE;
+            for (int i = 0; i < Math.min(intervals, BASE_WINDOW); i++) {
+                base = Math.min(base, intervalMinima[i]);
+            }
+            queueDelay = Math.max(0, transitSum / frames - base);
+        }
+
+        ReceiverReport report = new ReceiverReport(sharerSessionId, (int) Math.max(1, now - intervalStart),
+                frames, bytes, lastFrameTimestamp, (int) Math.round(jitter), (int) queueDelay);
+        intervalStart = now;
+        frames = 0;
+        bytes = 0;
+        transitSum = 0;
+        transitMin = Long.MAX_VALUE;
+        return report;
+    }
+}
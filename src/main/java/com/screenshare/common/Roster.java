@@ -0,0 +1,108 @@
+// Roster.java
+package com.screenshare.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Versioned list of connected sessions and whether each is sharing. The server owns the
+// authoritative copy and advances it one event at a time; clients rebuild theirs from a
+// snapshot plus the deltas that follow it.
+public class Roster {
+    private final Map<Integer, Entry> entries = new TreeMap<>();
+    private long version;
+
+    // Applies one event and returns the version it was given
+    public synchronized long record(RosterUpdate.Event event) {
+        applyEvent(event);
+        return ++version;
+    }
+
+    // False if a delta skips versions: the roster is left as it was and should be
+    // resynced from getVersion(). Events already applied are skipped.
+    public synchronized boolean apply(RosterUpdate update) {
+        if (update.isSnapshot()) {
+            entries.clear();
+            for (RosterUpdate.Event event : update.getEvents()) {
+                applyEvent(event);
+            }
+            version = update.getVersion();
+            return true;
+        }
+        if (update.getVersion() > version + 1) {
+            return false;
+        }
+        long eventVersion = update.getVersion();
+        for (RosterUpdate.Event event : update.getEvents()) {
+            if (eventVersion > version) {
+                applyEvent(event);
+                version = eventVersion;
+            }
+            eventVersion++;
+        }
+        return true;
+    }
+
+    public synchronized RosterUpdate snapshot() {
+        List<RosterUpdate.Event> snapshot = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            RosterUpdate.Kind kind = entry.sharing ? RosterUpdate.Kind.STARTED : RosterUpdate.Kind.ADDED;
+            snapshot.add(new RosterUpdate.Event(kind, entry.sessionId, entry.clientId));
+        }
+        return RosterUpdate.snapshot(version, snapshot);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized boolean contains(int sessionId) {
+        return entries.containsKey(sessionId);
+    }
+
+    public synchronized boolean isSharing(int sessionId) {
+        Entry entry = entries.get(sessionId);
+        return entry != null && entry.sharing;
+    }
+
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void applyEvent(RosterUpdate.Event event) {
+        Entry entry = entries.get(event.sessionId);
+        switch (event.kind) {
+            case ADDED:
+                entries.put(event.sessionId, new Entry(event.sessionId, event.clientId, false));
+                break;
+            case REMOVED:
+                entries.remove(event.sessionId);
+                break;
+            case STARTED:
+            case STOPPED:
+                String clientId = entry != null ? entry.clientId : event.clientId;
+                if (entry != null || clientId != null) {
+                    entries.put(event.sessionId,
+                            new Entry(event.sessionId, clientId, event.kind == RosterUpdate.Kind.STARTED));
+                }
+                break;
+        }
+    }
+
+    public static final class Entry {
+        public final int sessionId;
+        public final String clientId;
+        public final boolean sharing;
+
+        Entry(int sessionId, String clientId, boolean sharing) {
+            this.sessionId = sessionId;
+            this.clientId = clientId;
+            this.sharing = sharing;
+        }
+    }
+}
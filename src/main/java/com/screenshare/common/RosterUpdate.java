@@ -0,0 +1,122 @@
+// RosterUpdate.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Payload of CLIENT_LIST sent by the server: either a snapshot of the whole roster as of
+// a version, or a run of delta events. Every event bumps the roster version by one, so a
+// delta carries only the version of its first event and the rest follow consecutively.
+//
+// Clients send CLIENT_LIST to subscribe: with an empty payload for a snapshot, or with
+// the 8-byte version they last applied to resync after a gap.
+public class RosterUpdate {
+    public enum Kind { ADDED, REMOVED, STARTED, STOPPED }
+
+    private static final byte SNAPSHOT = 0;
+    private static final byte DELTA = 1;
+
+    private final boolean snapshot;
+    // Snapshot: version it reflects. Delta: version of the first event.
+    private final long version;
+    private final List<Event> events;
+
+    private RosterUpdate(boolean snapshot, long version, List<Event> events) {
+        this.snapshot = snapshot;
+        this.version = version;
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    // Snapshot entries are ADDED events, or STARTED for sessions that are sharing
+    public static RosterUpdate snapshot(long version, List<Event> entries) {
+        return new RosterUpdate(true, version, entries);
+    }
+
+    public static RosterUpdate delta(long firstVersion, List<Event> events) {
+        return new RosterUpdate(false, firstVersion, events);
+    }
+
+    public boolean isSnapshot() { return snapshot; }
+    public long getVersion() { return version; }
+    public List<Event> getEvents() { return events; }
+
+    // Roster version once the whole update has been applied
+    public long getLastVersion() {
+        return snapshot ? version : version + events.size() - 1;
+    }
+
+    public byte[] toBytes() {
+        int size = 1 + 8 + 4;
+        List<byte[]> names = new ArrayList<>(events.size());
+        for (Event event : events) {
+            byte[] name = event.clientId != null ? event.clientId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            names.add(name);
+            size += 1 + 4 + 2 + name.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size)
+                .put(snapshot ? SNAPSHOT : DELTA)
+                .putLong(version)
+                .putInt(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            byte[] name = names.get(i);
+            out.put((byte) event.kind.ordinal()).putInt(event.sessionId).putShort((short) name.length).put(name);
+        }
+        return out.array();
+    }
+
+    public static RosterUpdate parse(byte[] payload) throws IOException {
+        if (payload == null) {
+            throw new IOException("Empty roster update");
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            boolean snapshot = in.get() == SNAPSHOT;
+            long version = in.getLong();
+            int count = in.getInt();
+            // Each event takes at least 7 bytes, which bounds what a bad count can allocate
+            if (count < 0 || count > in.remaining() / 7) {
+                throw new IOException("Invalid roster event count: " + count);
+            }
+            List<Event> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int kind = in.get();
+                if (kind < 0 || kind >= Kind.values().length) {
+                    throw new IOException("Unknown roster event: " + kind);
+                }
+                int sessionId = in.getInt();
+                byte[] name = new byte[in.getShort() & 0xFFFF];
+                in.get(name);
+                events.add(new Event(Kind.values()[kind], sessionId,
+                        name.length > 0 ? new String(name, StandardCharsets.UTF_8) : null));
+            }
+            return new RosterUpdate(snapshot, version, events);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated roster update");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RosterUpdate{%s, version=%d, events=%d}",
+                snapshot ? "snapshot" : "delta", version, events.size());
+    }
+
+    // clientId is only carried by ADDED and snapshot entries
+    public static final class Event {
+        public final Kind kind;
+        public final int sessionId;
+        public final String clientId;
+
+        public Event(Kind kind, int sessionId, String clientId) {
+            this.kind = kind;
+            this.sessionId = sessionId;
+            this.clientId = clientId;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+// SharedMemoryTransport.java
+package com.screenshare.common;
+
+import com.screenshare.util.Logger;
+import com.screenshare.util.WaitStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.LockSupport;
+
+// A connection between two processes on one host over a memory-mapped file holding one
+// byte ring per direction. Each ring has a write sequence, advanced by its writer, and
+// a read sequence, advanced by its reader, both counting bytes since the start; readers
+// poll the write sequence for data and writers the read sequence for room, with the
+// PARK wait strategy. Nothing goes through the kernel while data flows.
+//
+// The server creates the file (owner-only, with a random token in its header) and offers
+// it over the socket; a client that can map it and finds the token is on the same host
+// and moves over. The socket stays open and idle as the liveness link: when it closes,
+// so does this transport, which is how a peer that died without closing is noticed.
+//
+// File layout: header (magic, ring size, token) in the first page, each ring's control
+// block (write sequence and writer-closed flag, then read sequence and reader-closed flag,
+// each on a cache line of its own) after it, then the server-to-client data, then the
+// client-to-server data.
+public class SharedMemoryTransport implements Transport {
+    private static final int MAGIC = 0x53484D31; // "SHM1"
+    private static final int TOKEN_OFFSET = 8;
+    private static final int CONTROL_OFFSET = 128;
+    private static final int CONTROL_SIZE = 256;
+    private static final int DATA_OFFSET = 4096;
+    private static final int WRITE_SEQUENCE = 0;
+    private static final int WRITER_CLOSED = 8;
+    private static final int READ_SEQUENCE = 128;
+    private static final int READER_CLOSED = 136;
+    // Idle rounds after which a waiting side polls only every LONG_PARK_NANOS, so an idle
+    // connection costs next to nothing; the first wait after a burst is still short
+    private static final int LONG_IDLE_ROUNDS = 2000;
+    private static final long LONG_PARK_NANOS = 1_000_000;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path path;
+    private final MappedByteBuffer map;
+    private final Ring in;
+    private final Ring out;
+    private final Transport link;
+    private final InputStream input = new RingInputStream();
+    private final GatheringByteChannel output = new RingOutputChannel();
+    private volatile boolean closed;
+    // Set once the connection moved here; until then the socket is not ours to close
+    private volatile boolean linked;
+
+    private SharedMemoryTransport(Path path, MappedByteBuffer map, int ringBytes, boolean server, Transport link) {
+        this.path = path;
+        this.map = map;
+        this.link = link;
+        Ring toClient = new Ring(map, CONTROL_OFFSET, DATA_OFFSET, ringBytes);
+        Ring toServer = new Ring(map, CONTROL_OFFSET + CONTROL_SIZE, DATA_OFFSET + ringBytes, ringBytes);
+        this.in = server ? toServer : toClient;
+        this.out = server ? toClient : toServer;
+    }
+
+    // Server end: a fresh file in dir, offered to the client as path and token
+    public static SharedMemoryTransport create(Path dir, int ringBytes, Transport link) throws IOException {
+        int size = Integer.highestOneBit(Math.max(4096, ringBytes - 1)) << 1;
+        Path path = Files.createTempFile(dir, "screenshare-", ".shm");
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * size);
+            map.order(ByteOrder.nativeOrder());
+            map.putLong(TOKEN_OFFSET, RANDOM.nextLong());
+            map.putInt(4, size);
+            map.putInt(0, MAGIC);
+            return new SharedMemoryTransport(path, map, size, true, link);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    // Client end; fails unless the file is there and carries the offered token, which is
+    // what tells a client on another host (or in another container) to stay on the socket
+    public static SharedMemoryTransport attach(Path path, long token, Transport link) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (file.size() < DATA_OFFSET) {
+                throw new IOException("Not a shared memory transport: " + path);
+            }
+            MappedByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY, 0, DATA_OFFSET);
+            header.order(ByteOrder.nativeOrder());
+            int size = header.getInt(4);
+            if (header.getInt(0) != MAGIC || header.getLong(TOKEN_OFFSET) != token
+                    || file.size() != DATA_OFFSET + 2L * size) {
+                throw new IOException("Shared memory transport " + path + " was not offered to us");
+            }
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * size);
+            map.order(ByteOrder.nativeOrder());
+            return new SharedMemoryTransport(path, map, size, false, link);
+        }
+    }
+
+    // tmpfs where there is one, so the rings never touch a disk
+    public static Path defaultDirectory() {
+        Path shm = Paths.get("/dev/shm");
+        return Files.isDirectory(shm) && Files.isWritable(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getToken() {
+        return map.getLong(TOKEN_OFFSET);
+    }
+
+    // Once both ends have it mapped the file is no longer needed
+    public void unlink() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            Logger.error("Cannot delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Closes this transport as soon as the socket it was offered over closes
+    public void watchLink() {
+        linked = true;
+        Thread.startVirtualThread(() -> {
+            InputStream linkInput = link.getInputStream();
+            try {
+                while (linkInput.read() >= 0) {
+                    // Nothing more is sent on the socket once a connection moved here
+                }
+            } catch (IOException e) {
+                // Closed, which is what we wait for
+            }
+            try {
+                close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        });
+    }
+
+    // Loopback, or an address of one of this host's interfaces
+    public static boolean isLocalAddress(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return SHARED_MEMORY;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public GatheringByteChannel getOutputChannel() {
+        return output;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) {
+        // Handshakes happen on the socket
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Tells the other end (EOF once it has read what is left), and closes the socket if
+    // the connection moved here. An offer that was refused or never answered leaves the
+    // socket as it is; either way the mapping is dropped, to be unmapped by the collector.
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.setFlag(WRITER_CLOSED);
+        in.setFlag(READER_CLOSED);
+        if (linked) {
+            link.close();
+        }
+    }
+
+    private static void idle(int rounds) {
+        if (rounds < LONG_IDLE_ROUNDS) {
+            WaitStrategy.PARK.idle(rounds);
+        } else {
+            LockSupport.parkNanos(LONG_PARK_NANOS);
+        }
+    }
+
+    // One direction. Writer and reader each keep their own sequence locally and publish
+    // it with a release store; the other side reads it with an acquire load.
+    private static final class Ring {
+        private final ByteBuffer control;
+        private final ByteBuffer data;
+        private final int capacity;
+        private final int mask;
+        private long written;
+        private long read;
+
+        Ring(MappedByteBuffer map, int controlOffset, int dataOffset, int capacity) {
+            this.control = map.slice(controlOffset, CONTROL_SIZE).order(ByteOrder.nativeOrder());
+            this.data = map.slice(dataOffset, capacity);
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.written = (long) LONGS.getAcquire(control, WRITE_SEQUENCE);
+            this.read = (long) LONGS.getAcquire(control, READ_SEQUENCE);
+        }
+
+        long get(int offset) {
+            return (long) LONGS.getAcquire(control, offset);
+        }
+
+        void setFlag(int offset) {
+            LONGS.setRelease(control, offset, 1L);
+        }
+
+        // Copies what fits without wrapping and publishes it; 0 when the ring is full
+        int write(ByteBuffer src) {
+            long room = capacity - (written - get(READ_SEQUENCE));
+            int length = (int) Math.min(Math.min(room, src.remaining()), capacity - (written & mask));
+            if (length <= 0) {
+                return 0;
+            }
+            data.put((int) (written & mask), src, src.position(), length);
+            src.position(src.position() + length);
+            written += length;
+            LONGS.setRelease(control, WRITE_SEQUENCE, written);
+            return length;
+        }
+
+        int read(byte[] dst, int offset, int length) {
+            long available = get(WRITE_SEQUENCE) - read;
+            int count = (int) Math.min(Math.min(available, length), capacity - (read & mask));
+            if (count <= 0) {
+                return 0;
+            }
+            data.get((int) (read & mask), dst, offset, count);
+            read += count;
+            LONGS.setRelease(control, READ_SEQUENCE, read);
+            return count;
+        }
+
+        boolean isEmpty() {
+            return get(WRITE_SEQUENCE) == read;
+        }
+    }
+
+    private final class RingInputStream extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int rounds = 0;
+            while (true) {
+                int count = in.read(b, off, len);
+                if (count > 0) {
+                    return count;
+                }
+                if (in.get(WRITER_CLOSED) != 0 && in.isEmpty()) {
+                    return -1;
+                }
+                if (closed) {
+                    throw new IOException("Shared memory transport closed");
+                }
+                idle(rounds++);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SharedMemoryTransport.this.close();
+        }
+    }
+
+    // Blocks until everything given is in the ring, as a blocking socket channel would;
+    // OutboundQueue holds its write lock meanwhile, so there is only ever one writer
+    private final class RingOutputChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int total = 0;
+            int rounds = 0;
+            while (src.hasRemaining()) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (out.get(READER_CLOSED) != 0) {
+                    throw new IOException("Peer closed the shared memory transport");
+                }
+                int count = out.write(src);
+                if (count > 0) {
+                    total += count;
+                    rounds = 0;
+                } else {
+                    idle(rounds++);
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            SharedMemoryTransport.this.close();
+        }
+    }
+}
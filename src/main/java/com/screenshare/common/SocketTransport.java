@@ -0,0 +1,85 @@
+// SocketTransport.java
+package com.screenshare.common;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+// A connected TCP or Unix domain socket channel. TCP reads go through the socket's
+// stream, so read timeouts apply; a Unix domain channel has no socket adaptor, so its
+// reads go through a plain channel stream and cannot time out. Writes go straight to
+// the channel as gathering writes either way.
+public class SocketTransport implements Transport {
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final InputStream input;
+
+    public SocketTransport(SocketChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        if (channel.getLocalAddress() instanceof UnixDomainSocketAddress) {
+            this.socket = null;
+            this.input = new BufferedInputStream(Channels.newInputStream(channel), bufferSize);
+        } else {
+            this.socket = channel.socket();
+            // Batching happens in OutboundQueue, so Nagle would only add delay
+            socket.setTcpNoDelay(true);
+            this.input = new BufferedInputStream(socket.getInputStream(), bufferSize);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return socket != null ? TCP : UNIX;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public GatheringByteChannel getOutputChannel() {
+        return channel;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        if (socket != null) {
+            socket.setSoTimeout(millis);
+        }
+    }
+
+    // Null once the peer is gone; a Unix domain peer is on this host
+    public String getRemoteHost() {
+        if (socket == null) {
+            return channel.isOpen() ? InetAddress.getLoopbackAddress().getHostAddress() : null;
+        }
+        InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+        return remote != null ? remote.getAddress().getHostAddress() : null;
+    }
+
+    public boolean isLocal() {
+        if (socket == null) {
+            return true;
+        }
+        InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+        return remote != null && SharedMemoryTransport.isLocalAddress(remote.getAddress());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,95 @@
+// ThumbnailBatch.java
+package com.screenshare.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Payload of THUMBNAILS from the server: small JPEG previews of the shares a viewer can
+// see, only those that changed since the last batch. An entry without image data means
+// the share ended. Clients send THUMBNAILS with a single byte, 1 to start receiving
+// previews and 0 to stop.
+public class ThumbnailBatch {
+    private static final int ENTRY_HEADER = 4 + 8 + 2 + 2 + 4;
+
+    private final List<Entry> entries;
+
+    public ThumbnailBatch(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public byte[] toBytes() {
+        int size = 4;
+        for (Entry entry : entries) {
+            size += ENTRY_HEADER + entry.image.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size).putInt(entries.size());
+        for (Entry entry : entries) {
+            out.putInt(entry.sessionId)
+                    .putLong(entry.timestamp)
+                    .putShort((short) entry.width)
+                    .putShort((short) entry.height)
+                    .putInt(entry.image.length)
+                    .put(entry.image);
+        }
+        return out.array();
+    }
+
+    public static ThumbnailBatch parse(byte[] payload) throws IOException {
+        if (payload == null) {
+            throw new IOException("Empty thumbnail batch");
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / ENTRY_HEADER) {
+                throw new IOException("Invalid thumbnail count: " + count);
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int sessionId = in.getInt();
+                long timestamp = in.getLong();
+                int width = in.getShort() & 0xFFFF;
+                int height = in.getShort() & 0xFFFF;
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IOException("Truncated thumbnail batch");
+                }
+                byte[] image = new byte[length];
+                in.get(image);
+                entries.add(new Entry(sessionId, timestamp, width, height, image));
+            }
+            return new ThumbnailBatch(entries);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated thumbnail batch");
+        }
+    }
+
+    public static final class Entry {
+        public final int sessionId;
+        // Capture time of the frame the thumbnail was made from
+        public final long timestamp;
+        public final int width;
+        public final int height;
+        public final byte[] image;
+
+        public Entry(int sessionId, long timestamp, int width, int height, byte[] image) {
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.width = width;
+            this.height = height;
+            this.image = image;
+        }
+
+        public boolean isRemoved() {
+            return image.length == 0;
+        }
+    }
+}
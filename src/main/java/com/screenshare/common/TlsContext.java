@@ -0,0 +1,177 @@
+// TlsContext.java
+package com.screenshare.common;
+
+import com.screenshare.util.BufferPool;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.LongAdder;
+
+// TLS 1.3 for one process: the SSLContext every connection's engine comes from, and with
+// it the session cache that lets a reconnecting client resume instead of running a full
+// handshake (the server issues session tickets; the client's cache is keyed by server
+// host and port, so it must keep using the same TlsContext across reconnects). Also owns
+// the buffer pools all its connections share.
+public class TlsContext {
+    public static final String PROTOCOL = "TLSv1.3";
+    // Records gathered per write: a whole default batch of frames goes out in one write
+    private static final int RECORDS_PER_WRITE = 4;
+    private static final int MAX_IDLE_BUFFERS = 256;
+
+    private final SSLContext context;
+    private final boolean verifyHostname;
+    private final int packetSize;
+    private final BufferPool netBuffers;
+    private final BufferPool appBuffers;
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    private TlsContext(SSLContext context, boolean verifyHostname, int sessionTimeoutSeconds) {
+        this.context = context;
+        this.verifyHostname = verifyHostname;
+        if (sessionTimeoutSeconds > 0) {
+            context.getServerSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+            context.getClientSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+        }
+        SSLEngine probe = context.createSSLEngine();
+        this.packetSize = probe.getSession().getPacketBufferSize();
+        this.netBuffers = new BufferPool(packetSize * RECORDS_PER_WRITE, MAX_IDLE_BUFFERS);
+        this.appBuffers = new BufferPool(probe.getSession().getApplicationBufferSize(), MAX_IDLE_BUFFERS);
+    }
+
+    // keystore holds this end's key and certificate, and may be null for a client. Peers
+    // are checked against truststore, or the keystore's own certificates without one, or
+    // not at all with trustAll. Store types are detected from the files.
+    public static TlsContext create(String keystore, String keystorePassword, String truststore,
+                                    String truststorePassword, boolean trustAll, int sessionTimeoutSeconds)
+            throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            KeyManagerFactory keys = null;
+            KeyStore keyStore = null;
+            if (!isBlank(keystore)) {
+                char[] password = keystorePassword != null ? keystorePassword.toCharArray() : new char[0];
+                keyStore = KeyStore.getInstance(new File(keystore), password);
+                keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keys.init(keyStore, password);
+            }
+            TrustManager[] trust;
+            if (trustAll) {
+                trust = new TrustManager[] { new TrustAll() };
+            } else {
+                KeyStore trustStore = keyStore;
+                if (!isBlank(truststore)) {
+                    trustStore = KeyStore.getInstance(new File(truststore),
+                            truststorePassword != null ? truststorePassword.toCharArray() : new char[0]);
+                }
+                // Without either store, the JDK's default CA certificates
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(trustStore);
+                trust = factory.getTrustManagers();
+            }
+            context.init(keys != null ? keys.getKeyManagers() : null, trust, null);
+            return new TlsContext(context, !trustAll, sessionTimeoutSeconds);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS: " + e.getMessage(), e);
+        }
+    }
+
+    // Server end of an accepted connection; nothing is exchanged until handshake()
+    public TlsTransport accept(Transport link) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(new String[] { PROTOCOL });
+        return new TlsTransport(this, engine, link);
+    }
+
+    // Server end of a cluster link: the peer must present a certificate this context
+    // trusts (the truststore, or the keystore's own certificates), which for a server is
+    // the cluster's, or the handshake fails
+    public TlsTransport acceptPeer(Transport link) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(new String[] { PROTOCOL });
+        engine.setNeedClientAuth(true);
+        return new TlsTransport(this, engine, link);
+    }
+
+    // Client end, for a server (or cluster peer) at host:port; sessions are resumed per
+    // host and port
+    public TlsTransport connect(Transport link, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(new String[] { PROTOCOL });
+        if (verifyHostname) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return new TlsTransport(this, engine, link);
+    }
+
+    int getPacketSize() {
+        return packetSize;
+    }
+
+    BufferPool getNetBuffers() {
+        return netBuffers;
+    }
+
+    BufferPool getAppBuffers() {
+        return appBuffers;
+    }
+
+    void recordHandshake(long nanos, boolean wasResumed) {
+        handshakes.increment();
+        handshakeNanos.add(nanos);
+        if (wasResumed) {
+            resumed.increment();
+        }
+    }
+
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    public String describe() {
+        long count = handshakes.sum();
+        return String.format("%d handshakes (%d resumed, %.1f ms average); network buffers %s; application buffers %s",
+                count, resumed.sum(), count == 0 ? 0.0 : handshakeNanos.sum() / 1e6 / count,
+                netBuffers.describe(), appBuffers.describe());
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    // client.ssl.trust.all: encrypted, but anyone in the path can pose as the server
+    private static final class TrustAll implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
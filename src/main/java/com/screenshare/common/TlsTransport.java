@@ -0,0 +1,346 @@
+// TlsTransport.java
+package com.screenshare.common;
+
+import com.screenshare.util.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// TLS over another transport (a socket), driven through an SSLEngine: records are read
+// from and written to the link as plain bytes, so the engine never owns the socket and
+// the same code would run over a non-blocking channel. The connection's reader unwraps;
+// whoever holds OutboundQueue's write lock wraps, which SSLEngine allows concurrently.
+//
+// Buffers come from the TlsContext's pools. The reader keeps one network and one
+// application buffer for the life of the connection, and decrypts straight into the
+// caller's array when it asks for a record's worth or more; a writer borrows a network
+// buffer for one batch, wraps up to RECORDS_PER_WRITE records into it and writes them at
+// once, so idle connections hold no write buffer at all.
+public class TlsTransport implements Transport {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TlsContext context;
+    private final SSLEngine engine;
+    private final Transport link;
+    private final InputStream linkInput;
+    private final GatheringByteChannel linkOutput;
+    private final TlsInputStream input = new TlsInputStream();
+    private final GatheringByteChannel output = new TlsOutputChannel();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Reader side, in read mode: records not yet unwrapped, and plaintext not yet read
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private volatile boolean closed;
+
+    TlsTransport(TlsContext context, SSLEngine engine, Transport link) {
+        this.context = context;
+        this.engine = engine;
+        this.link = link;
+        this.linkInput = link.getInputStream();
+        this.linkOutput = link.getOutputChannel();
+        this.netIn = context.getNetBuffers().acquire().flip();
+        this.appIn = context.getAppBuffers().acquire().flip();
+    }
+
+    // Runs the whole handshake before anything else is read or written; a read timeout
+    // set on this transport bounds each wait for the peer
+    public void handshake() throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+        synchronized (input) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                    && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        wrapHandshake();
+                        break;
+                    default:
+                        unwrapHandshake();
+                }
+                status = engine.getHandshakeStatus();
+            }
+        }
+        SSLSession session = engine.getSession();
+        // A resumed session keeps the creation time of the one it resumes
+        boolean resumed = session.getCreationTime() < startMillis;
+        context.recordHandshake(System.nanoTime() - start, resumed);
+        Logger.debug("TLS handshake done: " + session.getProtocol() + " " + session.getCipherSuite()
+                + (resumed ? ", resumed" : ""));
+    }
+
+    public String getCipherSuite() {
+        return engine.getSession().getCipherSuite();
+    }
+
+    @Override
+    public String getName() {
+        return "tls+" + link.getName();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public GatheringByteChannel getOutputChannel() {
+        return output;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        link.setReadTimeout(millis);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && link.isOpen();
+    }
+
+    // Sends close_notify unless a write is in progress, then closes the link. The reader's
+    // buffers go back to the pool once the reader is out of read(), which closing the
+    // link makes it be.
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        engine.closeOutbound();
+        if (writeLock.tryLock()) {
+            try {
+                wrapHandshake();
+            } catch (IOException e) {
+                // The peer is gone already
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        link.close();
+        synchronized (input) {
+            context.getNetBuffers().release(netIn);
+            context.getAppBuffers().release(appIn);
+            netIn = null;
+            appIn = null;
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // Handshake records (or close_notify, or a post-handshake reply such as a key update)
+    // from this end, wrapped until the engine has nothing more to send
+    private void wrapHandshake() throws IOException {
+        writeLock.lock();
+        ByteBuffer netOut = context.getNetBuffers().acquire();
+        try {
+            SSLEngineResult result;
+            do {
+                result = engine.wrap(EMPTY, netOut);
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+            } while (result.getStatus() == SSLEngineResult.Status.OK && result.bytesProduced() > 0
+                    && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    && netOut.remaining() >= context.getPacketSize());
+            netOut.flip();
+            writeFully(netOut);
+        } finally {
+            context.getNetBuffers().release(netOut);
+            writeLock.unlock();
+        }
+    }
+
+    // Called with the input monitor held
+    private void unwrapHandshake() throws IOException {
+        if (!netIn.hasRemaining() && fill() < 0) {
+            throw new EOFException("Connection closed during TLS handshake");
+        }
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() < 0) {
+            throw new EOFException("Connection closed during TLS handshake");
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("Peer closed the connection during the TLS handshake");
+        }
+    }
+
+    // Reads more records from the link behind those not yet unwrapped; -1 at end of stream
+    private int fill() throws IOException {
+        netIn.compact();
+        int count;
+        try {
+            count = linkInput.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+            if (count > 0) {
+                netIn.position(netIn.position() + count);
+            }
+        } finally {
+            netIn.flip();
+        }
+        return count;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            linkOutput.write(buffer);
+        }
+    }
+
+    private final class TlsInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (appIn == null) {
+                    throw new IOException("TLS transport closed");
+                }
+                if (appIn.hasRemaining()) {
+                    int count = Math.min(len, appIn.remaining());
+                    appIn.get(b, off, count);
+                    return count;
+                }
+                if (!netIn.hasRemaining() && fill() < 0) {
+                    return -1;
+                }
+                // Plaintext fills the caller's array first, and only what does not fit
+                // is kept back in appIn
+                ByteBuffer direct = ByteBuffer.wrap(b, off, len);
+                appIn.clear();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, new ByteBuffer[] { direct, appIn });
+                } finally {
+                    appIn.flip();
+                }
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        // close_notify from the peer
+                        return direct.position() > off ? direct.position() - off : -1;
+                    case BUFFER_UNDERFLOW:
+                        if (fill() < 0) {
+                            return -1;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("TLS record larger than the application buffer");
+                    default:
+                        break;
+                }
+                switch (result.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        // A key update or another post-handshake message to answer
+                        wrapHandshake();
+                        break;
+                    default:
+                        break;
+                }
+                if (direct.position() > off) {
+                    return direct.position() - off;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsTransport.this.close();
+        }
+    }
+
+    // Wraps as much as it is given into records, RECORDS_PER_WRITE at a time, and writes
+    // each group with one write on the link
+    private final class TlsOutputChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += srcs[i].remaining();
+            }
+            long total = 0;
+            writeLock.lock();
+            ByteBuffer netOut = context.getNetBuffers().acquire();
+            try {
+                while (remaining > 0) {
+                    if (closed) {
+                        throw new ClosedChannelException();
+                    }
+                    netOut.clear();
+                    while (remaining > 0 && netOut.remaining() >= context.getPacketSize()) {
+                        SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new ClosedChannelException();
+                        }
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runTasks();
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            break;
+                        }
+                        remaining -= result.bytesConsumed();
+                        total += result.bytesConsumed();
+                    }
+                    netOut.flip();
+                    writeFully(netOut);
+                }
+                return total;
+            } finally {
+                context.getNetBuffers().release(netOut);
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return TlsTransport.this.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsTransport.this.close();
+        }
+    }
+}
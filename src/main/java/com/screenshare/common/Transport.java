@@ -0,0 +1,32 @@
+// Transport.java
+package com.screenshare.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.GatheringByteChannel;
+
+// The byte streams a connection's frames travel over: read by the connection's reader
+// thread, written in batches by its OutboundQueue. Framing is the codec's business, so
+// any transport carries any wire version. A connection always starts on a socket, and
+// may move to a faster transport once both ends agree to (see MessageType.TRANSPORT).
+public interface Transport extends Closeable {
+    String TCP = "tcp";
+    String UNIX = "unix";
+    String SHARED_MEMORY = "shm";
+
+    String getName();
+
+    InputStream getInputStream();
+
+    GatheringByteChannel getOutputChannel();
+
+    // For a handshake that must not wait forever; 0 waits as long as it takes. Ignored
+    // by transports that cannot time reads out.
+    void setReadTimeout(int millis) throws IOException;
+
+    boolean isOpen();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,52 @@
+// Varint.java
+package com.screenshare.common;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+// Unsigned LEB128 varints (7 bits per byte, high bit = more) and zigzag mapping for
+// signed values, as used by the version 2 frame header.
+public final class Varint {
+    public static final int MAX_LONG_BYTES = 10;
+
+    private Varint() {
+    }
+
+    public static int writeUnsigned(long value, byte[] dst, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static long readUnsigned(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static int sizeOf(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,90 @@
+// WireCodec.java
+package com.screenshare.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Frames messages on a TCP stream in one negotiated protocol version. A codec belongs to
+// one connection and may keep per-direction state (version 2 delta-encodes timestamps),
+// so encoding must be serialized by the caller and reads happen on a single thread.
+public abstract class WireCodec {
+    // Largest payload read() will reassemble from fragments
+    protected int maxMessageSize = Protocol.MAX_PAYLOAD_SIZE;
+    // Types whose fragments read() returns piece by piece instead of reassembling, and the
+    // largest message of those types it will take; pieces are not held, so this can be larger
+    protected Set<MessageType> streamedTypes = EnumSet.noneOf(MessageType.class);
+    protected int maxStreamedSize = Protocol.MAX_PAYLOAD_SIZE;
+    // Negotiated payload compression, null for none; payloads below the threshold go as is
+    protected Compression compression;
+    protected int compressionThreshold;
+
+    public static WireCodec forVersion(int version) {
+        switch (version) {
+            case Protocol.VERSION_1:
+                return new WireCodecV1();
+            case Protocol.VERSION_2:
+                return new WireCodecV2();
+            default:
+                throw new IllegalArgumentException("Unsupported protocol version: " + version);
+        }
+    }
+
+    public abstract int getVersion();
+
+    // Appends the frame as buffers ready for a gathering write: a freshly allocated
+    // header, followed by the payload array wrapped without copying. Returns the bytes added.
+    public abstract int encode(Message message, List<ByteBuffer> out) throws IOException;
+
+    // Whether large payloads can be split with encodeFragment and reassembled by read
+    public boolean supportsFragments() {
+        return false;
+    }
+
+    // Appends one frame carrying piece, found at offset within a payload of totalLength
+    // bytes, as part of stream streamId. Type, sender and timestamp come from message.
+    // Fragments of one stream must be encoded in order; frames of other messages may be
+    // interleaved between them. Versions without fragment frames throw IOException.
+    public abstract int encodeFragment(Message message, int streamId, int offset, int totalLength,
+                                       ByteBuffer piece, List<ByteBuffer> out) throws IOException;
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public void setStreamedTypes(Set<MessageType> streamedTypes) {
+        this.streamedTypes = EnumSet.copyOf(streamedTypes);
+    }
+
+    public void setMaxStreamedSize(int maxStreamedSize) {
+        this.maxStreamedSize = maxStreamedSize;
+    }
+
+    // Only version 2 frames can mark a payload as compressed
+    public boolean supportsCompression() {
+        return false;
+    }
+
+    public void setCompression(Compression compression, int threshold) {
+        this.compression = compression;
+        this.compressionThreshold = threshold;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    // Called once the connection using this codec is closed
+    public void close() {
+        if (compression != null) {
+            compression.close();
+        }
+    }
+
+    // Returns the next complete message, or the next piece of a streamed type (see
+    // Message.getFragment); other fragments are reassembled internally
+    public abstract Message read(DataInputStream in) throws IOException;
+}
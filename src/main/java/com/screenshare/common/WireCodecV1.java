@@ -0,0 +1,68 @@
+// WireCodecV1.java
+package com.screenshare.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Original framing: 4-byte length prefix around the Protocol.serialize layout.
+public class WireCodecV1 extends WireCodec {
+
+    @Override
+    public int getVersion() {
+        return Protocol.VERSION_1;
+    }
+
+    @Override
+    public int encode(Message message, List<ByteBuffer> out) {
+        byte[] payload = message.getPayload();
+        int payloadLength = payload != null ? payload.length : 0;
+        ByteBuffer header = header(message.getType(), message.getClientId(), message.getTimestamp(), payloadLength);
+
+        out.add(header);
+        if (payloadLength > 0) {
+            out.add(ByteBuffer.wrap(payload));
+        }
+        return header.remaining() + payloadLength;
+    }
+
+    // Everything of a frame up to its payload. Frames are self-contained, so a recording
+    // keeps them in this form and can replay them byte for byte.
+    public static ByteBuffer header(MessageType type, String clientId, long timestamp, int payloadLength) {
+        byte[] clientIdBytes = clientId.getBytes();
+
+        // magic + type + clientId length + clientId + timestamp + payload length
+        int headerBody = 4 + 4 + 4 + clientIdBytes.length + 8 + 4;
+        ByteBuffer header = ByteBuffer.allocate(4 + headerBody);
+        header.putInt(headerBody + payloadLength);
+        header.putInt(Protocol.MAGIC_NUMBER);
+        header.putInt(type.getValue());
+        header.putInt(clientIdBytes.length);
+        header.put(clientIdBytes);
+        header.putLong(timestamp);
+        header.putInt(payloadLength);
+        header.flip();
+        return header;
+    }
+
+    // Version 1 frames carry whole payloads only; callers check supportsFragments() first,
+    // and a piece queued before a switch back to version 1 is dropped with this
+    @Override
+    public int encodeFragment(Message message, int streamId, int offset, int totalLength, ByteBuffer piece,
+                              List<ByteBuffer> out) throws IOException {
+        throw new IOException("Protocol version 1 has no fragment frames");
+    }
+
+    @Override
+    public Message read(DataInputStream in) throws IOException {
+        int messageLength = in.readInt();
+        if (messageLength <= 0 || messageLength > Protocol.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid message length: " + messageLength);
+        }
+
+        byte[] messageData = new byte[messageLength];
+        in.readFully(messageData);
+        return Protocol.deserialize(messageData);
+    }
+}
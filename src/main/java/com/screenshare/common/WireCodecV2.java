@@ -0,0 +1,279 @@
+// WireCodecV2.java
+package com.screenshare.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact framing negotiated through CONNECT_REQUEST / CONNECT_RESPONSE:
+//
+//   varint  frame length (bytes following this field)
+//   byte    message type
+//   byte    flags
+//   varint  session id of the sender (0 = server)
+//   varint  zigzag(timestamp - previous timestamp in this direction)
+//   ...     payload, up to the end of the frame
+//
+// With FLAG_COMPRESSED set the payload is the negotiated Compression's output for the
+// original payload. It is only used on whole frames.
+//
+// With FLAG_FRAGMENT set the frame carries one piece of a larger message, and the
+// timestamp is followed by:
+//   varint  stream id (per sending direction)
+//   varint  offset of this piece in the message payload
+//   varint  total payload length (first piece only, i.e. offset 0)
+// Pieces of one stream arrive in order but may be interleaved with other frames, and
+// the total may exceed MAX_PAYLOAD_SIZE: only each frame is bounded by it.
+//
+// A heartbeat 30s after the previous frame costs 8 bytes, against 40-60 in
+// version 1. The timestamp base starts at 0 on both ends when the codec is created.
+public class WireCodecV2 extends WireCodec {
+    public static final int FLAG_COMPRESSED = 0x01;
+    public static final int FLAG_FRAGMENT = 0x02;
+    // Flags this build understands; anything else is a protocol error
+    private static final int SUPPORTED_FLAGS = FLAG_COMPRESSED | FLAG_FRAGMENT;
+
+    private static final int MAX_HEADER_SIZE = 2 + Varint.MAX_LONG_BYTES * 5;
+    private static final int MAX_FRAME_SIZE = MAX_HEADER_SIZE + Protocol.MAX_PAYLOAD_SIZE;
+    // Partially received messages kept per connection before the peer is considered broken
+    private static final int MAX_OPEN_STREAMS = 16;
+
+    private final byte[] scratch = new byte[Varint.MAX_LONG_BYTES + MAX_HEADER_SIZE];
+    private final Map<Integer, Reassembly> reassemblies = new HashMap<>();
+    private long lastWrittenTimestamp;
+    private long lastReadTimestamp;
+    private int headerBytesRead;
+
+    @Override
+    public int getVersion() {
+        return Protocol.VERSION_2;
+    }
+
+    @Override
+    public int encode(Message message, List<ByteBuffer> out) throws IOException {
+        byte[] payload = message.getPayload();
+        int payloadLength = payload != null ? payload.length : 0;
+        if (payloadLength > Protocol.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Payload too large: " + payloadLength);
+        }
+
+        int flags = 0;
+        if (compression != null && payloadLength >= compressionThreshold && payloadLength > 0) {
+            byte[] compressed = compression.compress(payload, 0, payloadLength);
+            if (compressed != null) {
+                payload = compressed;
+                payloadLength = compressed.length;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        long sessionId = Math.max(0, message.getSessionId());
+        long timestampDelta = Varint.zigzag(message.getTimestamp() - lastWrittenTimestamp);
+        int frameLength = 2 + Varint.sizeOf(sessionId) + Varint.sizeOf(timestampDelta) + payloadLength;
+
+        int offset = Varint.writeUnsigned(frameLength, scratch, 0);
+        scratch[offset++] = (byte) message.getType().getValue();
+        scratch[offset++] = (byte) flags;
+        offset = Varint.writeUnsigned(sessionId, scratch, offset);
+        offset = Varint.writeUnsigned(timestampDelta, scratch, offset);
+
+        ByteBuffer header = ByteBuffer.allocate(offset);
+        header.put(scratch, 0, offset).flip();
+        out.add(header);
+        if (payloadLength > 0) {
+            out.add(ByteBuffer.wrap(payload));
+        }
+        lastWrittenTimestamp = message.getTimestamp();
+        return offset + payloadLength;
+    }
+
+    @Override
+    public boolean supportsFragments() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsCompression() {
+        return true;
+    }
+
+    @Override
+    public int encodeFragment(Message message, int streamId, int offset, int totalLength, ByteBuffer piece,
+                              List<ByteBuffer> out) throws IOException {
+        int length = piece.remaining();
+        if (length > Protocol.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Fragment too large: " + length);
+        }
+        long sessionId = Math.max(0, message.getSessionId());
+        long timestampDelta = Varint.zigzag(message.getTimestamp() - lastWrittenTimestamp);
+        int fragmentHeader = Varint.sizeOf(streamId) + Varint.sizeOf(offset)
+                + (offset == 0 ? Varint.sizeOf(totalLength) : 0);
+        int frameLength = 2 + Varint.sizeOf(sessionId) + Varint.sizeOf(timestampDelta) + fragmentHeader + length;
+
+        int pos = Varint.writeUnsigned(frameLength, scratch, 0);
+        scratch[pos++] = (byte) message.getType().getValue();
+        scratch[pos++] = FLAG_FRAGMENT;
+        pos = Varint.writeUnsigned(sessionId, scratch, pos);
+        pos = Varint.writeUnsigned(timestampDelta, scratch, pos);
+        pos = Varint.writeUnsigned(streamId, scratch, pos);
+        pos = Varint.writeUnsigned(offset, scratch, pos);
+        if (offset == 0) {
+            pos = Varint.writeUnsigned(totalLength, scratch, pos);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(pos);
+        header.put(scratch, 0, pos).flip();
+        out.add(header);
+        out.add(piece);
+        lastWrittenTimestamp = message.getTimestamp();
+        return pos + length;
+    }
+
+    @Override
+    public Message read(DataInputStream in) throws IOException {
+        while (true) {
+            Message message = readFrame(in);
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    // Returns null for a fragment that does not complete its message
+    private Message readFrame(DataInputStream in) throws IOException {
+        long frameLength = Varint.readUnsigned(in);
+        if (frameLength < 4 || frameLength > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+
+        headerBytesRead = 0;
+        MessageType type = MessageType.fromValue(readByte(in));
+        int flags = readByte(in);
+        if ((flags & ~SUPPORTED_FLAGS) != 0) {
+            throw new IOException("Unsupported frame flags: 0x" + Integer.toHexString(flags));
+        }
+        long sessionId = readVarint(in);
+        long timestamp = lastReadTimestamp + Varint.unzigzag(readVarint(in));
+        lastReadTimestamp = timestamp;
+
+        if ((flags & FLAG_FRAGMENT) != 0) {
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                throw new IOException("Compressed fragments are not supported");
+            }
+            return readFragment(in, frameLength, type, (int) sessionId, timestamp);
+        }
+
+        int payloadLength = (int) (frameLength - headerBytesRead);
+        if (payloadLength < 0) {
+            throw new IOException("Frame header overruns frame length " + frameLength);
+        }
+        byte[] payload = null;
+        if (payloadLength > 0) {
+            payload = new byte[payloadLength];
+            in.readFully(payload);
+        }
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            if (compression == null || payload == null) {
+                throw new IOException("Compressed frame without negotiated compression");
+            }
+            payload = compression.decompress(payload, Protocol.MAX_PAYLOAD_SIZE);
+        }
+
+        return newMessage(type, (int) sessionId, timestamp, payload);
+    }
+
+    private Message readFragment(DataInputStream in, long frameLength, MessageType type, int sessionId,
+                                 long timestamp) throws IOException {
+        int streamId = (int) readVarint(in);
+        long offset = readVarint(in);
+        boolean streamed = streamedTypes.contains(type);
+        Reassembly reassembly;
+        if (offset == 0) {
+            long total = readVarint(in);
+            if (total > (streamed ? maxStreamedSize : maxMessageSize)) {
+                throw new IOException("Fragmented payload too large: " + total);
+            }
+            // A sender streams one message at a time; one it left unfinished is not coming back
+            reassemblies.values().removeIf(open -> open.sessionId == sessionId && open.type == type);
+            if (reassemblies.size() >= MAX_OPEN_STREAMS && !reassemblies.containsKey(streamId)) {
+                throw new IOException("Too many partial messages from peer");
+            }
+            // Streamed types only track progress; their pieces are handed out as they come
+            reassembly = new Reassembly(type, sessionId, timestamp, (int) total,
+                    streamed ? null : new byte[(int) total]);
+            reassemblies.put(streamId, reassembly);
+        } else {
+            reassembly = reassemblies.get(streamId);
+            if (reassembly == null || offset != reassembly.filled) {
+                throw new IOException("Out of order fragment for stream " + streamId + " at " + offset);
+            }
+        }
+
+        int length = (int) (frameLength - headerBytesRead);
+        if (length < 0 || length > reassembly.total - reassembly.filled) {
+            throw new IOException("Fragment overruns message on stream " + streamId);
+        }
+        int pieceOffset = reassembly.filled;
+        reassembly.filled += length;
+        if (reassembly.filled == reassembly.total) {
+            reassemblies.remove(streamId);
+        }
+
+        if (reassembly.payload == null) {
+            byte[] piece = new byte[length];
+            in.readFully(piece);
+            Message message = newMessage(reassembly.type, reassembly.sessionId, reassembly.timestamp, piece);
+            message.setFragment(new Fragment(streamId, pieceOffset, reassembly.total));
+            return message;
+        }
+        in.readFully(reassembly.payload, pieceOffset, length);
+        if (reassembly.filled < reassembly.total) {
+            return null;
+        }
+        return newMessage(reassembly.type, reassembly.sessionId, reassembly.timestamp, reassembly.payload);
+    }
+
+    private static Message newMessage(MessageType type, int sessionId, long timestamp, byte[] payload) {
+        Message message = new Message(type, Protocol.clientIdFor(sessionId), payload);
+        message.setSessionId(sessionId);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private int readByte(DataInputStream in) throws IOException {
+        headerBytesRead++;
+        return in.readUnsignedByte();
+    }
+
+    private long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in frame header");
+    }
+
+    private static final class Reassembly {
+        final MessageType type;
+        final int sessionId;
+        final long timestamp;
+        final int total;
+        final byte[] payload;
+        int filled;
+
+        Reassembly(MessageType type, int sessionId, long timestamp, int total, byte[] payload) {
+            this.type = type;
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.total = total;
+            this.payload = payload;
+        }
+    }
+}
@@ -2,35 +2,147 @@
 package com.screenshare.server;
 
 import com.screenshare.common.*;
+import com.screenshare.util.HashedTimingWheel;
 import com.screenshare.util.Logger;
+import com.screenshare.util.TokenBucket;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ClientHandler implements Runnable {
-    private final Socket clientSocket;
+    // How long a resuming connection waits for the session's old reader to let go
+    private static final long RESUME_WAIT_MILLIS = 5000;
+
+    // The socket the client connected over, and what its frames travel over now: the
+    // same socket, or shared memory the client moved to. A resumed session takes over
+    // the new connection's.
+    private volatile SocketTransport socket;
+    private volatile Transport transport;
+    // Offered to the client after the handshake, until it attaches or refuses
+    private volatile SharedMemoryTransport offeredTransport;
+    private final int sessionId;
     private final String clientId;
     private final ScreenShareServer server;
+    // The link of another cluster node, accepted on server.cluster.port
+    private final boolean peer;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
 
     private DataInputStream inputStream;
-    private DataOutputStream outputStream;
-    private long lastHeartbeat;
+    private final OutboundQueue outbound;
+    // Starts as version 1; replaced once CONNECT_REQUEST negotiates another version
+    private volatile WireCodec codec = WireCodec.forVersion(Protocol.VERSION_1);
+    private volatile HashedTimingWheel.Timeout livenessTimeout;
+    private HashedTimingWheel livenessWheel;
+    private long clientTimeout;
+
+    // A connection joins the registry as it is accepted. If its CONNECT_REQUEST carries
+    // the token of another session, that session takes the connection over and this one
+    // leaves; its reader thread then reads for that session (resumedSession). Reader
+    // thread only.
+    private boolean negotiated;
+    private ClientHandler resumedSession;
+    // Session resumption: the token the client holds, and once its connection is gone,
+    // the grace timeout that ends the session unless the client comes back first.
+    // reading and superseded let a resume wait for the old reader to leave, and tell it
+    // to leave quietly. Guarded by this.
+    private volatile String resumeToken;
+    private HashedTimingWheel.Timeout graceTimeout;
+    private boolean reading;
+    private boolean superseded;
+
+    // Streamed SCREEN_DATA state: streams refused for exceeding server.max.payload.size,
+    // with the session that sent them (reader thread only), and whole copies built for
+    // version 1 viewers or for server-side previews (routing thread only). A session
+    // streams one frame at a time, so its next first piece ends any it left unfinished.
+    private final Map<Integer, Integer> rejectedStreams = new HashMap<>();
+    private final Map<Integer, Reassembly> reassembly = new HashMap<>();
+    // Viewers a relay tree served when the streamed frame in flight began; they skip all
+    // of its pieces (see ScreenShareServer.routeScreenFragment)
+    Set<ClientHandler> frameRelayed = Collections.emptySet();
+    // This sender's ingest ring, once it has sent screen data through the relay pipeline
+    volatile RelayPipeline.Source pipelineSource;
+    // Upload leg of this client's screen share, reported back to it as the server's
+    // RECEIVER_REPORT; reader thread only
+    private ReceptionStats uploadStats;
+
+    // SCREEN_DATA budgets; frames over budget are dropped, never queued
+    private final TokenBucket ingressBucket;
+    private final TokenBucket egressBucket;
+    private final LongAdder ingressShed = new LongAdder();
+    private final LongAdder egressShed = new LongAdder();
+
+    // Viewer relay the client offered in CONNECT_REQUEST: -1 when it takes no part in
+    // relay trees, 0 when it only receives through them
+    private volatile int relayPort = -1;
+    private volatile int relayChildren;
+    // The name the client gave in CONNECT_REQUEST, empty without one
+    private volatile String clientName = "";
+
+    public ClientHandler(SocketChannel channel, ScreenShareServer server, int sessionId) {
+        this(channel, server, sessionId, false);
+    }
 
-    public ClientHandler(Socket clientSocket, ScreenShareServer server) {
-        this.clientSocket = clientSocket;
+    public ClientHandler(SocketChannel channel, ScreenShareServer server, int sessionId, boolean peer) {
         this.server = server;
-        this.clientId = generateClientId();
-        this.lastHeartbeat = System.currentTimeMillis();
-
+        this.sessionId = sessionId;
+        this.clientId = Protocol.clientIdFor(sessionId);
+        this.peer = peer;
+
+        ServerConfig config = server.getConfig();
+        // A peer carries the frames of a whole node's viewers; only the global budget applies
+        this.ingressBucket = new TokenBucket(peer ? 0 : config.getSessionIngressRate(), config.getRateBurst());
+        this.egressBucket = new TokenBucket(peer ? 0 : config.getSessionEgressRate(), config.getRateBurst());
+        SocketTransport socketTransport = null;
+        Transport current = null;
         try {
-            this.inputStream = new DataInputStream(clientSocket.getInputStream());
-            this.outputStream = new DataOutputStream(clientSocket.getOutputStream());
+            socketTransport = new SocketTransport(channel, config.getBufferSize());
+            current = socketTransport;
+            // Clients on the Unix socket are local, like shared memory, and stay plain.
+            // A cluster peer is exempt from budgets and gets every share, so it must prove
+            // it holds a cluster certificate.
+            TlsContext tls = server.getTls();
+            if (tls != null && socketTransport.getName().equals(Transport.TCP)) {
+                current = peer ? tls.acceptPeer(socketTransport) : tls.accept(socketTransport);
+            }
+            this.inputStream = new DataInputStream(current.getInputStream());
         } catch (IOException e) {
             Logger.error("Failed to create streams for client " + clientId, e);
         }
+        this.socket = socketTransport;
+        this.transport = current;
+        this.outbound = new OutboundQueue(current != null ? current.getOutputChannel() : channel, codec,
+                config.getWriteCoalesceMicros(), config.getWriteCoalesceBytes(), config.getWriteChunkBytes());
+        if (current instanceof TlsTransport) {
+            // Encrypting a fanned-out frame for this viewer is not the sharer's reader's job
+            outbound.offloadWrites();
+        }
+    }
+
+    // A session connected to another cluster node (see RemoteSession): no connection
+    // here, so nothing is read, and sending is up to the subclass
+    protected ClientHandler(ScreenShareServer server, int sessionId, String clientId) {
+        this.socket = null;
+        this.server = server;
+        this.sessionId = sessionId;
+        this.clientId = clientId;
+        this.peer = false;
+        this.outbound = null;
+        this.ingressBucket = new TokenBucket(0, 0);
+        this.egressBucket = new TokenBucket(0, 0);
     }
 
     @Override
@@ -38,24 +150,37 @@ public class ClientHandler implements Runnable {
         Logger.info("Client handler started for: " + clientId);
 
         try {
-            // Send welcome message
-            sendMessage(new Message(MessageType.CONNECT_RESPONSE, "SERVER", "Connected successfully"));
+            if (transport instanceof TlsTransport && !handshakeTls((TlsTransport) transport)) {
+                cleanup();
+                return;
+            }
+
+            // Send welcome message with the server-assigned identity; clients that
+            // understand protocol.versions answer with a CONNECT_REQUEST to upgrade
+            Handshake welcome = new Handshake()
+                    .put(Handshake.SESSION_ID, sessionId)
+                    .put(Handshake.CLIENT_ID, clientId)
+                    .put(Handshake.PROTOCOL_VERSIONS, Protocol.SUPPORTED_VERSIONS)
+                    .put(Handshake.MESSAGE, "Connected successfully");
+            sendMessage(new Message(MessageType.CONNECT_RESPONSE, Protocol.SERVER_CLIENT_ID, welcome.toBytes()));
+        } catch (Exception e) {
+            Logger.error("Unexpected error in client handler for " + clientId, e);
+            cleanup();
+            return;
+        }
+        serve();
+    }
 
-            while (running.get() && !clientSocket.isClosed()) {
+    // Reads the session's connection until it ends
+    private void serve() {
+        synchronized (this) {
+            reading = true;
+        }
+        try {
+            while (running.get() && transport.isOpen()) {
                 try {
-                    // Read message length first
-                    int messageLength = inputStream.readInt();
-                    if (messageLength <= 0 || messageLength > Protocol.MAX_PAYLOAD_SIZE) {
-                        Logger.error("Invalid message length: " + messageLength);
-                        break;
-                    }
-
-                    // Read the full message
-                    byte[] messageData = new byte[messageLength];
-                    inputStream.readFully(messageData);
-
-                    // Deserialize and process
-                    Message message = Protocol.deserialize(messageData);
+                    // Read and process the next frame in the negotiated format
+                    Message message = codec.read(inputStream);
                     processMessage(message);
 
                 } catch (SocketException e) {
@@ -73,32 +198,279 @@ public class ClientHandler implements Runnable {
         } catch (Exception e) {
             Logger.error("Unexpected error in client handler for " + clientId, e);
         } finally {
+            connectionLost();
+        }
+    }
+
+    // The session ends with its connection unless the client holds a resume token and
+    // did not say goodbye; then it is detached to wait for the client. A connection that
+    // resumed another session goes on reading for it.
+    private void connectionLost() {
+        synchronized (this) {
+            reading = false;
+            notifyAll();
+            if (superseded) {
+                // A new connection resumed the session and reads for it from now on
+                return;
+            }
+            // Detached before a resume can look, so it finds the grace timeout to cancel
+            if (resumedSession == null && resumeToken != null && running.get() && !cleanedUp.get()
+                    && server.isRunning()) {
+                detach();
+                return;
+            }
+        }
+        ClientHandler resumed = resumedSession;
+        if (resumed != null) {
+            handOver();
+            resumed.serve();
+        } else {
             cleanup();
         }
     }
 
+    // Keeps the session (rooms, subscriptions, share, roster entry) as it is; what it is
+    // sent meanwhile waits in its outbound queue. Called with the monitor held.
+    private void detach() {
+        outbound.detach();
+        closeConnection();
+        HashedTimingWheel.Timeout timeout = livenessTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        long grace = server.getConfig().getResumeGrace();
+        graceTimeout = livenessWheel.schedule(this::graceExpired, grace);
+        Logger.info("Client " + clientId + " lost its connection, keeping the session for " + grace + "ms");
+    }
+
+    // Runs on the timing wheel thread
+    private void graceExpired() {
+        synchronized (this) {
+            if (superseded || graceTimeout == null || graceTimeout.isCancelled()) {
+                return;
+            }
+            graceTimeout = null;
+            running.set(false);
+        }
+        Logger.info("Client " + clientId + " did not come back, ending its session");
+        server.recordResumeExpired();
+        cleanup();
+    }
+
+    // Called on fresh's reader thread, whose client presented this session's token:
+    // closes the session's old connection if that is still open, waits for its reader to
+    // go, and moves the session onto fresh's connection, replaying what the client did
+    // not read. fresh, registered as it connected, leaves the registry and its thread
+    // reads for this session. False if the session is ending, or what the client missed
+    // is no longer kept; the client then goes on as fresh (and this session, its
+    // connection gone, ends).
+    boolean resume(ClientHandler fresh, Handshake request, WireCodec next, int version, String compression) {
+        synchronized (this) {
+            if (!running.get() || cleanedUp.get() || superseded) {
+                return false;
+            }
+            superseded = true;
+            if (graceTimeout != null) {
+                graceTimeout.cancel();
+                graceTimeout = null;
+            }
+        }
+        closeConnection();
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + RESUME_WAIT_MILLIS;
+            try {
+                while (reading && System.currentTimeMillis() < deadline) {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (reading) {
+                // Its reader is stuck; it detaches the session once it gets out
+                superseded = false;
+                return false;
+            }
+        }
+
+        long lastSequence = request.getLong(Handshake.RESUME_SEQUENCE, -1);
+        if (!outbound.canResume(lastSequence)) {
+            Logger.info("Client " + clientId + " cannot resume: it read up to message " + lastSequence
+                    + ", which is no longer kept (" + outbound.describeReplay() + ")");
+            synchronized (this) {
+                superseded = false;
+            }
+            cleanup();
+            return false;
+        }
+        // fresh's queue must be done with the connection before this one writes to it
+        server.removeClient(fresh);
+        fresh.outbound.release();
+        resumeToken = server.reissueResumeToken(this, resumeToken);
+        Message response = new Message(MessageType.CONNECT_RESPONSE, Protocol.SERVER_CLIENT_ID,
+                connectResponse(version, compression, true).toBytes());
+        if (!outbound.resume(fresh.transport.getOutputChannel(), fresh.codec, response, next, lastSequence)) {
+            synchronized (this) {
+                superseded = false;
+            }
+            cleanup();
+            return false;
+        }
+        // Pieces of frames the client was sending are not coming back
+        reassembly.clear();
+        rejectedStreams.clear();
+        // The old connection's reader is done with it, and with an offer made on it
+        codec.close();
+        withdrawOffer();
+        synchronized (this) {
+            socket = fresh.socket;
+            transport = fresh.transport;
+            inputStream = fresh.inputStream;
+            codec = next;
+            superseded = false;
+            // The old connection's, if the client came back before it was noticed gone
+            HashedTimingWheel.Timeout timeout = livenessTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            livenessTimeout = livenessWheel.schedule(this::expire, clientTimeout);
+        }
+        if (request.has(Handshake.RELAY_PORT)) {
+            relayChildren = Math.max(0, request.getInt(Handshake.RELAY_CHILDREN, 0));
+            relayPort = Math.max(0, request.getInt(Handshake.RELAY_PORT, 0));
+        }
+        Logger.info("Client " + clientId + " resumed its session on " + transport.getName()
+                + " after message " + lastSequence + " (" + outbound.describeReplay() + ")");
+        offerSharedMemory(request);
+        return true;
+    }
+
+    // This connection now belongs to the session it resumed
+    private void handOver() {
+        cleanedUp.set(true);
+        HashedTimingWheel.Timeout timeout = livenessTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        outbound.close();
+        socket = null;
+        transport = null;
+        inputStream = null;
+    }
+
+    // Bounded by the client timeout, so a connection that never speaks TLS does not keep
+    // a handler thread
+    private boolean handshakeTls(TlsTransport tls) {
+        try {
+            tls.setReadTimeout(server.getConfig().getClientTimeout());
+            tls.handshake();
+            tls.setReadTimeout(0);
+            Logger.info("Client " + clientId + " secured with " + tls.getCipherSuite());
+            return true;
+        } catch (EOFException e) {
+            // Port probes and health checks connect and close without a word
+            Logger.info("Client " + clientId + " closed the connection before the TLS handshake");
+            return false;
+        } catch (IOException e) {
+            Logger.error("TLS handshake with client " + clientId + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
     private void processMessage(Message message) {
         Logger.debug("Received message: " + message);
-        lastHeartbeat = System.currentTimeMillis();
+
+        // Any inbound traffic proves liveness, not just heartbeats
+        HashedTimingWheel.Timeout timeout = livenessTimeout;
+        if (timeout != null) {
+            timeout.reschedule(clientTimeout);
+        }
+
+        // The server-assigned id is authoritative for anything relayed onwards; a peer
+        // relays on behalf of its node's sessions and keeps their ids
+        if (!peer) {
+            message.setClientId(clientId);
+            message.setSessionId(sessionId);
+        }
 
         switch (message.getType()) {
+            case CONNECT_REQUEST:
+                handleConnectRequest(message);
+                break;
+
             case HEARTBEAT:
                 sendMessage(new Message(MessageType.HEARTBEAT_ACK, "SERVER"));
                 break;
 
             case START_SHARE:
                 Logger.info("Client " + clientId + " started sharing screen");
-                server.notifyClientStartedSharing(clientId);
+                server.notifyClientStartedSharing(this);
                 break;
 
             case STOP_SHARE:
                 Logger.info("Client " + clientId + " stopped sharing screen");
-                server.notifyClientStoppedSharing(clientId);
+                server.notifyClientStoppedSharing(this);
                 break;
 
             case SCREEN_DATA:
                 // Forward screen data to other clients
-                server.broadcastScreenData(clientId, message);
+                int size = message.getPayload() != null ? message.getPayload().length : 0;
+                if (message.getFragment() != null) {
+                    handleScreenFragment(message);
+                } else if (!exceedsMaxPayload(size) && admitIngress(size)) {
+                    recordUpload(message, size);
+                    server.relayScreenData(this, message);
+                }
+                break;
+
+            case RECEIVER_REPORT:
+                server.forwardReceiverReport(message);
+                break;
+
+            case CLIENT_LIST:
+                // Subscribes to the roster; a version asks to resync from it after a gap
+                byte[] known = message.getPayload();
+                server.getRoster().subscribe(this,
+                        known != null && known.length >= 8 ? ByteBuffer.wrap(known).getLong() : -1);
+                break;
+
+            case THUMBNAILS:
+                byte[] toggle = message.getPayload();
+                server.setWatchingPreviews(this, toggle == null || toggle.length == 0 || toggle[0] != 0);
+                break;
+
+            case MOSAIC:
+                server.setMosaic(this, message.getPayloadAsString());
+                break;
+
+            case JOIN:
+                server.joinRoom(this, message.getPayloadAsString().trim());
+                break;
+
+            case LEAVE:
+                server.leaveRoom(this, message.getPayloadAsString().trim());
+                break;
+
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                server.setSubscribed(this, message.getPayloadAsString(), message.getType() == MessageType.SUBSCRIBE);
+                break;
+
+            case CLUSTER:
+                ClusterService cluster = server.getCluster();
+                if (peer && cluster != null) {
+                    cluster.onGossip(this, message);
+                }
+                break;
+
+            case TRANSPORT:
+                handleTransport(message.getPayloadAsString());
+                break;
+
+            case RELAY:
+                RelayTreeService relays = server.getRelayTrees();
+                if (relays != null) {
+                    relays.onReport(this, message.getPayloadAsString());
+                }
                 break;
 
             case DISCONNECT:
@@ -111,48 +483,440 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    public boolean sendMessage(Message message) {
-        try {
-            byte[] serialized = Protocol.serialize(message);
-            outputStream.writeInt(serialized.length);
-            outputStream.write(serialized);
-            outputStream.flush();
+    // Runs on the reader thread, so no further frame is read before the codec switches
+    private void handleScreenFragment(Message piece) {
+        Fragment fragment = piece.getFragment();
+        int streamId = fragment.getStreamId();
+        if (fragment.isFirst()) {
+            rejectedStreams.values().removeIf(origin -> origin == piece.getSessionId());
+            if (exceedsMaxPayload(fragment.getTotalLength()) || !admitIngress(fragment.getTotalLength())) {
+                rejectedStreams.put(streamId, piece.getSessionId());
+            }
+        }
+        if (rejectedStreams.containsKey(streamId)) {
+            // Pieces are small and discarded as read; only the stream id is remembered
+            if (fragment.completes(piece.getPayload().length)) {
+                rejectedStreams.remove(streamId);
+            }
+            return;
+        }
+        if (fragment.completes(piece.getPayload().length)) {
+            recordUpload(piece, fragment.getTotalLength());
+        }
+        server.relayScreenData(this, piece);
+    }
+
+    // A streamed frame is charged in full with its first piece, so it is either relayed
+    // whole or not at all
+    private boolean admitIngress(long size) {
+        if (ingressBucket.tryAcquire(size)) {
             return true;
+        }
+        ingressShed.increment();
+        if (server.getConfig().getIngressShedPolicy() == ShedPolicy.DISCONNECT) {
+            Logger.info("Client " + clientId + " exceeded its ingress budget, disconnecting");
+            sendMessage(new Message(MessageType.ERROR, Protocol.SERVER_CLIENT_ID,
+                    "Screen data exceeds ingress budget of " + server.getConfig().getSessionIngressRate() + " B/s"));
+            running.set(false);
+        }
+        return false;
+    }
+
+    // Sends SCREEN_DATA to this viewer if its egress budget allows; returns false when the
+    // frame was shed instead. Pieces after the first of a streamed frame follow the first
+    // one's fate: OutboundQueue skips the rest of a stream whose first piece it never saw.
+    public boolean offerScreenData(Message frame) {
+        Fragment fragment = frame.getFragment();
+        if ((fragment == null || fragment.isFirst()) && !egressBucket.tryAcquire(screenDataSize(frame))) {
+            egressShed.increment();
+            return false;
+        }
+        sendMessage(frame);
+        return true;
+    }
+
+    // Whole size of a SCREEN_DATA frame, also when only its first piece is at hand
+    static long screenDataSize(Message frame) {
+        Fragment fragment = frame.getFragment();
+        if (fragment != null) {
+            return fragment.getTotalLength();
+        }
+        return frame.getPayload() != null ? frame.getPayload().length : 0;
+    }
+
+    // Counts a frame once it has fully arrived and, once per report interval, tells the
+    // sharer how its uplink is doing. Reports ride on incoming frames: a sharer that sends
+    // nothing has nothing to adapt.
+    private void recordUpload(Message frame, int size) {
+        long now = System.currentTimeMillis();
+        if (uploadStats == null) {
+            uploadStats = new ReceptionStats(now);
+        }
+        uploadStats.onFrame(frame.getTimestamp(), now, size);
+        ReceiverReport report = uploadStats.reportIfDue(sessionId, now, server.getConfig().getReportInterval());
+        if (report != null) {
+            Message message = new Message(MessageType.RECEIVER_REPORT, Protocol.SERVER_CLIENT_ID, report.toBytes());
+            message.setSessionId(Protocol.SERVER_SESSION_ID);
+            sendMessage(message);
+        }
+    }
+
+    private boolean exceedsMaxPayload(int size) {
+        int limit = server.getConfig().getMaxPayloadSize();
+        if (size <= limit) {
+            return false;
+        }
+        Logger.error("Client " + clientId + " sent " + size + " bytes of screen data, limit is " + limit);
+        sendMessage(new Message(MessageType.ERROR, Protocol.SERVER_CLIENT_ID,
+                "Screen data exceeds maximum payload size of " + limit + " bytes"));
+        return true;
+    }
+
+    // Collects a streamed frame for viewers that cannot take pieces (relay) and for
+    // server-side previews, thumbnails and mosaics (preview). Both are decided on the
+    // first piece, and buffers are only started when the frame fits a version 1 message.
+    // Once the last piece arrives the frame goes to the previews, and is returned if it
+    // is to be relayed.
+    Message reassemble(Message piece, boolean relay, boolean preview) {
+        Fragment fragment = piece.getFragment();
+        int streamId = fragment.getStreamId();
+        if (fragment.isFirst()) {
+            reassembly.values().removeIf(frame -> frame.origin == piece.getSessionId());
+            reassembly.remove(streamId);
+            if ((relay || preview) && fragment.getTotalLength() <= Protocol.MAX_PAYLOAD_SIZE) {
+                reassembly.put(streamId, new Reassembly(piece.getSessionId(), new byte[fragment.getTotalLength()],
+                        relay, preview));
+            }
+        }
+        Reassembly frame = reassembly.get(streamId);
+        if (frame == null) {
+            return null;
+        }
+
+        byte[] data = piece.getPayload();
+        System.arraycopy(data, 0, frame.buffer, fragment.getOffset(), data.length);
+        if (!fragment.completes(data.length)) {
+            return null;
+        }
+        reassembly.remove(streamId);
+        Message whole = new Message(MessageType.SCREEN_DATA, clientId, frame.buffer);
+        whole.setSessionId(sessionId);
+        whole.setTimestamp(piece.getTimestamp());
+        if (frame.preview) {
+            server.offerFrame(sessionId, whole);
+        }
+        return frame.relay ? whole : null;
+    }
+
+    private void handleConnectRequest(Message message) {
+        if (negotiated) {
+            // Both ends already switched codecs; negotiating again could leave them
+            // disagreeing on version or compression
+            Logger.error("Client " + clientId + " sent a second CONNECT_REQUEST, ignoring it");
+            sendMessage(new Message(MessageType.ERROR, Protocol.SERVER_CLIENT_ID, "Connection already negotiated"));
+            return;
+        }
+        Handshake request = Handshake.parse(message.getPayload());
+        int version = Protocol.negotiateVersion(request.get(Handshake.PROTOCOL_VERSIONS, null));
+        clientName = request.get(Handshake.CLIENT_NAME, "").trim();
+
+        // The response itself still goes out in the old format; everything after it
+        // (in both directions) uses the negotiated one
+        WireCodec next = version != codec.getVersion() ? WireCodec.forVersion(version) : codec;
+        // Screen data is relayed piece by piece rather than reassembled here
+        next.setStreamedTypes(EnumSet.of(MessageType.SCREEN_DATA));
+        next.setMaxStreamedSize(server.getConfig().getMaxPayloadSize());
+
+        String compression = Compression.NONE;
+        if (next != codec && next.supportsCompression()) {
+            ServerConfig config = server.getConfig();
+            compression = Compression.negotiate(request.get(Handshake.COMPRESSIONS, null), config.getCompression());
+            if (!compression.equals(Compression.NONE)) {
+                next.setCompression(Compression.forName(compression), config.getCompressionThreshold());
+            }
+        }
+
+        // A client that can resume sends a token, empty until it has one
+        boolean resumable = !peer && server.getConfig().isResumeEnabled()
+                && request.has(Handshake.RESUME_TOKEN);
+        negotiated = true;
+        if (resumable) {
+            String token = request.get(Handshake.RESUME_TOKEN, "");
+            ClientHandler session = token.isEmpty() ? null : server.findResumable(token);
+            if (session != null && session != this && session.resume(this, request, next, version, compression)) {
+                server.recordResumed();
+                resumedSession = session;
+                running.set(false);
+                return;
+            }
+            if (outbound.isClosed()) {
+                // The session gave up on this connection after taking it over
+                running.set(false);
+                if (next != codec) {
+                    next.close();
+                }
+                return;
+            }
+            if (!token.isEmpty()) {
+                server.recordResumeRefused();
+                Logger.info("Client " + clientId + " could not resume a session, starting a new one");
+            }
+            resumeToken = server.issueResumeToken(this);
+            outbound.enableReplay(server.getConfig().getResumeBufferSize());
+        }
+
+        if (request.has(Handshake.RELAY_PORT)) {
+            relayChildren = Math.max(0, request.getInt(Handshake.RELAY_CHILDREN, 0));
+            relayPort = Math.max(0, request.getInt(Handshake.RELAY_PORT, 0));
+        }
+
+        Handshake response = connectResponse(version, compression, false);
+        outbound.sendAndSwitchCodec(
+                new Message(MessageType.CONNECT_RESPONSE, Protocol.SERVER_CLIENT_ID, response.toBytes()), next);
+        codec = next;
+        Logger.info("Client " + clientId + " negotiated protocol version " + version + ", compression " + compression);
+        offerSharedMemory(request);
+    }
+
+    private Handshake connectResponse(int version, String compression, boolean resumed) {
+        Handshake response = new Handshake()
+                .put(Handshake.SESSION_ID, sessionId)
+                .put(Handshake.CLIENT_ID, clientId)
+                .put(Handshake.PROTOCOL_VERSION, version)
+                .put(Handshake.COMPRESSION, compression);
+        String token = resumeToken;
+        if (token != null) {
+            response.put(Handshake.RESUME_TOKEN, token).put(Handshake.RESUMED, resumed);
+        }
+        return response;
+    }
+
+    // A client on this host that can map shared memory is offered it once the handshake
+    // is done. It answers "attached" as the last thing it sends on the socket, and this
+    // end answers "switched" as the last thing it sends there, so each direction moves
+    // at a point both ends know; the socket stays open as the liveness link.
+    private void offerSharedMemory(Handshake request) {
+        // At most one offer is open; an earlier one is not going to be answered
+        withdrawOffer();
+        ServerConfig config = server.getConfig();
+        List<String> offered = Arrays.asList(request.get(Handshake.TRANSPORTS, "").split(","));
+        if (!config.isShmEnabled() || peer || socket == null || !offered.contains(Transport.SHARED_MEMORY)
+                || !socket.isLocal()) {
+            return;
+        }
+        try {
+            Path dir = config.getShmDir().trim().isEmpty()
+                    ? SharedMemoryTransport.defaultDirectory() : Paths.get(config.getShmDir().trim());
+            offeredTransport = SharedMemoryTransport.create(dir, config.getShmRingSize(), transport);
+        } catch (IOException e) {
+            Logger.error("Cannot offer shared memory to client " + clientId + ": " + e.getMessage());
+            return;
+        }
+        sendMessage(new Message(MessageType.TRANSPORT, Protocol.SERVER_CLIENT_ID, "offer " + Transport.SHARED_MEMORY
+                + " " + offeredTransport.getPath() + " " + offeredTransport.getToken()));
+    }
+
+    private void handleTransport(String answer) {
+        SharedMemoryTransport offered = offeredTransport;
+        if (offered == null) {
+            return;
+        }
+        offeredTransport = null;
+        offered.unlink();
+        String[] words = answer.trim().split("\\s+");
+        if (words.length < 2 || !words[0].equals("attached") || !words[1].equals(Long.toString(offered.getToken()))) {
+            Logger.info("Client " + clientId + " stays on " + socket.getName() + ": " + answer.trim());
+            closeOffer(offered);
+            return;
+        }
+        // Nothing follows "attached" on the socket
+        inputStream = new DataInputStream(offered.getInputStream());
+        transport = offered;
+        offered.watchLink();
+        outbound.sendAndSwitchChannel(new Message(MessageType.TRANSPORT, Protocol.SERVER_CLIENT_ID, "switched"),
+                offered.getOutputChannel());
+        Logger.info("Client " + clientId + " moved to shared memory");
+    }
+
+    // An offer still unanswered when the connection goes: nothing will use its rings
+    private void withdrawOffer() {
+        SharedMemoryTransport offered = offeredTransport;
+        if (offered != null) {
+            offeredTransport = null;
+            offered.unlink();
+            closeOffer(offered);
+        }
+    }
+
+    // Releases the rings of an offer the client did not take; the socket stays as it is
+    private void closeOffer(SharedMemoryTransport offered) {
+        try {
+            offered.close();
         } catch (IOException e) {
-            Logger.error("Failed to send message to client " + clientId, e);
+            Logger.error("Error closing the shared memory offered to client " + clientId, e);
+        }
+    }
+
+    // Safe from any thread: broadcasts from several sharers can target the same viewer
+    public boolean sendMessage(Message message) {
+        if (!outbound.send(message)) {
+            Logger.error("Failed to send message to client " + clientId);
             return false;
         }
+        return true;
+    }
+
+    public long getIngressShed() {
+        return ingressShed.sum();
+    }
+
+    public long getEgressShed() {
+        return egressShed.sum();
+    }
+
+    public String describeShedding() {
+        return String.format("shed %d in / %d out, throttled %d/%d bytes in / %d/%d bytes out",
+                ingressShed.sum(), egressShed.sum(),
+                ingressBucket.getThrottled(), ingressBucket.getThrottledBytes(),
+                egressBucket.getThrottled(), egressBucket.getThrottledBytes());
+    }
+
+    // A session of another cluster node, known here through gossip
+    public boolean isRemote() {
+        return false;
+    }
+
+    public boolean isPeer() {
+        return peer;
+    }
+
+    public int getRelayPort() {
+        return relayPort;
+    }
+
+    // How many viewers this client takes frames on to, 0 unless it runs a relay
+    public int getRelayChildren() {
+        return relayPort > 0 ? relayChildren : 0;
+    }
+
+    // Where other viewers reach this client's relay, as seen from here
+    public String getRemoteHost() {
+        return socket != null ? socket.getRemoteHost() : null;
+    }
+
+    public boolean acceptsFragments() {
+        return outbound.supportsFragments();
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
     }
 
+    // A detached session counts as alive: what it is sent is kept for the client
     public boolean isAlive() {
-        return running.get() && !clientSocket.isClosed() &&
-                (System.currentTimeMillis() - lastHeartbeat) < 60000; // 60 second timeout
+        if (outbound.isDetached()) {
+            return running.get();
+        }
+        HashedTimingWheel.Timeout timeout = livenessTimeout;
+        Transport current = transport;
+        return running.get() && current != null && current.isOpen() &&
+                (timeout == null || !timeout.isExpired());
+    }
+
+    void watchLiveness(HashedTimingWheel livenessWheel, long clientTimeout) {
+        this.livenessWheel = livenessWheel;
+        this.clientTimeout = clientTimeout;
+        this.livenessTimeout = livenessWheel.schedule(this::expire, clientTimeout);
+    }
+
+    // Runs on the timing wheel thread once no traffic arrived for clientTimeout. A client
+    // that can resume only loses its connection; its reader then detaches the session.
+    private void expire() {
+        Logger.info("Client " + clientId + " timed out, closing connection");
+        if (resumeToken != null) {
+            closeConnection();
+        } else {
+            cleanup();
+        }
+    }
+
+    // Closing the transport gets the reader out of its read
+    private void closeConnection() {
+        withdrawOffer();
+        try {
+            Transport current = transport;
+            if (current != null) {
+                current.close();
+            }
+            SocketTransport link = socket;
+            if (link != null) {
+                link.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing the connection of client " + clientId, e);
+        }
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    public String getClientName() {
+        return clientName;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    String getResumeToken() {
+        return resumeToken;
+    }
+
     private void cleanup() {
+        // Reached from the reader thread and from liveness expiry; only the first call counts
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
         running.set(false);
+        HashedTimingWheel.Timeout timeout = livenessTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        synchronized (this) {
+            if (graceTimeout != null) {
+                graceTimeout.cancel();
+                graceTimeout = null;
+            }
+        }
         server.removeClient(this);
+        String replay = outbound.describeReplay();
+        outbound.close();
 
         try {
             if (inputStream != null) inputStream.close();
-            if (outputStream != null) outputStream.close();
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
         } catch (IOException e) {
             Logger.error("Error during cleanup for client " + clientId, e);
         }
+        closeConnection();
+        codec.close();
 
-        Logger.info("Client handler cleaned up for: " + clientId);
+        Logger.info("Client handler cleaned up for: " + clientId + " (" + outbound.describeStats() + "; "
+                + describeShedding() + (resumeToken != null ? "; " + replay : "") + ")");
     }
 
-    private String generateClientId() {
-        return "CLIENT_" + System.currentTimeMillis() + "_" +
-                clientSocket.getRemoteSocketAddress().toString().replace("/", "");
+    private static final class Reassembly {
+        final int origin;
+        final byte[] buffer;
+        final boolean relay;
+        final boolean preview;
+
+        Reassembly(int origin, byte[] buffer, boolean relay, boolean preview) {
+            this.origin = origin;
+            this.buffer = buffer;
+            this.relay = relay;
+            this.preview = preview;
+        }
     }
 }
 
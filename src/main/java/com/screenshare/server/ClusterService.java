@@ -0,0 +1,606 @@
+// ClusterService.java
+package com.screenshare.server;
+
+import com.screenshare.common.Compression;
+import com.screenshare.common.Handshake;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.OutboundQueue;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.SocketTransport;
+import com.screenshare.common.TlsContext;
+import com.screenshare.common.TlsTransport;
+import com.screenshare.common.Transport;
+import com.screenshare.common.WireCodec;
+import com.screenshare.util.Logger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Joins this server to a relay cluster with the nodes in server.cluster.peers.
+//
+// Every node dials every peer's cluster port, and the dialled node treats the link as a
+// session of its own, a peer session (ClientHandler.isPeer). Over it the dialling node
+// gossips its clients: who is connected, who shares and which rooms they are in. The
+// dialled node adds them to its registry and roster as RemoteSessions and joins the
+// peer session to every room they are in. Its registry then routes each local share to
+// the peer session once, however many of that node's clients watch it, and the frames
+// go back down the link to be fanned out to the local viewers there. Shares that no
+// client of the dialling node subscribes to are gossiped as muted and stop flowing.
+//
+// A node's gossip is its full local state, sent only when it changed: it is checked
+// every gossip interval and right after local changes. Heartbeats fill the intervals in
+// between, so a peer session that hears nothing for server.cluster.peer.timeout expires
+// like any client, and the sessions of its node go with it. Nodes only gossip for
+// themselves, so the peer lists must form a full mesh.
+//
+// Gossip is a CLUSTER message of text lines:
+//   node <node id> <version>
+//   session <session id> <client id> <1 if sharing, else 0> <room,room,...|->
+//   mute <session id of a share of the receiving node>
+public class ClusterService {
+    public static final int MAX_NODE_ID = 127;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final ScreenShareServer server;
+    private final SessionRegistry registry;
+    private final ServerConfig config;
+    private final int nodeId;
+    private final List<Link> links = new ArrayList<>();
+    private final Map<Integer, Link> linksByNode = new ConcurrentHashMap<>();
+    // What each other node gossiped; changed under this lock
+    private final Map<Integer, Node> nodes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService gossiper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cluster-gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean gossipPending = new AtomicBoolean();
+    private final LongAdder gossipSent = new LongAdder();
+    private final LongAdder gossipApplied = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private ServerSocketChannel acceptor;
+    private volatile boolean running;
+
+    // Gossiper thread only
+    private String localState = "";
+    private long version;
+
+    public ClusterService(ScreenShareServer server, SessionRegistry registry, ServerConfig config) {
+        this.server = server;
+        this.registry = registry;
+        this.config = config;
+        this.nodeId = config.getClusterNodeId();
+        if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Cluster node id must be 1-" + MAX_NODE_ID + ": " + nodeId);
+        }
+        for (String peer : config.getClusterPeers().split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port: " + peer);
+            }
+            links.add(new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    public void start() throws IOException {
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(config.getClusterPort()));
+        running = true;
+        Thread accepting = new Thread(this::accept, "cluster-acceptor");
+        accepting.setDaemon(true);
+        accepting.start();
+        for (Link link : links) {
+            Thread thread = new Thread(link, "cluster-link-" + link);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long interval = config.getClusterGossipInterval();
+        gossiper.scheduleWithFixedDelay(() -> gossip(true), interval, interval, TimeUnit.MILLISECONDS);
+        Logger.info("Cluster node " + nodeId + " listening on port " + config.getClusterPort()
+                + ", peers " + links);
+    }
+
+    public void stop() {
+        running = false;
+        gossiper.shutdownNow();
+        try {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing cluster port", e);
+        }
+        for (Link link : links) {
+            link.close();
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    // Local state changed (clients, shares, rooms, subscriptions): gossip it soon,
+    // coalescing bursts into one message
+    public void changed() {
+        if (!running || !gossipPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            gossiper.execute(() -> {
+                gossipPending.set(false);
+                gossip(false);
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    // A message for a session of another node, sent over the link to that node
+    boolean sendTo(int sessionId, Message message) {
+        Link link = linksByNode.get(SessionRegistry.nodeOf(sessionId));
+        return link != null && link.send(message);
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                SocketChannel channel = acceptor.accept();
+                Logger.info("Cluster peer connected: " + channel.socket().getRemoteSocketAddress());
+                server.acceptPeer(channel);
+            } catch (IOException e) {
+                if (running) {
+                    Logger.error("Error accepting cluster peer", e);
+                }
+            }
+        }
+    }
+
+    // Runs on the gossiper thread; a failure must not cancel the schedule
+    private void gossip(boolean tick) {
+        try {
+            String state = describeLocalState();
+            if (!state.equals(localState)) {
+                localState = state;
+                version++;
+            }
+            for (Link link : links) {
+                link.gossip(tick);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Cluster gossip failed", e);
+        }
+    }
+
+    private String describeLocalState() {
+        List<ClientHandler> local = new ArrayList<>();
+        for (ClientHandler session : registry.sessions()) {
+            if (!session.isRemote() && !session.isPeer()) {
+                local.add(session);
+            }
+        }
+        local.sort((a, b) -> Integer.compare(a.getSessionId(), b.getSessionId()));
+        StringBuilder state = new StringBuilder();
+        for (ClientHandler session : local) {
+            List<String> rooms = registry.roomNamesOf(session.getSessionId());
+            state.append("session ").append(session.getSessionId())
+                    .append(' ').append(session.getClientId())
+                    .append(' ').append(registry.isSharing(session.getSessionId()) ? 1 : 0)
+                    .append(' ').append(rooms.isEmpty() ? "-" : String.join(",", rooms))
+                    .append('\n');
+        }
+        return state.toString();
+    }
+
+    // Shares of the node that none of our clients receives
+    private String describeMutes(int node) {
+        Node known = nodes.get(node);
+        if (known == null) {
+            return "";
+        }
+        List<Integer> muted = new ArrayList<>();
+        for (Integer sessionId : known.sessions.keySet()) {
+            if (registry.isSharing(sessionId) && registry.viewersOf(sessionId).isEmpty()) {
+                muted.add(sessionId);
+            }
+        }
+        Collections.sort(muted);
+        StringBuilder mutes = new StringBuilder();
+        for (Integer sessionId : muted) {
+            mutes.append("mute ").append(sessionId).append('\n');
+        }
+        return mutes.toString();
+    }
+
+    // Runs on the peer session's reader thread
+    synchronized void onGossip(ClientHandler peer, Message message) {
+        int node;
+        long gossipVersion;
+        Map<Integer, Gossiped> sessions = new HashMap<>();
+        Set<Integer> mutes = new HashSet<>();
+        try {
+            String[] lines = message.getPayloadAsString().split("\n");
+            String[] header = lines[0].split(" ");
+            if (!header[0].equals("node")) {
+                throw new IllegalArgumentException("no node line");
+            }
+            node = Integer.parseInt(header[1]);
+            gossipVersion = Long.parseLong(header[2]);
+            for (int i = 1; i < lines.length; i++) {
+                String[] fields = lines[i].split(" ");
+                if (fields[0].equals("session")) {
+                    int sessionId = Integer.parseInt(fields[1]);
+                    if (SessionRegistry.nodeOf(sessionId) == node) {
+                        List<String> rooms = fields[4].equals("-") ? Collections.emptyList()
+                                : List.of(fields[4].split(","));
+                        sessions.put(sessionId, new Gossiped(fields[2], fields[3].equals("1"), rooms));
+                    }
+                } else if (fields[0].equals("mute")) {
+                    mutes.add(Integer.parseInt(fields[1]));
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Dropping malformed gossip from " + peer.getClientId() + ": " + e.getMessage());
+            return;
+        }
+        if (node == nodeId || node < 1 || node > MAX_NODE_ID) {
+            Logger.error("Dropping gossip from " + peer.getClientId() + ": bad or duplicate node id " + node);
+            return;
+        }
+
+        Node known = nodes.computeIfAbsent(node, Node::new);
+        if (known.peer != peer) {
+            // A new link from the node replaces the old one, which may not have expired yet
+            Logger.info("Cluster node " + node + " joined through " + peer.getClientId());
+            known.peer = peer;
+            known.peerRooms = Collections.emptySet();
+            known.muted = Collections.emptySet();
+        }
+        // One connection keeps gossip in order; the version is only for describe()
+        known.version = gossipVersion;
+
+        for (Iterator<RemoteSession> it = known.sessions.values().iterator(); it.hasNext(); ) {
+            RemoteSession session = it.next();
+            if (!sessions.containsKey(session.getSessionId())) {
+                it.remove();
+                drop(session);
+            }
+        }
+        Set<String> peerRooms = new TreeSet<>();
+        for (Map.Entry<Integer, Gossiped> entry : sessions.entrySet()) {
+            Gossiped gossiped = entry.getValue();
+            RemoteSession session = known.sessions.get(entry.getKey());
+            if (session == null) {
+                session = new RemoteSession(server, this, entry.getKey(), gossiped.clientId);
+                known.sessions.put(session.getSessionId(), session);
+                server.addRemoteSession(session);
+            }
+            server.moveBetweenRooms(session, session.rooms, gossiped.rooms);
+            session.rooms = gossiped.rooms;
+            if (gossiped.sharing != registry.isSharing(session.getSessionId())) {
+                if (gossiped.sharing) {
+                    server.notifyClientStartedSharing(session);
+                } else {
+                    server.notifyClientStoppedSharing(session);
+                }
+            }
+            peerRooms.addAll(gossiped.rooms);
+        }
+
+        // The peer session stands in for all of the node's clients
+        server.moveBetweenRooms(peer, known.peerRooms, peerRooms);
+        known.peerRooms = peerRooms;
+        Set<Integer> muted = new HashSet<>();
+        for (Integer sharerId : mutes) {
+            if (known.muted.contains(sharerId) || registry.unsubscribe(peer, sharerId)) {
+                muted.add(sharerId);
+            }
+        }
+        for (Integer sharerId : known.muted) {
+            // Unmuting needs a room in common; until then it is retried with every gossip
+            if (!mutes.contains(sharerId) && !registry.subscribe(peer, sharerId) && registry.get(sharerId) != null) {
+                muted.add(sharerId);
+            }
+        }
+        known.muted = muted;
+        gossipApplied.increment();
+        // Our mutes may have changed with the node's shares
+        changed();
+    }
+
+    // A peer session closed or expired: its node's sessions are gone from here, until it
+    // links up again
+    synchronized void peerLost(ClientHandler peer) {
+        for (Iterator<Node> it = nodes.values().iterator(); it.hasNext(); ) {
+            Node node = it.next();
+            if (node.peer != peer) {
+                continue;
+            }
+            it.remove();
+            for (RemoteSession session : node.sessions.values()) {
+                drop(session);
+            }
+            Logger.info("Cluster node " + node.id + " left, dropped its " + node.sessions.size() + " sessions");
+        }
+    }
+
+    private void drop(RemoteSession session) {
+        if (registry.isSharing(session.getSessionId())) {
+            server.notifyClientStoppedSharing(session);
+        }
+        server.removeClient(session);
+    }
+
+    // SCREEN_DATA of a share on the link's node, for our viewers of it. Frames of a share
+    // its node has not gossiped as started, or already stopped, are dropped.
+    private void relay(Link link, Message frame) {
+        ClientHandler sharer = registry.get(frame.getSessionId());
+        if (sharer == null || !sharer.isRemote() || SessionRegistry.nodeOf(sharer.getSessionId()) != link.remoteNode
+                || !registry.isSharing(sharer.getSessionId())) {
+            framesDropped.increment();
+            return;
+        }
+        if (frame.getFragment() != null) {
+            if (frame.getFragment().isFirst()) {
+                framesIn.increment();
+            }
+            server.relayScreenData(sharer, frame);
+        } else {
+            framesIn.increment();
+            server.relayScreenData(sharer, frame);
+        }
+    }
+
+    public String describe() {
+        int up = 0;
+        for (Link link : links) {
+            if (link.up) {
+                up++;
+            }
+        }
+        int remote = 0;
+        for (Node node : nodes.values()) {
+            remote += node.sessions.size();
+        }
+        return String.format("node %d, %d/%d links up, %d nodes gossiping (%d sessions), gossip %d sent / %d applied, "
+                        + "%d frames relayed in, %d dropped",
+                nodeId, up, links.size(), nodes.size(), remote, gossipSent.sum(), gossipApplied.sum(),
+                framesIn.sum(), framesDropped.sum());
+    }
+
+    // One session as its node last gossiped it
+    private static final class Gossiped {
+        final String clientId;
+        final boolean sharing;
+        final List<String> rooms;
+
+        Gossiped(String clientId, boolean sharing, List<String> rooms) {
+            this.clientId = clientId;
+            this.sharing = sharing;
+            this.rooms = rooms;
+        }
+    }
+
+    // Another node as known from the gossip on its peer session
+    private static final class Node {
+        final int id;
+        final Map<Integer, RemoteSession> sessions = new ConcurrentHashMap<>();
+        ClientHandler peer;
+        long version;
+        Set<String> peerRooms = Collections.emptySet();
+        Set<Integer> muted = Collections.emptySet();
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+    // Our link to one peer from server.cluster.peers, redialled until stop(). We gossip
+    // over it and get back the frames of the peer's shares our clients watch.
+    private final class Link implements Runnable {
+        private final String host;
+        private final int port;
+        private volatile SocketChannel channel;
+        private volatile OutboundQueue outbound;
+        private volatile boolean up;
+        private volatile int remoteNode = -1;
+        // Last gossip sent over this connection, null to send it in full again
+        private volatile String lastSent;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public void run() {
+            boolean logged = false;
+            while (running) {
+                try {
+                    connectAndRead();
+                } catch (IOException e) {
+                    // When it goes down or first fails, not on every redial
+                    if (running && (up || !logged)) {
+                        Logger.info("Cluster link to " + this + " down: " + e.getMessage());
+                        logged = true;
+                    } else {
+                        Logger.debug("Cluster link to " + this + " still down: " + e.getMessage());
+                    }
+                } catch (RuntimeException e) {
+                    Logger.error("Cluster link to " + this + " failed", e);
+                } finally {
+                    close();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // The peer welcomes us like any client, then we upgrade to version 2: relayed
+        // frames need its session ids and fragments
+        private void connectAndRead() throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            this.channel = channel;
+            Transport link = new SocketTransport(channel, config.getBufferSize());
+            // The peer answers our heartbeats, so silence this long means it is gone
+            link.setReadTimeout(config.getClusterPeerTimeout());
+            // Links between sites are encrypted like clients' connections; the peer's
+            // ClientHandler runs the server side
+            TlsContext tls = server.getTls();
+            if (tls != null) {
+                TlsTransport secured = tls.connect(link, host, port);
+                secured.handshake();
+                link = secured;
+            }
+            DataInputStream in = new DataInputStream(link.getInputStream());
+            WireCodec codec = WireCodec.forVersion(Protocol.VERSION_1);
+            OutboundQueue out = new OutboundQueue(link.getOutputChannel(), codec, config.getWriteCoalesceMicros(),
+                    config.getWriteCoalesceBytes(), config.getWriteChunkBytes());
+            outbound = out;
+
+            Handshake welcome = awaitConnectResponse(codec, in);
+            // The peer session's id carries the peer's node id
+            int node = SessionRegistry.nodeOf(welcome.getInt(Handshake.SESSION_ID, Protocol.SERVER_SESSION_ID));
+            if (node < 1 || node == nodeId) {
+                throw new IOException("peer has bad or duplicate node id " + node);
+            }
+            if (Protocol.negotiateVersion(welcome.get(Handshake.PROTOCOL_VERSIONS, null)) < Protocol.VERSION_2) {
+                throw new IOException("peer does not speak protocol version 2");
+            }
+            Handshake request = new Handshake()
+                    .put(Handshake.PROTOCOL_VERSIONS, Protocol.SUPPORTED_VERSIONS)
+                    .put(Handshake.COMPRESSIONS, config.getCompression());
+            out.send(new Message(MessageType.CONNECT_REQUEST, Protocol.SERVER_CLIENT_ID, request.toBytes()));
+            Handshake response = awaitConnectResponse(codec, in);
+            WireCodec next = WireCodec.forVersion(response.getInt(Handshake.PROTOCOL_VERSION, Protocol.VERSION_1));
+            if (!next.supportsFragments()) {
+                throw new IOException("peer did not agree to protocol version 2");
+            }
+            next.setStreamedTypes(EnumSet.of(MessageType.SCREEN_DATA));
+            next.setMaxStreamedSize(config.getMaxPayloadSize());
+            String compression = response.get(Handshake.COMPRESSION, Compression.NONE);
+            if (!compression.equals(Compression.NONE)) {
+                next.setCompression(Compression.forName(compression), config.getCompressionThreshold());
+            }
+            codec = next;
+            out.setCodec(next);
+
+            try {
+                remoteNode = node;
+                lastSent = null;
+                linksByNode.put(node, this);
+                up = true;
+                Logger.info("Cluster link to node " + node + " at " + this + " up, compression " + compression);
+                changed();
+
+                while (running) {
+                    handle(codec.read(in));
+                }
+            } finally {
+                next.close();
+            }
+        }
+
+        private Handshake awaitConnectResponse(WireCodec codec, DataInputStream in) throws IOException {
+            while (true) {
+                Message message = codec.read(in);
+                if (message.getType() == MessageType.CONNECT_RESPONSE) {
+                    return Handshake.parse(message.getPayload());
+                }
+            }
+        }
+
+        private void handle(Message message) throws IOException {
+            switch (message.getType()) {
+                case SCREEN_DATA:
+                    relay(this, message);
+                    break;
+
+                case ERROR:
+                    Logger.error("Cluster node " + remoteNode + " reported: " + message.getPayloadAsString());
+                    break;
+
+                case DISCONNECT:
+                    throw new EOFException("node " + remoteNode + " is shutting down");
+
+                default:
+                    // Share notices and heartbeat acks; shares are known from gossip
+                    break;
+            }
+        }
+
+        // Gossiper thread only. Sends our state if it is news to the peer, and a heartbeat
+        // on the regular tick.
+        void gossip(boolean tick) {
+            OutboundQueue out = outbound;
+            if (!up || out == null) {
+                return;
+            }
+            String text = "node " + nodeId + " " + version + "\n" + localState + describeMutes(remoteNode);
+            if (!text.equals(lastSent) && out.send(new Message(MessageType.CLUSTER, Protocol.SERVER_CLIENT_ID, text))) {
+                lastSent = text;
+                gossipSent.increment();
+            }
+            if (tick) {
+                // Gossip is not answered, heartbeats are: keeps both ends' timeouts at bay
+                out.send(new Message(MessageType.HEARTBEAT, Protocol.SERVER_CLIENT_ID));
+            }
+        }
+
+        boolean send(Message message) {
+            OutboundQueue out = outbound;
+            return up && out != null && out.send(message);
+        }
+
+        void close() {
+            up = false;
+            linksByNode.remove(remoteNode, this);
+            OutboundQueue out = outbound;
+            if (out != null) {
+                out.close();
+            }
+            try {
+                SocketChannel open = channel;
+                if (open != null) {
+                    open.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+// MosaicService.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.MosaicFrame;
+import com.screenshare.common.MosaicLayout;
+import com.screenshare.common.Protocol;
+import com.screenshare.util.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-side composite of several shares into one stream, for viewers that sent a
+// MOSAIC layout (a wall display watching 16 shares decodes one stream instead of 16).
+//
+// The relay path hands over at most one frame per shown sharer per interval, as for
+// thumbnails. Once per interval the compositor finds, across all mosaics, the cells
+// whose source has a newer frame and renders them in parallel on a worker pool sized
+// to the cores: decode subsampled, fit into the cell, encode as a JPEG tile. Each
+// viewer then gets one SCREEN_DATA from session 0 carrying only its changed tiles,
+// under the viewer's egress budget like any other frame. Cells are only filled with
+// shares the viewer could watch, i.e. sharers in one of its rooms.
+public class MosaicService {
+    private static final float JPEG_QUALITY = 0.7f;
+
+    private final SessionRegistry registry;
+    private final long intervalMillis;
+    private final ScheduledExecutorService compositor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mosaic-compositor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService workers;
+    private final Map<ClientHandler, Mosaic> mosaics = new ConcurrentHashMap<>();
+    // Sharers shown in at least one mosaic
+    private final Map<Integer, Source> sources = new ConcurrentHashMap<>();
+    private final LongAdder composites = new LongAdder();
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder compositeBytes = new LongAdder();
+
+    public MosaicService(SessionRegistry registry, int intervalMillis) {
+        this.registry = registry;
+        this.intervalMillis = Math.max(20, intervalMillis);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "mosaic-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        compositor.scheduleAtFixedRate(this::composite, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        compositor.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    // Replaces the viewer's mosaic; null stops it
+    public void set(ClientHandler viewer, MosaicLayout layout) {
+        if (layout == null) {
+            mosaics.remove(viewer);
+        } else {
+            mosaics.put(viewer, new Mosaic(viewer, layout));
+        }
+        refreshSources();
+    }
+
+    public void removed(ClientHandler session) {
+        if (mosaics.remove(session) != null) {
+            refreshSources();
+        }
+        ended(session.getSessionId());
+    }
+
+    // Blanks the sharer's cells; they fill again if it shares again. Like offer(), only
+    // called from the sharer's reader thread.
+    public void ended(int sharerId) {
+        Source source = sources.get(sharerId);
+        if (source != null) {
+            source.frame = null;
+            source.sequence++;
+        }
+    }
+
+    public boolean wants(int sharerId) {
+        Source source = sources.get(sharerId);
+        return source != null && System.currentTimeMillis() - source.takenAt >= intervalMillis;
+    }
+
+    // Called from the sharer's reader thread only, so one writer per source
+    public void offer(int sharerId, Message frame) {
+        Source source = sources.get(sharerId);
+        if (source == null || frame.getPayload() == null
+                || System.currentTimeMillis() - source.takenAt < intervalMillis) {
+            return;
+        }
+        source.takenAt = System.currentTimeMillis();
+        source.timestamp = frame.getTimestamp();
+        source.frame = frame.getPayload();
+        source.sequence++;
+    }
+
+    public String describe() {
+        return String.format("%d mosaics of %d shares, %d composites, %d tiles (%d bytes), %d workers",
+                mosaics.size(), sources.size(), composites.sum(), tiles.sum(), compositeBytes.sum(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    private synchronized void refreshSources() {
+        Set<Integer> shown = new HashSet<>();
+        for (Mosaic mosaic : mosaics.values()) {
+            for (int cell = 0; cell < mosaic.layout.getCellCount(); cell++) {
+                shown.add(mosaic.layout.getSource(cell));
+            }
+        }
+        sources.keySet().retainAll(shown);
+        for (Integer sharerId : shown) {
+            sources.computeIfAbsent(sharerId, id -> new Source());
+        }
+    }
+
+    // A scheduled task that throws is never run again, so nothing may escape
+    private void composite() {
+        try {
+            compositeChangedCells();
+        } catch (RuntimeException e) {
+            Logger.error("Mosaic composition failed", e);
+        }
+    }
+
+    private void compositeChangedCells() {
+        if (mosaics.isEmpty()) {
+            return;
+        }
+        List<Mosaic> owners = new ArrayList<>();
+        List<Integer> cells = new ArrayList<>();
+        List<Callable<MosaicFrame.Tile>> jobs = new ArrayList<>();
+        for (Mosaic mosaic : mosaics.values()) {
+            MosaicLayout layout = mosaic.layout;
+            for (int cell = 0; cell < layout.getCellCount(); cell++) {
+                int sharerId = layout.getSource(cell);
+                Source source = sources.get(sharerId);
+                if (source == null) {
+                    continue;
+                }
+                long sequence = source.sequence;
+                byte[] frame = source.frame;
+                // Blanking needs no check: the sharer may already have left the rooms
+                if (sequence == mosaic.rendered[cell]
+                        || (frame != null && !registry.canSee(mosaic.viewer, sharerId))) {
+                    continue;
+                }
+                mosaic.rendered[cell] = sequence;
+                long timestamp = source.timestamp;
+                int index = cell;
+                owners.add(mosaic);
+                cells.add(cell);
+                jobs.add(() -> tile(index, sharerId, timestamp, frame, layout.getCellWidth(), layout.getCellHeight()));
+            }
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        List<Future<MosaicFrame.Tile>> rendered;
+        try {
+            rendered = workers.invokeAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Map<Mosaic, List<MosaicFrame.Tile>> updates = new LinkedHashMap<>();
+        for (int i = 0; i < rendered.size(); i++) {
+            MosaicFrame.Tile tile = result(rendered.get(i));
+            if (tile != null) {
+                updates.computeIfAbsent(owners.get(i), mosaic -> new ArrayList<>()).add(tile);
+            } else {
+                // Not decodable; try again with the source's next frame
+                owners.get(i).rendered[cells.get(i)] = -1;
+            }
+        }
+        for (Map.Entry<Mosaic, List<MosaicFrame.Tile>> update : updates.entrySet()) {
+            send(update.getKey(), update.getValue());
+        }
+    }
+
+    private void send(Mosaic mosaic, List<MosaicFrame.Tile> changed) {
+        if (mosaics.get(mosaic.viewer) != mosaic) {
+            // Replaced or stopped while rendering
+            return;
+        }
+        MosaicLayout layout = mosaic.layout;
+        byte[] payload = new MosaicFrame(layout.getColumns(), layout.getRows(),
+                layout.getCellWidth(), layout.getCellHeight(), changed).toBytes();
+        Message message = new Message(MessageType.SCREEN_DATA, Protocol.SERVER_CLIENT_ID, payload);
+        message.setSessionId(Protocol.SERVER_SESSION_ID);
+        if (mosaic.viewer.offerScreenData(message)) {
+            composites.increment();
+            tiles.add(changed.size());
+            compositeBytes.add(payload.length);
+        } else {
+            // Shed by the viewer's budget: those cells are redone from the next frames
+            for (MosaicFrame.Tile tile : changed) {
+                mosaic.rendered[tile.cell] = -1;
+            }
+        }
+    }
+
+    private static MosaicFrame.Tile result(Future<MosaicFrame.Tile> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    // Runs on a worker. A source without a frame (its share ended) gives an empty tile.
+    private static MosaicFrame.Tile tile(int cell, int sharerId, long timestamp, byte[] frame,
+                                         int cellWidth, int cellHeight) {
+        if (frame == null) {
+            return new MosaicFrame.Tile(cell, sharerId, 0, new byte[0]);
+        }
+        try {
+            BufferedImage decoded = Images.decode(frame, cellWidth);
+            if (decoded == null) {
+                return null;
+            }
+            byte[] image = Images.encodeJpeg(Images.fit(decoded, cellWidth, cellHeight), JPEG_QUALITY);
+            return new MosaicFrame.Tile(cell, sharerId, timestamp, image);
+        } catch (IOException | RuntimeException e) {
+            Logger.debug("No mosaic tile for session " + sharerId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // One viewer's layout and, per cell, the source sequence last rendered into it.
+    // rendered is only touched by the compositor thread.
+    private static final class Mosaic {
+        final ClientHandler viewer;
+        final MosaicLayout layout;
+        final long[] rendered;
+
+        Mosaic(ClientHandler viewer, MosaicLayout layout) {
+            this.viewer = viewer;
+            this.layout = layout;
+            this.rendered = new long[layout.getCellCount()];
+        }
+    }
+
+    // Latest frame taken from a shown sharer; sequence advances with every new frame
+    private static final class Source {
+        volatile byte[] frame;
+        volatile long timestamp;
+        volatile long takenAt;
+        volatile long sequence;
+    }
+}
@@ -0,0 +1,495 @@
+// PlaybackServer.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.WireCodecV1;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streams recordings made by SessionRecorder back to clients, on a port of its own.
+//
+// A playback connection speaks version 1 frames only, which is what segments are made
+// of, so recorded frames go from the segment file to the socket with
+// FileChannel.transferTo and never enter the heap; the server only reads each frame's
+// header to learn its length and timestamp. The client sends PLAYBACK requests:
+//   list                          - answered with one "<id> <first> <last>" line per recording
+//   play <id> [<from> [<speed>]]  - start, or seek within the stream being played
+//   stop                          - stop sending frames
+// <from> is a timestamp, or +millis into the recording; playback starts at the last full
+// frame at or before it. Frames are paced by their recorded timestamps divided by speed
+// (default 1, above 1 fast-forwards, 0 sends as fast as the connection takes them).
+// Answers are PLAYBACK messages ("playing ...", "end ...") or ERROR.
+//
+// One selector thread accepts connections and reads requests, and one pacer thread
+// sends frames as they fall due, so idle and paced playbacks cost no thread each and
+// hardly any CPU.
+public class PlaybackServer {
+    private static final int MAX_REQUEST_BYTES = 4096;
+    // Frame header up to and including the client id length
+    private static final int FIXED_HEADER_BYTES = 16;
+    // Read per frame; enough for the timestamp too unless the client id is unusually long
+    private static final int HEADER_READ_BYTES = 64;
+    // Wait before retrying a frame the socket did not take in full
+    private static final long RETRY_MILLIS = 10;
+    // Frames due this soon are sent right away instead of waking up again for them
+    private static final long PACING_SLACK_MILLIS = 2;
+    // Frames one pump sends before letting other playbacks have the pacer thread
+    private static final int MAX_FRAMES_PER_PUMP = 32;
+
+    private final Path root;
+    private final int port;
+    private ServerSocketChannel listener;
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private final ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "playback-pacer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Playback> playbacks = ConcurrentHashMap.newKeySet();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder seeks = new LongAdder();
+
+    public PlaybackServer(String recordingPath, int port) {
+        this.root = Paths.get(recordingPath).toAbsolutePath().normalize();
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "playback-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        Logger.info("Playback server started on port " + port + " for recordings in " + root);
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        pacer.shutdownNow();
+        for (Playback playback : playbacks) {
+            playback.close();
+        }
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing playback listener", e);
+        }
+    }
+
+    public String describe() {
+        return String.format("%d playing, %d frames (%d bytes) sent, %d seeks",
+                playbacks.size(), framesSent.sum(), bytesSent.sum(), seeks.sum());
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Playback) key.attachment()).readRequests();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    Logger.error("Playback selector failed", e);
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Logger.error("Error closing playback selector", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Playback playback = new Playback(channel);
+        playbacks.add(playback);
+        channel.register(selector, SelectionKey.OP_READ, playback);
+        Logger.info("Playback client connected: " + channel.socket().getRemoteSocketAddress());
+    }
+
+    // Resolves a recording id to its directory, refusing anything outside root
+    private Path recordingDirectory(String id) {
+        Path directory = root.resolve(id).normalize();
+        if (!directory.getParent().equals(root) || !Files.isDirectory(directory)) {
+            return null;
+        }
+        return directory;
+    }
+
+    // One playback connection. Requests are parsed on the selector thread and handed to
+    // the pacer thread, which owns everything about sending.
+    private final class Playback {
+        final SocketChannel channel;
+        final Queue<String> requests = new ConcurrentLinkedQueue<>();
+        // Selector thread only
+        final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+
+        // Pacer thread only
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_READ_BYTES);
+        final List<ByteBuffer> replies = new ArrayList<>();
+        ScheduledFuture<?> next;
+        RecordingIndex recording;
+        int segmentNumber;
+        FileChannel segment;
+        // Size of the segment when last looked at; it only grows while being recorded
+        long segmentSize;
+        long position;
+        // Length of the frame nextFrame() found, and end of the one being sent (-1 between frames)
+        int frameLength;
+        long frameEnd = -1;
+        double speed;
+        // Wall clock time at which the frame recorded at originTimestamp is due
+        long originMillis;
+        long originTimestamp;
+
+        Playback(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void readRequests() {
+            try {
+                if (channel.read(requestBuffer) < 0) {
+                    close();
+                    return;
+                }
+                requestBuffer.flip();
+                while (requestBuffer.remaining() >= 4) {
+                    int length = requestBuffer.getInt(requestBuffer.position());
+                    if (length <= 0 || length > MAX_REQUEST_BYTES - 4) {
+                        throw new IOException("Invalid playback request length: " + length);
+                    }
+                    if (requestBuffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    byte[] frame = new byte[length];
+                    requestBuffer.getInt();
+                    requestBuffer.get(frame);
+                    Message request = Protocol.deserialize(frame);
+                    if (request.getType() == MessageType.PLAYBACK) {
+                        requests.add(request.getPayloadAsString().trim());
+                    }
+                }
+                requestBuffer.compact();
+                if (!requests.isEmpty()) {
+                    pacer.execute(this::pump);
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    Logger.error("Closing playback connection: " + e.getMessage());
+                }
+                close();
+            }
+        }
+
+        // Runs on the pacer thread: takes requests between frames, then sends every frame
+        // that is due and schedules itself for the next one
+        void pump() {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                if (frameEnd < 0) {
+                    String request;
+                    while ((request = requests.poll()) != null) {
+                        handle(request);
+                    }
+                }
+                if (!flushReplies()) {
+                    schedule(RETRY_MILLIS);
+                    return;
+                }
+                int sentFrames = 0;
+                while (recording != null) {
+                    if (frameEnd < 0) {
+                        long timestamp = nextFrame();
+                        if (timestamp < 0) {
+                            reply(MessageType.PLAYBACK, "end " + recording.getId());
+                            recording = null;
+                            closeSegment();
+                            flushReplies();
+                            return;
+                        }
+                        long wait = dueMillis(timestamp) - System.currentTimeMillis();
+                        if (wait > PACING_SLACK_MILLIS) {
+                            schedule(wait);
+                            return;
+                        }
+                        frameEnd = position + frameLength;
+                    }
+                    long sent = segment.transferTo(position, frameEnd - position, channel);
+                    position += sent;
+                    bytesSent.add(sent);
+                    if (position < frameEnd) {
+                        // The socket is full; the client reads slower than we send
+                        schedule(RETRY_MILLIS);
+                        return;
+                    }
+                    frameEnd = -1;
+                    framesSent.increment();
+                    if (!requests.isEmpty() || ++sentFrames == MAX_FRAMES_PER_PUMP) {
+                        pacer.execute(this::pump);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Logger.debug("Playback connection closed: " + e.getMessage());
+                close();
+            } catch (RuntimeException e) {
+                Logger.error("Playback failed", e);
+                close();
+            }
+        }
+
+        private void schedule(long delayMillis) {
+            if (channel.isOpen()) {
+                next = pacer.schedule(this::pump, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private long dueMillis(long timestamp) {
+            if (speed <= 0) {
+                return 0;
+            }
+            return originMillis + (long) ((timestamp - originTimestamp) / speed);
+        }
+
+        private void handle(String request) throws IOException {
+            String[] parts = request.split("\\s+");
+            switch (parts[0]) {
+                case "list":
+                    StringBuilder list = new StringBuilder();
+                    for (String id : RecordingIndex.list(root)) {
+                        RecordingIndex index = RecordingIndex.open(root.resolve(id));
+                        list.append(id).append(' ').append(index.getFirstTimestamp()).append(' ')
+                                .append(index.getLastIndexedTimestamp()).append('\n');
+                    }
+                    reply(MessageType.PLAYBACK, list.toString());
+                    break;
+                case "play":
+                    play(parts);
+                    break;
+                case "stop":
+                    recording = null;
+                    closeSegment();
+                    reply(MessageType.PLAYBACK, "stopped");
+                    break;
+                default:
+                    reply(MessageType.ERROR, "Unknown playback request: " + request);
+            }
+        }
+
+        private void play(String[] parts) throws IOException {
+            Path directory = parts.length > 1 ? recordingDirectory(parts[1]) : null;
+            if (directory == null) {
+                reply(MessageType.ERROR, "No such recording: " + (parts.length > 1 ? parts[1] : ""));
+                return;
+            }
+            RecordingIndex index = RecordingIndex.open(directory);
+            long from;
+            double newSpeed;
+            try {
+                String start = parts.length > 2 ? parts[2] : "+0";
+                from = start.startsWith("+") ? index.getFirstTimestamp() + Long.parseLong(start.substring(1))
+                        : Long.parseLong(start);
+                newSpeed = parts.length > 3 ? Double.parseDouble(parts[3]) : 1.0;
+            } catch (NumberFormatException e) {
+                reply(MessageType.ERROR, "Usage: play <id> [<timestamp>|+<millis> [<speed>]]");
+                return;
+            }
+            RecordingIndex.Position start = index.seek(from);
+            if (start == null) {
+                reply(MessageType.ERROR, "Recording " + index.getId() + " has no frames yet");
+                return;
+            }
+            if (recording != null) {
+                seeks.increment();
+            }
+            recording = index;
+            openSegment(start.segment);
+            position = start.offset;
+            // The index is sparse: walk the headers on to the last frame at or before from
+            int startSegment = segmentNumber;
+            long startPosition = position;
+            long startTimestamp = start.timestamp;
+            long timestamp;
+            while ((timestamp = nextFrame()) >= 0 && timestamp <= from) {
+                startSegment = segmentNumber;
+                startPosition = position;
+                startTimestamp = timestamp;
+                position += frameLength;
+            }
+            if (segmentNumber != startSegment) {
+                openSegment(startSegment);
+            }
+            position = startPosition;
+            speed = newSpeed;
+            originTimestamp = startTimestamp;
+            originMillis = System.currentTimeMillis();
+            reply(MessageType.PLAYBACK, "playing " + index.getId() + " " + startTimestamp + " " + speed);
+        }
+
+        private void openSegment(int number) throws IOException {
+            closeSegment();
+            segmentNumber = number;
+            segment = FileChannel.open(recording.getSegments().get(number).file, StandardOpenOption.READ);
+            segmentSize = segment.size();
+            position = 0;
+        }
+
+        // Reads the header of the frame at position, moving on to the next segment at the
+        // end of this one. Returns its timestamp and sets frameLength, or returns -1 when
+        // no complete frame follows (yet).
+        private long nextFrame() throws IOException {
+            while (true) {
+                if (position + FIXED_HEADER_BYTES > segmentSize) {
+                    segmentSize = segment.size();
+                }
+                if (position + FIXED_HEADER_BYTES <= segmentSize) {
+                    readHeader(position, (int) Math.min(HEADER_READ_BYTES, segmentSize - position));
+                    int length = header.getInt(0);
+                    int clientIdLength = header.getInt(12);
+                    if (header.getInt(4) != Protocol.MAGIC_NUMBER || clientIdLength < 0 || clientIdLength > length) {
+                        throw new IOException("Corrupt frame at " + position + " of " + recording.getId());
+                    }
+                    if (position + 4 + length > segmentSize) {
+                        segmentSize = segment.size();
+                    }
+                    if (position + 4 + length <= segmentSize) {
+                        frameLength = 4 + length;
+                        int timestampAt = FIXED_HEADER_BYTES + clientIdLength;
+                        if (timestampAt + 8 > header.limit()) {
+                            readHeader(position + timestampAt, 8);
+                            timestampAt = 0;
+                        }
+                        return header.getLong(timestampAt);
+                    }
+                }
+                // At the end of the segment, or at a frame still being written
+                if (segmentNumber + 1 >= recording.getSegments().size()) {
+                    RecordingIndex reopened = RecordingIndex.open(recording.getSegments().get(0).file.getParent());
+                    if (reopened.getSegments().size() <= segmentNumber + 1) {
+                        return -1;
+                    }
+                    recording = reopened;
+                }
+                openSegment(segmentNumber + 1);
+            }
+        }
+
+        private void readHeader(long offset, int length) throws IOException {
+            header.clear();
+            header.limit(length);
+            while (header.hasRemaining()) {
+                if (segment.read(header, offset + header.position()) < 0) {
+                    throw new IOException("Truncated frame header in " + recording.getId());
+                }
+            }
+        }
+
+        private void reply(MessageType type, String text) {
+            List<ByteBuffer> frame = new ArrayList<>(2);
+            new WireCodecV1().encode(new Message(type, Protocol.SERVER_CLIENT_ID, text), frame);
+            replies.addAll(frame);
+        }
+
+        // Replies only go out between frames; false while the socket cannot take them all
+        private boolean flushReplies() throws IOException {
+            while (!replies.isEmpty()) {
+                ByteBuffer reply = replies.get(0);
+                channel.write(reply);
+                if (reply.hasRemaining()) {
+                    return false;
+                }
+                replies.remove(0);
+            }
+            return true;
+        }
+
+        private void closeSegment() {
+            frameEnd = -1;
+            if (segment != null) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    Logger.error("Error closing recording segment", e);
+                }
+                segment = null;
+            }
+        }
+
+        void close() {
+            if (playbacks.remove(this)) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Logger.error("Error closing playback connection", e);
+                }
+                if (!pacer.isShutdown()) {
+                    pacer.execute(() -> {
+                        if (next != null) {
+                            next.cancel(false);
+                        }
+                        recording = null;
+                        closeSegment();
+                    });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+// RecordingIndex.java
+package com.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Read side of a directory written by SessionRecorder: its segments in order, each with
+// the timestamps and offsets of its indexed frames. A recording still being written
+// keeps growing; open it again to see the newer segments and index entries.
+public class RecordingIndex {
+    private final String id;
+    private final List<Segment> segments;
+
+    private RecordingIndex(String id, List<Segment> segments) {
+        this.id = id;
+        this.segments = segments;
+    }
+
+    public static RecordingIndex open(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SessionRecorder.SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // Segment names are zero padded, so they sort in recording order
+        Collections.sort(files);
+        List<Segment> segments = new ArrayList<>(files.size());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Path index = file.resolveSibling(name.substring(0, name.length() - SessionRecorder.SEGMENT_SUFFIX.length())
+                    + SessionRecorder.INDEX_SUFFIX);
+            segments.add(readSegment(file, index));
+        }
+        return new RecordingIndex(directory.getFileName().toString(), Collections.unmodifiableList(segments));
+    }
+
+    private static Segment readSegment(Path file, Path index) throws IOException {
+        byte[] entries = Files.exists(index) ? Files.readAllBytes(index) : new byte[0];
+        // A torn last entry is left out
+        int count = entries.length / SessionRecorder.INDEX_ENTRY_BYTES;
+        long[] timestamps = new long[count];
+        long[] offsets = new long[count];
+        ByteBuffer in = ByteBuffer.wrap(entries);
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = in.getLong();
+            offsets[i] = in.getLong();
+        }
+        return new Segment(file, timestamps, offsets);
+    }
+
+    // Ids of the recordings under root, oldest first for each sharer
+    public static List<String> list(Path root) throws IOException {
+        List<String> ids = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : stream) {
+                ids.add(directory.getFileName().toString());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    public boolean isEmpty() {
+        return getFirstTimestamp() < 0;
+    }
+
+    // Timestamp of the first recorded frame, -1 when nothing is indexed yet
+    public long getFirstTimestamp() {
+        for (Segment segment : segments) {
+            if (segment.size() > 0) {
+                return segment.timestamps[0];
+            }
+        }
+        return -1;
+    }
+
+    // Timestamp of the last indexed frame; the recording may go on for up to an index
+    // interval after it
+    public long getLastIndexedTimestamp() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (segment.size() > 0) {
+                return segment.timestamps[segment.size() - 1];
+            }
+        }
+        return -1;
+    }
+
+    // The last indexed frame at or before timestamp, or the first frame of the
+    // recording when timestamp is earlier; null when nothing is indexed yet
+    public Position seek(long timestamp) {
+        Position found = null;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.size() == 0) {
+                continue;
+            }
+            if (found != null && segment.timestamps[0] > timestamp) {
+                break;
+            }
+            int entry = segment.floor(timestamp);
+            found = new Position(i, segment.offsets[Math.max(0, entry)], segment.timestamps[Math.max(0, entry)]);
+            if (entry < segment.size() - 1) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    public static final class Segment {
+        public final Path file;
+        private final long[] timestamps;
+        private final long[] offsets;
+
+        Segment(Path file, long[] timestamps, long[] offsets) {
+            this.file = file;
+            this.timestamps = timestamps;
+            this.offsets = offsets;
+        }
+
+        public int size() {
+            return timestamps.length;
+        }
+
+        // Last entry at or before timestamp, -1 if all are later
+        int floor(long timestamp) {
+            int low = 0;
+            int high = timestamps.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] <= timestamp) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    // A frame to start from: the segment it is in, where it starts and its timestamp
+    public static final class Position {
+        public final int segment;
+        public final long offset;
+        public final long timestamp;
+
+        Position(int segment, long offset, long timestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+    }
+}
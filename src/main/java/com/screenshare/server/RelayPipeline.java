@@ -0,0 +1,407 @@
+// RelayPipeline.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.util.Logger;
+import com.screenshare.util.RingBuffer;
+import com.screenshare.util.WaitStrategy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Relays screen data in three stages rather than all on the sender's reader thread:
+//   - ingest: the reader thread decodes and admits a frame, as before, and publishes it
+//     to a ring of its own;
+//   - route: each of server.pipeline.route.threads threads owns the rings of the sharers
+//     assigned to it by session id, finds each frame's viewers, charges the budgets and
+//     records it, and publishes the result to its route ring;
+//   - egress: each of server.pipeline.egress.threads threads reads every route ring and
+//     offers frames to the viewers assigned to it by session id.
+// A sharer is always routed by the same thread and a viewer always written by the same
+// thread, so frames, and the pieces of a frame, keep their order. Rings are preallocated
+// and never locked; stage threads wait for work, and producers for room, by the
+// configured WaitStrategy. When a ring keeps filling up, the stage reading it is the one
+// that saturated; describe() shows, per stage, throughput, how busy its threads were and
+// how full the rings in front of it got.
+public class RelayPipeline {
+    // Entries a stage takes from one ring before looking at the next
+    private static final int BATCH = 64;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ScreenShareServer server;
+    private final int ringSize;
+    private final WaitStrategy wait;
+    private final List<Integer> cpus;
+    private final int reportInterval;
+    private final Router[] routers;
+    private final Egress[] egress;
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService reporter;
+    private volatile boolean running;
+    private long startedAt;
+
+    RelayPipeline(ScreenShareServer server, ServerConfig config) {
+        this.server = server;
+        this.ringSize = config.getPipelineRingSize();
+        this.wait = config.getPipelineWait();
+        this.cpus = parseCpus(config.getPipelineCpus());
+        this.reportInterval = config.getPipelineReportInterval();
+        this.egress = new Egress[Math.max(1, config.getPipelineEgressThreads())];
+        this.routers = new Router[Math.max(1, config.getPipelineRouteThreads())];
+        for (int i = 0; i < routers.length; i++) {
+            routers[i] = new Router(i);
+        }
+        for (int i = 0; i < egress.length; i++) {
+            egress[i] = new Egress(i);
+        }
+    }
+
+    public void start() {
+        running = true;
+        startedAt = System.nanoTime();
+        int next = 0;
+        for (Router router : routers) {
+            threads.add(startThread(router, "relay-route-" + router.index, next++));
+        }
+        for (Egress worker : egress) {
+            threads.add(startThread(worker, "relay-egress-" + worker.index, next++));
+        }
+        if (reportInterval > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "relay-pipeline-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> Logger.info("Relay pipeline: " + describe()),
+                    reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+        Logger.info("Relay pipeline started: " + routers.length + " route, " + egress.length
+                + " egress threads, rings of " + ringSize + ", " + wait.name().toLowerCase() + " waits");
+    }
+
+    public void stop() {
+        running = false;
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        for (Router router : routers) {
+            for (Source source : router.sources) {
+                source.ring.close();
+            }
+            router.ring.close();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Reader thread of the sender (or of the cluster link it arrives over); waits while
+    // the sender's ring is full, which pushes back on the sender as writing inline did
+    void ingest(ClientHandler sender, Message message) {
+        Source source = sender.pipelineSource;
+        if (source == null) {
+            Router router = routers[Math.floorMod(sender.getSessionId(), routers.length)];
+            source = new Source(sender, new RingBuffer<>(ringSize, Ingested::new, 1, wait));
+            sender.pipelineSource = source;
+            router.sources.add(source);
+        }
+        Ingested entry = source.ring.claim();
+        if (entry == null) {
+            return;
+        }
+        entry.message = message;
+        source.ring.publish();
+    }
+
+    // Waits until the sender's frames so far have been routed and offered to viewers, so
+    // that what the caller does next (stopping the share, removing the session) comes
+    // after them
+    void drain(ClientHandler sender) {
+        Source source = sender.pipelineSource;
+        // A stage thread would be waiting for itself
+        if (source == null || !running || threads.contains(Thread.currentThread())) {
+            return;
+        }
+        if (source.ring.awaitReleased(DRAIN_TIMEOUT_NANOS)) {
+            routers[Math.floorMod(sender.getSessionId(), routers.length)].ring.awaitReleased(DRAIN_TIMEOUT_NANOS);
+        }
+    }
+
+    void removed(ClientHandler sender) {
+        Source source = sender.pipelineSource;
+        if (source == null) {
+            return;
+        }
+        drain(sender);
+        // Its router lets go of it on the next pass
+        source.ring.close();
+    }
+
+    public long getIngested() {
+        long total = 0;
+        for (Router router : routers) {
+            for (Source source : router.sources) {
+                total += source.ring.getPublished();
+            }
+            total += router.retiredIngested;
+        }
+        return total;
+    }
+
+    public long getRouted() {
+        long total = 0;
+        for (Router router : routers) {
+            total += router.processed;
+        }
+        return total;
+    }
+
+    public long getOffered() {
+        long total = 0;
+        for (Egress worker : egress) {
+            total += worker.processed;
+        }
+        return total;
+    }
+
+    public String describe() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startedAt) / 1e9);
+        int rings = 0;
+        long ingestFullWaits = 0;
+        long ingestPeak = 0;
+        double ingestAverage = 0;
+        long routeFullWaits = 0;
+        long routePeak = 0;
+        double routeAverage = 0;
+        long routeBusy = 0;
+        long egressBusy = 0;
+        for (Router router : routers) {
+            for (Source source : router.sources) {
+                rings++;
+                ingestFullWaits += source.ring.getFullWaits();
+                ingestPeak = Math.max(ingestPeak, source.ring.getPeakOccupancy());
+                ingestAverage += source.ring.getAverageOccupancy();
+            }
+            routeFullWaits += router.ring.getFullWaits();
+            routePeak = Math.max(routePeak, router.ring.getPeakOccupancy());
+            routeAverage += router.ring.getAverageOccupancy();
+            routeBusy += router.busyNanos;
+        }
+        for (Egress worker : egress) {
+            egressBusy += worker.busyNanos;
+        }
+        long ingested = getIngested();
+        long routed = getRouted();
+        long offered = getOffered();
+        double ringCapacity = routers[0].ring.capacity();
+        return String.format("ingest %d (%.0f/s) into %d rings, avg %.0f%% / peak %.0f%% full, %d waits for room;"
+                        + " route x%d %d (%.0f/s), %.0f%% busy, ring avg %.0f%% / peak %.0f%% full, %d waits for room;"
+                        + " egress x%d %d offers (%.0f/s), %.0f%% busy",
+                ingested, ingested / seconds, rings,
+                rings == 0 ? 0 : 100 * ingestAverage / rings / ringCapacity, 100 * ingestPeak / ringCapacity,
+                ingestFullWaits,
+                routers.length, routed, routed / seconds, 100 * routeBusy / 1e9 / seconds / routers.length,
+                100 * routeAverage / routers.length / ringCapacity, 100 * routePeak / ringCapacity, routeFullWaits,
+                egress.length, offered, offered / seconds, 100 * egressBusy / 1e9 / seconds / egress.length);
+    }
+
+    private Thread startThread(Runnable stage, String name, int index) {
+        Integer cpu = index < cpus.size() ? cpus.get(index) : null;
+        Thread thread = new Thread(() -> {
+            if (cpu != null) {
+                pin(name, cpu);
+            }
+            stage.run();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Java has no thread affinity of its own; on Linux the calling thread's native id is
+    // behind /proc/thread-self, and taskset can pin that. Best effort: the stage runs
+    // unpinned where that is not available.
+    private static void pin(String name, int cpu) {
+        Path link = Paths.get("/proc/thread-self");
+        if (!Files.isSymbolicLink(link)) {
+            Logger.error("Could not pin " + name + " to CPU " + cpu + ": no " + link + ", running unpinned");
+            return;
+        }
+        try {
+            Path self = Files.readSymbolicLink(link);
+            String tid = self.getFileName().toString();
+            Process taskset = new ProcessBuilder("taskset", "-pc", Integer.toString(cpu), tid)
+                    .redirectErrorStream(true).start();
+            taskset.getInputStream().readAllBytes();
+            if (taskset.waitFor() == 0) {
+                Logger.info("Pinned " + name + " to CPU " + cpu);
+            } else {
+                Logger.error("Could not pin " + name + " to CPU " + cpu + ", running unpinned");
+            }
+        } catch (IOException e) {
+            Logger.error("Could not pin " + name + " to CPU " + cpu + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<Integer> parseCpus(String spec) {
+        List<Integer> cpus = new ArrayList<>();
+        if (spec == null) {
+            return cpus;
+        }
+        for (String cpu : spec.split(",")) {
+            if (!cpu.trim().isEmpty()) {
+                cpus.add(Integer.parseInt(cpu.trim()));
+            }
+        }
+        return cpus;
+    }
+
+    // A sender's ingest ring, read by its router only
+    static final class Source {
+        final ClientHandler sender;
+        final RingBuffer<Ingested> ring;
+
+        Source(ClientHandler sender, RingBuffer<Ingested> ring) {
+            this.sender = sender;
+            this.ring = ring;
+        }
+    }
+
+    static final class Ingested {
+        Message message;
+    }
+
+    private final class Router implements Runnable, RoutedFrame.Sink {
+        final int index;
+        final List<Source> sources = new CopyOnWriteArrayList<>();
+        final RingBuffer<RoutedFrame> ring;
+        // Claimed when the ring was closed under a route in progress, and thrown away
+        private final RoutedFrame discarded = new RoutedFrame();
+        volatile long processed;
+        volatile long busyNanos;
+        volatile long retiredIngested;
+
+        Router(int index) {
+            this.index = index;
+            this.ring = new RingBuffer<>(ringSize, RoutedFrame::new, egress.length, wait);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                long start = System.nanoTime();
+                int routed = 0;
+                for (Source source : sources) {
+                    if (source.ring.isClosed()) {
+                        retire(source);
+                        continue;
+                    }
+                    Ingested entry;
+                    int taken = 0;
+                    while (taken < BATCH && (entry = source.ring.peek(0)) != null) {
+                        Message message = entry.message;
+                        entry.message = null;
+                        try {
+                            if (message.getFragment() != null) {
+                                server.routeScreenFragment(source.sender, message, this);
+                            } else {
+                                server.routeScreenData(source.sender.getSessionId(), message, this);
+                            }
+                        } catch (RuntimeException e) {
+                            Logger.error("Relay pipeline failed to route a frame of " + source.sender.getClientId(), e);
+                        }
+                        // Released only once routed, so drain() covers the routing too
+                        source.ring.release(0);
+                        taken++;
+                    }
+                    routed += taken;
+                }
+                if (routed > 0) {
+                    processed += routed;
+                    busyNanos += System.nanoTime() - start;
+                    idle = 0;
+                } else {
+                    wait.idle(idle++);
+                }
+            }
+        }
+
+        private void retire(Source source) {
+            if (sources.remove(source)) {
+                retiredIngested += source.ring.getPublished();
+            }
+        }
+
+        @Override
+        public RoutedFrame next() {
+            RoutedFrame frame = ring.claim();
+            return frame != null ? frame : discarded;
+        }
+
+        @Override
+        public void routed(RoutedFrame frame) {
+            if (frame != discarded) {
+                ring.publish();
+            } else {
+                frame.clear();
+            }
+        }
+    }
+
+    private final class Egress implements Runnable {
+        final int index;
+        volatile long processed;
+        volatile long busyNanos;
+
+        Egress(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                long start = System.nanoTime();
+                int frames = 0;
+                int offered = 0;
+                for (Router router : routers) {
+                    RoutedFrame frame;
+                    int taken = 0;
+                    while (taken < BATCH && (frame = router.ring.peek(index)) != null) {
+                        try {
+                            offered += server.deliver(frame, index, egress.length);
+                        } catch (RuntimeException e) {
+                            Logger.error("Relay pipeline failed to deliver a frame", e);
+                        }
+                        router.ring.release(index);
+                        taken++;
+                    }
+                    frames += taken;
+                }
+                if (frames > 0) {
+                    processed += offered;
+                    busyNanos += System.nanoTime() - start;
+                    idle = 0;
+                } else {
+                    wait.idle(idle++);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+// RelayTreeService.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import com.screenshare.util.Logger;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Viewer-assisted fan-out for large audiences (server.relay.tree.enabled). Viewers that
+// offered a relay in CONNECT_REQUEST (see RelayNode) are arranged, per share, in a tree
+// of bounded out-degree: the server sends to at most root.degree of them and each relay
+// viewer to at most the smaller of its own limit and server.relay.max.children. Viewers
+// that only receive through relays sit at the edges; a relay placed later takes a leaf's
+// slot and the leaf moves under it, so relays stay near the root. Viewers without relay
+// support, peers, and members the tree cannot hold get frames from the server as before.
+//
+// Members hear of their parent through RELAY messages ("parent <sharer> <host> <port>
+// <token>", or "direct <sharer>" for the server), and the server keeps sending to a member
+// until it answers "attached", so a move never leaves a gap. Each assignment has its own
+// token: the relay hears "admit <sharer> <token>" before the member is sent to it, and
+// "revoke <sharer> <token>" once the member moves on, and takes only joins that present
+// a token it was told to admit. When a relay leaves, the members
+// below it get frames from the server again at once and are placed anew, keeping their
+// own subtrees; so is a member that reports its relay "lost". Relays report "egress
+// <bytes> <children>", set against the server's own egress to tree shares in describe().
+//
+// All tree changes run on one planner thread; the relay path only reads the set of
+// members it must skip.
+public class RelayTreeService {
+    private final SessionRegistry registry;
+    private final int rootDegree;
+    private final int maxChildren;
+    private final long repairInterval;
+    private final ScheduledExecutorService planner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "relay-tree");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Integer, Tree> trees = new ConcurrentHashMap<>();
+    // Total each relay last reported, and what relays that left had reported
+    private final Map<ClientHandler, Long> relayEgress = new ConcurrentHashMap<>();
+    private final LongAdder departedRelayEgress = new LongAdder();
+    private final LongAdder rootEgress = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder repairs = new LongAdder();
+    private final SecureRandom tokens = new SecureRandom();
+
+    public RelayTreeService(SessionRegistry registry, ServerConfig config) {
+        this.registry = registry;
+        this.rootDegree = Math.max(1, config.getRelayRootDegree());
+        this.maxChildren = Math.max(0, config.getRelayMaxChildren());
+        this.repairInterval = Math.max(20, config.getRelayRepairInterval());
+    }
+
+    public void start() {
+        planner.scheduleAtFixedRate(this::reconcileAll, repairInterval, repairInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        planner.shutdownNow();
+    }
+
+    public void started(int sharerId) {
+        plan(() -> reconcile(trees.computeIfAbsent(sharerId, Tree::new)));
+    }
+
+    public void ended(int sharerId) {
+        plan(() -> {
+            Tree tree = trees.remove(sharerId);
+            if (tree != null) {
+                dissolve(tree);
+            }
+        });
+    }
+
+    // Members below a departed relay are repaired now rather than on the next check
+    public void removed(ClientHandler session) {
+        plan(() -> {
+            Long reported = relayEgress.remove(session);
+            if (reported != null) {
+                departedRelayEgress.add(reported);
+            }
+            Tree own = trees.remove(session.getSessionId());
+            if (own != null) {
+                dissolve(own);
+            }
+            for (Tree tree : trees.values()) {
+                Node node = tree.nodes.get(session);
+                if (node != null) {
+                    drop(tree, node);
+                }
+            }
+        });
+    }
+
+    // A member's RELAY message; runs on its reader thread
+    public void onReport(ClientHandler viewer, String text) {
+        String[] fields = text.trim().split(" ");
+        try {
+            switch (fields[0]) {
+                case "egress":
+                    relayEgress.put(viewer, Long.parseLong(fields[1]));
+                    break;
+
+                case "attached":
+                    int parentOf = Integer.parseInt(fields[1]);
+                    String address = fields[2];
+                    plan(() -> attached(parentOf, viewer, address));
+                    break;
+
+                case "lost":
+                    int lostOf = Integer.parseInt(fields[1]);
+                    String lostAddress = fields[2];
+                    plan(() -> lost(lostOf, viewer, lostAddress));
+                    break;
+
+                default:
+                    Logger.debug("Unknown relay report from " + viewer.getClientId() + ": " + text);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Malformed relay report from " + viewer.getClientId() + ": " + text);
+        }
+    }
+
+    // Members the server leaves to their relays; read on the relay path
+    public Set<ClientHandler> relayedViewers(int sharerId) {
+        Tree tree = trees.get(sharerId);
+        return tree != null ? tree.relayed : Collections.emptySet();
+    }
+
+    // SCREEN_DATA bytes the server itself sent for a share
+    public void recordRootEgress(int sharerId, long bytes) {
+        if (bytes > 0 && trees.containsKey(sharerId)) {
+            rootEgress.add(bytes);
+        }
+    }
+
+    public long getRootEgressBytes() {
+        return rootEgress.sum();
+    }
+
+    public long getRelayEgressBytes() {
+        long total = departedRelayEgress.sum();
+        for (long reported : relayEgress.values()) {
+            total += reported;
+        }
+        return total;
+    }
+
+    public int getRelayedViewers() {
+        int relayed = 0;
+        for (Tree tree : trees.values()) {
+            relayed += tree.relayed.size();
+        }
+        return relayed;
+    }
+
+    public long getRepairs() {
+        return repairs.sum();
+    }
+
+    public String describe() {
+        int members = 0;
+        for (Tree tree : trees.values()) {
+            members += tree.members;
+        }
+        long root = getRootEgressBytes();
+        long relayed = getRelayEgressBytes();
+        return String.format("%d trees, %d of %d members served by relays, %d moves, %d repairs; "
+                        + "egress %d bytes from the server, %d bytes from relays (%.0f%% offloaded)",
+                trees.size(), getRelayedViewers(), members, moves.sum(), repairs.sum(), root, relayed,
+                root + relayed > 0 ? 100.0 * relayed / (root + relayed) : 0.0);
+    }
+
+    private void plan(Runnable change) {
+        try {
+            planner.execute(() -> {
+                try {
+                    change.run();
+                } catch (RuntimeException e) {
+                    Logger.error("Relay tree update failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    // Planner thread, at a fixed rate, so it must not throw
+    private void reconcileAll() {
+        try {
+            for (Tree tree : trees.values()) {
+                reconcile(tree);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Relay tree check failed", e);
+        }
+    }
+
+    // Brings a tree in line with the share's audience: members who stopped watching
+    // leave it, new ones are placed, relays first so they end up nearer the root
+    private void reconcile(Tree tree) {
+        if (!registry.isSharing(tree.sharerId)) {
+            trees.remove(tree.sharerId);
+            dissolve(tree);
+            return;
+        }
+        List<ClientHandler> joining = new ArrayList<>();
+        Set<ClientHandler> audience = new HashSet<>();
+        for (ClientHandler viewer : registry.viewersOf(tree.sharerId)) {
+            if (viewer.getRelayPort() >= 0 && !viewer.isPeer() && !viewer.isRemote()) {
+                audience.add(viewer);
+                if (!tree.nodes.containsKey(viewer)) {
+                    joining.add(viewer);
+                }
+            }
+        }
+        for (Node node : new ArrayList<>(tree.nodes.values())) {
+            if (!audience.contains(node.viewer)) {
+                drop(tree, node);
+            }
+        }
+        joining.sort((a, b) -> Integer.compare(b.getRelayChildren(), a.getRelayChildren()));
+        for (ClientHandler viewer : joining) {
+            Node node = new Node(viewer, Math.min(viewer.getRelayChildren(), maxChildren));
+            tree.nodes.put(viewer, node);
+            place(tree, node);
+        }
+        tree.members = tree.nodes.size();
+    }
+
+    private void attached(int sharerId, ClientHandler viewer, String address) {
+        Tree tree = trees.get(sharerId);
+        Node node = tree != null ? tree.nodes.get(viewer) : null;
+        // Only the parent we assigned last counts; an answer about an earlier one is stale
+        if (node != null && node.parent != null && node.parent != tree.root && address.equals(node.told)) {
+            tree.relayed.add(viewer);
+        }
+    }
+
+    private void lost(int sharerId, ClientHandler viewer, String address) {
+        Tree tree = trees.get(sharerId);
+        Node node = tree != null ? tree.nodes.get(viewer) : null;
+        // A relay it has already been moved away from says nothing about the new one
+        if (node == null || node.parent == null || node.parent == tree.root || !address.equals(node.told)) {
+            return;
+        }
+        Logger.info("Viewer " + viewer.getClientId() + " lost relay " + node.parent.viewer.getClientId()
+                + " for session " + tree.sharerId + ", placing it again");
+        node.blocked.add(node.parent.viewer);
+        detach(tree, node);
+        place(tree, node);
+        repairs.increment();
+    }
+
+    // Takes a member out of the tree; the members below it are placed again
+    private void drop(Tree tree, Node node) {
+        tree.nodes.remove(node.viewer);
+        detach(tree, node);
+        if (node.told != null && node.viewer.isAlive()) {
+            tell(tree, node.viewer, "direct " + tree.sharerId);
+        }
+        List<Node> orphans = new ArrayList<>(node.children);
+        node.children.clear();
+        for (Node orphan : orphans) {
+            revoke(tree, orphan);
+            orphan.parent = null;
+            tree.relayed.remove(orphan.viewer);
+        }
+        for (Node orphan : orphans) {
+            place(tree, orphan);
+            repairs.increment();
+        }
+        tree.members = tree.nodes.size();
+    }
+
+    private void detach(Tree tree, Node node) {
+        tree.relayed.remove(node.viewer);
+        if (node.parent != null) {
+            revoke(tree, node);
+            node.parent.children.remove(node);
+            node.parent = null;
+        }
+    }
+
+    // Breadth first from the root: the first node with a free slot takes the new member,
+    // unless the member is a relay and a node on the way has a leaf it can take over.
+    // With every slot taken, the server sends to it beyond root.degree.
+    private void place(Tree tree, Node node) {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(tree.root);
+        while (!queue.isEmpty()) {
+            Node candidate = queue.poll();
+            if (!node.blocked.contains(candidate.viewer)) {
+                if (candidate.children.size() < candidate.capacity) {
+                    assign(tree, node, candidate);
+                    return;
+                }
+                Node leaf = node.children.size() < node.capacity ? candidate.firstLeaf() : null;
+                if (leaf != null) {
+                    assign(tree, node, candidate);
+                    assign(tree, leaf, node);
+                    return;
+                }
+            }
+            queue.addAll(candidate.children);
+        }
+        assign(tree, node, tree.root);
+    }
+
+    private void assign(Tree tree, Node node, Node parent) {
+        detach(tree, node);
+        node.parent = parent;
+        parent.children.add(node);
+        if (parent == tree.root) {
+            if (node.told != null) {
+                node.told = null;
+                tell(tree, node.viewer, "direct " + tree.sharerId);
+                moves.increment();
+            }
+            return;
+        }
+        node.told = parent.address();
+        node.token = newToken();
+        tell(tree, parent.viewer, "admit " + tree.sharerId + " " + node.token);
+        tell(tree, node.viewer, "parent " + tree.sharerId + " " + parent.viewer.getRemoteHost() + " "
+                + parent.viewer.getRelayPort() + " " + node.token);
+        moves.increment();
+    }
+
+    // The relay a member leaves stops taking its token
+    private static void revoke(Tree tree, Node node) {
+        if (node.token != null && node.parent != null && node.parent.viewer != null
+                && node.parent.viewer.isAlive()) {
+            tell(tree, node.parent.viewer, "revoke " + tree.sharerId + " " + node.token);
+        }
+        node.token = null;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        tokens.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    // Members go back to the server, which sends to all of them until the share ends
+    private void dissolve(Tree tree) {
+        tree.relayed.clear();
+        for (Node node : tree.nodes.values()) {
+            revoke(tree, node);
+            if (node.told != null && node.viewer.isAlive()) {
+                tell(tree, node.viewer, "direct " + tree.sharerId);
+            }
+        }
+        tree.nodes.clear();
+        tree.members = 0;
+    }
+
+    private static void tell(Tree tree, ClientHandler viewer, String text) {
+        Message message = new Message(MessageType.RELAY, Protocol.SERVER_CLIENT_ID, text);
+        message.setSessionId(tree.sharerId);
+        viewer.sendMessage(message);
+    }
+
+    private final class Tree {
+        final int sharerId;
+        final Node root = new Node(null, rootDegree);
+        // Planner thread only
+        final Map<ClientHandler, Node> nodes = new HashMap<>();
+        final Set<ClientHandler> relayed = ConcurrentHashMap.newKeySet();
+        volatile int members;
+
+        Tree(int sharerId) {
+            this.sharerId = sharerId;
+        }
+    }
+
+    // A member, or the server as the root (no viewer)
+    private static final class Node {
+        final ClientHandler viewer;
+        final int capacity;
+        final List<Node> children = new ArrayList<>();
+        // Relays this member could not reach
+        final Set<ClientHandler> blocked = new HashSet<>();
+        Node parent;
+        // Address of the relay it was last sent to, null while it gets frames from the server
+        String told;
+        // What it presents to its relay, null under the server
+        String token;
+
+        Node(ClientHandler viewer, int capacity) {
+            this.viewer = viewer;
+            this.capacity = capacity;
+        }
+
+        String address() {
+            return viewer.getRemoteHost() + ":" + viewer.getRelayPort();
+        }
+
+        Node firstLeaf() {
+            for (Node child : children) {
+                if (child.capacity == 0) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+}
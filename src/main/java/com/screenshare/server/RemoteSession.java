@@ -0,0 +1,50 @@
+// RemoteSession.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+
+import java.util.Collections;
+import java.util.List;
+
+// A session connected to another cluster node, as this node knows it from that node's
+// gossip. It sits in the registry and the roster like a local client, so local clients
+// see its share and can subscribe to it, and its SCREEN_DATA arrives over the link to
+// its node. It is never sent frames from here: the peer session of its node takes one
+// copy for all of them. Anything else addressed to it, such as a receiver report about
+// its share, goes back over the link.
+class RemoteSession extends ClientHandler {
+    private final ClusterService cluster;
+    // As last gossiped; ClusterService lock only
+    List<String> rooms = Collections.emptyList();
+
+    RemoteSession(ScreenShareServer server, ClusterService cluster, int sessionId, String clientId) {
+        super(server, sessionId, clientId);
+        this.cluster = cluster;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public boolean sendMessage(Message message) {
+        return cluster.sendTo(getSessionId(), message);
+    }
+
+    @Override
+    public boolean offerScreenData(Message frame) {
+        return false;
+    }
+
+    @Override
+    public boolean acceptsFragments() {
+        return false;
+    }
+
+    // Lives as long as its node's gossip lists it
+    @Override
+    public boolean isAlive() {
+        return true;
+    }
+}
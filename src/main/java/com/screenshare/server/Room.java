@@ -0,0 +1,58 @@
+// Room.java
+package com.screenshare.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// A named group of sessions. Members see each other's shares: they are told when a
+// member starts or stops sharing and receive its SCREEN_DATA unless they unsubscribed.
+// Membership is changed only by SessionRegistry, under its lock; counters are updated
+// lock-free from the relay path.
+public class Room {
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    Set<ClientHandler> members() {
+        return members;
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    // One frame published into this room, delivered to `subscribers` of its members
+    void recordFrame(long size, int subscribers) {
+        frames.increment();
+        bytes.add(size);
+        deliveries.add(subscribers);
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    public String describe(int sharers) {
+        return String.format("%s: %d members, %d sharing, %d frames (%d bytes) in, %d deliveries",
+                name, members.size(), sharers, frames.sum(), bytes.sum(), deliveries.sum());
+    }
+}
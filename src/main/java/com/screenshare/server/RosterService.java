@@ -0,0 +1,166 @@
+// RosterService.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.Roster;
+import com.screenshare.common.RosterUpdate;
+import com.screenshare.util.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Versioned roster of sessions and their share state, pushed to clients that sent
+// CLIENT_LIST: a snapshot when they subscribe, then deltas.
+//
+// Changes are recorded under the service lock from connection threads; a single
+// publisher thread sends them. Events recorded while it is busy go out together as
+// one delta, so a burst of connects costs each subscriber one message, and one slow
+// subscriber only delays the roster, never a connection thread. Since one thread sends
+// everything, every subscriber sees versions in order. A client that still sees a gap
+// sends its last version back and gets the missing events from the recent history, or
+// a snapshot once they have aged out.
+public class RosterService {
+    private static final int HISTORY = 256;
+
+    private final Roster roster = new Roster();
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "roster-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+
+    // Guarded by this: the last HISTORY events, the newest at roster.getVersion()
+    private final ArrayDeque<RosterUpdate.Event> history = new ArrayDeque<>();
+    private final List<RosterUpdate.Event> pending = new ArrayList<>();
+    private long pendingFrom;
+
+    // Publisher thread only
+    private final Set<ClientHandler> subscribers = new HashSet<>();
+
+    public void added(ClientHandler session) {
+        record(new RosterUpdate.Event(RosterUpdate.Kind.ADDED, session.getSessionId(), session.getClientId()));
+    }
+
+    public void removed(ClientHandler session) {
+        submit(() -> subscribers.remove(session));
+        record(new RosterUpdate.Event(RosterUpdate.Kind.REMOVED, session.getSessionId(), null));
+    }
+
+    public void started(ClientHandler sharer) {
+        synchronized (this) {
+            if (!roster.contains(sharer.getSessionId()) || roster.isSharing(sharer.getSessionId())) {
+                return;
+            }
+            record(new RosterUpdate.Event(RosterUpdate.Kind.STARTED, sharer.getSessionId(), null));
+        }
+    }
+
+    public void stopped(ClientHandler sharer) {
+        synchronized (this) {
+            if (!roster.isSharing(sharer.getSessionId())) {
+                return;
+            }
+            record(new RosterUpdate.Event(RosterUpdate.Kind.STOPPED, sharer.getSessionId(), null));
+        }
+    }
+
+    // knownVersion is the last version the client applied, or -1 for a fresh snapshot
+    public void subscribe(ClientHandler session, long knownVersion) {
+        submit(() -> {
+            subscribers.add(session);
+            session.sendMessage(rosterMessage(catchUp(knownVersion)));
+        });
+    }
+
+    public void stop() {
+        publisher.shutdownNow();
+    }
+
+    public long getVersion() {
+        return roster.getVersion();
+    }
+
+    public String describe() {
+        return String.format("version %d, %d sessions, %d snapshots, %d deltas sent",
+                roster.getVersion(), roster.size(), snapshots.sum(), deltas.sum());
+    }
+
+    private synchronized void record(RosterUpdate.Event event) {
+        long version = roster.record(event);
+        history.addLast(event);
+        if (history.size() > HISTORY) {
+            history.removeFirst();
+        }
+        if (pending.isEmpty()) {
+            pendingFrom = version;
+            submit(this::publish);
+        }
+        pending.add(event);
+    }
+
+    // Connections still closing after stop() have nobody left to tell
+    private void submit(Runnable task) {
+        try {
+            publisher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    private void publish() {
+        RosterUpdate delta;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            delta = RosterUpdate.delta(pendingFrom, new ArrayList<>(pending));
+            pending.clear();
+        }
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        // One encoded payload shared by every subscriber
+        Message message = rosterMessage(delta);
+        for (ClientHandler subscriber : subscribers) {
+            subscriber.sendMessage(message);
+        }
+    }
+
+    // Current state for a subscriber: the events after knownVersion if they are still
+    // in the history, otherwise a snapshot. Either may run ahead of the deltas published
+    // so far; clients skip events they have already applied.
+    private synchronized RosterUpdate catchUp(long knownVersion) {
+        long version = roster.getVersion();
+        long oldest = version - history.size() + 1;
+        if (knownVersion < 0 || knownVersion > version || knownVersion + 1 < oldest) {
+            snapshots.increment();
+            return roster.snapshot();
+        }
+        List<RosterUpdate.Event> missed = new ArrayList<>();
+        Iterator<RosterUpdate.Event> events = history.descendingIterator();
+        for (long v = version; v > knownVersion; v--) {
+            missed.add(0, events.next());
+        }
+        return RosterUpdate.delta(knownVersion + 1, missed);
+    }
+
+    private Message rosterMessage(RosterUpdate update) {
+        if (!update.isSnapshot()) {
+            deltas.increment();
+        }
+        Logger.debug("Sending " + update);
+        return new Message(MessageType.CLIENT_LIST, Protocol.SERVER_CLIENT_ID, update.toBytes());
+    }
+}
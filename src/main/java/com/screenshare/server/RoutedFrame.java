@@ -0,0 +1,51 @@
+// RoutedFrame.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+
+// A frame or piece of screen data with the viewers it is to be offered to, as the route
+// step of ScreenShareServer found them, and what each offer is charged: sentBytes count
+// towards the share's root egress when a viewer takes it, refundBytes go back to the
+// global budget when one sheds it. Instances are reused, by the thread that routes on
+// the inline path and as ring entries in the RelayPipeline.
+final class RoutedFrame {
+    int sharerId;
+    Message message;
+    long sentBytes;
+    long refundBytes;
+    ClientHandler[] viewers = new ClientHandler[16];
+    int count;
+
+    RoutedFrame reset(int sharerId, Message message, long sentBytes, long refundBytes) {
+        clear();
+        this.sharerId = sharerId;
+        this.message = message;
+        this.sentBytes = sentBytes;
+        this.refundBytes = refundBytes;
+        return this;
+    }
+
+    void add(ClientHandler viewer) {
+        if (count == viewers.length) {
+            ClientHandler[] grown = new ClientHandler[count * 2];
+            System.arraycopy(viewers, 0, grown, 0, count);
+            viewers = grown;
+        }
+        viewers[count++] = viewer;
+    }
+
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            viewers[i] = null;
+        }
+        count = 0;
+        message = null;
+    }
+
+    // Where routed frames go: every next() is followed by routed() once it is filled
+    interface Sink {
+        RoutedFrame next();
+
+        void routed(RoutedFrame frame);
+    }
+}
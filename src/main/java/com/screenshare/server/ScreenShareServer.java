@@ -4,35 +4,139 @@
 package com.screenshare.server;
 
 import com.screenshare.common.*;
+import com.screenshare.util.HashedTimingWheel;
+import com.screenshare.util.TokenBucket;
         import com.screenshare.util.Logger;
 import org.apache.commons.cli.*;
 
         import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
         import java.util.concurrent.*;
-        import java.util.List;
+        import java.util.Set;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ScreenShareServer {
-    private ServerSocket serverSocket;
+    // 100ms resolution, one revolution every ~102s, so default client timeouts never wrap
+    private static final long LIVENESS_TICK_MILLIS = 100;
+    private static final int LIVENESS_WHEEL_SIZE = 1024;
+
+    private ServerSocketChannel serverChannel;
     private DatagramSocket udpSocket;
+    // The first shard's handler threads, which cluster peers share
     private ExecutorService clientThreadPool;
-    private final List<ClientHandler> connectedClients = new CopyOnWriteArrayList<>();
+    private final List<AcceptShard> shards = new CopyOnWriteArrayList<>();
+    // Local clients on server.unix.socket, handled by the first shard's threads
+    private volatile AcceptShard unixShard;
+    // With server.ssl.enabled; one context for all connections, so sessions resume
+    private volatile TlsContext tls;
+    private final SessionRegistry registry;
+    private final RosterService roster = new RosterService();
+    private final ThumbnailService thumbnails;
+    private final MosaicService mosaics;
+    private final SessionRecorder recorder;
+    private PlaybackServer playback;
+    private ClusterService cluster;
+    private final RelayTreeService relayTrees;
     private final AtomicBoolean running = new AtomicBoolean(false);
+    private final HashedTimingWheel livenessWheel = new HashedTimingWheel(LIVENESS_TICK_MILLIS, LIVENESS_WHEEL_SIZE);
     private ServerConfig config;
+    // Shared by all viewers; frames that do not fit are shed rather than queued
+    private final TokenBucket globalEgress;
+    private final LongAdder globalShed = new LongAdder();
+    // Sessions a client can resume, by the token it was given
+    private final Map<String, ClientHandler> resumable = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeRefused = new LongAdder();
+    private final LongAdder resumeExpired = new LongAdder();
+    // Null unless server.pipeline.enabled, in which case start() sets it before the first
+    // client is accepted; without it frames are relayed inline on the reader
+    private volatile RelayPipeline pipeline;
+    // Frames routed on the caller's thread are offered to their viewers straight away
+    private final ThreadLocal<RoutedFrame> inlineFrame = ThreadLocal.withInitial(RoutedFrame::new);
+    private final RoutedFrame.Sink inline = new RoutedFrame.Sink() {
+        @Override
+        public RoutedFrame next() {
+            return inlineFrame.get();
+        }
+
+        @Override
+        public void routed(RoutedFrame frame) {
+            deliver(frame, 0, 1);
+            frame.clear();
+        }
+    };
 
     public ScreenShareServer(ServerConfig config) {
         this.config = config;
-        this.clientThreadPool = Executors.newFixedThreadPool(config.getThreadPoolSize());
+        this.registry = new SessionRegistry(config.getClusterNodeId());
+        this.globalEgress = new TokenBucket(config.getGlobalEgressRate(), config.getRateBurst());
+        this.thumbnails = new ThumbnailService(registry, config.getThumbnailWidth(), config.getThumbnailInterval());
+        this.mosaics = new MosaicService(registry, config.getMosaicInterval());
+        this.recorder = new SessionRecorder(config);
+        // Relay links between viewers are plaintext, so there are no trees under TLS
+        this.relayTrees = config.isRelayTreeEnabled() && !config.isSslEnabled()
+                ? new RelayTreeService(registry, config) : null;
     }
 
     public void start() throws IOException {
         // Start TCP server for control messages
         Logger.info("Screen Share Server started on port " + config.getPort());
 
-        serverSocket = new ServerSocket(config.getPort());
+        if (config.isSslEnabled()) {
+            if (config.getSslKeystore().trim().isEmpty()) {
+                throw new IOException("server.ssl.enabled needs server.ssl.keystore");
+            }
+            tls = TlsContext.create(config.getSslKeystore(), config.getSslKeystorePassword(),
+                    config.getSslTruststore(), config.getSslTruststorePassword(), false,
+                    config.getSslSessionTimeout());
+            Logger.info("TLS enabled (" + TlsContext.PROTOCOL + ")");
+        }
+
+        if (config.isPipelineEnabled()) {
+            pipeline = new RelayPipeline(this, config);
+        }
+
+        // Channel based so accepted connections support gathering writes
+        openShards();
         Logger.info("Screen Share Server started on port " + config.getPort());
+        openUnixSocket();
+
+        // Neither playback nor relay links are encrypted; with TLS on, they would carry
+        // screen data in the clear that the client port protects
+        if (config.isSslEnabled() && config.isPlaybackEnabled()) {
+            Logger.error("Playback not started: its connections are unencrypted and server.ssl.enabled is on");
+        } else if (config.isPlaybackEnabled()) {
+            playback = new PlaybackServer(config.getRecordingPath(), config.getPlaybackPort());
+            playback.start();
+        }
+
+        if (config.getClusterNodeId() > 0) {
+            cluster = new ClusterService(this, registry, config);
+            cluster.start();
+        }
+
+        if (relayTrees != null) {
+            relayTrees.start();
+        } else if (config.isRelayTreeEnabled()) {
+            Logger.error("Relay trees not started: relay links are unencrypted and server.ssl.enabled is on");
+        }
+
+        if (pipeline != null) {
+            pipeline.start();
+        }
 
         // Start UDP server for screen data
         udpSocket = new DatagramSocket(config.getUdpPort());
@@ -40,25 +144,108 @@ public class ScreenShareServer {
 
         running.set(true);
 
-        // Start heartbeat checker
-        startHeartbeatChecker();
+        // Start liveness timeouts
+        livenessWheel.start("liveness-wheel");
+        thumbnails.start();
+        mosaics.start();
+        recorder.start();
+
+        // Accept client connections, the first shard on this thread
+        if (unixShard != null) {
+            Thread acceptor = new Thread(() -> acceptLoop(unixShard), "acceptor-unix");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (int i = 1; i < shards.size(); i++) {
+            AcceptShard shard = shards.get(i);
+            Thread acceptor = new Thread(() -> acceptLoop(shard), "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        acceptLoop(shards.get(0));
+    }
 
-        // Accept client connections
+    // One listening socket per shard, each bound with SO_REUSEPORT when there are several so
+    // the kernel spreads incoming connections across them. Handler threads are split between
+    // the shards; sessions and rooms stay in the one registry
+    private void openShards() throws IOException {
+        int count = Math.max(1, config.getAcceptShards());
+        if (count > 1 && !supportsReusePort()) {
+            Logger.info("SO_REUSEPORT not supported, accepting on a single socket");
+            count = 1;
+        }
+        int handlerThreads = Math.max(1, (config.getThreadPoolSize() + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (count > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+            shards.add(new AcceptShard(i, channel, Executors.newFixedThreadPool(handlerThreads)));
+        }
+        serverChannel = shards.get(0).channel;
+        clientThreadPool = shards.get(0).handlers;
+        if (count > 1) {
+            Logger.info("Accepting on " + count + " shards, " + handlerThreads + " handler threads each");
+        }
+    }
+
+    // A socket file left by a server that did not stop cleanly is replaced; one that a
+    // live server still listens on fails the bind
+    private void openUnixSocket() throws IOException {
+        String path = config.getUnixSocketPath().trim();
+        if (path.isEmpty()) {
+            return;
+        }
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(address.getPath()) && !isListening(address)) {
+            Files.delete(address.getPath());
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(address, config.getAcceptBacklog());
+        unixShard = new AcceptShard(-1, channel, clientThreadPool);
+        Logger.info("Accepting local clients on unix:" + path);
+    }
+
+    // A plain connect and close: a live server sees a connection that ends before its
+    // handshake, and we fail the bind after it anyway
+    private static boolean isListening(UnixDomainSocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void acceptLoop(AcceptShard shard) {
         while (running.get()) {
             try {
-                Socket clientSocket = serverSocket.accept();
-
-                if (connectedClients.size() >= config.getMaxClients()) {
-                    Logger.info("Max clients reached, rejecting connection from: " +
-                            clientSocket.getRemoteSocketAddress());
-                    clientSocket.close();
+                SocketChannel clientChannel = shard.channel.accept();
+                // A Unix domain peer has no address of its own
+                Object remote = shard.index < 0 ? "unix:" + config.getUnixSocketPath().trim()
+                        : clientChannel.getRemoteAddress();
+
+                // Shards check on their own, so the limit can be passed by one per other shard
+                if (registry.localSize() >= config.getMaxClients()) {
+                    Logger.info("Max clients reached, rejecting connection from: " + remote);
+                    clientChannel.close();
                     continue;
                 }
 
-                Logger.info("New client connected: " + clientSocket.getRemoteSocketAddress());
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                connectedClients.add(handler);
-                clientThreadPool.execute(handler);
+                Logger.info("New client connected: " + remote);
+                ClientHandler handler = new ClientHandler(clientChannel, this, registry.allocateSessionId());
+                registerClient(handler);
+                shard.handlers.execute(handler);
+                shard.accepted.increment();
 
             } catch (IOException e) {
                 if (running.get()) {
@@ -72,14 +259,23 @@ public class ScreenShareServer {
         Logger.info("Stopping Screen Share Server...");
         running.set(false);
 
-        // Close all client connections
-        for (ClientHandler client : connectedClients) {
-            client.sendMessage(new Message(MessageType.DISCONNECT, "SERVER", "Server shutting down"));
+        // Close all client connections, and peers' links
+        for (ClientHandler client : registry.sessions()) {
+            if (!client.isRemote()) {
+                client.sendMessage(new Message(MessageType.DISCONNECT, "SERVER", "Server shutting down"));
+            }
         }
 
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            for (AcceptShard shard : shards) {
+                if (shard.channel.isOpen()) {
+                    shard.channel.close();
+                }
+            }
+            AcceptShard local = unixShard;
+            if (local != null && local.channel.isOpen()) {
+                local.channel.close();
+                Files.deleteIfExists(Paths.get(config.getUnixSocketPath().trim()));
             }
             if (udpSocket != null && !udpSocket.isClosed()) {
                 udpSocket.close();
@@ -88,74 +284,597 @@ public class ScreenShareServer {
             Logger.error("Error closing server sockets", e);
         }
 
-        clientThreadPool.shutdown();
-        try {
-            if (!clientThreadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                clientThreadPool.shutdownNow();
+        livenessWheel.stop();
+        roster.stop();
+        thumbnails.stop();
+        mosaics.stop();
+        recorder.stop();
+        if (playback != null) {
+            playback.stop();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (relayTrees != null) {
+            relayTrees.stop();
+        }
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        Logger.info("Bandwidth budgets: " + describeShedding());
+        Logger.info("Rooms: " + describeRooms());
+        Logger.info("Roster: " + roster.describe());
+        Logger.info("Thumbnails: " + thumbnails.describe());
+        Logger.info("Mosaics: " + mosaics.describe());
+        Logger.info("Recording: " + recorder.describe());
+        if (playback != null) {
+            Logger.info("Playback: " + playback.describe());
+        }
+        if (cluster != null) {
+            Logger.info("Cluster: " + cluster.describe());
+        }
+        if (relayTrees != null) {
+            Logger.info("Relay trees: " + relayTrees.describe());
+        }
+        if (pipeline != null) {
+            Logger.info("Relay pipeline: " + pipeline.describe());
+        }
+        if (config.isResumeEnabled()) {
+            Logger.info("Resumption: " + describeResumption());
+        }
+        if (tls != null) {
+            Logger.info("TLS: " + tls.describe());
+        }
+        if (shards.size() > 1 || unixShard != null) {
+            Logger.info("Accept shards: " + describeShards());
+        }
+
+        for (AcceptShard shard : shards) {
+            shard.handlers.shutdown();
+        }
+        for (AcceptShard shard : shards) {
+            try {
+                if (!shard.handlers.awaitTermination(5, TimeUnit.SECONDS)) {
+                    shard.handlers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                shard.handlers.shutdownNow();
             }
-        } catch (InterruptedException e) {
-            clientThreadPool.shutdownNow();
         }
 
         Logger.info("Screen Share Server stopped");
     }
 
+    void registerClient(ClientHandler client) {
+        registry.add(client);
+        roster.added(client);
+        client.watchLiveness(livenessWheel, config.getClientTimeout());
+        clusterChanged();
+    }
+
+    String issueResumeToken(ClientHandler client) {
+        byte[] bytes = new byte[16];
+        tokens.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        resumable.put(token.toString(), client);
+        return token.toString();
+    }
+
+    // A token that brought its client back is spent, so a copy of it cannot take the
+    // session over again
+    String reissueResumeToken(ClientHandler client, String spent) {
+        resumable.remove(spent, client);
+        return issueResumeToken(client);
+    }
+
+    ClientHandler findResumable(String token) {
+        return resumable.get(token);
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    void recordResumed() {
+        resumed.increment();
+    }
+
+    void recordResumeRefused() {
+        resumeRefused.increment();
+    }
+
+    void recordResumeExpired() {
+        resumeExpired.increment();
+    }
+
+    public String describeResumption() {
+        return String.format("%d resumed, %d refused, %d expired, %d resumable",
+                resumed.sum(), resumeRefused.sum(), resumeExpired.sum(), resumable.size());
+    }
+
+    // Another cluster node's link, accepted on the cluster port; it speaks the client
+    // protocol, so it gets a session of its own, but stays out of the roster
+    void acceptPeer(SocketChannel channel) {
+        ClientHandler peer = new ClientHandler(channel, this, registry.allocateSessionId(), true);
+        registry.add(peer);
+        peer.watchLiveness(livenessWheel, config.getClusterPeerTimeout());
+        clientThreadPool.execute(peer);
+    }
+
+    // A session of another cluster node, as its gossip announced it
+    void addRemoteSession(RemoteSession session) {
+        registry.add(session);
+        roster.added(session);
+    }
+
+    // Moves a remote or peer session from one set of rooms to another, as gossiped by its
+    // node, telling local clients about the shares this shows or hides
+    void moveBetweenRooms(ClientHandler session, Collection<String> from, Collection<String> to) {
+        for (String room : to) {
+            if (!from.contains(room) && Protocol.isValidRoomName(room)) {
+                announce(registry.join(session, room));
+            }
+        }
+        for (String room : from) {
+            List<SessionRegistry.ShareVisibility> changes = to.contains(room) ? null : registry.leave(session, room);
+            if (changes != null) {
+                announce(changes);
+            }
+        }
+    }
+
     public void removeClient(ClientHandler client) {
-        connectedClients.remove(client);
-        Logger.info("Client removed: " + client.getClientId() +
-                ", remaining clients: " + connectedClients.size());
+        String token = client.getResumeToken();
+        if (token != null) {
+            resumable.remove(token, client);
+        }
+        if (pipeline != null) {
+            pipeline.removed(client);
+        }
+        if (registry.remove(client)) {
+            if (client.isPeer()) {
+                if (cluster != null) {
+                    cluster.peerLost(client);
+                }
+                Logger.info("Cluster peer removed: " + client.getClientId());
+                return;
+            }
+            roster.removed(client);
+            thumbnails.unwatch(client);
+            thumbnails.ended(client.getSessionId());
+            mosaics.removed(client);
+            recorder.end(client.getSessionId());
+            if (relayTrees != null) {
+                relayTrees.removed(client);
+            }
+            Logger.info("Client removed: " + client.getClientId() +
+                    ", remaining clients: " + registry.localSize());
+            clusterChanged();
+        }
+    }
+
+    // Null unless server.cluster.node.id is set
+    public ClusterService getCluster() {
+        return cluster;
+    }
+
+    // Null unless server.relay.tree.enabled
+    public RelayTreeService getRelayTrees() {
+        return relayTrees;
+    }
+
+    // Null unless server.pipeline.enabled
+    public RelayPipeline getPipeline() {
+        return pipeline;
+    }
+
+    private void clusterChanged() {
+        if (cluster != null) {
+            cluster.changed();
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
     }
 
-    public void notifyClientStartedSharing(String clientId) {
-        Message notification = new Message(MessageType.START_SHARE, clientId, "Client started sharing");
-        broadcastMessage(notification, clientId);
+    public SessionRegistry getRegistry() {
+        return registry;
     }
 
-    public void notifyClientStoppedSharing(String clientId) {
-        Message notification = new Message(MessageType.STOP_SHARE, clientId, "Client stopped sharing");
-        broadcastMessage(notification, clientId);
+    public RosterService getRoster() {
+        return roster;
     }
 
-    public void broadcastScreenData(String senderId, Message screenData) {
-        // Forward screen data to all clients except sender
-        for (ClientHandler client : connectedClients) {
-            if (!client.getClientId().equals(senderId)) {
-                client.sendMessage(screenData);
+    public SessionRecorder getRecorder() {
+        return recorder;
+    }
+
+    // Server-side previews (thumbnails, mosaics) take a sharer's frames at a low rate;
+    // streamed frames are only reassembled for them when one of them wants the next one
+    public boolean wantsFrame(int sharerId) {
+        return thumbnails.wants(sharerId) || mosaics.wants(sharerId);
+    }
+
+    public void offerFrame(int sharerId, Message frame) {
+        thumbnails.offer(sharerId, frame);
+        mosaics.offer(sharerId, frame);
+    }
+
+    public ThumbnailService getThumbnails() {
+        return thumbnails;
+    }
+
+    // An empty payload stops the viewer's mosaic
+    public void setMosaic(ClientHandler viewer, String layoutText) {
+        MosaicLayout layout = null;
+        if (!layoutText.isBlank()) {
+            try {
+                layout = MosaicLayout.parse(layoutText);
+            } catch (IllegalArgumentException e) {
+                viewer.sendMessage(error("Invalid mosaic layout: " + e.getMessage()));
+                return;
+            }
+        }
+        mosaics.set(viewer, layout);
+        viewer.sendMessage(new Message(MessageType.MOSAIC, Protocol.SERVER_CLIENT_ID,
+                layout != null ? layout.toString() : ""));
+    }
+
+    public void setWatchingPreviews(ClientHandler viewer, boolean watching) {
+        if (watching) {
+            thumbnails.watch(viewer);
+        } else {
+            thumbnails.unwatch(viewer);
+        }
+    }
+
+    // Announced to everyone in the sharer's rooms, subscribed or not. Shares of other
+    // cluster nodes are recorded there.
+    public void notifyClientStartedSharing(ClientHandler sharer) {
+        registry.startShare(sharer.getSessionId());
+        roster.started(sharer);
+        if (!sharer.isRemote()) {
+            recorder.begin(sharer.getSessionId(), sharer.getClientId(), sharer.getClientName(),
+                    registry.roomNamesOf(sharer.getSessionId()));
+        }
+        for (ClientHandler member : registry.audienceOf(sharer.getSessionId())) {
+            member.sendMessage(shareNotice(sharer, true));
+        }
+        if (relayTrees != null) {
+            relayTrees.started(sharer.getSessionId());
+        }
+        clusterChanged();
+    }
+
+    public void notifyClientStoppedSharing(ClientHandler sharer) {
+        // Frames still in the pipeline would otherwise start the share again
+        if (pipeline != null) {
+            pipeline.drain(sharer);
+        }
+        registry.stopShare(sharer.getSessionId());
+        roster.stopped(sharer);
+        thumbnails.ended(sharer.getSessionId());
+        mosaics.ended(sharer.getSessionId());
+        recorder.end(sharer.getSessionId());
+        if (relayTrees != null) {
+            relayTrees.ended(sharer.getSessionId());
+        }
+        for (ClientHandler member : registry.audienceOf(sharer.getSessionId())) {
+            member.sendMessage(shareNotice(sharer, false));
+        }
+        clusterChanged();
+    }
+
+    private static Message shareNotice(ClientHandler sharer, boolean started) {
+        Message notice = started
+                ? new Message(MessageType.START_SHARE, sharer.getClientId(), "Client started sharing")
+                : new Message(MessageType.STOP_SHARE, sharer.getClientId(), "Client stopped sharing");
+        notice.setSessionId(sharer.getSessionId());
+        return notice;
+    }
+
+    public void joinRoom(ClientHandler session, String room) {
+        if (!Protocol.isValidRoomName(room)) {
+            session.sendMessage(error("Invalid room name: " + room));
+            return;
+        }
+        announce(registry.join(session, room));
+        session.sendMessage(new Message(MessageType.JOIN, Protocol.SERVER_CLIENT_ID, room));
+        Logger.info("Client " + session.getClientId() + " joined room " + room);
+        clusterChanged();
+    }
+
+    public void leaveRoom(ClientHandler session, String room) {
+        List<SessionRegistry.ShareVisibility> changes = registry.leave(session, room);
+        if (changes == null) {
+            session.sendMessage(error("Not in room: " + room));
+            return;
+        }
+        announce(changes);
+        session.sendMessage(new Message(MessageType.LEAVE, Protocol.SERVER_CLIENT_ID, room));
+        Logger.info("Client " + session.getClientId() + " left room " + room);
+        clusterChanged();
+    }
+
+    // Turns a viewer's SCREEN_DATA from one sharer on or off; the payload is the sharer's session id
+    public void setSubscribed(ClientHandler viewer, String sharer, boolean subscribed) {
+        int sharerId;
+        try {
+            sharerId = Integer.parseInt(sharer.trim());
+        } catch (NumberFormatException e) {
+            viewer.sendMessage(error("Invalid session id: " + sharer));
+            return;
+        }
+        boolean done = subscribed ? registry.subscribe(viewer, sharerId) : registry.unsubscribe(viewer, sharerId);
+        if (!done) {
+            viewer.sendMessage(error("Cannot " + (subscribed ? "subscribe to" : "unsubscribe from")
+                    + " session " + sharerId));
+            return;
+        }
+        viewer.sendMessage(new Message(subscribed ? MessageType.SUBSCRIBE : MessageType.UNSUBSCRIBE,
+                Protocol.SERVER_CLIENT_ID, String.valueOf(sharerId)));
+        clusterChanged();
+    }
+
+    private void announce(List<SessionRegistry.ShareVisibility> changes) {
+        for (SessionRegistry.ShareVisibility change : changes) {
+            change.viewer.sendMessage(shareNotice(change.sharer, change.visible));
+        }
+    }
+
+    private static Message error(String text) {
+        return new Message(MessageType.ERROR, Protocol.SERVER_CLIENT_ID, text);
+    }
+
+    public void broadcastScreenData(int senderSessionId, Message screenData) {
+        routeScreenData(senderSessionId, screenData, inline);
+    }
+
+    // Relays one piece of a streamed frame as soon as it arrives, so the server never
+    // holds a whole frame for viewers that speak fragments
+    public void forwardScreenFragment(ClientHandler sender, Message piece) {
+        routeScreenFragment(sender, piece, inline);
+    }
+
+    // SCREEN_DATA a session's reader admitted, whole or a piece: through the relay
+    // pipeline when there is one, otherwise relayed on the reader's thread
+    void relayScreenData(ClientHandler sender, Message message) {
+        if (pipeline != null) {
+            pipeline.ingest(sender, message);
+        } else if (message.getFragment() != null) {
+            forwardScreenFragment(sender, message);
+        } else {
+            broadcastScreenData(sender.getSessionId(), message);
+        }
+    }
+
+    // Finds the viewers of a whole frame and charges the budgets for it
+    void routeScreenData(int senderSessionId, Message screenData, RoutedFrame.Sink sink) {
+        Set<ClientHandler> viewers = screenViewers(senderSessionId);
+        Set<ClientHandler> relayed = relayedViewers(senderSessionId);
+        // Recorded whether or not any viewer gets it
+        recorder.record(senderSessionId, screenData);
+        long size = ClientHandler.screenDataSize(screenData);
+        if (!admitGlobalEgress(size, Math.max(0, viewers.size() - relayed.size()))) {
+            return;
+        }
+        registry.recordFrame(senderSessionId, size);
+        offerFrame(senderSessionId, screenData);
+        RoutedFrame routed = sink.next().reset(senderSessionId, screenData, size, size);
+        for (ClientHandler viewer : viewers) {
+            if (!relayed.contains(viewer)) {
+                routed.add(viewer);
+            }
+        }
+        sink.routed(routed);
+    }
+
+    // The same for one piece; viewers that cannot take pieces get the frame once it is
+    // whole. Always called on one thread per sender, which owns its reassembly state.
+    void routeScreenFragment(ClientHandler sender, Message piece, RoutedFrame.Sink sink) {
+        Set<ClientHandler> viewers = screenViewers(sender.getSessionId());
+        boolean first = piece.getFragment().isFirst();
+        // Fixed for the whole frame, so no viewer gets only part of it
+        if (first) {
+            Set<ClientHandler> relayed = relayedViewers(sender.getSessionId());
+            sender.frameRelayed = relayed.isEmpty() ? Collections.<ClientHandler>emptySet() : new HashSet<>(relayed);
+        }
+        Set<ClientHandler> relayed = sender.frameRelayed;
+        recorder.recordPiece(sender.getSessionId(), piece);
+        long size = ClientHandler.screenDataSize(piece);
+        // Decided once per frame, on its first piece; viewers drop the rest by themselves
+        boolean shed = first && !admitGlobalEgress(size, Math.max(0, viewers.size() - relayed.size()));
+        if (first && !shed) {
+            registry.recordFrame(sender.getSessionId(), size);
+        }
+
+        List<ClientHandler> legacyViewers = null;
+        RoutedFrame routed = sink.next().reset(sender.getSessionId(), piece, piece.getPayload().length,
+                first ? size : 0);
+        for (ClientHandler viewer : viewers) {
+            if (relayed.contains(viewer)) {
+                continue;
+            }
+            if (viewer.acceptsFragments()) {
+                if (!shed) {
+                    routed.add(viewer);
+                }
+            } else {
+                if (legacyViewers == null) {
+                    legacyViewers = new ArrayList<>();
+                }
+                legacyViewers.add(viewer);
+            }
+        }
+        sink.routed(routed);
+
+        Message whole = sender.reassemble(piece, legacyViewers != null && !shed,
+                first && wantsFrame(sender.getSessionId()));
+        if (whole != null && legacyViewers != null) {
+            RoutedFrame reassembled = sink.next().reset(sender.getSessionId(), whole, size, size);
+            for (ClientHandler viewer : legacyViewers) {
+                reassembled.add(viewer);
             }
+            sink.routed(reassembled);
         }
     }
 
-    private void broadcastMessage(Message message, String excludeClientId) {
-        for (ClientHandler client : connectedClients) {
-            if (!client.getClientId().equals(excludeClientId)) {
-                client.sendMessage(message);
+    // Offers a routed frame to its viewers, or to those of them in one of several egress
+    // partitions; returns how many it was offered to
+    int deliver(RoutedFrame frame, int partition, int partitions) {
+        long sent = 0;
+        int offered = 0;
+        for (int i = 0; i < frame.count; i++) {
+            ClientHandler viewer = frame.viewers[i];
+            if (partitions > 1 && Math.floorMod(viewer.getSessionId(), partitions) != partition) {
+                continue;
+            }
+            offered++;
+            if (viewer.offerScreenData(frame.message)) {
+                sent += frame.sentBytes;
+            } else if (frame.refundBytes > 0) {
+                globalEgress.refund(frame.refundBytes);
             }
         }
+        recordRootEgress(frame.sharerId, sent);
+        return offered;
+    }
+
+    // Viewers of this share that take its frames from a relay viewer instead of from here
+    private Set<ClientHandler> relayedViewers(int sharerId) {
+        return relayTrees != null ? relayTrees.relayedViewers(sharerId) : Collections.<ClientHandler>emptySet();
+    }
+
+    private void recordRootEgress(int sharerId, long bytes) {
+        if (relayTrees != null) {
+            relayTrees.recordRootEgress(sharerId, bytes);
+        }
+    }
+
+    // A frame goes to all of its viewers or, when the global budget cannot cover them
+    // all, to none: shedding per viewer would starve whichever comes last in the set
+    private boolean admitGlobalEgress(long frameSize, int viewers) {
+        if (viewers == 0 || globalEgress.tryAcquire(frameSize * viewers)) {
+            return true;
+        }
+        globalShed.increment();
+        return false;
+    }
+
+    public long getGlobalShed() {
+        return globalShed.sum();
+    }
+
+    // Frames shed across all sessions, in and out, plus what the global budget refused
+    public String describeShedding() {
+        long in = 0;
+        long out = 0;
+        for (ClientHandler session : registry.sessions()) {
+            in += session.getIngressShed();
+            out += session.getEgressShed();
+        }
+        return String.format("shed %d in / %d out by live sessions, %d frames by global egress (%d bytes)",
+                in, out, globalShed.sum(), globalEgress.getThrottledBytes());
     }
 
-    private void startHeartbeatChecker() {
-        ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
-        heartbeatScheduler.scheduleAtFixedRate(() -> {
-            List<ClientHandler> deadClients = new ArrayList<>();
+    // A viewer's report on a sharer's frames goes to that sharer; the session id on the
+    // message tells the sharer which viewer it came from
+    public void forwardReceiverReport(Message message) {
+        ReceiverReport report;
+        try {
+            report = ReceiverReport.parse(message.getPayload());
+        } catch (IOException e) {
+            Logger.error("Dropping receiver report from " + message.getClientId() + ": " + e.getMessage());
+            return;
+        }
+        ClientHandler sharer = registry.get(report.getSharerSessionId());
+        if (sharer != null && sharer.getSessionId() != message.getSessionId()) {
+            sharer.sendMessage(message);
+        }
+    }
 
-            for (ClientHandler client : connectedClients) {
-                if (!client.isAlive()) {
-                    deadClients.add(client);
+    private Set<ClientHandler> screenViewers(int senderSessionId) {
+        Set<ClientHandler> viewers = registry.viewersOf(senderSessionId);
+        if (viewers.isEmpty() && !registry.isSharing(senderSessionId)) {
+            // SCREEN_DATA without a START_SHARE still reaches the sender's rooms, as it always has
+            viewers = registry.startShare(senderSessionId);
+            ClientHandler sender = registry.get(senderSessionId);
+            if (sender != null) {
+                roster.started(sender);
+                recorder.begin(senderSessionId, sender.getClientId(), sender.getClientName(),
+                        registry.roomNamesOf(senderSessionId));
+                if (relayTrees != null) {
+                    relayTrees.started(senderSessionId);
                 }
+                clusterChanged();
             }
+        }
+        return viewers;
+    }
+
+    public String describeRooms() {
+        StringBuilder description = new StringBuilder();
+        for (Room room : registry.rooms()) {
+            if (description.length() > 0) {
+                description.append("; ");
+            }
+            description.append(room.describe(registry.sharersIn(room)));
+        }
+        return description.length() > 0 ? description.toString() : "no rooms";
+    }
 
-            for (ClientHandler deadClient : deadClients) {
-                Logger.info("Removing dead client: " + deadClient.getClientId());
-                removeClient(deadClient);
+    // Connections each listening socket took, which shows how evenly the kernel spread them
+    public String describeShards() {
+        StringBuilder description = new StringBuilder();
+        for (AcceptShard shard : shards) {
+            if (description.length() > 0) {
+                description.append(", ");
             }
+            description.append(shard.index).append(": ").append(shard.accepted.sum());
+        }
+        AcceptShard local = unixShard;
+        if (local != null) {
+            description.append(description.length() > 0 ? ", " : "").append("unix: ").append(local.accepted.sum());
+        }
+        return description.length() > 0 ? description.toString() : "not listening";
+    }
 
-        }, config.getHeartbeatInterval(), config.getHeartbeatInterval(), TimeUnit.MILLISECONDS);
+    // Null unless server.ssl.enabled
+    public TlsContext getTls() {
+        return tls;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    private static final class AcceptShard {
+        // -1 for the Unix domain socket
+        final int index;
+        final ServerSocketChannel channel;
+        final ExecutorService handlers;
+        final LongAdder accepted = new LongAdder();
+
+        AcceptShard(int index, ServerSocketChannel channel, ExecutorService handlers) {
+            this.index = index;
+            this.channel = channel;
+            this.handlers = handlers;
+        }
     }
 
     public static void main(String[] args) {
         Options options = new Options();
         options.addOption("p", "port", true, "Server port (default: 8087)");
+        options.addOption("u", "udp-port", true, "UDP port (default: 8081)");
         options.addOption("c", "config", true, "Configuration file path");
+        options.addOption("n", "node-id", true, "Cluster node id, 1-127 (default: 0, no cluster)");
+        options.addOption(null, "cluster-port", true, "Port for links from other cluster nodes (default: 8090)");
+        options.addOption(null, "peers", true, "Other cluster nodes as host:port,host:port");
+        options.addOption(null, "unix-socket", true, "Also accept local clients on this Unix domain socket path");
         options.addOption("h", "help", false, "Show help");
 
         CommandLineParser parser = new DefaultParser();
@@ -176,9 +895,24 @@ public class ScreenShareServer {
                 config = new ServerConfig();
             }
 
+            // Command line overrides, so several nodes can share one config file
             if (cmd.hasOption("port")) {
-                // Override port from command line
-                System.setProperty("server.port", cmd.getOptionValue("port"));
+                config.setPort(Integer.parseInt(cmd.getOptionValue("port")));
+            }
+            if (cmd.hasOption("udp-port")) {
+                config.setUdpPort(Integer.parseInt(cmd.getOptionValue("udp-port")));
+            }
+            if (cmd.hasOption("node-id")) {
+                config.setClusterNodeId(Integer.parseInt(cmd.getOptionValue("node-id")));
+            }
+            if (cmd.hasOption("cluster-port")) {
+                config.setClusterPort(Integer.parseInt(cmd.getOptionValue("cluster-port")));
+            }
+            if (cmd.hasOption("peers")) {
+                config.setClusterPeers(cmd.getOptionValue("peers"));
+            }
+            if (cmd.hasOption("unix-socket")) {
+                config.setUnixSocketPath(cmd.getOptionValue("unix-socket"));
             }
 
             ScreenShareServer server = new ScreenShareServer(config);
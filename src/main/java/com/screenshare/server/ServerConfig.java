@@ -3,6 +3,9 @@
 // ================================
 package com.screenshare.server;
 
+import com.screenshare.common.Compression;
+import com.screenshare.util.WaitStrategy;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,12 +16,76 @@ public class ServerConfig {
     private int udpPort = 8081;
     private int maxClients = 50;
     private int threadPoolSize = 20;
+    // Listening sockets sharing the port (SO_REUSEPORT), each with its own accept loop
+    private int acceptShards = 1;
+    private int acceptBacklog = 1024;
+    // Also listen on this Unix domain socket path; empty listens on TCP only
+    private String unixSocketPath = "";
     private int heartbeatInterval = 30000; // 30 seconds
     private int clientTimeout = 60000; // 60 seconds
     private String logLevel = "INFO";
     private boolean enableUdp = true;
     private int bufferSize = 64 * 1024; // 64KB
-    private int maxPayloadSize = 1024 * 1024; // 1MB
+    private int maxPayloadSize = 64 * 1024 * 1024; // 64MB, streamed in fragments
+    private int writeCoalesceMicros = 500;
+    private int writeCoalesceBytes = 64 * 1024; // 64KB
+    private int writeChunkBytes = 16 * 1024; // 16KB
+    private String compression = Compression.NONE;
+    private int compressionThreshold = 256;
+    private int reportInterval = 200;
+    // Bandwidth budgets in bytes per second, 0 = unlimited
+    private long sessionIngressRate = 4 * 1024 * 1024; // 4MB/s
+    private long sessionEgressRate = 4 * 1024 * 1024; // 4MB/s
+    private long globalEgressRate = 0;
+    private int rateBurst = 1024 * 1024; // 1MB
+    private ShedPolicy ingressShedPolicy = ShedPolicy.DROP;
+    private int thumbnailWidth = 160;
+    private int thumbnailInterval = 1000;
+    private int mosaicInterval = 200;
+    private boolean recordingEnabled = false;
+    private String recordingPath = "recordings";
+    private String recordingSharers = "*";
+    private long recordingSegmentBytes = 64 * 1024 * 1024; // 64MB
+    private int recordingCommitInterval = 100;
+    private int recordingIndexInterval = 1000;
+    private long recordingBacklogBytes = 32 * 1024 * 1024; // 32MB
+    private boolean playbackEnabled = false;
+    private int playbackPort = 8083;
+    // Relay cluster; node 0 runs on its own
+    private int clusterNodeId = 0;
+    private int clusterPort = 8090;
+    private String clusterPeers = "";
+    private int clusterGossipInterval = 500;
+    private int clusterPeerTimeout = 5000;
+    // Viewer relay trees for large audiences
+    private boolean relayTreeEnabled = false;
+    private int relayRootDegree = 8;
+    private int relayMaxChildren = 4;
+    private int relayRepairInterval = 200;
+    // Staged relay of screen data (ingest -> route -> egress) instead of inline on readers
+    private boolean pipelineEnabled = false;
+    private int pipelineRouteThreads = 1;
+    private int pipelineEgressThreads = 2;
+    private int pipelineRingSize = 256;
+    private WaitStrategy pipelineWait = WaitStrategy.PARK;
+    private String pipelineCpus = "";
+    private int pipelineReportInterval = 10000;
+    // Shared memory for clients on this host; empty dir picks /dev/shm or the temp dir
+    private boolean shmEnabled = false;
+    private String shmDir = "";
+    private int shmRingSize = 4 * 1024 * 1024;
+    // TLS 1.3 on the client port and cluster links
+    private boolean sslEnabled = false;
+    private String sslKeystore = "";
+    private String sslKeystorePassword = "";
+    private String sslTruststore = "";
+    private String sslTruststorePassword = "";
+    private int sslSessionTimeout = 86400; // seconds
+    // A client whose connection drops may resume its session within the grace period,
+    // missing nothing the replay buffer still holds
+    private boolean resumeEnabled = false;
+    private long resumeGrace = 30000; // milliseconds
+    private int resumeBufferSize = 4 * 1024 * 1024;
 
     public ServerConfig() {
         // Default constructor with default values
@@ -35,12 +102,66 @@ public class ServerConfig {
             config.udpPort = Integer.parseInt(props.getProperty("server.udp.port", "8081"));
             config.maxClients = Integer.parseInt(props.getProperty("server.max.clients", "50"));
             config.threadPoolSize = Integer.parseInt(props.getProperty("server.thread.pool.size", "20"));
+            config.acceptShards = Integer.parseInt(props.getProperty("server.accept.shards", "1"));
+            config.acceptBacklog = Integer.parseInt(props.getProperty("server.accept.backlog", "1024"));
+            config.unixSocketPath = props.getProperty("server.unix.socket", "");
             config.heartbeatInterval = Integer.parseInt(props.getProperty("server.heartbeat.interval", "30000"));
             config.clientTimeout = Integer.parseInt(props.getProperty("server.client.timeout", "60000"));
             config.logLevel = props.getProperty("server.log.level", "INFO");
             config.enableUdp = Boolean.parseBoolean(props.getProperty("server.enable.udp", "true"));
             config.bufferSize = Integer.parseInt(props.getProperty("server.buffer.size", String.valueOf(64 * 1024)));
-            config.maxPayloadSize = Integer.parseInt(props.getProperty("server.max.payload.size", String.valueOf(1024 * 1024)));
+            config.maxPayloadSize = Integer.parseInt(props.getProperty("server.max.payload.size", String.valueOf(64 * 1024 * 1024)));
+            config.writeCoalesceMicros = Integer.parseInt(props.getProperty("server.write.coalesce.micros", "500"));
+            config.writeCoalesceBytes = Integer.parseInt(props.getProperty("server.write.coalesce.bytes", String.valueOf(64 * 1024)));
+            config.writeChunkBytes = Integer.parseInt(props.getProperty("server.write.chunk.bytes", String.valueOf(16 * 1024)));
+            config.compression = props.getProperty("server.compression", Compression.NONE);
+            config.compressionThreshold = Integer.parseInt(props.getProperty("server.compression.threshold", "256"));
+            config.reportInterval = Integer.parseInt(props.getProperty("server.report.interval", "200"));
+            config.sessionIngressRate = Long.parseLong(props.getProperty("server.session.ingress.rate", String.valueOf(4 * 1024 * 1024)));
+            config.sessionEgressRate = Long.parseLong(props.getProperty("server.session.egress.rate", String.valueOf(4 * 1024 * 1024)));
+            config.globalEgressRate = Long.parseLong(props.getProperty("server.global.egress.rate", "0"));
+            config.rateBurst = Integer.parseInt(props.getProperty("server.rate.burst", String.valueOf(1024 * 1024)));
+            config.ingressShedPolicy = ShedPolicy.forName(props.getProperty("server.ingress.shed.policy", "drop"));
+            config.thumbnailWidth = Integer.parseInt(props.getProperty("server.thumbnail.width", "160"));
+            config.thumbnailInterval = Integer.parseInt(props.getProperty("server.thumbnail.interval", "1000"));
+            config.mosaicInterval = Integer.parseInt(props.getProperty("server.mosaic.interval", "200"));
+            config.recordingEnabled = Boolean.parseBoolean(props.getProperty("server.recording.enabled", "false"));
+            config.recordingPath = props.getProperty("server.recording.path", "recordings");
+            config.recordingSharers = props.getProperty("server.recording.sharers", "*");
+            config.recordingSegmentBytes = Long.parseLong(props.getProperty("server.recording.segment.bytes", String.valueOf(64 * 1024 * 1024)));
+            config.recordingCommitInterval = Integer.parseInt(props.getProperty("server.recording.commit.interval", "100"));
+            config.recordingIndexInterval = Integer.parseInt(props.getProperty("server.recording.index.interval", "1000"));
+            config.recordingBacklogBytes = Long.parseLong(props.getProperty("server.recording.backlog.bytes", String.valueOf(32 * 1024 * 1024)));
+            config.playbackEnabled = Boolean.parseBoolean(props.getProperty("server.playback.enabled", "false"));
+            config.playbackPort = Integer.parseInt(props.getProperty("server.playback.port", "8083"));
+            config.clusterNodeId = Integer.parseInt(props.getProperty("server.cluster.node.id", "0"));
+            config.clusterPort = Integer.parseInt(props.getProperty("server.cluster.port", "8090"));
+            config.clusterPeers = props.getProperty("server.cluster.peers", "");
+            config.clusterGossipInterval = Integer.parseInt(props.getProperty("server.cluster.gossip.interval", "500"));
+            config.clusterPeerTimeout = Integer.parseInt(props.getProperty("server.cluster.peer.timeout", "5000"));
+            config.relayTreeEnabled = Boolean.parseBoolean(props.getProperty("server.relay.tree.enabled", "false"));
+            config.relayRootDegree = Integer.parseInt(props.getProperty("server.relay.root.degree", "8"));
+            config.relayMaxChildren = Integer.parseInt(props.getProperty("server.relay.max.children", "4"));
+            config.relayRepairInterval = Integer.parseInt(props.getProperty("server.relay.repair.interval", "200"));
+            config.pipelineEnabled = Boolean.parseBoolean(props.getProperty("server.pipeline.enabled", "false"));
+            config.pipelineRouteThreads = Integer.parseInt(props.getProperty("server.pipeline.route.threads", "1"));
+            config.pipelineEgressThreads = Integer.parseInt(props.getProperty("server.pipeline.egress.threads", "2"));
+            config.pipelineRingSize = Integer.parseInt(props.getProperty("server.pipeline.ring.size", "256"));
+            config.pipelineWait = WaitStrategy.forName(props.getProperty("server.pipeline.wait", "park"));
+            config.pipelineCpus = props.getProperty("server.pipeline.cpus", "");
+            config.pipelineReportInterval = Integer.parseInt(props.getProperty("server.pipeline.report.interval", "10000"));
+            config.shmEnabled = Boolean.parseBoolean(props.getProperty("server.shm.enabled", "false"));
+            config.shmDir = props.getProperty("server.shm.dir", "");
+            config.shmRingSize = Integer.parseInt(props.getProperty("server.shm.ring.size", "4194304"));
+            config.sslEnabled = Boolean.parseBoolean(props.getProperty("server.ssl.enabled", "false"));
+            config.sslKeystore = props.getProperty("server.ssl.keystore", "");
+            config.sslKeystorePassword = props.getProperty("server.ssl.keystore.password", "");
+            config.sslTruststore = props.getProperty("server.ssl.truststore", "");
+            config.sslTruststorePassword = props.getProperty("server.ssl.truststore.password", "");
+            config.sslSessionTimeout = Integer.parseInt(props.getProperty("server.ssl.session.timeout", "86400"));
+            config.resumeEnabled = Boolean.parseBoolean(props.getProperty("server.resume.enabled", "false"));
+            config.resumeGrace = Long.parseLong(props.getProperty("server.resume.grace", "30000"));
+            config.resumeBufferSize = Integer.parseInt(props.getProperty("server.resume.buffer.size", "4194304"));
 
             System.out.println("Loaded server configuration from: " + filename);
 
@@ -50,6 +171,9 @@ public class ServerConfig {
         } catch (NumberFormatException e) {
             System.err.println("Error parsing numeric values in config file '" + filename + "': " + e.getMessage());
             System.err.println("Using default configuration values");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value in config file '" + filename + "': " + e.getMessage());
+            System.err.println("Using default configuration values");
         }
 
         return config;
@@ -71,12 +195,66 @@ public class ServerConfig {
             config.udpPort = Integer.parseInt(props.getProperty("server.udp.port", "8081"));
             config.maxClients = Integer.parseInt(props.getProperty("server.max.clients", "50"));
             config.threadPoolSize = Integer.parseInt(props.getProperty("server.thread.pool.size", "20"));
+            config.acceptShards = Integer.parseInt(props.getProperty("server.accept.shards", "1"));
+            config.acceptBacklog = Integer.parseInt(props.getProperty("server.accept.backlog", "1024"));
+            config.unixSocketPath = props.getProperty("server.unix.socket", "");
             config.heartbeatInterval = Integer.parseInt(props.getProperty("server.heartbeat.interval", "30000"));
             config.clientTimeout = Integer.parseInt(props.getProperty("server.client.timeout", "60000"));
             config.logLevel = props.getProperty("server.log.level", "INFO");
             config.enableUdp = Boolean.parseBoolean(props.getProperty("server.enable.udp", "true"));
             config.bufferSize = Integer.parseInt(props.getProperty("server.buffer.size", String.valueOf(64 * 1024)));
-            config.maxPayloadSize = Integer.parseInt(props.getProperty("server.max.payload.size", String.valueOf(1024 * 1024)));
+            config.maxPayloadSize = Integer.parseInt(props.getProperty("server.max.payload.size", String.valueOf(64 * 1024 * 1024)));
+            config.writeCoalesceMicros = Integer.parseInt(props.getProperty("server.write.coalesce.micros", "500"));
+            config.writeCoalesceBytes = Integer.parseInt(props.getProperty("server.write.coalesce.bytes", String.valueOf(64 * 1024)));
+            config.writeChunkBytes = Integer.parseInt(props.getProperty("server.write.chunk.bytes", String.valueOf(16 * 1024)));
+            config.compression = props.getProperty("server.compression", Compression.NONE);
+            config.compressionThreshold = Integer.parseInt(props.getProperty("server.compression.threshold", "256"));
+            config.reportInterval = Integer.parseInt(props.getProperty("server.report.interval", "200"));
+            config.sessionIngressRate = Long.parseLong(props.getProperty("server.session.ingress.rate", String.valueOf(4 * 1024 * 1024)));
+            config.sessionEgressRate = Long.parseLong(props.getProperty("server.session.egress.rate", String.valueOf(4 * 1024 * 1024)));
+            config.globalEgressRate = Long.parseLong(props.getProperty("server.global.egress.rate", "0"));
+            config.rateBurst = Integer.parseInt(props.getProperty("server.rate.burst", String.valueOf(1024 * 1024)));
+            config.ingressShedPolicy = ShedPolicy.forName(props.getProperty("server.ingress.shed.policy", "drop"));
+            config.thumbnailWidth = Integer.parseInt(props.getProperty("server.thumbnail.width", "160"));
+            config.thumbnailInterval = Integer.parseInt(props.getProperty("server.thumbnail.interval", "1000"));
+            config.mosaicInterval = Integer.parseInt(props.getProperty("server.mosaic.interval", "200"));
+            config.recordingEnabled = Boolean.parseBoolean(props.getProperty("server.recording.enabled", "false"));
+            config.recordingPath = props.getProperty("server.recording.path", "recordings");
+            config.recordingSharers = props.getProperty("server.recording.sharers", "*");
+            config.recordingSegmentBytes = Long.parseLong(props.getProperty("server.recording.segment.bytes", String.valueOf(64 * 1024 * 1024)));
+            config.recordingCommitInterval = Integer.parseInt(props.getProperty("server.recording.commit.interval", "100"));
+            config.recordingIndexInterval = Integer.parseInt(props.getProperty("server.recording.index.interval", "1000"));
+            config.recordingBacklogBytes = Long.parseLong(props.getProperty("server.recording.backlog.bytes", String.valueOf(32 * 1024 * 1024)));
+            config.playbackEnabled = Boolean.parseBoolean(props.getProperty("server.playback.enabled", "false"));
+            config.playbackPort = Integer.parseInt(props.getProperty("server.playback.port", "8083"));
+            config.clusterNodeId = Integer.parseInt(props.getProperty("server.cluster.node.id", "0"));
+            config.clusterPort = Integer.parseInt(props.getProperty("server.cluster.port", "8090"));
+            config.clusterPeers = props.getProperty("server.cluster.peers", "");
+            config.clusterGossipInterval = Integer.parseInt(props.getProperty("server.cluster.gossip.interval", "500"));
+            config.clusterPeerTimeout = Integer.parseInt(props.getProperty("server.cluster.peer.timeout", "5000"));
+            config.relayTreeEnabled = Boolean.parseBoolean(props.getProperty("server.relay.tree.enabled", "false"));
+            config.relayRootDegree = Integer.parseInt(props.getProperty("server.relay.root.degree", "8"));
+            config.relayMaxChildren = Integer.parseInt(props.getProperty("server.relay.max.children", "4"));
+            config.relayRepairInterval = Integer.parseInt(props.getProperty("server.relay.repair.interval", "200"));
+            config.pipelineEnabled = Boolean.parseBoolean(props.getProperty("server.pipeline.enabled", "false"));
+            config.pipelineRouteThreads = Integer.parseInt(props.getProperty("server.pipeline.route.threads", "1"));
+            config.pipelineEgressThreads = Integer.parseInt(props.getProperty("server.pipeline.egress.threads", "2"));
+            config.pipelineRingSize = Integer.parseInt(props.getProperty("server.pipeline.ring.size", "256"));
+            config.pipelineWait = WaitStrategy.forName(props.getProperty("server.pipeline.wait", "park"));
+            config.pipelineCpus = props.getProperty("server.pipeline.cpus", "");
+            config.pipelineReportInterval = Integer.parseInt(props.getProperty("server.pipeline.report.interval", "10000"));
+            config.shmEnabled = Boolean.parseBoolean(props.getProperty("server.shm.enabled", "false"));
+            config.shmDir = props.getProperty("server.shm.dir", "");
+            config.shmRingSize = Integer.parseInt(props.getProperty("server.shm.ring.size", "4194304"));
+            config.sslEnabled = Boolean.parseBoolean(props.getProperty("server.ssl.enabled", "false"));
+            config.sslKeystore = props.getProperty("server.ssl.keystore", "");
+            config.sslKeystorePassword = props.getProperty("server.ssl.keystore.password", "");
+            config.sslTruststore = props.getProperty("server.ssl.truststore", "");
+            config.sslTruststorePassword = props.getProperty("server.ssl.truststore.password", "");
+            config.sslSessionTimeout = Integer.parseInt(props.getProperty("server.ssl.session.timeout", "86400"));
+            config.resumeEnabled = Boolean.parseBoolean(props.getProperty("server.resume.enabled", "false"));
+            config.resumeGrace = Long.parseLong(props.getProperty("server.resume.grace", "30000"));
+            config.resumeBufferSize = Integer.parseInt(props.getProperty("server.resume.buffer.size", "4194304"));
 
             System.out.println("Loaded server configuration from resources: " + resourcePath);
 
@@ -84,6 +262,8 @@ public class ServerConfig {
             System.err.println("Error loading server config resource '" + resourcePath + "': " + e.getMessage());
         } catch (NumberFormatException e) {
             System.err.println("Error parsing numeric values in config resource '" + resourcePath + "': " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value in config resource '" + resourcePath + "': " + e.getMessage());
         }
 
         return config;
@@ -95,38 +275,182 @@ public class ServerConfig {
         System.out.println("UDP Port: " + udpPort);
         System.out.println("Max Clients: " + maxClients);
         System.out.println("Thread Pool Size: " + threadPoolSize);
+        System.out.println("Accept: " + acceptShards + " shard(s), backlog " + acceptBacklog);
+        System.out.println("Unix Socket: " + (unixSocketPath.trim().isEmpty() ? "disabled" : unixSocketPath));
         System.out.println("Heartbeat Interval: " + heartbeatInterval + "ms");
         System.out.println("Client Timeout: " + clientTimeout + "ms");
         System.out.println("Log Level: " + logLevel);
         System.out.println("UDP Enabled: " + enableUdp);
         System.out.println("Buffer Size: " + bufferSize + " bytes");
         System.out.println("Max Payload Size: " + maxPayloadSize + " bytes");
+        System.out.println("Write Coalescing: " + writeCoalesceMicros + "us / " + writeCoalesceBytes + " bytes");
+        System.out.println("Write Chunk Size: " + writeChunkBytes + " bytes");
+        System.out.println("Compression: " + compression + " (from " + compressionThreshold + " bytes)");
+        System.out.println("Receiver Report Interval: " + reportInterval + "ms");
+        System.out.println("Session Ingress/Egress Rate: " + describeRate(sessionIngressRate) + " / "
+                + describeRate(sessionEgressRate) + ", global egress " + describeRate(globalEgressRate)
+                + ", burst " + rateBurst + " bytes");
+        System.out.println("Ingress Shed Policy: " + ingressShedPolicy);
+        System.out.println("Thumbnails: " + thumbnailWidth + "px wide, every " + thumbnailInterval + "ms");
+        System.out.println("Mosaic Interval: " + mosaicInterval + "ms");
+        System.out.println("Recording: " + (recordingEnabled ? "sharers " + recordingSharers + " to " + recordingPath
+                + ", " + recordingSegmentBytes + " byte segments, commit every " + recordingCommitInterval
+                + "ms, index every " + recordingIndexInterval + "ms, backlog " + recordingBacklogBytes + " bytes"
+                : "disabled"));
+        System.out.println("Playback: " + (playbackEnabled ? "port " + playbackPort : "disabled"));
+        System.out.println("Cluster: " + (clusterNodeId > 0 ? "node " + clusterNodeId + " on port " + clusterPort
+                + ", peers " + (clusterPeers.isBlank() ? "none" : clusterPeers) + ", gossip every "
+                + clusterGossipInterval + "ms, peer timeout " + clusterPeerTimeout + "ms" : "disabled"));
+        System.out.println("Relay Trees: " + (relayTreeEnabled ? relayRootDegree + " viewers from the server, up to "
+                + relayMaxChildren + " per relay, repaired every " + relayRepairInterval + "ms" : "disabled"));
+        System.out.println("Relay Pipeline: " + (pipelineEnabled ? pipelineRouteThreads + " route, "
+                + pipelineEgressThreads + " egress threads, rings of " + pipelineRingSize + ", "
+                + pipelineWait.name().toLowerCase() + " waits"
+                + (pipelineCpus.trim().isEmpty() ? "" : ", pinned to CPUs " + pipelineCpus) : "disabled"));
+        System.out.println("Shared Memory: " + (shmEnabled ? (shmRingSize / 1024) + "KB rings in "
+                + (shmDir.trim().isEmpty() ? "the default directory" : shmDir) : "disabled"));
+        System.out.println("TLS: " + (sslEnabled ? "TLSv1.3, keystore " + sslKeystore
+                + ", sessions resumable for " + sslSessionTimeout + "s" : "disabled"));
+        System.out.println("Session Resumption: " + (resumeEnabled ? "for " + resumeGrace + "ms after a drop, replaying up to "
+                + (resumeBufferSize / 1024) + "KB" : "disabled"));
         System.out.println("============================");
     }
 
+    private static String describeRate(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited";
+    }
+
     // Getters
     public int getPort() { return port; }
     public int getUdpPort() { return udpPort; }
     public int getMaxClients() { return maxClients; }
     public int getThreadPoolSize() { return threadPoolSize; }
+    public int getAcceptShards() { return acceptShards; }
+    public int getAcceptBacklog() { return acceptBacklog; }
+    public String getUnixSocketPath() { return unixSocketPath; }
     public int getHeartbeatInterval() { return heartbeatInterval; }
     public int getClientTimeout() { return clientTimeout; }
     public String getLogLevel() { return logLevel; }
     public boolean isUdpEnabled() { return enableUdp; }
     public int getBufferSize() { return bufferSize; }
     public int getMaxPayloadSize() { return maxPayloadSize; }
+    public int getWriteCoalesceMicros() { return writeCoalesceMicros; }
+    public int getWriteCoalesceBytes() { return writeCoalesceBytes; }
+    public int getWriteChunkBytes() { return writeChunkBytes; }
+    public String getCompression() { return compression; }
+    public int getCompressionThreshold() { return compressionThreshold; }
+    public int getReportInterval() { return reportInterval; }
+    public long getSessionIngressRate() { return sessionIngressRate; }
+    public long getSessionEgressRate() { return sessionEgressRate; }
+    public long getGlobalEgressRate() { return globalEgressRate; }
+    public int getRateBurst() { return rateBurst; }
+    public ShedPolicy getIngressShedPolicy() { return ingressShedPolicy; }
+    public int getThumbnailWidth() { return thumbnailWidth; }
+    public int getThumbnailInterval() { return thumbnailInterval; }
+    public int getMosaicInterval() { return mosaicInterval; }
+    public boolean isRecordingEnabled() { return recordingEnabled; }
+    public String getRecordingPath() { return recordingPath; }
+    public String getRecordingSharers() { return recordingSharers; }
+    public long getRecordingSegmentBytes() { return recordingSegmentBytes; }
+    public int getRecordingCommitInterval() { return recordingCommitInterval; }
+    public int getRecordingIndexInterval() { return recordingIndexInterval; }
+    public long getRecordingBacklogBytes() { return recordingBacklogBytes; }
+    public boolean isPlaybackEnabled() { return playbackEnabled; }
+    public int getPlaybackPort() { return playbackPort; }
+    public int getClusterNodeId() { return clusterNodeId; }
+    public int getClusterPort() { return clusterPort; }
+    public String getClusterPeers() { return clusterPeers; }
+    public int getClusterGossipInterval() { return clusterGossipInterval; }
+    public int getClusterPeerTimeout() { return clusterPeerTimeout; }
+    public boolean isRelayTreeEnabled() { return relayTreeEnabled; }
+    public int getRelayRootDegree() { return relayRootDegree; }
+    public int getRelayMaxChildren() { return relayMaxChildren; }
+    public int getRelayRepairInterval() { return relayRepairInterval; }
+    public boolean isPipelineEnabled() { return pipelineEnabled; }
+    public int getPipelineRouteThreads() { return pipelineRouteThreads; }
+    public int getPipelineEgressThreads() { return pipelineEgressThreads; }
+    public int getPipelineRingSize() { return pipelineRingSize; }
+    public WaitStrategy getPipelineWait() { return pipelineWait; }
+    public String getPipelineCpus() { return pipelineCpus; }
+    public int getPipelineReportInterval() { return pipelineReportInterval; }
+    public boolean isShmEnabled() { return shmEnabled; }
+    public String getShmDir() { return shmDir; }
+    public int getShmRingSize() { return shmRingSize; }
+    public boolean isSslEnabled() { return sslEnabled; }
+    public String getSslKeystore() { return sslKeystore; }
+    public String getSslKeystorePassword() { return sslKeystorePassword; }
+    public String getSslTruststore() { return sslTruststore; }
+    public String getSslTruststorePassword() { return sslTruststorePassword; }
+    public int getSslSessionTimeout() { return sslSessionTimeout; }
+    public boolean isResumeEnabled() { return resumeEnabled; }
+    public long getResumeGrace() { return resumeGrace; }
+    public int getResumeBufferSize() { return resumeBufferSize; }
 
     // Setters (for command line overrides)
     public void setPort(int port) { this.port = port; }
     public void setUdpPort(int udpPort) { this.udpPort = udpPort; }
     public void setMaxClients(int maxClients) { this.maxClients = maxClients; }
     public void setThreadPoolSize(int threadPoolSize) { this.threadPoolSize = threadPoolSize; }
+    public void setAcceptShards(int acceptShards) { this.acceptShards = acceptShards; }
+    public void setAcceptBacklog(int acceptBacklog) { this.acceptBacklog = acceptBacklog; }
+    public void setUnixSocketPath(String unixSocketPath) { this.unixSocketPath = unixSocketPath; }
     public void setHeartbeatInterval(int heartbeatInterval) { this.heartbeatInterval = heartbeatInterval; }
     public void setClientTimeout(int clientTimeout) { this.clientTimeout = clientTimeout; }
     public void setLogLevel(String logLevel) { this.logLevel = logLevel; }
     public void setEnableUdp(boolean enableUdp) { this.enableUdp = enableUdp; }
     public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
     public void setMaxPayloadSize(int maxPayloadSize) { this.maxPayloadSize = maxPayloadSize; }
+    public void setWriteCoalesceMicros(int writeCoalesceMicros) { this.writeCoalesceMicros = writeCoalesceMicros; }
+    public void setWriteCoalesceBytes(int writeCoalesceBytes) { this.writeCoalesceBytes = writeCoalesceBytes; }
+    public void setWriteChunkBytes(int writeChunkBytes) { this.writeChunkBytes = writeChunkBytes; }
+    public void setCompression(String compression) { this.compression = compression; }
+    public void setCompressionThreshold(int compressionThreshold) { this.compressionThreshold = compressionThreshold; }
+    public void setReportInterval(int reportInterval) { this.reportInterval = reportInterval; }
+    public void setSessionIngressRate(long sessionIngressRate) { this.sessionIngressRate = sessionIngressRate; }
+    public void setSessionEgressRate(long sessionEgressRate) { this.sessionEgressRate = sessionEgressRate; }
+    public void setGlobalEgressRate(long globalEgressRate) { this.globalEgressRate = globalEgressRate; }
+    public void setRateBurst(int rateBurst) { this.rateBurst = rateBurst; }
+    public void setIngressShedPolicy(ShedPolicy ingressShedPolicy) { this.ingressShedPolicy = ingressShedPolicy; }
+    public void setThumbnailWidth(int thumbnailWidth) { this.thumbnailWidth = thumbnailWidth; }
+    public void setThumbnailInterval(int thumbnailInterval) { this.thumbnailInterval = thumbnailInterval; }
+    public void setMosaicInterval(int mosaicInterval) { this.mosaicInterval = mosaicInterval; }
+    public void setRecordingEnabled(boolean recordingEnabled) { this.recordingEnabled = recordingEnabled; }
+    public void setRecordingPath(String recordingPath) { this.recordingPath = recordingPath; }
+    public void setRecordingSharers(String recordingSharers) { this.recordingSharers = recordingSharers; }
+    public void setRecordingSegmentBytes(long recordingSegmentBytes) { this.recordingSegmentBytes = recordingSegmentBytes; }
+    public void setRecordingCommitInterval(int recordingCommitInterval) { this.recordingCommitInterval = recordingCommitInterval; }
+    public void setRecordingIndexInterval(int recordingIndexInterval) { this.recordingIndexInterval = recordingIndexInterval; }
+    public void setRecordingBacklogBytes(long recordingBacklogBytes) { this.recordingBacklogBytes = recordingBacklogBytes; }
+    public void setPlaybackEnabled(boolean playbackEnabled) { this.playbackEnabled = playbackEnabled; }
+    public void setPlaybackPort(int playbackPort) { this.playbackPort = playbackPort; }
+    public void setClusterNodeId(int clusterNodeId) { this.clusterNodeId = clusterNodeId; }
+    public void setClusterPort(int clusterPort) { this.clusterPort = clusterPort; }
+    public void setClusterPeers(String clusterPeers) { this.clusterPeers = clusterPeers; }
+    public void setClusterGossipInterval(int clusterGossipInterval) { this.clusterGossipInterval = clusterGossipInterval; }
+    public void setClusterPeerTimeout(int clusterPeerTimeout) { this.clusterPeerTimeout = clusterPeerTimeout; }
+    public void setRelayTreeEnabled(boolean relayTreeEnabled) { this.relayTreeEnabled = relayTreeEnabled; }
+    public void setRelayRootDegree(int relayRootDegree) { this.relayRootDegree = relayRootDegree; }
+    public void setRelayMaxChildren(int relayMaxChildren) { this.relayMaxChildren = relayMaxChildren; }
+    public void setRelayRepairInterval(int relayRepairInterval) { this.relayRepairInterval = relayRepairInterval; }
+    public void setPipelineEnabled(boolean pipelineEnabled) { this.pipelineEnabled = pipelineEnabled; }
+    public void setPipelineRouteThreads(int pipelineRouteThreads) { this.pipelineRouteThreads = pipelineRouteThreads; }
+    public void setPipelineEgressThreads(int pipelineEgressThreads) { this.pipelineEgressThreads = pipelineEgressThreads; }
+    public void setPipelineRingSize(int pipelineRingSize) { this.pipelineRingSize = pipelineRingSize; }
+    public void setPipelineWait(WaitStrategy pipelineWait) { this.pipelineWait = pipelineWait; }
+    public void setPipelineCpus(String pipelineCpus) { this.pipelineCpus = pipelineCpus; }
+    public void setPipelineReportInterval(int pipelineReportInterval) { this.pipelineReportInterval = pipelineReportInterval; }
+    public void setShmEnabled(boolean shmEnabled) { this.shmEnabled = shmEnabled; }
+    public void setShmDir(String shmDir) { this.shmDir = shmDir; }
+    public void setShmRingSize(int shmRingSize) { this.shmRingSize = shmRingSize; }
+    public void setSslEnabled(boolean sslEnabled) { this.sslEnabled = sslEnabled; }
+    public void setSslKeystore(String sslKeystore) { this.sslKeystore = sslKeystore; }
+    public void setSslKeystorePassword(String sslKeystorePassword) { this.sslKeystorePassword = sslKeystorePassword; }
+    public void setSslTruststore(String sslTruststore) { this.sslTruststore = sslTruststore; }
+    public void setSslTruststorePassword(String sslTruststorePassword) { this.sslTruststorePassword = sslTruststorePassword; }
+    public void setSslSessionTimeout(int sslSessionTimeout) { this.sslSessionTimeout = sslSessionTimeout; }
+    public void setResumeEnabled(boolean resumeEnabled) { this.resumeEnabled = resumeEnabled; }
+    public void setResumeGrace(long resumeGrace) { this.resumeGrace = resumeGrace; }
+    public void setResumeBufferSize(int resumeBufferSize) { this.resumeBufferSize = resumeBufferSize; }
 }
 
 /* 2025-06-19 16:26:50: Refactored network layer */
@@ -0,0 +1,524 @@
+// SessionRecorder.java
+package com.screenshare.server;
+
+import com.screenshare.common.Fragment;
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.WireCodecV1;
+import com.screenshare.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Records the SCREEN_DATA of selected sharers, one directory per recorded share
+// (<clientId>-<start millis>) holding numbered segments of about segment.bytes each.
+//
+// A segment is nothing but version 1 frames, byte for byte as WireCodecV1 puts them on
+// the wire, so it can be replayed without parsing. Next to it a sparse index holds the
+// timestamp and offset of one frame per index interval, always including the segment's
+// first; every frame is a full JPEG, so playback can start at any indexed one.
+//
+// The relay path never waits for the disk: whole frames and the pieces of streamed ones
+// are queued by reference for a single writer thread, and a frame that would take the
+// backlog over its budget is dropped whole. The writer appends with FileChannel and
+// commits in groups: once per commit interval it forces each segment written since the
+// last commit and only then appends the index entries of the frames now on disk, so an
+// index never points past durable data.
+public class SessionRecorder {
+    // Timestamp and offset of an indexed frame, both longs
+    public static final int INDEX_ENTRY_BYTES = 16;
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String INDEX_SUFFIX = ".idx";
+    private static final String ROOM_PREFIX = "room:";
+
+    private final boolean enabled;
+    private final Path root;
+    // Client names and room names to record, both null for every sharer
+    private final Set<String> selectedNames;
+    private final Set<String> selectedRooms;
+    private final long segmentBytes;
+    private final long commitMillis;
+    private final long indexIntervalMillis;
+    private final long backlogLimit;
+    private final Map<Integer, Recording> recordings = new ConcurrentHashMap<>();
+    private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+    // Bytes of queued frames not yet on disk, reserved in full when a frame is queued
+    private final AtomicLong backlog = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final LongAdder recordedFrames = new LongAdder();
+    private final LongAdder recordedBytes = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    // Writer thread only
+    private final Set<Recording> uncommitted = new LinkedHashSet<>();
+
+    public SessionRecorder(ServerConfig config) {
+        this.enabled = config.isRecordingEnabled();
+        this.root = Paths.get(config.getRecordingPath());
+        String sharers = config.getRecordingSharers().trim();
+        this.selectedNames = sharers.equals("*") ? null : parseSharers(sharers, false);
+        this.selectedRooms = sharers.equals("*") ? null : parseSharers(sharers, true);
+        this.segmentBytes = Math.max(1024 * 1024, config.getRecordingSegmentBytes());
+        this.commitMillis = Math.max(1, config.getRecordingCommitInterval());
+        this.indexIntervalMillis = Math.max(0, config.getRecordingIndexInterval());
+        this.backlogLimit = Math.max(Protocol.MAX_PAYLOAD_SIZE, config.getRecordingBacklogBytes());
+        this.writer = new Thread(this::writeLoop, "recording-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // "*" records every sharer, otherwise a comma separated list of client names (the
+    // client's client.name) and "room:<name>" entries for everyone sharing in that room.
+    // Session ids are handed out anew on every connect, so they select nothing lasting.
+    private static Set<String> parseSharers(String sharers, boolean rooms) {
+        Set<String> names = new HashSet<>();
+        for (String entry : sharers.split(",")) {
+            String name = entry.trim();
+            if (name.startsWith(ROOM_PREFIX) == rooms && !name.isEmpty()) {
+                names.add(rooms ? name.substring(ROOM_PREFIX.length()).trim() : name);
+            }
+        }
+        return names;
+    }
+
+    public void start() {
+        if (enabled) {
+            writer.start();
+            Logger.info("Recording " + (selectedNames == null ? "all sharers"
+                    : "clients " + selectedNames + " and rooms " + selectedRooms) + " to " + root);
+        }
+    }
+
+    // Ends every recording and waits for the writer to commit what is queued
+    public void stop() {
+        for (Integer sharerId : recordings.keySet()) {
+            end(sharerId);
+        }
+        running = false;
+        if (writer.isAlive()) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Decided when the share starts, by the client's name and the rooms it is in then
+    public boolean selects(String clientName, Collection<String> rooms) {
+        if (!enabled) {
+            return false;
+        }
+        if (selectedNames == null || (!clientName.isEmpty() && selectedNames.contains(clientName))) {
+            return true;
+        }
+        for (String room : rooms) {
+            if (selectedRooms.contains(room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isRecording(int sharerId) {
+        return recordings.containsKey(sharerId);
+    }
+
+    // Starts a new recording when a selected sharer starts sharing; a share already
+    // being recorded carries on
+    public void begin(int sharerId, String clientId, String clientName, Collection<String> rooms) {
+        if (!running || !selects(clientName, rooms)) {
+            return;
+        }
+        Recording recording = new Recording(sharerId, clientId,
+                root.resolve(clientId + "-" + System.currentTimeMillis()));
+        if (recordings.putIfAbsent(sharerId, recording) == null) {
+            Logger.info("Recording " + clientId + " to " + recording.directory);
+        }
+    }
+
+    public void end(int sharerId) {
+        Recording recording = recordings.remove(sharerId);
+        if (recording != null) {
+            queue.add(new Chunk(recording));
+        }
+    }
+
+    // Relay path, on the sharer's reader thread. Returns whether the frame was queued.
+    public boolean record(int sharerId, Message frame) {
+        Recording recording = recordings.get(sharerId);
+        byte[] payload = frame.getPayload();
+        if (recording == null || payload == null || payload.length == 0) {
+            return false;
+        }
+        ByteBuffer header = WireCodecV1.header(MessageType.SCREEN_DATA, recording.clientId,
+                frame.getTimestamp(), payload.length);
+        int size = header.remaining() + payload.length;
+        if (!fitsVersion1(header) || !reserve(size)) {
+            droppedFrames.increment();
+            return false;
+        }
+        queue.add(new Chunk(recording, -1, 0, frame.getTimestamp(), header, payload, size, true));
+        return true;
+    }
+
+    // Relay path for one piece of a streamed frame. The frame is queued or dropped as a
+    // whole on its first piece; frames too large for a version 1 message are never kept.
+    public void recordPiece(int sharerId, Message piece) {
+        Recording recording = recordings.get(sharerId);
+        if (recording == null) {
+            return;
+        }
+        Fragment fragment = piece.getFragment();
+        byte[] data = piece.getPayload();
+        boolean last = fragment.completes(data.length);
+        if (fragment.isFirst()) {
+            int total = fragment.getTotalLength();
+            ByteBuffer header = WireCodecV1.header(MessageType.SCREEN_DATA, recording.clientId,
+                    piece.getTimestamp(), total);
+            int size = header.remaining() + total;
+            if (!fitsVersion1(header) || !reserve(size)) {
+                droppedFrames.increment();
+                recording.droppedStream = fragment.getStreamId();
+                return;
+            }
+            recording.droppedStream = -1;
+            queue.add(new Chunk(recording, fragment.getStreamId(), 0, piece.getTimestamp(), header, data, size, last));
+        } else if (fragment.getStreamId() != recording.droppedStream) {
+            queue.add(new Chunk(recording, fragment.getStreamId(), fragment.getOffset(), piece.getTimestamp(),
+                    null, data, 0, last));
+        }
+    }
+
+    // Whether a version 1 reader accepts the frame's length prefix
+    private static boolean fitsVersion1(ByteBuffer header) {
+        return header.getInt(0) <= Protocol.MAX_PAYLOAD_SIZE;
+    }
+
+    private boolean reserve(long size) {
+        while (true) {
+            long queued = backlog.get();
+            if (queued + size > backlogLimit) {
+                return false;
+            }
+            if (backlog.compareAndSet(queued, queued + size)) {
+                return true;
+            }
+        }
+    }
+
+    public long getRecordedFrames() {
+        return recordedFrames.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public String describe() {
+        if (!enabled) {
+            return "disabled";
+        }
+        return String.format("%d recording, %d frames (%d bytes) in %d commits, %d dropped, %d bytes queued",
+                recordings.size(), recordedFrames.sum(), recordedBytes.sum(), commits.sum(),
+                droppedFrames.sum(), backlog.get());
+    }
+
+    private void writeLoop() {
+        List<Chunk> batch = new ArrayList<>();
+        long nextCommit = System.currentTimeMillis() + commitMillis;
+        while (running || !queue.isEmpty()) {
+            try {
+                Chunk chunk = queue.poll(Math.max(1, nextCommit - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    batch.add(chunk);
+                    queue.drainTo(batch);
+                    for (Chunk queued : batch) {
+                        write(queued);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                Logger.error("Recording writer failed", e);
+            }
+            if (System.currentTimeMillis() >= nextCommit) {
+                commit();
+                nextCommit = System.currentTimeMillis() + commitMillis;
+            }
+        }
+        commit();
+    }
+
+    private void write(Chunk chunk) {
+        Recording recording = chunk.recording;
+        if (chunk.data == null) {
+            recording.close();
+            return;
+        }
+        try {
+            recording.write(chunk);
+        } catch (IOException e) {
+            recording.fail(e);
+        }
+    }
+
+    // One force per segment written since the last commit, whatever number of frames
+    private void commit() {
+        if (uncommitted.isEmpty()) {
+            return;
+        }
+        for (Recording recording : uncommitted) {
+            try {
+                recording.commit();
+            } catch (IOException e) {
+                recording.fail(e);
+            }
+        }
+        uncommitted.clear();
+        commits.increment();
+    }
+
+    // One recorded share. The reader-side field is only touched by the sharer's reader
+    // thread, everything else by the writer thread.
+    private final class Recording {
+        final int sessionId;
+        final String clientId;
+        final Path directory;
+        // Stream whose pieces are dropped because its first piece was
+        int droppedStream = -1;
+
+        FileChannel segment;
+        FileChannel index;
+        int segmentNumber;
+        int segments;
+        long position;
+        long frames;
+        boolean failed;
+        // The frame being appended: it is complete once position reaches recordEnd
+        boolean appending;
+        int recordStream;
+        long recordStart;
+        long recordPayloadStart;
+        long recordEnd;
+        long recordTimestamp;
+        long recordReserved;
+        long lastIndexed;
+        // Index entries of frames written since the last commit
+        final List<long[]> pendingIndex = new ArrayList<>();
+
+        Recording(int sessionId, String clientId, Path directory) {
+            this.sessionId = sessionId;
+            this.clientId = clientId;
+            this.directory = directory;
+        }
+
+        void write(Chunk chunk) throws IOException {
+            if (chunk.header != null) {
+                abandon();
+                if (failed) {
+                    backlog.addAndGet(-chunk.reserved);
+                    return;
+                }
+                if (segment == null || (position > 0 && position + chunk.reserved > segmentBytes)) {
+                    nextSegment();
+                }
+                appending = true;
+                recordStream = chunk.streamId;
+                recordStart = position;
+                recordEnd = position + chunk.reserved;
+                recordPayloadStart = position + chunk.header.remaining();
+                recordTimestamp = chunk.timestamp;
+                recordReserved = chunk.reserved;
+                append(chunk.header, ByteBuffer.wrap(chunk.data));
+            } else if (appending && chunk.streamId == recordStream && position == recordPayloadStart + chunk.offset) {
+                append(null, ByteBuffer.wrap(chunk.data));
+            } else {
+                // A piece of a frame begun before recording started, or dropped
+                return;
+            }
+            if (chunk.last) {
+                finish();
+            }
+        }
+
+        private void append(ByteBuffer header, ByteBuffer data) throws IOException {
+            ByteBuffer[] buffers = header != null ? new ByteBuffer[]{header, data} : new ByteBuffer[]{data};
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= segment.write(buffers);
+            }
+            position = segment.position();
+            uncommitted.add(this);
+        }
+
+        private void finish() {
+            appending = false;
+            backlog.addAndGet(-recordReserved);
+            if (position != recordEnd) {
+                // Pieces did not add up to the announced length
+                abandonAt(recordStart);
+                return;
+            }
+            if (recordStart == 0 || recordTimestamp - lastIndexed >= indexIntervalMillis) {
+                pendingIndex.add(new long[]{recordTimestamp, recordStart});
+                lastIndexed = recordTimestamp;
+            }
+            frames++;
+            recordedFrames.increment();
+            recordedBytes.add(recordEnd - recordStart);
+        }
+
+        // Drops a frame whose remaining pieces will never come: the sharer started the
+        // next frame or stopped
+        private void abandon() {
+            if (appending) {
+                appending = false;
+                backlog.addAndGet(-recordReserved);
+                abandonAt(recordStart);
+            }
+        }
+
+        private void abandonAt(long offset) {
+            try {
+                segment.truncate(offset);
+                segment.position(offset);
+                position = offset;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void nextSegment() throws IOException {
+            if (segment != null) {
+                commit();
+                closeFiles();
+                segmentNumber++;
+            } else {
+                Files.createDirectories(directory);
+            }
+            String name = String.format("%06d", segmentNumber);
+            segment = FileChannel.open(directory.resolve(name + SEGMENT_SUFFIX),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            index = FileChannel.open(directory.resolve(name + INDEX_SUFFIX),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segments++;
+            position = 0;
+        }
+
+        // The index is not forced: it is only ever appended after the data it points at
+        // was, so after a crash it may lag its segment but never lead it
+        void commit() throws IOException {
+            if (segment == null) {
+                return;
+            }
+            segment.force(false);
+            if (!pendingIndex.isEmpty()) {
+                ByteBuffer entries = ByteBuffer.allocate(pendingIndex.size() * INDEX_ENTRY_BYTES);
+                for (long[] entry : pendingIndex) {
+                    entries.putLong(entry[0]).putLong(entry[1]);
+                }
+                entries.flip();
+                while (entries.hasRemaining()) {
+                    index.write(entries);
+                }
+                pendingIndex.clear();
+            }
+        }
+
+        void close() {
+            abandon();
+            if (segment != null && !failed) {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    fail(e);
+                }
+                closeFiles();
+            }
+            uncommitted.remove(this);
+            Logger.info("Recorded " + frames + " frames of " + clientId + " in " + segments + " segments");
+        }
+
+        void fail(IOException e) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            Logger.error("Recording of " + clientId + " failed, stopping it", e);
+            recordings.remove(sessionId, this);
+            if (appending) {
+                appending = false;
+                backlog.addAndGet(-recordReserved);
+            }
+            closeFiles();
+            uncommitted.remove(this);
+        }
+
+        private void closeFiles() {
+            try {
+                if (segment != null) {
+                    segment.close();
+                }
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                Logger.error("Error closing recording of " + clientId, e);
+            }
+        }
+    }
+
+    // A whole frame (header and data, last set), the first piece of a streamed frame
+    // (header set), a later piece (no header), or the end of a recording (no data).
+    // reserved is the frame's size in the backlog, carried by the chunk with the header.
+    private static final class Chunk {
+        final Recording recording;
+        final int streamId;
+        final int offset;
+        final long timestamp;
+        final ByteBuffer header;
+        final byte[] data;
+        final int reserved;
+        final boolean last;
+
+        Chunk(Recording recording, int streamId, int offset, long timestamp, ByteBuffer header, byte[] data,
+              int reserved, boolean last) {
+            this.recording = recording;
+            this.streamId = streamId;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.header = header;
+            this.data = data;
+            this.reserved = reserved;
+            this.last = last;
+        }
+
+        Chunk(Recording recording) {
+            this(recording, -1, 0, 0, null, null, 0, true);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+// SessionRegistry.java
+package com.screenshare.server;
+
+import com.screenshare.common.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Connected sessions keyed by their server-assigned 32-bit session id, the rooms they
+// are in, and the routing table from every active share to its subscribers.
+//
+// A share reaches the members of the sharer's rooms, less those who unsubscribed from
+// it. Every session starts in Protocol.DEFAULT_ROOM, so clients that never join a room
+// see each other's shares as before.
+//
+// Lookups on the relay path take no lock. Each share's route (its viewers, and the rooms
+// it publishes into with their fan-out) is an immutable snapshot in a concurrent map:
+// viewersOf() hands out the current one, so a broadcast never copies anything and sees
+// a consistent set of viewers for the whole frame. sessions() is a live view of the
+// concurrent session map. Membership changes (connect, disconnect, share start/stop,
+// room and subscription changes) are rare and serialized on the registry; under that
+// lock each builds fresh snapshots of the routes it affects and swaps them in, so a
+// session can never miss a share created concurrently.
+//
+// In a cluster the registry also holds the sessions of other nodes (isRemote) and one
+// peer session per node whose link is subscribed here (isPeer). Remote sessions never
+// receive anything from here; a peer stands in for all of its node's viewers, so a
+// local share reaches each interested node once. Shares of remote sessions only go to
+// local clients: their own node already sent them to every other node.
+public class SessionRegistry {
+    // Session ids carry the cluster node id in their top bits, so they are unique
+    // across the cluster; node 0 is a server on its own
+    public static final int NODE_SHIFT = 24;
+    private static final int LOCAL_ID_MASK = (1 << NODE_SHIFT) - 1;
+
+    private final Map<Integer, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final Map<Integer, Route> routes = new ConcurrentHashMap<>();
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger(Protocol.SERVER_SESSION_ID);
+    private final AtomicInteger localSessions = new AtomicInteger();
+    private final int nodePrefix;
+
+    // Guarded by this
+    private final Map<Integer, Set<Room>> roomsBySession = new HashMap<>();
+    private final Map<Integer, Set<Integer>> unsubscribed = new HashMap<>();
+
+    public SessionRegistry() {
+        this(0);
+    }
+
+    public SessionRegistry(int nodeId) {
+        this.nodePrefix = nodeId << NODE_SHIFT;
+    }
+
+    public static int nodeOf(int sessionId) {
+        return sessionId >>> NODE_SHIFT;
+    }
+
+    public int allocateSessionId() {
+        while (true) {
+            int local = nextSessionId.incrementAndGet() & LOCAL_ID_MASK;
+            int id = nodePrefix | local;
+            // 0 is the server; after wrapping, skip ids that are still connected
+            if (local != Protocol.SERVER_SESSION_ID && !sessions.containsKey(id)) {
+                return id;
+            }
+        }
+    }
+
+    // Remote and peer sessions take their rooms from cluster gossip instead of starting
+    // in the default room
+    public synchronized void add(ClientHandler session) {
+        sessions.put(session.getSessionId(), session);
+        if (isClient(session)) {
+            localSessions.incrementAndGet();
+            join(session, Protocol.DEFAULT_ROOM);
+        }
+    }
+
+    public synchronized boolean remove(ClientHandler session) {
+        if (!sessions.remove(session.getSessionId(), session)) {
+            return false;
+        }
+        if (isClient(session)) {
+            localSessions.decrementAndGet();
+        }
+        routes.remove(session.getSessionId());
+        unsubscribed.remove(session.getSessionId());
+        for (Set<Integer> muted : unsubscribed.values()) {
+            muted.remove(session.getSessionId());
+        }
+        Set<Room> memberOf = roomsBySession.remove(session.getSessionId());
+        if (memberOf != null) {
+            for (Room room : memberOf) {
+                room.members().remove(session);
+                if (room.members().isEmpty()) {
+                    rooms.remove(room.getName());
+                }
+                rebuildRoutesIn(room);
+            }
+        }
+        return true;
+    }
+
+    public ClientHandler get(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // Clients connected to this node, without other nodes' sessions and peer links
+    public int localSize() {
+        return localSessions.get();
+    }
+
+    public Collection<ClientHandler> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    // Opens a share routed to the members of the sharer's rooms
+    public synchronized Set<ClientHandler> startShare(int sharerId) {
+        Route route = routes.get(sharerId);
+        if (route == null && sessions.containsKey(sharerId)) {
+            route = buildRoute(sharerId);
+            routes.put(sharerId, route);
+        }
+        return route != null ? route.viewers : Collections.emptySet();
+    }
+
+    public synchronized void stopShare(int sharerId) {
+        routes.remove(sharerId);
+    }
+
+    public boolean isSharing(int sharerId) {
+        return routes.containsKey(sharerId);
+    }
+
+    // Viewers of an active share, or an empty set when the session is not sharing
+    public Set<ClientHandler> viewersOf(int sharerId) {
+        Route route = routes.get(sharerId);
+        return route != null ? route.viewers : Collections.emptySet();
+    }
+
+    // Counts one relayed frame against every room the sharer publishes into
+    public void recordFrame(int sharerId, long size) {
+        Route route = routes.get(sharerId);
+        if (route != null) {
+            for (int i = 0; i < route.rooms.length; i++) {
+                route.rooms[i].recordFrame(size, route.fanout[i]);
+            }
+        }
+    }
+
+    // Everyone who shares a room with the session, whether subscribed or not: the
+    // audience for its START_SHARE / STOP_SHARE announcements
+    public synchronized Set<ClientHandler> audienceOf(int sessionId) {
+        Set<ClientHandler> audience = new LinkedHashSet<>();
+        for (Room room : roomsOf(sessionId)) {
+            for (ClientHandler member : room.members()) {
+                if (member.getSessionId() != sessionId && isClient(member)) {
+                    audience.add(member);
+                }
+            }
+        }
+        return audience;
+    }
+
+    // Adds the session to a room, creating it on first use. Returns the shares that
+    // became visible because of it: others' shares to this session, and this session's
+    // share to the room's members.
+    public synchronized List<ShareVisibility> join(ClientHandler session, String roomName) {
+        Visible before = visibleAround(session);
+        Room room = rooms.computeIfAbsent(roomName, Room::new);
+        if (!room.members().add(session)) {
+            return Collections.emptyList();
+        }
+        roomsBySession.computeIfAbsent(session.getSessionId(), id -> new HashSet<>()).add(room);
+        rebuildRoutesIn(room);
+        return changes(session, before, visibleAround(session), true);
+    }
+
+    // Returns the shares that are no longer visible, or null if the session was not in the room
+    public synchronized List<ShareVisibility> leave(ClientHandler session, String roomName) {
+        Room room = rooms.get(roomName);
+        if (room == null || !room.members().contains(session)) {
+            return null;
+        }
+        Visible before = visibleAround(session);
+        room.members().remove(session);
+        roomsOf(session.getSessionId()).remove(room);
+        if (room.members().isEmpty()) {
+            rooms.remove(roomName);
+        }
+        rebuildRoutesIn(room);
+        return changes(session, before, visibleAround(session), false);
+    }
+
+    // Resumes a sharer's SCREEN_DATA for a viewer; false if they have no room in common
+    public synchronized boolean subscribe(ClientHandler viewer, int sharerId) {
+        if (sharerId == viewer.getSessionId() || !sharesRoom(viewer.getSessionId(), sharerId)) {
+            return false;
+        }
+        Set<Integer> muted = unsubscribed.get(viewer.getSessionId());
+        if (muted != null && muted.remove(sharerId)) {
+            rebuildRoute(sharerId);
+        }
+        return true;
+    }
+
+    // Stops a sharer's SCREEN_DATA to a viewer; it is still told when the sharer starts
+    // and stops. Sticks until subscribe() or disconnect, also across shares.
+    public synchronized boolean unsubscribe(ClientHandler viewer, int sharerId) {
+        if (sharerId == viewer.getSessionId() || !sessions.containsKey(sharerId)) {
+            return false;
+        }
+        if (unsubscribed.computeIfAbsent(viewer.getSessionId(), id -> new HashSet<>()).add(sharerId)) {
+            rebuildRoute(sharerId);
+        }
+        return true;
+    }
+
+    // Whether the viewer is in one of the sharer's rooms, subscribed or not
+    public synchronized boolean canSee(ClientHandler viewer, int sharerId) {
+        return sharerId != viewer.getSessionId() && sharesRoom(viewer.getSessionId(), sharerId);
+    }
+
+    public Collection<Room> rooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    public synchronized List<String> roomNamesOf(int sessionId) {
+        List<String> names = new ArrayList<>();
+        for (Room room : roomsOf(sessionId)) {
+            names.add(room.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    public synchronized int sharersIn(Room room) {
+        int sharers = 0;
+        for (ClientHandler member : room.members()) {
+            if (routes.containsKey(member.getSessionId())) {
+                sharers++;
+            }
+        }
+        return sharers;
+    }
+
+    // A client of this node: told about shares and sent their frames directly
+    private static boolean isClient(ClientHandler session) {
+        return !session.isRemote() && !session.isPeer();
+    }
+
+    // Whether a share's frames go to a member: local clients always, peers only for
+    // shares that started on this node
+    private static boolean reaches(ClientHandler sharer, ClientHandler member) {
+        return isClient(member) || (member.isPeer() && !sharer.isRemote());
+    }
+
+    private Set<Room> roomsOf(int sessionId) {
+        Set<Room> memberOf = roomsBySession.get(sessionId);
+        return memberOf != null ? memberOf : Collections.emptySet();
+    }
+
+    private boolean sharesRoom(int a, int b) {
+        for (Room room : roomsOf(a)) {
+            if (roomsOf(b).contains(room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rebuildRoutesIn(Room room) {
+        for (Integer sharerId : new ArrayList<>(routes.keySet())) {
+            Route route = routes.get(sharerId);
+            if (route != null && (route.publishesTo(room) || roomsOf(sharerId).contains(room))) {
+                rebuildRoute(sharerId);
+            }
+        }
+    }
+
+    private void rebuildRoute(int sharerId) {
+        if (routes.containsKey(sharerId)) {
+            routes.put(sharerId, buildRoute(sharerId));
+        }
+    }
+
+    private Route buildRoute(int sharerId) {
+        Set<ClientHandler> viewers = new HashSet<>();
+        ClientHandler sharer = sessions.get(sharerId);
+        Room[] publishTo = roomsOf(sharerId).toArray(new Room[0]);
+        int[] fanout = new int[publishTo.length];
+        for (int i = 0; i < publishTo.length; i++) {
+            for (ClientHandler member : publishTo[i].members()) {
+                Set<Integer> muted = unsubscribed.get(member.getSessionId());
+                if (member != sharer && sharer != null && reaches(sharer, member)
+                        && (muted == null || !muted.contains(sharerId))) {
+                    viewers.add(member);
+                    fanout[i]++;
+                }
+            }
+        }
+        return new Route(viewers, publishTo, fanout);
+    }
+
+    // Active shares this session can see, and, if it shares itself, who can see it.
+    // Only local clients are told about shares; peers and remote sessions learn of
+    // them through cluster gossip.
+    private Visible visibleAround(ClientHandler session) {
+        Set<Integer> shares = new HashSet<>();
+        Set<ClientHandler> audience = new HashSet<>();
+        boolean sharing = routes.containsKey(session.getSessionId());
+        for (Room room : roomsOf(session.getSessionId())) {
+            for (ClientHandler member : room.members()) {
+                if (member == session) {
+                    continue;
+                }
+                if (routes.containsKey(member.getSessionId()) && isClient(session)) {
+                    shares.add(member.getSessionId());
+                }
+                if (sharing && isClient(member)) {
+                    audience.add(member);
+                }
+            }
+        }
+        return new Visible(shares, audience);
+    }
+
+    private List<ShareVisibility> changes(ClientHandler session, Visible before, Visible after, boolean joined) {
+        Visible gained = joined ? after : before;
+        Visible kept = joined ? before : after;
+        List<ShareVisibility> changes = new ArrayList<>();
+        for (Integer sharerId : gained.shares) {
+            ClientHandler sharer = sessions.get(sharerId);
+            if (!kept.shares.contains(sharerId) && sharer != null) {
+                changes.add(new ShareVisibility(session, sharer, joined));
+            }
+        }
+        for (ClientHandler viewer : gained.audience) {
+            if (!kept.audience.contains(viewer)) {
+                changes.add(new ShareVisibility(viewer, session, joined));
+            }
+        }
+        return changes;
+    }
+
+    // One viewer starting or ceasing to see one share, to be announced to the viewer
+    // with START_SHARE / STOP_SHARE
+    public static final class ShareVisibility {
+        public final ClientHandler viewer;
+        public final ClientHandler sharer;
+        public final boolean visible;
+
+        ShareVisibility(ClientHandler viewer, ClientHandler sharer, boolean visible) {
+            this.viewer = viewer;
+            this.sharer = sharer;
+            this.visible = visible;
+        }
+    }
+
+    private static final class Visible {
+        final Set<Integer> shares;
+        final Set<ClientHandler> audience;
+
+        Visible(Set<Integer> shares, Set<ClientHandler> audience) {
+            this.shares = shares;
+            this.audience = audience;
+        }
+    }
+
+    // Subscribers of one share, with the rooms it publishes into and how many of each
+    // room's members it reaches, for per-room stats. Replaced, never mutated.
+    private static final class Route {
+        final Set<ClientHandler> viewers;
+        final Room[] rooms;
+        final int[] fanout;
+
+        Route(Set<ClientHandler> viewers, Room[] rooms, int[] fanout) {
+            this.viewers = Collections.unmodifiableSet(viewers);
+            this.rooms = rooms;
+            this.fanout = fanout;
+        }
+
+        boolean publishesTo(Room room) {
+            for (Room candidate : rooms) {
+                if (candidate == room) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+// ShedPolicy.java
+package com.screenshare.server;
+
+// What the server does with a sharer's SCREEN_DATA once the sharer is over its ingress
+// budget. Over-budget frames are never queued: either way the frame is dropped.
+//   DROP        drop the frame and keep the session; the sharer sees the missing
+//               frames in its receiver reports and backs off
+//   DISCONNECT  drop the frame, send ERROR and close the session
+public enum ShedPolicy {
+    DROP,
+    DISCONNECT;
+
+    public static ShedPolicy forName(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "drop":
+                return DROP;
+            case "disconnect":
+                return DISCONNECT;
+            default:
+                throw new IllegalArgumentException("Unknown shed policy: " + name);
+        }
+    }
+}
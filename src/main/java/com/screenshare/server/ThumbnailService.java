@@ -0,0 +1,217 @@
+// ThumbnailService.java
+package com.screenshare.server;
+
+import com.screenshare.common.Message;
+import com.screenshare.common.MessageType;
+import com.screenshare.common.Protocol;
+import com.screenshare.common.ThumbnailBatch;
+import com.screenshare.util.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Small JPEG previews of every active share, for viewers that sent THUMBNAILS.
+//
+// Nothing is done while nobody watches previews. Otherwise the relay path hands over at
+// most one frame per sharer per interval (streamed frames are only reassembled when one
+// is due), and a single renderer thread turns them into thumbnails once per interval:
+// the JPEG is decoded subsampled, close to thumbnail size, instead of in full. Each
+// watcher then gets one THUMBNAILS batch with the previews that changed among the shares
+// it can see.
+public class ThumbnailService {
+    private static final float JPEG_QUALITY = 0.6f;
+
+    private final SessionRegistry registry;
+    private final int width;
+    private final long intervalMillis;
+    private final ScheduledExecutorService renderer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "thumbnail-renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<ClientHandler> watchers = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Preview> previews = new ConcurrentHashMap<>();
+    private final Map<Integer, Preview> ended = new ConcurrentHashMap<>();
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchBytes = new LongAdder();
+
+    public ThumbnailService(SessionRegistry registry, int width, int intervalMillis) {
+        this.registry = registry;
+        this.width = Math.max(16, width);
+        this.intervalMillis = Math.max(100, intervalMillis);
+    }
+
+    public void start() {
+        renderer.scheduleAtFixedRate(this::render, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        renderer.shutdownNow();
+    }
+
+    public void watch(ClientHandler viewer) {
+        if (watchers.add(viewer)) {
+            renderer.execute(() -> sendCurrent(viewer));
+        }
+    }
+
+    public void unwatch(ClientHandler viewer) {
+        watchers.remove(viewer);
+    }
+
+    // Whether the sharer's next frame should be handed over: someone is watching and the
+    // last one taken is an interval old and already rendered. Cheap enough per piece.
+    public boolean wants(int sharerId) {
+        if (watchers.isEmpty()) {
+            return false;
+        }
+        Preview preview = previews.get(sharerId);
+        return preview == null
+                || (preview.frame == null && System.currentTimeMillis() - preview.takenAt >= intervalMillis);
+    }
+
+    // Called from the sharer's reader thread only, so one writer per preview
+    public void offer(int sharerId, Message frame) {
+        if (!wants(sharerId) || frame.getPayload() == null) {
+            return;
+        }
+        Preview preview = previews.computeIfAbsent(sharerId, Preview::new);
+        preview.timestamp = frame.getTimestamp();
+        preview.takenAt = System.currentTimeMillis();
+        preview.frame = frame.getPayload();
+    }
+
+    public void ended(int sharerId) {
+        Preview preview = previews.remove(sharerId);
+        if (preview != null) {
+            ended.put(sharerId, preview);
+        }
+    }
+
+    public String describe() {
+        return String.format("%d watching, %d rendered, %d batches (%d bytes)",
+                watchers.size(), rendered.sum(), batches.sum(), batchBytes.sum());
+    }
+
+    private void render() {
+        if (watchers.isEmpty()) {
+            previews.clear();
+            ended.clear();
+            return;
+        }
+        List<Preview> changed = new ArrayList<>();
+        for (Preview preview : previews.values()) {
+            byte[] frame = preview.frame;
+            if (frame == null) {
+                continue;
+            }
+            ThumbnailBatch.Entry thumbnail = thumbnail(preview.sharerId, preview.timestamp, frame);
+            if (thumbnail != null) {
+                preview.thumbnail = thumbnail;
+                changed.add(preview);
+            }
+            preview.frame = null;
+        }
+        List<Preview> gone = new ArrayList<>();
+        for (Iterator<Preview> it = ended.values().iterator(); it.hasNext(); ) {
+            gone.add(it.next());
+            it.remove();
+        }
+        if (!changed.isEmpty() || !gone.isEmpty()) {
+            sendVisible(changed, gone, watchers);
+        }
+    }
+
+    private void sendCurrent(ClientHandler viewer) {
+        List<Preview> current = new ArrayList<>();
+        for (Preview preview : previews.values()) {
+            if (preview.thumbnail != null) {
+                current.add(preview);
+            }
+        }
+        sendVisible(current, List.of(), Set.of(viewer));
+    }
+
+    // Each viewer only gets previews of shares in its rooms, and hears that a share
+    // ended only if it was shown it; viewers that see the same set share one encoded batch
+    private void sendVisible(List<Preview> changed, List<Preview> gone, Set<ClientHandler> viewers) {
+        Map<Integer, Set<ClientHandler>> audiences = new HashMap<>();
+        for (Preview preview : changed) {
+            audiences.put(preview.sharerId, registry.audienceOf(preview.sharerId));
+        }
+        Map<List<ThumbnailBatch.Entry>, Message> encoded = new HashMap<>();
+        for (ClientHandler viewer : viewers) {
+            List<ThumbnailBatch.Entry> visible = new ArrayList<>();
+            for (Preview preview : changed) {
+                if (audiences.get(preview.sharerId).contains(viewer)) {
+                    visible.add(preview.thumbnail);
+                    preview.shownTo.add(viewer);
+                }
+            }
+            for (Preview preview : gone) {
+                if (preview.shownTo.contains(viewer)) {
+                    visible.add(preview.removal);
+                }
+            }
+            if (visible.isEmpty()) {
+                continue;
+            }
+            Message batch = encoded.computeIfAbsent(visible, list -> {
+                byte[] payload = new ThumbnailBatch(list).toBytes();
+                batchBytes.add(payload.length);
+                return new Message(MessageType.THUMBNAILS, Protocol.SERVER_CLIENT_ID, payload);
+            });
+            batches.increment();
+            viewer.sendMessage(batch);
+        }
+    }
+
+    // Null when the frame is not an image this JVM can decode, e.g. test payloads
+    private ThumbnailBatch.Entry thumbnail(int sharerId, long timestamp, byte[] frame) {
+        try {
+            BufferedImage decoded = Images.decode(frame, width);
+            if (decoded == null) {
+                return null;
+            }
+            int thumbWidth = Math.min(width, decoded.getWidth());
+            int thumbHeight = Math.max(1, (int) ((long) decoded.getHeight() * thumbWidth / decoded.getWidth()));
+            BufferedImage scaled = Images.fit(decoded, thumbWidth, thumbHeight);
+            rendered.increment();
+            return new ThumbnailBatch.Entry(sharerId, timestamp, thumbWidth, thumbHeight,
+                    Images.encodeJpeg(scaled, JPEG_QUALITY));
+        } catch (IOException | RuntimeException e) {
+            Logger.debug("No thumbnail for session " + sharerId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Latest frame taken for a sharer and its last rendered thumbnail
+    private static final class Preview {
+        final int sharerId;
+        final ThumbnailBatch.Entry removal;
+        // Renderer thread only
+        final Set<ClientHandler> shownTo = new HashSet<>();
+        volatile byte[] frame;
+        volatile long timestamp;
+        volatile long takenAt;
+        volatile ThumbnailBatch.Entry thumbnail;
+
+        Preview(int sharerId) {
+            this.sharerId = sharerId;
+            this.removal = new ThumbnailBatch.Entry(sharerId, 0, 0, 0, new byte[0]);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+// BufferPool.java
+package com.screenshare.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size heap buffers taken and given back by any thread, so connections that come
+// and go, and writers that need a buffer for one batch only, keep reusing the same memory
+// instead of allocating per connection or per write. At most maxIdle buffers are kept;
+// beyond that, returned buffers are left to the garbage collector.
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    // Cleared, in write mode
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer != null) {
+            idleCount.decrementAndGet();
+            reused.increment();
+            return buffer.clear();
+        }
+        allocated.increment();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(buffer.clear());
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public String describe() {
+        return String.format("%d x %dKB allocated, %d reused, %d idle",
+                allocated.sum(), bufferSize / 1024, reused.sum(), idleCount.get());
+    }
+}
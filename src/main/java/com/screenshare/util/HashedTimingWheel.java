@@ -0,0 +1,217 @@
+// HashedTimingWheel.java
+package com.screenshare.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hashed timing wheel (Varghese & Lauck) for large numbers of long-lived timeouts.
+//
+// Each timeout lives in the bucket of its deadline tick. A tick only visits one bucket,
+// so the cost per tick is proportional to the timeouts due around that tick, not to the
+// total number scheduled. Rescheduling is lazy: reschedule() only moves the deadline
+// forward (one volatile write, no locking), and when the wheel reaches the old bucket
+// it relinks the timeout into the bucket of its new deadline. Deadlines can only be
+// extended that way; a shorter deadline still fires at the originally scheduled tick.
+//
+// Buckets are only touched by the thread calling advance(); other threads hand new
+// timeouts over through a lock-free queue.
+public class HashedTimingWheel {
+    private final long tickMillis;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile long currentTick;
+    private volatile boolean running;
+    private Thread worker;
+    private int size;
+
+    public HashedTimingWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(this, task);
+        timeout.deadlineTick = deadlineFor(delayMillis);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void start(String threadName) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWorker, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    // Moves the wheel one tick forward and fires everything due. Called by the worker
+    // thread, or directly when the wheel is driven manually (never both).
+    public int advance() {
+        long tick = currentTick + 1;
+        currentTick = tick;
+        transferPending(tick);
+
+        int fired = 0;
+        Bucket bucket = wheel[(int) (tick & mask)];
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                bucket.unlink(timeout);
+                size--;
+            } else if (timeout.deadlineTick <= tick) {
+                bucket.unlink(timeout);
+                size--;
+                timeout.expired = true;
+                fire(timeout);
+                fired++;
+            } else if ((timeout.deadlineTick & mask) != (tick & mask)) {
+                // Deadline was extended: relink where it is now due
+                bucket.unlink(timeout);
+                wheel[(int) (timeout.deadlineTick & mask)].link(timeout);
+            }
+            // else: same bucket, a later revolution
+            timeout = next;
+        }
+        return fired;
+    }
+
+    // Scheduled timeouts, including ones not yet handed to the wheel thread
+    public int size() {
+        return size + pending.size();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private long deadlineFor(long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        return currentTick + ticks;
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = Math.max(timeout.deadlineTick, tick);
+            wheel[(int) (due & mask)].link(timeout);
+            size++;
+        }
+    }
+
+    private void fire(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            Logger.error("Timing wheel task failed", e);
+        }
+    }
+
+    private void runWorker() {
+        long startNanos = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        long ticks = 0;
+        while (running) {
+            long sleepNanos = startNanos + (ticks + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            ticks++;
+            advance();
+        }
+    }
+
+    public static final class Timeout {
+        private final HashedTimingWheel wheel;
+        private final Runnable task;
+        private volatile long deadlineTick;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedTimingWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        // Pushes the deadline out to delayMillis from now; cheap enough to call on every message
+        public void reschedule(long delayMillis) {
+            long deadline = wheel.deadlineFor(delayMillis);
+            if (deadline > deadlineTick) {
+                deadlineTick = deadline;
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+
+        void link(Timeout timeout) {
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void unlink(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -2,14 +2,22 @@
 package com.screenshare.util;
 
 public class Logger {
-    private static final boolean DEBUG = true;
+    private static volatile boolean debugEnabled = true;
+
+    public static void setDebugEnabled(boolean enabled) {
+        debugEnabled = enabled;
+    }
+
+    public static boolean isDebugEnabled() {
+        return debugEnabled;
+    }
 
     public static void info(String message) {
         System.out.println("[INFO] " + timestamp() + " " + message);
     }
 
     public static void debug(String message) {
-        if (DEBUG) {
+        if (debugEnabled) {
             System.out.println("[DEBUG] " + timestamp() + " " + message);
         }
     }
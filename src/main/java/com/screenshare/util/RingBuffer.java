@@ -0,0 +1,153 @@
+// RingBuffer.java
+package com.screenshare.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+// Fixed ring of preallocated entries with one producer and a fixed number of consumers,
+// each of which sees every entry (as in the LMAX Disruptor). The producer fills the entry
+// claim() hands out and publish()es it; a consumer peek()s at its next entry and
+// release()s it when done with it, and the producer only reuses an entry once every
+// consumer has released it. Sequences are plain counters, so nothing is locked and
+// nothing is allocated after construction.
+//
+// Occupancy (entries published but not yet released by the slowest consumer) is sampled
+// on every publish; a ring that fills up means the stage consuming it is the one that
+// cannot keep up.
+public class RingBuffer<E> {
+    private final Object[] entries;
+    private final int mask;
+    private final WaitStrategy wait;
+    // Last sequence each consumer released, one per 16 longs so consumers do not share
+    // a cache line
+    private final AtomicLongArray released;
+    private final int consumers;
+    private volatile long published = -1;
+    private volatile boolean closed;
+    // Producer only
+    private long claimed = -1;
+    private long slowest = -1;
+
+    // Written by the producer only, read by describe()
+    private volatile long publishes;
+    private volatile long occupancySum;
+    private volatile long peakOccupancy;
+    private volatile long fullWaits;
+
+    public RingBuffer(int size, Supplier<E> factory, int consumers, WaitStrategy wait) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.entries = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = factory.get();
+        }
+        this.mask = capacity - 1;
+        this.wait = wait;
+        this.consumers = consumers;
+        this.released = new AtomicLongArray(consumers * 16);
+        for (int i = 0; i < consumers; i++) {
+            released.set(i * 16, -1);
+        }
+    }
+
+    // The next entry to fill, waiting while the slowest consumer still holds it; null
+    // once the ring is closed. Producer only.
+    @SuppressWarnings("unchecked")
+    public E claim() {
+        long next = claimed + 1;
+        if (next - entries.length > slowest) {
+            slowest = slowest();
+            if (next - entries.length > slowest) {
+                fullWaits++;
+                int rounds = 0;
+                while (next - entries.length > (slowest = slowest())) {
+                    if (closed) {
+                        return null;
+                    }
+                    wait.idle(rounds++);
+                }
+            }
+        }
+        if (closed) {
+            return null;
+        }
+        claimed = next;
+        return (E) entries[(int) next & mask];
+    }
+
+    // Makes the claimed entry visible to consumers. Producer only.
+    public void publish() {
+        long occupancy = claimed - slowest;
+        publishes++;
+        occupancySum += occupancy;
+        if (occupancy > peakOccupancy) {
+            peakOccupancy = occupancy;
+        }
+        published = claimed;
+    }
+
+    // The consumer's next entry, or null if none has been published yet. It stays the
+    // consumer's until release.
+    @SuppressWarnings("unchecked")
+    public E peek(int consumer) {
+        long next = released.get(consumer * 16) + 1;
+        return next <= published ? (E) entries[(int) next & mask] : null;
+    }
+
+    public void release(int consumer) {
+        int slot = consumer * 16;
+        released.lazySet(slot, released.get(slot) + 1);
+    }
+
+    // Waits until every consumer has released the entries published so far, or until the
+    // timeout; false on timeout or when the ring was closed first
+    public boolean awaitReleased(long timeoutNanos) {
+        long target = published;
+        long deadline = System.nanoTime() + timeoutNanos;
+        int rounds = 0;
+        while (slowest() < target) {
+            if (closed || System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            wait.idle(rounds++);
+        }
+        return true;
+    }
+
+    // Wakes a producer waiting for room; claim() returns null from now on
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    public long getPublished() {
+        return published + 1;
+    }
+
+    public long getFullWaits() {
+        return fullWaits;
+    }
+
+    public long getPeakOccupancy() {
+        return peakOccupancy;
+    }
+
+    public double getAverageOccupancy() {
+        long count = publishes;
+        return count == 0 ? 0 : (double) occupancySum / count;
+    }
+
+    private long slowest() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < consumers; i++) {
+            min = Math.min(min, released.get(i * 16));
+        }
+        return min;
+    }
+}
@@ -0,0 +1,72 @@
+// TokenBucket.java
+package com.screenshare.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte-rate limiter in its GCRA form: instead of a token count refilled by a timer, the
+// bucket keeps the time at which it will be empty of debt again. Acquiring moves that
+// time forward by size / rate, with a single CAS, so concurrent senders never block.
+//
+// A frame is admitted while the bucket's debt is within burst, whatever its own size:
+// one large frame may overdraw the bucket, and the frames after it are refused until the
+// debt is paid back. That keeps frames whole instead of requiring burst >= largest frame.
+public class TokenBucket {
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    private final boolean unlimited;
+    // Time at which all admitted bytes will have drained at the configured rate
+    private final AtomicLong drainedAt;
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder throttledBytes = new LongAdder();
+
+    // rate in bytes per second (0 = unlimited); burst in bytes admitted back to back
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        this.unlimited = bytesPerSecond <= 0;
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = unlimited ? 0 : nanosFor(Math.max(0, burstBytes));
+        this.drainedAt = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire(long bytes) {
+        if (unlimited) {
+            return true;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long current = drainedAt.get();
+            long start = current - now > 0 ? current : now;
+            if (start - now > burstNanos) {
+                throttled.increment();
+                throttledBytes.add(bytes);
+                return false;
+            }
+            if (drainedAt.compareAndSet(current, start + nanosFor(bytes))) {
+                return true;
+            }
+        }
+    }
+
+    // Gives back bytes acquired for something that was not sent after all
+    public void refund(long bytes) {
+        if (!unlimited) {
+            drainedAt.addAndGet(-nanosFor(bytes));
+        }
+    }
+
+    private long nanosFor(long bytes) {
+        return bytes * 1_000_000_000L / bytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getThrottledBytes() {
+        return throttledBytes.sum();
+    }
+}
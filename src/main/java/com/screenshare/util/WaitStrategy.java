@@ -0,0 +1,44 @@
+// WaitStrategy.java
+package com.screenshare.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+// How a thread waits on a RingBuffer, for work or for room, without a lock to block on.
+// Callers count their consecutive idle rounds and pass the count in, so the wait backs
+// off the longer there has been nothing to do:
+//   SPIN   never gives up the CPU: lowest latency, one core per waiting thread
+//   YIELD  spins briefly, then yields to other runnable threads between checks
+//   PARK   spins, yields, then sleeps PARK_NANOS between checks; the default, and the
+//          only sensible one when the stage threads outnumber the cores
+public enum WaitStrategy {
+    SPIN,
+    YIELD,
+    PARK;
+
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    public void idle(int rounds) {
+        if (this == SPIN || rounds < SPIN_ROUNDS) {
+            Thread.onSpinWait();
+        } else if (this == YIELD || rounds < SPIN_ROUNDS + YIELD_ROUNDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    public static WaitStrategy forName(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "spin":
+                return SPIN;
+            case "yield":
+                return YIELD;
+            case "park":
+                return PARK;
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+}